@@ -29,11 +29,15 @@
  */
 package bdv;
 
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import javax.swing.ActionMap;
@@ -55,9 +59,13 @@ import org.scijava.ui.behaviour.io.yaml.YamlConfigIO;
 import bdv.cache.CacheControl;
 import bdv.export.ProgressWriter;
 import bdv.export.ProgressWriterConsole;
+import bdv.img.cache.CacheManager;
+import bdv.img.cache.CacheSnapshot;
+import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.WrapBasicImgLoader;
 import bdv.spimdata.XmlIoSpimDataMinimal;
+import bdv.tools.CoarseLevelPinning;
 import bdv.tools.HelpDialog;
 import bdv.tools.InitializeViewerState;
 import bdv.tools.RecordMaxProjectionDialog;
@@ -74,17 +82,21 @@ import bdv.tools.crop.CropDialog;
 import bdv.tools.transformation.ManualTransformation;
 import bdv.tools.transformation.ManualTransformationEditor;
 import bdv.tools.transformation.TransformedSource;
+import bdv.util.Prefs;
 import bdv.viewer.NavigationActions;
+import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import bdv.viewer.ViewerFrame;
 import bdv.viewer.ViewerOptions;
 import bdv.viewer.ViewerPanel;
+import bdv.viewer.render.ViewEvictionCost;
 import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
 import net.imglib2.Volatile;
 import net.imglib2.display.RealARGBColorConverter;
 import net.imglib2.display.ScaledARGBConverter;
@@ -124,6 +136,18 @@ public class BigDataViewer
 
 	protected File proposedSettingsFile;
 
+	/**
+	 * The cache of the image loader, if it is a
+	 * {@link VolatileGlobalCellCache}. Otherwise {@code null}.
+	 */
+	protected final VolatileGlobalCellCache cellCache;
+
+	/**
+	 * The image loader, if it is a {@link ViewerImgLoader}. Otherwise
+	 * {@code null}.
+	 */
+	protected final ViewerImgLoader imgLoader;
+
 	public void toggleManualTransformation()
 	{
 		manualTransformationEditor.toggle();
@@ -341,6 +365,57 @@ public class BigDataViewer
 			viewerFrame.setTitle( windowTitle );
 		viewer = viewerFrame.getViewerPanel();
 
+		cellCache = cache instanceof VolatileGlobalCellCache ? ( VolatileGlobalCellCache ) cache : null;
+		imgLoader = spimData != null && spimData.getSequenceDescription().getImgLoader() instanceof ViewerImgLoader
+				? ( ViewerImgLoader ) spimData.getSequenceDescription().getImgLoader()
+				: null;
+		if ( cellCache != null && options.values.isViewAwareEviction() )
+		{
+			final HashMap< Source< ? >, Integer > setupIds = new HashMap<>();
+			if ( sources.size() == converterSetups.size() )
+				for ( int i = 0; i < sources.size(); ++i )
+					setupIds.put( sources.get( i ).getSpimSource(), converterSetups.get( i ).getSetupId() );
+			List< Integer > timepointIds = null;
+			if ( spimData != null )
+			{
+				timepointIds = new ArrayList<>();
+				for ( final TimePoint timepoint : spimData.getSequenceDescription().getTimePoints().getTimePointsOrdered() )
+					timepointIds.add( timepoint.getId() );
+			}
+			final ViewEvictionCost evictionCost = new ViewEvictionCost( viewer, cellCache, setupIds, timepointIds );
+			viewer.addRenderTransformListener( evictionCost );
+			cellCache.setRetentionCost( evictionCost );
+		}
+		if ( cellCache != null )
+			CacheManager.getInstance().activate( cellCache );
+		viewerFrame.addWindowListener( new WindowAdapter()
+		{
+			@Override
+			public void windowActivated( final WindowEvent e )
+			{
+				if ( cellCache != null )
+					CacheManager.getInstance().activate( cellCache );
+			}
+
+			@Override
+			public void windowClosing( final WindowEvent e )
+			{
+				if ( cellCache != null && options.values.isViewAwareEviction() )
+					cellCache.setRetentionCost( null );
+				if ( Prefs.cacheSnapshotOnExit() && cellCache != null && proposedSettingsFile != null )
+				{
+					try
+					{
+						saveCacheSnapshotInBackground( proposedSettingsFile.getCanonicalPath() );
+					}
+					catch ( final IOException ex )
+					{
+						ex.printStackTrace();
+					}
+				}
+			}
+		} );
+
 		for ( final ConverterSetup cs : converterSetups )
 			cs.setViewer( viewer );
 
@@ -421,6 +496,13 @@ public class BigDataViewer
 		miSaveSettings.setText( "Save settings" );
 		menu.add( miSaveSettings );
 
+		if ( cellCache != null )
+		{
+			final JMenuItem miSaveCacheSnapshot = new JMenuItem( actionMap.get( BigDataViewerActions.SAVE_CACHE_SNAPSHOT ) );
+			miSaveCacheSnapshot.setText( "Save cache snapshot" );
+			menu.add( miSaveCacheSnapshot );
+		}
+
 		menu = new JMenu( "Settings" );
 		menubar.add( menu );
 
@@ -478,9 +560,35 @@ public class BigDataViewer
 		final AbstractSequenceDescription< ?, ?, ? > seq = spimData.getSequenceDescription();
 		final int numTimepoints = seq.getTimePoints().size();
 		final CacheControl cache = ( ( ViewerImgLoader ) seq.getImgLoader() ).getCacheControl();
+		if ( cache instanceof VolatileGlobalCellCache )
+		{
+			final VolatileGlobalCellCache cellCache = ( VolatileGlobalCellCache ) cache;
+			final long maxCacheBytes = options.values.getMaxCacheBytes();
+			if ( maxCacheBytes > 0 )
+			{
+				if ( CacheManager.getInstance().isManaged( cellCache ) )
+					CacheManager.getInstance().setMaxCacheBytes( maxCacheBytes );
+				else
+					cellCache.setMaxCacheBytes( maxCacheBytes );
+			}
+			final long maxOffHeapCacheBytes = options.values.getMaxOffHeapCacheBytes();
+			if ( maxOffHeapCacheBytes > 0 )
+				cellCache.setMaxOffHeapBytes( maxOffHeapCacheBytes );
+			final long maxCompressedCacheBytes = options.values.getMaxCompressedCacheBytes();
+			if ( maxCompressedCacheBytes > 0 )
+				cellCache.setMaxCompressedBytes( maxCompressedCacheBytes );
+		}
 
 		final BigDataViewer bdv = new BigDataViewer( converterSetups, sources, spimData, numTimepoints, cache, windowTitle, progressWriter, options );
 
+		final int numPinnedLevels = options.values.getNumPinnedLevels();
+		if ( cache instanceof VolatileGlobalCellCache && numPinnedLevels > 0 )
+		{
+			final CoarseLevelPinning pinning = new CoarseLevelPinning( spimData, ( VolatileGlobalCellCache ) cache, numPinnedLevels, options.values.getPinnedTimepointRadius() );
+			bdv.viewer.addTimePointListener( pinning );
+			pinning.timePointChanged( bdv.viewer.getState().getCurrentTimepoint() );
+		}
+
 		WrapBasicImgLoader.removeWrapperIfPresent( spimData );
 
 		bdv.viewerFrame.setVisible( true );
@@ -592,15 +700,121 @@ public class BigDataViewer
 	}
 
 	public void saveSettings( final String xmlFilename ) throws IOException
+	{
+		final Document doc = new Document( settingsToXml() );
+		final XMLOutputter xout = new XMLOutputter( Format.getPrettyFormat() );
+		xout.output( doc, new FileWriter( xmlFilename ) );
+	}
+
+	private Element settingsToXml()
 	{
 		final Element root = new Element( "Settings" );
 		root.addContent( viewer.stateToXml() );
 		root.addContent( setupAssignments.toXml() );
 		root.addContent( manualTransformation.toXml() );
 		root.addContent( bookmarks.toXml() );
-		final Document doc = new Document( root );
+		return root;
+	}
+
+	/**
+	 * Ask for a settings file and save a snapshot of the cells that are
+	 * currently in the cache to it (see {@link #saveCacheSnapshot(String)}).
+	 * The snapshot is written in the background.
+	 */
+	public void saveCacheSnapshot()
+	{
+		if ( cellCache == null )
+			return;
+		fileChooser.setSelectedFile( proposedSettingsFile );
+		final int returnVal = fileChooser.showSaveDialog( null );
+		if ( returnVal == JFileChooser.APPROVE_OPTION )
+		{
+			proposedSettingsFile = fileChooser.getSelectedFile();
+			try
+			{
+				saveCacheSnapshotInBackground( proposedSettingsFile.getCanonicalPath() );
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Save a snapshot of the cells that are currently in the cache to the
+	 * settings file {@code xmlFilename}, such that they are loaded again when
+	 * the settings are loaded. If the settings file exists, only its cache
+	 * snapshot is replaced. Otherwise, all settings are saved. If
+	 * {@link Prefs#cacheSnapshotData()} is set, the cell data is written to a
+	 * file next to the settings file.
+	 *
+	 * @param xmlFilename
+	 *            the settings file.
+	 */
+	public void saveCacheSnapshot( final String xmlFilename ) throws IOException, JDOMException
+	{
+		if ( cellCache == null )
+			return;
+		final Element settings = new File( xmlFilename ).isFile() ? null : settingsToXml();
+		writeCacheSnapshot( CacheSnapshot.create( cellCache ), settings, xmlFilename );
+	}
+
+	/**
+	 * Like {@link #saveCacheSnapshot(String)}, but only take the snapshot on
+	 * the calling thread (for example the event dispatch thread), and write
+	 * the files on a separate thread. That thread is not a daemon, so the JVM
+	 * does not exit before the files are written.
+	 */
+	private void saveCacheSnapshotInBackground( final String xmlFilename )
+	{
+		if ( cellCache == null )
+			return;
+		final Element settings = new File( xmlFilename ).isFile() ? null : settingsToXml();
+		final CacheSnapshot snapshot = CacheSnapshot.create( cellCache );
+		new Thread( () -> {
+			try
+			{
+				writeCacheSnapshot( snapshot, settings, xmlFilename );
+			}
+			catch ( final Exception e )
+			{
+				e.printStackTrace();
+			}
+		}, "bdv-cache-snapshot" ).start();
+	}
+
+	/**
+	 * Write {@code snapshot} to the settings file {@code xmlFilename},
+	 * replacing the snapshot in the existing file, or together with
+	 * {@code settings} if it is not {@code null}. If
+	 * {@link Prefs#cacheSnapshotData()} is set, the cell data is written to a
+	 * file next to the settings file.
+	 */
+	private synchronized void writeCacheSnapshot( final CacheSnapshot snapshot, final Element settings, final String xmlFilename ) throws IOException, JDOMException
+	{
+		String dataFileName = null;
+		if ( Prefs.cacheSnapshotData() )
+		{
+			final String base = xmlFilename.endsWith( ".xml" )
+					? xmlFilename.substring( 0, xmlFilename.length() - ".xml".length() )
+					: xmlFilename;
+			final File dataFile = new File( base + ".cells" );
+			snapshot.writeData( cellCache, dataFile );
+			dataFileName = dataFile.getName();
+		}
+
+		final Document doc = settings == null
+				? new SAXBuilder().build( xmlFilename )
+				: new Document( settings );
+		final Element root = doc.getRootElement();
+		root.removeChildren( CacheSnapshot.TAG );
+		root.addContent( snapshot.toXml( dataFileName ) );
 		final XMLOutputter xout = new XMLOutputter( Format.getPrettyFormat() );
-		xout.output( doc, new FileWriter( xmlFilename ) );
+		try ( final Writer writer = new FileWriter( xmlFilename ) )
+		{
+			xout.output( doc, writer );
+		}
 	}
 
 	/**
@@ -683,6 +897,19 @@ public class BigDataViewer
 		bookmarks.restoreFromXml( root );
 		activeSourcesDialog.update();
 		viewer.requestRepaint();
+
+		if ( cellCache != null && imgLoader != null )
+		{
+			final CacheSnapshot snapshot = CacheSnapshot.fromXml( root );
+			if ( snapshot != null )
+			{
+				final String dataFileName = snapshot.getDataFileName();
+				final File dataFile = dataFileName == null
+						? null
+						: new File( new File( xmlFilename ).getParentFile(), dataFileName );
+				snapshot.restore( cellCache, imgLoader, dataFile );
+			}
+		}
 	}
 
 	public static void main( final String[] args )
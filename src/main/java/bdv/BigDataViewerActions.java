@@ -57,6 +57,7 @@ public class BigDataViewerActions extends Actions
 	public static final String MANUAL_TRANSFORM = "toggle manual transformation";
 	public static final String SAVE_SETTINGS = "save settings";
 	public static final String LOAD_SETTINGS = "load settings";
+	public static final String SAVE_CACHE_SNAPSHOT = "save cache snapshot";
 	public static final String RECORD_MOVIE = "record movie";
 	public static final String RECORD_MAX_PROJECTION_MOVIE = "record max projection movie";
 	public static final String SET_BOOKMARK = "set bookmark";
@@ -72,6 +73,7 @@ public class BigDataViewerActions extends Actions
 	static final String[] RECORD_MOVIE_KEYS                = new String[] { "F10" };
 	static final String[] SAVE_SETTINGS_KEYS               = new String[] { "F11" };
 	static final String[] LOAD_SETTINGS_KEYS               = new String[] { "F12" };
+	static final String[] SAVE_CACHE_SNAPSHOT_KEYS         = new String[] { "shift F11" };
 	static final String[] GO_TO_BOOKMARK_KEYS              = new String[] { "B" };
 	static final String[] GO_TO_BOOKMARK_ROTATION_KEYS     = new String[] { "O" };
 	static final String[] SET_BOOKMARK_KEYS                = new String[] { "shift B" };
@@ -104,6 +106,7 @@ public class BigDataViewerActions extends Actions
 		actions.manualTransform( bdv.manualTransformationEditor );
 		actions.runnableAction( bdv::loadSettings, LOAD_SETTINGS, LOAD_SETTINGS_KEYS );
 		actions.runnableAction( bdv::saveSettings, SAVE_SETTINGS, SAVE_SETTINGS_KEYS );
+		actions.runnableAction( bdv::saveCacheSnapshot, SAVE_CACHE_SNAPSHOT, SAVE_CACHE_SNAPSHOT_KEYS );
 
 		actions.install( inputActionBindings, "bdv" );
 	}
@@ -56,6 +56,65 @@ public interface CacheControl
 	 */
 	public void prepareNextFrame();
 
+	/**
+	 * Notify the cache that the current frame has been rendered completely,
+	 * that is, all data needed for the frame has been requested. The
+	 * {@link VolatileGlobalCellCache} cancels loads of cells that were not
+	 * requested by the last complete frame (see
+	 * {@link VolatileGlobalCellCache#setCancelStaleLoads(boolean)}).
+	 */
+	public default void frameComplete()
+	{}
+
+	/**
+	 * Get a snapshot of cache metrics (hits, misses, evictions, memory use,
+	 * fetch queue depths, loader latencies).
+	 *
+	 * @return cache metrics, or {@link CacheStatistics#EMPTY} if the cache
+	 *         does not record any.
+	 */
+	public default CacheStatistics getStatistics()
+	{
+		return CacheStatistics.EMPTY;
+	}
+
+	/**
+	 * Add a listener that is notified when data that was requested for the
+	 * current frame has been loaded. Notifications may be coalesced, that is,
+	 * the listener may be run once for several loads. Listeners are run on a
+	 * cache thread.
+	 * <p>
+	 * This allows the renderer to wait for missing data instead of polling.
+	 * Caches that do not notify listeners (see
+	 * {@link #notifiesLoadListeners()}) ignore this.
+	 *
+	 * @param listener
+	 *            the listener to add.
+	 */
+	public default void addLoadListener( final Runnable listener )
+	{}
+
+	/**
+	 * Remove a listener added with {@link #addLoadListener(Runnable)}.
+	 *
+	 * @param listener
+	 *            the listener to remove.
+	 */
+	public default void removeLoadListener( final Runnable listener )
+	{}
+
+	/**
+	 * Check whether this cache notifies listeners added with
+	 * {@link #addLoadListener(Runnable)}. If not, the renderer has to poll
+	 * until all data for the current frame is available.
+	 *
+	 * @return whether load listeners are notified.
+	 */
+	public default boolean notifiesLoadListeners()
+	{
+		return false;
+	}
+
 	/**
 	 * {@link CacheControl} that does nothing.
 	 */
@@ -69,14 +128,21 @@ public interface CacheControl
 	/**
 	 * {@link CacheControl} backed by a set of {@link CacheControl}s.
 	 * {@link #prepareNextFrame()} forwards to all of them.
+	 * {@link #getStatistics()} sums the statistics of all of them. Load
+	 * listeners are added to all of them, and are notified only if all of
+	 * them notify.
 	 */
 	public static class CacheControls implements CacheControl
 	{
 		private final CopyOnWriteArrayList< CacheControl > cacheControls = new CopyOnWriteArrayList<>();
 
+		private final CopyOnWriteArrayList< Runnable > loadListeners = new CopyOnWriteArrayList<>();
+
 		public synchronized void addCacheControl( final CacheControl cacheControl, final int index )
 		{
-			cacheControls.remove( cacheControl );
+			if ( !cacheControls.remove( cacheControl ) )
+				for ( final Runnable listener : loadListeners )
+					cacheControl.addLoadListener( listener );
 			final int s = cacheControls.size();
 			cacheControls.add( index < 0 ? 0 : index > s ? s : index, cacheControl );
 		}
@@ -86,12 +152,43 @@ public interface CacheControl
 			if ( !cacheControls.contains( cacheControl ) )
 			{
 				cacheControls.add( cacheControl );
+				for ( final Runnable listener : loadListeners )
+					cacheControl.addLoadListener( listener );
 			}
 		}
 
 		public synchronized void removeCacheControl( final CacheControl cacheControl )
 		{
-			cacheControls.remove( cacheControl );
+			if ( cacheControls.remove( cacheControl ) )
+				for ( final Runnable listener : loadListeners )
+					cacheControl.removeLoadListener( listener );
+		}
+
+		@Override
+		public synchronized void addLoadListener( final Runnable listener )
+		{
+			loadListeners.add( listener );
+			for ( final CacheControl c : cacheControls )
+				c.addLoadListener( listener );
+		}
+
+		@Override
+		public synchronized void removeLoadListener( final Runnable listener )
+		{
+			loadListeners.remove( listener );
+			for ( final CacheControl c : cacheControls )
+				c.removeLoadListener( listener );
+		}
+
+		@Override
+		public boolean notifiesLoadListeners()
+		{
+			if ( cacheControls.isEmpty() )
+				return false;
+			for ( final CacheControl c : cacheControls )
+				if ( !c.notifiesLoadListeners() )
+					return false;
+			return true;
 		}
 
 		@Override
@@ -100,5 +197,21 @@ public interface CacheControl
 			for ( final CacheControl c : cacheControls )
 				c.prepareNextFrame();
 		}
+
+		@Override
+		public void frameComplete()
+		{
+			for ( final CacheControl c : cacheControls )
+				c.frameComplete();
+		}
+
+		@Override
+		public CacheStatistics getStatistics()
+		{
+			CacheStatistics statistics = CacheStatistics.EMPTY;
+			for ( final CacheControl c : cacheControls )
+				statistics = statistics.plus( c.getStatistics() );
+			return statistics;
+		}
 	}
 }
@@ -0,0 +1,308 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of cache metrics, obtained from {@link CacheControl#getStatistics()}.
+ * All counts are cumulative since the cache was created.
+ */
+public class CacheStatistics
+{
+	/**
+	 * Statistics of a cache that records nothing.
+	 */
+	public static final CacheStatistics EMPTY = new CacheStatistics(
+			0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+			Collections.emptyMap(),
+			new long[ 0 ],
+			new long[ LatencyHistogram.NUM_BUCKETS ] );
+
+	private final long hits;
+
+	private final long misses;
+
+	private final long loads;
+
+	private final long offHeapRestores;
+
+	private final long compressedRestores;
+
+	private final long diskRestores;
+
+	private final long evictions;
+
+	private final long residentBytes;
+
+	private final long maxResidentBytes;
+
+	private final long compressedBytes;
+
+	private final long uncompressedBytes;
+
+	private final long decodeNanos;
+
+	private final Map< Integer, long[] > residentBytesPerSetup;
+
+	private final long[] queueDepths;
+
+	private final long[] loadLatencyCounts;
+
+	/**
+	 * @param hits
+	 *            number of cell accesses that found valid data.
+	 * @param misses
+	 *            number of cell accesses that found invalid (not yet loaded)
+	 *            data.
+	 * @param loads
+	 *            number of cells loaded by a {@code CacheArrayLoader}.
+	 * @param offHeapRestores
+	 *            number of cells restored from the off-heap tier.
+	 * @param compressedRestores
+	 *            number of cells restored from the compressed tier.
+	 * @param diskRestores
+	 *            number of cells restored from the disk tier.
+	 * @param evictions
+	 *            number of cells evicted from memory.
+	 * @param residentBytes
+	 *            bytes of cell data currently kept in memory.
+	 * @param maxResidentBytes
+	 *            memory budget for cell data.
+	 * @param compressedBytes
+	 *            bytes of compressed cell data currently held by the
+	 *            compressed tier.
+	 * @param uncompressedBytes
+	 *            uncompressed size of the cells currently held by the
+	 *            compressed tier.
+	 * @param decodeNanos
+	 *            total time spent decompressing cells of the compressed tier,
+	 *            in nanoseconds.
+	 * @param residentBytesPerSetup
+	 *            bytes of cell data currently kept in memory, per setup id and
+	 *            mipmap level.
+	 * @param queueDepths
+	 *            number of enqueued requests per fetch queue priority.
+	 * @param loadLatencyCounts
+	 *            histogram of {@code CacheArrayLoader} latencies, see
+	 *            {@link LatencyHistogram}.
+	 */
+	public CacheStatistics(
+			final long hits,
+			final long misses,
+			final long loads,
+			final long offHeapRestores,
+			final long compressedRestores,
+			final long diskRestores,
+			final long evictions,
+			final long residentBytes,
+			final long maxResidentBytes,
+			final long compressedBytes,
+			final long uncompressedBytes,
+			final long decodeNanos,
+			final Map< Integer, long[] > residentBytesPerSetup,
+			final long[] queueDepths,
+			final long[] loadLatencyCounts )
+	{
+		this.hits = hits;
+		this.misses = misses;
+		this.loads = loads;
+		this.offHeapRestores = offHeapRestores;
+		this.compressedRestores = compressedRestores;
+		this.diskRestores = diskRestores;
+		this.evictions = evictions;
+		this.residentBytes = residentBytes;
+		this.maxResidentBytes = maxResidentBytes;
+		this.compressedBytes = compressedBytes;
+		this.uncompressedBytes = uncompressedBytes;
+		this.decodeNanos = decodeNanos;
+		this.residentBytesPerSetup = Collections.unmodifiableMap( new TreeMap<>( residentBytesPerSetup ) );
+		this.queueDepths = queueDepths.clone();
+		this.loadLatencyCounts = loadLatencyCounts.clone();
+	}
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	public long getLoads()
+	{
+		return loads;
+	}
+
+	public long getOffHeapRestores()
+	{
+		return offHeapRestores;
+	}
+
+	public long getCompressedRestores()
+	{
+		return compressedRestores;
+	}
+
+	public long getDiskRestores()
+	{
+		return diskRestores;
+	}
+
+	public long getEvictions()
+	{
+		return evictions;
+	}
+
+	public long getResidentBytes()
+	{
+		return residentBytes;
+	}
+
+	public long getMaxResidentBytes()
+	{
+		return maxResidentBytes;
+	}
+
+	public long getCompressedBytes()
+	{
+		return compressedBytes;
+	}
+
+	public long getUncompressedBytes()
+	{
+		return uncompressedBytes;
+	}
+
+	/**
+	 * Get the ratio of uncompressed to compressed size of the cells held by
+	 * the compressed tier, or 0 if it holds no cells.
+	 */
+	public double getCompressionRatio()
+	{
+		return compressedBytes == 0 ? 0 : ( double ) uncompressedBytes / compressedBytes;
+	}
+
+	/**
+	 * Get the total time spent decompressing cells of the compressed tier, in
+	 * nanoseconds.
+	 */
+	public long getDecodeNanos()
+	{
+		return decodeNanos;
+	}
+
+	/**
+	 * Get the mean time to decompress a cell of the compressed tier, in
+	 * microseconds, or 0 if no cell was decompressed.
+	 */
+	public double getMeanDecodeMicros()
+	{
+		return compressedRestores == 0 ? 0 : decodeNanos / 1000.0 / compressedRestores;
+	}
+
+	/**
+	 * Get the bytes of cell data currently kept in memory for each setup. The
+	 * array for a setup contains the bytes per mipmap level.
+	 */
+	public Map< Integer, long[] > getResidentBytesPerSetup()
+	{
+		return residentBytesPerSetup;
+	}
+
+	/**
+	 * Get the bytes of cell data currently kept in memory for the given setup
+	 * and mipmap level.
+	 */
+	public long getResidentBytes( final int setup, final int level )
+	{
+		final long[] levels = residentBytesPerSetup.get( setup );
+		return ( levels == null || level >= levels.length ) ? 0 : levels[ level ];
+	}
+
+	/**
+	 * Get the number of enqueued requests per fetch queue priority. Requests
+	 * that have been moved to the prefetch queue are not counted.
+	 */
+	public long[] getQueueDepths()
+	{
+		return queueDepths.clone();
+	}
+
+	/**
+	 * Get the histogram of {@code CacheArrayLoader} latencies. See
+	 * {@link LatencyHistogram} for the bucket boundaries.
+	 */
+	public long[] getLoadLatencyCounts()
+	{
+		return loadLatencyCounts.clone();
+	}
+
+	/**
+	 * Get the sum of this and {@code other}, e.g., for aggregating the
+	 * statistics of several caches.
+	 */
+	public CacheStatistics plus( final CacheStatistics other )
+	{
+		final TreeMap< Integer, long[] > perSetup = new TreeMap<>( residentBytesPerSetup );
+		for ( final Map.Entry< Integer, long[] > entry : other.residentBytesPerSetup.entrySet() )
+			perSetup.merge( entry.getKey(), entry.getValue(), CacheStatistics::add );
+		return new CacheStatistics(
+				hits + other.hits,
+				misses + other.misses,
+				loads + other.loads,
+				offHeapRestores + other.offHeapRestores,
+				compressedRestores + other.compressedRestores,
+				diskRestores + other.diskRestores,
+				evictions + other.evictions,
+				residentBytes + other.residentBytes,
+				maxResidentBytes + other.maxResidentBytes,
+				compressedBytes + other.compressedBytes,
+				uncompressedBytes + other.uncompressedBytes,
+				decodeNanos + other.decodeNanos,
+				perSetup,
+				add( queueDepths, other.queueDepths ),
+				add( loadLatencyCounts, other.loadLatencyCounts ) );
+	}
+
+	private static long[] add( final long[] a, final long[] b )
+	{
+		final long[] sum = new long[ Math.max( a.length, b.length ) ];
+		for ( int i = 0; i < a.length; ++i )
+			sum[ i ] += a[ i ];
+		for ( int i = 0; i < b.length; ++i )
+			sum[ i ] += b[ i ];
+		return sum;
+	}
+}
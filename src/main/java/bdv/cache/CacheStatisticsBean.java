@@ -0,0 +1,209 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the {@link CacheStatistics} of a {@link CacheControl} as a JMX
+ * MXBean. Every attribute access takes a new snapshot.
+ */
+public class CacheStatisticsBean implements CacheStatisticsMXBean
+{
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private final CacheControl cacheControl;
+
+	public CacheStatisticsBean( final CacheControl cacheControl )
+	{
+		this.cacheControl = cacheControl;
+	}
+
+	/**
+	 * Register a {@link CacheStatisticsBean} for {@code cacheControl} with the
+	 * platform MBean server, under the name
+	 * {@code bdv:type=CacheStatistics,name=<name>-<n>}, where {@code n} makes
+	 * the name unique.
+	 *
+	 * @return the name under which the bean was registered, or {@code null} if
+	 *         registration failed.
+	 */
+	public static ObjectName register( final CacheControl cacheControl, final String name )
+	{
+		try
+		{
+			final ObjectName objectName = new ObjectName( "bdv:type=CacheStatistics,name=" + ObjectName.quote( name + "-" + nextId.getAndIncrement() ) );
+			ManagementFactory.getPlatformMBeanServer().registerMBean( new CacheStatisticsBean( cacheControl ), objectName );
+			return objectName;
+		}
+		catch ( final JMException | SecurityException e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Unregister a bean that was registered with
+	 * {@link #register(CacheControl, String)}.
+	 *
+	 * @param objectName
+	 *            the name returned by {@link #register(CacheControl, String)}.
+	 *            May be {@code null}, in which case nothing happens.
+	 */
+	public static void unregister( final ObjectName objectName )
+	{
+		if ( objectName == null )
+			return;
+		try
+		{
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if ( server.isRegistered( objectName ) )
+				server.unregisterMBean( objectName );
+		}
+		catch ( final JMException | SecurityException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public long getHits()
+	{
+		return cacheControl.getStatistics().getHits();
+	}
+
+	@Override
+	public long getMisses()
+	{
+		return cacheControl.getStatistics().getMisses();
+	}
+
+	@Override
+	public double getHitRatio()
+	{
+		final CacheStatistics s = cacheControl.getStatistics();
+		final long accesses = s.getHits() + s.getMisses();
+		return accesses == 0 ? 0 : ( double ) s.getHits() / accesses;
+	}
+
+	@Override
+	public long getLoads()
+	{
+		return cacheControl.getStatistics().getLoads();
+	}
+
+	@Override
+	public long getOffHeapRestores()
+	{
+		return cacheControl.getStatistics().getOffHeapRestores();
+	}
+
+	@Override
+	public long getCompressedRestores()
+	{
+		return cacheControl.getStatistics().getCompressedRestores();
+	}
+
+	@Override
+	public long getDiskRestores()
+	{
+		return cacheControl.getStatistics().getDiskRestores();
+	}
+
+	@Override
+	public long getEvictions()
+	{
+		return cacheControl.getStatistics().getEvictions();
+	}
+
+	@Override
+	public long getResidentBytes()
+	{
+		return cacheControl.getStatistics().getResidentBytes();
+	}
+
+	@Override
+	public long getMaxResidentBytes()
+	{
+		return cacheControl.getStatistics().getMaxResidentBytes();
+	}
+
+	@Override
+	public long getCompressedBytes()
+	{
+		return cacheControl.getStatistics().getCompressedBytes();
+	}
+
+	@Override
+	public double getCompressionRatio()
+	{
+		return cacheControl.getStatistics().getCompressionRatio();
+	}
+
+	@Override
+	public double getMeanDecodeMicros()
+	{
+		return cacheControl.getStatistics().getMeanDecodeMicros();
+	}
+
+	@Override
+	public Map< String, Long > getResidentBytesPerSetupAndLevel()
+	{
+		final TreeMap< String, Long > map = new TreeMap<>();
+		for ( final Map.Entry< Integer, long[] > entry : cacheControl.getStatistics().getResidentBytesPerSetup().entrySet() )
+		{
+			final long[] levels = entry.getValue();
+			for ( int level = 0; level < levels.length; ++level )
+				if ( levels[ level ] != 0 )
+					map.put( entry.getKey() + "/" + level, levels[ level ] );
+		}
+		return map;
+	}
+
+	@Override
+	public long[] getQueueDepths()
+	{
+		return cacheControl.getStatistics().getQueueDepths();
+	}
+
+	@Override
+	public long[] getLoadLatencyCounts()
+	{
+		return cacheControl.getStatistics().getLoadLatencyCounts();
+	}
+}
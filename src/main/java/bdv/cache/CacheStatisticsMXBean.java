@@ -0,0 +1,88 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.cache;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link CacheStatistics} of a {@link CacheControl}. See
+ * {@link CacheStatisticsBean} for registering it.
+ */
+public interface CacheStatisticsMXBean
+{
+	public long getHits();
+
+	public long getMisses();
+
+	/**
+	 * Fraction of cell accesses that found valid data.
+	 */
+	public double getHitRatio();
+
+	public long getLoads();
+
+	public long getOffHeapRestores();
+
+	public long getCompressedRestores();
+
+	public long getDiskRestores();
+
+	public long getEvictions();
+
+	public long getResidentBytes();
+
+	public long getMaxResidentBytes();
+
+	public long getCompressedBytes();
+
+	/**
+	 * Ratio of uncompressed to compressed size of the cells held by the
+	 * compressed tier.
+	 */
+	public double getCompressionRatio();
+
+	/**
+	 * Mean time to decompress a cell of the compressed tier, in microseconds.
+	 */
+	public double getMeanDecodeMicros();
+
+	/**
+	 * Bytes of cell data kept in memory, by "setup/level".
+	 */
+	public Map< String, Long > getResidentBytesPerSetupAndLevel();
+
+	public long[] getQueueDepths();
+
+	/**
+	 * Loader latency histogram counts. Bucket {@code i} counts latencies below
+	 * 2<sup>i</sup> microseconds (and above the previous bucket).
+	 */
+	public long[] getLoadLatencyCounts();
+}
@@ -0,0 +1,88 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of latencies with logarithmic buckets. Bucket
+ * {@code i > 0} counts latencies in
+ * <em>[2<sup>i-1</sup>, 2<sup>i</sup>)</em> microseconds, bucket 0 counts
+ * latencies below 1 microsecond. The last bucket also counts all larger
+ * latencies.
+ */
+public class LatencyHistogram
+{
+	public static final int NUM_BUCKETS = 32;
+
+	private final AtomicLongArray counts = new AtomicLongArray( NUM_BUCKETS );
+
+	/**
+	 * Record one latency.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds.
+	 */
+	public void record( final long nanos )
+	{
+		counts.incrementAndGet( getBucket( nanos ) );
+	}
+
+	/**
+	 * Get a snapshot of the bucket counts.
+	 *
+	 * @return array of {@link #NUM_BUCKETS} counts.
+	 */
+	public long[] getCounts()
+	{
+		final long[] c = new long[ NUM_BUCKETS ];
+		for ( int i = 0; i < NUM_BUCKETS; ++i )
+			c[ i ] = counts.get( i );
+		return c;
+	}
+
+	/**
+	 * Get the bucket that counts the given latency.
+	 */
+	public static int getBucket( final long nanos )
+	{
+		final long micros = nanos / 1000;
+		return Math.min( NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros ) );
+	}
+
+	/**
+	 * Get the (exclusive) upper bound of latencies counted in bucket
+	 * {@code i}, in microseconds.
+	 */
+	public static long getBucketUpperBoundMicros( final int i )
+	{
+		return 1L << i;
+	}
+}
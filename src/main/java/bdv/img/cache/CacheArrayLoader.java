@@ -29,6 +29,9 @@
  */
 package bdv.img.cache;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import bdv.ViewerImgLoader;
 import bdv.img.catmaid.CatmaidImageLoader;
 import net.imglib2.cache.img.AccessFlags;
@@ -64,9 +67,11 @@ import net.imglib2.type.NativeType;
 public interface CacheArrayLoader< A >
 {
 	/**
-	 * How many bytes does one element (voxel) occupy? This is used only for
-	 * statistics, i.e., estimating I/O bandwidth. Implementing classes can
-	 * return an estimate if element size is varying or unknown.
+	 * How many bytes does one element (voxel) occupy? This is used for
+	 * statistics, i.e., estimating I/O bandwidth, and for weighing cells
+	 * against the memory budget of the {@link VolatileGlobalCellCache}.
+	 * Implementing classes can return an estimate if element size is varying
+	 * or unknown.
 	 *
 	 * @return number of bytes required to store one element.
 	 */
@@ -158,4 +163,42 @@ public interface CacheArrayLoader< A >
 	 * @return loaded cell data.
 	 */
 	public A loadArray( final int timepoint, final int setup, final int level, int[] dimensions, long[] min ) throws InterruptedException;
+
+	/**
+	 * How many cells can be loaded at once with {@link #loadArrays(List)}?
+	 * Back-ends that can serve several neighbouring cells in one request or
+	 * read should override this together with {@link #loadArrays(List)}. If
+	 * this returns a value greater than 1, the fetcher threads collect
+	 * enqueued requests for nearby cells of the same stack (timepoint, setup,
+	 * level) into batches of up to this size. The default implementation
+	 * returns 1, i.e., cells are loaded one by one.
+	 *
+	 * @return maximum number of cells per {@link #loadArrays(List)} call.
+	 */
+	public default int getMaxBatchSize()
+	{
+		return 1;
+	}
+
+	/**
+	 * Load the data of several cells into memory. All requests are for the
+	 * same timepoint, setup, and level. This method blocks until all data is
+	 * successfully loaded. See
+	 * {@link #loadArray(int, int, int, int[], long[])} for details.
+	 * <p>
+	 * The default implementation calls
+	 * {@link #loadArray(int, int, int, int[], long[])} for each request.
+	 * </p>
+	 *
+	 * @param requests
+	 *            the cells to load.
+	 * @return loaded cell data, in the order of {@code requests}.
+	 */
+	public default List< A > loadArrays( final List< CellRequest > requests ) throws InterruptedException
+	{
+		final ArrayList< A > arrays = new ArrayList<>( requests.size() );
+		for ( final CellRequest r : requests )
+			arrays.add( loadArray( r.getTimepoint(), r.getSetup(), r.getLevel(), r.getDimensions(), r.getMin() ) );
+		return arrays;
+	}
 }
@@ -0,0 +1,363 @@
+package bdv.img.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import bdv.cache.CacheControl;
+import bdv.cache.CacheStatistics;
+
+/**
+ * Coordinates the {@link VolatileGlobalCellCache caches} of all image loaders
+ * in the process. Instead of creating their own fetcher threads and using
+ * their own memory budget, image loaders register their cache and its
+ * {@link CellFetchQueues} with the manager:
+ * <ul>
+ * <li>All registered caches share one memory budget (see
+ * {@link #setMaxCacheBytes(long)}). The budget is re-distributed
+ * periodically: caches that do not use their share (because they evict
+ * nothing and hold less) leave the rest to the others, and the remaining
+ * budget is shared in proportion to the caches' weights.</li>
+ * <li>Cells of all caches are loaded by one pool of
+ * {@link SharedFetcherThreads}.</li>
+ * <li>The cache of the most recently {@link #activate(CacheControl) activated}
+ * viewer has priority: its requests are loaded first, and it has twice the
+ * weight of other caches when the budget is shared.</li>
+ * </ul>
+ * Caches are only weakly referenced by the manager.
+ */
+public final class CacheManager
+{
+	private static CacheManager instance;
+
+	/**
+	 * Get the process-wide cache manager.
+	 */
+	public static synchronized CacheManager getInstance()
+	{
+		if ( instance == null )
+			instance = new CacheManager();
+		return instance;
+	}
+
+	/**
+	 * Maximum number of shared fetcher threads.
+	 */
+	private static final int MAX_FETCHER_THREADS = 64;
+
+	/**
+	 * How often the budget is re-distributed.
+	 */
+	private static final long REBALANCE_INTERVAL_MILLIS = 1000;
+
+	/**
+	 * A cache is assumed to need this much more than it currently holds, if
+	 * it did not evict anything.
+	 */
+	private static final double HEADROOM = 1.25;
+
+	/**
+	 * A cache is assumed to need at least this fraction of an equal share of
+	 * the budget, such that caches that are idle now can start loading
+	 * without thrashing until the next rebalance.
+	 */
+	private static final double MIN_SHARE = 0.125;
+
+	/**
+	 * Weight of the cache of the most recently activated viewer, relative to
+	 * other caches.
+	 */
+	private static final double ACTIVE_WEIGHT = 2;
+
+	private static final class Managed
+	{
+		final WeakReference< VolatileGlobalCellCache > cache;
+
+		final SharedFetcherThreads.Client fetchers;
+
+		/**
+		 * Eviction count at the last periodic rebalance.
+		 */
+		long lastEvictions;
+
+		/**
+		 * Whether the cache evicted cells in the last rebalance interval. This
+		 * is {@code true} until the first periodic rebalance.
+		 */
+		boolean evicting = true;
+
+		Managed( final VolatileGlobalCellCache cache, final SharedFetcherThreads.Client fetchers )
+		{
+			this.cache = new WeakReference<>( cache );
+			this.fetchers = fetchers;
+		}
+	}
+
+	private final SharedFetcherThreads fetchers = new SharedFetcherThreads( MAX_FETCHER_THREADS );
+
+	private final ArrayList< Managed > caches = new ArrayList<>();
+
+	private long maxCacheBytes = VolatileGlobalCellCache.defaultMaxCacheBytes();
+
+	/**
+	 * Incremented on each {@link #activate(CacheControl)}, to order caches by
+	 * fetch priority.
+	 */
+	private int activation;
+
+	private Managed active;
+
+	private ScheduledExecutorService rebalancer;
+
+	private CacheManager()
+	{}
+
+	/**
+	 * Register a cache with a fixed limit of concurrent loads. Its cells are
+	 * loaded by the shared fetcher threads, and its memory budget is set by
+	 * the manager from now on.
+	 *
+	 * @param cache
+	 *            the cache.
+	 * @param queue
+	 *            the fetch queue of {@code cache}. It must not be served by
+	 *            other fetcher threads.
+	 * @param maxConcurrentLoads
+	 *            how many cells of {@code cache} to load concurrently at most.
+	 * @return the client of the shared fetcher threads for {@code queue}, for
+	 *         example to pause loading.
+	 */
+	public SharedFetcherThreads.Client register( final VolatileGlobalCellCache cache, final CellFetchQueues queue, final int maxConcurrentLoads )
+	{
+		return register( cache, queue, maxConcurrentLoads, maxConcurrentLoads );
+	}
+
+	/**
+	 * Register a cache. Its cells are loaded by the shared fetcher threads,
+	 * and its memory budget is set by the manager from now on. The number of
+	 * concurrent loads adapts to the measured throughput of the cache's
+	 * storage (see {@link SharedFetcherThreads}).
+	 *
+	 * @param cache
+	 *            the cache.
+	 * @param queue
+	 *            the fetch queue of {@code cache}. It must not be served by
+	 *            other fetcher threads.
+	 * @param minConcurrentLoads
+	 *            how many cells of {@code cache} to load concurrently at least
+	 *            (if there are enough requests).
+	 * @param maxConcurrentLoads
+	 *            how many cells of {@code cache} to load concurrently at most.
+	 * @return the client of the shared fetcher threads for {@code queue}, for
+	 *         example to pause loading.
+	 */
+	public synchronized SharedFetcherThreads.Client register( final VolatileGlobalCellCache cache, final CellFetchQueues queue, final int minConcurrentLoads, final int maxConcurrentLoads )
+	{
+		final SharedFetcherThreads.Client client = fetchers.register( queue, minConcurrentLoads, maxConcurrentLoads );
+		caches.add( new Managed( cache, client ) );
+		rebalance();
+		if ( rebalancer == null )
+		{
+			rebalancer = Executors.newSingleThreadScheduledExecutor( r -> {
+				final Thread thread = new Thread( r, "bdv-cache-manager" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+			rebalancer.scheduleWithFixedDelay( this::updateDemands, REBALANCE_INTERVAL_MILLIS, REBALANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+		}
+		return client;
+	}
+
+	/**
+	 * Unregister a cache, for example when its image loader is closed. Its
+	 * fetch queue is no longer served, and its share of the budget goes to the
+	 * other caches.
+	 */
+	public synchronized void unregister( final CacheControl cache )
+	{
+		final Managed managed = find( cache );
+		if ( managed == null )
+			return;
+		caches.remove( managed );
+		managed.fetchers.unregister();
+		if ( active == managed )
+			active = null;
+		rebalance();
+	}
+
+	/**
+	 * Check whether {@code cache} is registered.
+	 */
+	public synchronized boolean isManaged( final CacheControl cache )
+	{
+		return find( cache ) != null;
+	}
+
+	/**
+	 * Give {@code cache} priority over the other caches, for example when the
+	 * viewer window showing its images is activated. Does nothing if the cache
+	 * is not registered.
+	 */
+	public synchronized void activate( final CacheControl cache )
+	{
+		final Managed managed = find( cache );
+		if ( managed == null || managed == active )
+			return;
+		active = managed;
+		managed.fetchers.setPriority( ++activation );
+		rebalance();
+	}
+
+	/**
+	 * Set the total memory budget of all registered caches.
+	 *
+	 * @param maxCacheBytes
+	 *            how many bytes of cell data to keep in memory.
+	 */
+	public synchronized void setMaxCacheBytes( final long maxCacheBytes )
+	{
+		this.maxCacheBytes = maxCacheBytes;
+		rebalance();
+	}
+
+	public synchronized long getMaxCacheBytes()
+	{
+		return maxCacheBytes;
+	}
+
+	public SharedFetcherThreads getFetcherThreads()
+	{
+		return fetchers;
+	}
+
+	/**
+	 * Get the sum of the statistics of all registered caches.
+	 */
+	public synchronized CacheStatistics getStatistics()
+	{
+		CacheStatistics statistics = CacheStatistics.EMPTY;
+		for ( final Managed managed : caches )
+		{
+			final VolatileGlobalCellCache cache = managed.cache.get();
+			if ( cache != null )
+				statistics = statistics.plus( cache.getStatistics() );
+		}
+		return statistics;
+	}
+
+	private Managed find( final CacheControl cache )
+	{
+		for ( final Managed managed : caches )
+			if ( managed.cache.get() == cache )
+				return managed;
+		return null;
+	}
+
+	/**
+	 * Check which caches evicted cells since the last call, and rebalance.
+	 */
+	private synchronized void updateDemands()
+	{
+		for ( final Managed managed : caches )
+		{
+			final VolatileGlobalCellCache cache = managed.cache.get();
+			if ( cache == null )
+				continue;
+			final long evictions = cache.getStatistics().getEvictions();
+			managed.evicting = evictions > managed.lastEvictions;
+			managed.lastEvictions = evictions;
+		}
+		rebalance();
+	}
+
+	/**
+	 * Distribute the budget among the registered caches (max-min fair sharing
+	 * by weight). A cache that evicted cells in the last rebalance interval,
+	 * or was just registered, is assumed to want as much as it can get. Other caches
+	 * want {@link #HEADROOM} more than they currently hold, but at least
+	 * {@link #MIN_SHARE} of an equal share. Caches that want less than their
+	 * weighted share get what they want, and the rest is shared among the
+	 * others. Budget that nobody wants is shared among all caches.
+	 */
+	private synchronized void rebalance()
+	{
+		final ArrayList< VolatileGlobalCellCache > live = new ArrayList<>();
+		final ArrayList< Managed > managedLive = new ArrayList<>();
+		for ( final Iterator< Managed > it = caches.iterator(); it.hasNext(); )
+		{
+			final Managed managed = it.next();
+			final VolatileGlobalCellCache cache = managed.cache.get();
+			if ( cache == null )
+			{
+				managed.fetchers.unregister();
+				it.remove();
+				continue;
+			}
+			live.add( cache );
+			managedLive.add( managed );
+		}
+
+		final int n = live.size();
+		final double[] weights = new double[ n ];
+		double totalWeight = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			weights[ i ] = managedLive.get( i ) == active ? ACTIVE_WEIGHT : 1;
+			totalWeight += weights[ i ];
+		}
+
+		final double[] demands = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final Managed managed = managedLive.get( i );
+			final VolatileGlobalCellCache cache = live.get( i );
+			final double minDemand = MIN_SHARE * maxCacheBytes * weights[ i ] / totalWeight;
+			demands[ i ] = managed.evicting ? Double.POSITIVE_INFINITY : Math.max( minDemand, cache.getCacheBytes() * HEADROOM );
+		}
+
+		final double[] shares = new double[ n ];
+		final boolean[] satisfied = new boolean[ n ];
+		double remaining = maxCacheBytes;
+		double openWeight = totalWeight;
+		boolean changed = true;
+		while ( changed && openWeight > 0 )
+		{
+			changed = false;
+			final double perWeight = remaining / openWeight;
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( !satisfied[ i ] && demands[ i ] <= perWeight * weights[ i ] )
+				{
+					shares[ i ] = demands[ i ];
+					remaining -= demands[ i ];
+					openWeight -= weights[ i ];
+					satisfied[ i ] = true;
+					changed = true;
+				}
+			}
+		}
+		if ( openWeight > 0 )
+		{
+			final double perWeight = remaining / openWeight;
+			for ( int i = 0; i < n; ++i )
+				if ( !satisfied[ i ] )
+					shares[ i ] = perWeight * weights[ i ];
+		}
+		else if ( totalWeight > 0 )
+		{
+			final double perWeight = remaining / totalWeight;
+			for ( int i = 0; i < n; ++i )
+				shares[ i ] += perWeight * weights[ i ];
+		}
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final long share = ( long ) shares[ i ];
+			if ( live.get( i ).getMaxCacheBytes() != share )
+				live.get( i ).setMaxCacheBytes( share );
+		}
+	}
+}
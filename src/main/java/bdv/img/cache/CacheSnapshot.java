@@ -0,0 +1,468 @@
+package bdv.img.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.jdom2.Element;
+
+import bdv.ViewerImgLoader;
+import bdv.img.cache.VolatileGlobalCellCache.Key;
+import net.imglib2.cache.img.PrimitiveType;
+import net.imglib2.img.cell.CellGrid;
+
+/**
+ * The set of cells that are resident in a {@link VolatileGlobalCellCache}, most
+ * recently used first, to warm up the cache of a later session with the same
+ * data set.
+ * <p>
+ * A snapshot is stored as a {@code <CacheSnapshot>} element in the viewer
+ * settings file (see {@link #toXml(String)}). Optionally, the cell data is
+ * written to a separate file (see {@link #writeData(VolatileGlobalCellCache, File)}).
+ * When a snapshot is {@link #restore(VolatileGlobalCellCache, ViewerImgLoader, File)
+ * restored}, all its cells are requested with the lowest priority through the
+ * normal fetch queue, most recently used first. Cells are read from the data
+ * file, if there is one, instead of being loaded by the
+ * {@link CacheArrayLoader}.
+ * </p>
+ * <p>
+ * Both the {@code <CacheSnapshot>} element and the data file record the
+ * {@link VolatileGlobalCellCache#getDataSetIdentity() identity} of the data
+ * set. A snapshot of a different data set is not restored, and the data file
+ * is only used if the identity of the data set is known and matches. Cell
+ * records whose primitive type or size do not match the cell grid of the
+ * stack are ignored.
+ * </p>
+ */
+public class CacheSnapshot
+{
+	public static final String TAG = "CacheSnapshot";
+
+	private static final String CELLS_TAG = "Cells";
+
+	private static final String TIMEPOINT_ATTRIBUTE = "timepoint";
+
+	private static final String SETUP_ATTRIBUTE = "setup";
+
+	private static final String LEVEL_ATTRIBUTE = "level";
+
+	private static final String DATA_ATTRIBUTE = "data";
+
+	private static final String DATASET_ATTRIBUTE = "dataset";
+
+	private static final long MAGIC = 0x32504e5343564442L; // "BDVCSNP2"
+
+	/**
+	 * Size of the record header in the data file: timepoint, setup, level,
+	 * index, primitive type, number of entities, number of bytes.
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 4;
+
+	private static final PrimitiveType[] TYPES = PrimitiveType.values();
+
+	/**
+	 * Consecutive cells (in most recently used order) of one stack.
+	 */
+	private static final class Run
+	{
+		final int timepoint;
+
+		final int setup;
+
+		final int level;
+
+		final long[] indices;
+
+		Run( final int timepoint, final int setup, final int level, final long[] indices )
+		{
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.indices = indices;
+		}
+	}
+
+	private final List< Run > runs;
+
+	private final String dataFileName;
+
+	/**
+	 * Identity of the data set, or {@code null} if it is unknown.
+	 */
+	private final String dataSetIdentity;
+
+	private CacheSnapshot( final List< Run > runs, final String dataFileName, final String dataSetIdentity )
+	{
+		this.runs = runs;
+		this.dataFileName = dataFileName;
+		this.dataSetIdentity = dataSetIdentity;
+	}
+
+	/**
+	 * Take a snapshot of the cells that are currently resident in
+	 * {@code cache}.
+	 */
+	public static CacheSnapshot create( final VolatileGlobalCellCache cache )
+	{
+		final List< Key > keys = cache.getResidentKeys();
+		final ArrayList< Run > runs = new ArrayList<>();
+		int i = 0;
+		while ( i < keys.size() )
+		{
+			final Key first = keys.get( i );
+			int j = i + 1;
+			while ( j < keys.size() && sameStack( first, keys.get( j ) ) )
+				++j;
+			final long[] indices = new long[ j - i ];
+			for ( int k = i; k < j; ++k )
+				indices[ k - i ] = keys.get( k ).getIndex();
+			runs.add( new Run( first.getTimepoint(), first.getSetup(), first.getLevel(), indices ) );
+			i = j;
+		}
+		return new CacheSnapshot( runs, null, cache.getDataSetIdentity() );
+	}
+
+	private static boolean sameStack( final Key a, final Key b )
+	{
+		return a.getTimepoint() == b.getTimepoint() && a.getSetup() == b.getSetup() && a.getLevel() == b.getLevel();
+	}
+
+	/**
+	 * Get the number of cells in the snapshot.
+	 */
+	public long size()
+	{
+		long n = 0;
+		for ( final Run run : runs )
+			n += run.indices.length;
+		return n;
+	}
+
+	/**
+	 * Get the name of the file containing the cell data (relative to the
+	 * settings file), or {@code null} if the data was not saved.
+	 */
+	public String getDataFileName()
+	{
+		return dataFileName;
+	}
+
+	/**
+	 * Get the identity of the data set of the snapshot, or {@code null} if it
+	 * is unknown.
+	 */
+	public String getDataSetIdentity()
+	{
+		return dataSetIdentity;
+	}
+
+	/**
+	 * @param dataFileName
+	 *            name of the file to which the cell data was written (see
+	 *            {@link #writeData(VolatileGlobalCellCache, File)}) relative to
+	 *            the settings file, or {@code null} if the data was not saved.
+	 */
+	public Element toXml( final String dataFileName )
+	{
+		final Element elem = new Element( TAG );
+		if ( dataFileName != null )
+			elem.setAttribute( DATA_ATTRIBUTE, dataFileName );
+		if ( dataSetIdentity != null )
+			elem.setAttribute( DATASET_ATTRIBUTE, dataSetIdentity );
+		for ( final Run run : runs )
+		{
+			final Element cells = new Element( CELLS_TAG );
+			cells.setAttribute( TIMEPOINT_ATTRIBUTE, Integer.toString( run.timepoint ) );
+			cells.setAttribute( SETUP_ATTRIBUTE, Integer.toString( run.setup ) );
+			cells.setAttribute( LEVEL_ATTRIBUTE, Integer.toString( run.level ) );
+			final StringBuilder sb = new StringBuilder();
+			for ( final long index : run.indices )
+			{
+				if ( sb.length() > 0 )
+					sb.append( ' ' );
+				sb.append( index );
+			}
+			cells.setText( sb.toString() );
+			elem.addContent( cells );
+		}
+		return elem;
+	}
+
+	/**
+	 * Read a snapshot from the {@code <CacheSnapshot>} child of
+	 * {@code parent}.
+	 *
+	 * @return the snapshot, or {@code null} if there is none.
+	 */
+	public static CacheSnapshot fromXml( final Element parent )
+	{
+		final Element elem = parent.getChild( TAG );
+		if ( elem == null )
+			return null;
+		final ArrayList< Run > runs = new ArrayList<>();
+		for ( final Element cells : elem.getChildren( CELLS_TAG ) )
+		{
+			final String text = cells.getTextTrim();
+			final String[] tokens = text.isEmpty() ? new String[ 0 ] : text.split( "\\s+" );
+			final long[] indices = new long[ tokens.length ];
+			for ( int i = 0; i < tokens.length; ++i )
+				indices[ i ] = Long.parseLong( tokens[ i ] );
+			runs.add( new Run(
+					Integer.parseInt( cells.getAttributeValue( TIMEPOINT_ATTRIBUTE ) ),
+					Integer.parseInt( cells.getAttributeValue( SETUP_ATTRIBUTE ) ),
+					Integer.parseInt( cells.getAttributeValue( LEVEL_ATTRIBUTE ) ),
+					indices ) );
+		}
+		return new CacheSnapshot( runs, elem.getAttributeValue( DATA_ATTRIBUTE ), elem.getAttributeValue( DATASET_ATTRIBUTE ) );
+	}
+
+	/**
+	 * Write the data of the cells of the snapshot that are still present in
+	 * {@code cache} to {@code file}. The data is written to a temporary file
+	 * first, which then replaces {@code file}, so that a previous data file is
+	 * never left half overwritten.
+	 */
+	public void writeData( final VolatileGlobalCellCache cache, final File file ) throws IOException
+	{
+		final File tmp = new File( file.getPath() + ".tmp" );
+		try ( final FileChannel channel = FileChannel.open( tmp.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			final byte[] identity = ( dataSetIdentity == null ? "" : dataSetIdentity ).getBytes( StandardCharsets.UTF_8 );
+			final ByteBuffer magic = ByteBuffer.allocate( 8 + 4 + identity.length ).order( ByteOrder.LITTLE_ENDIAN );
+			magic.putLong( MAGIC ).putInt( identity.length ).put( identity ).flip();
+			writeFully( channel, magic );
+			for ( final Run run : runs )
+			{
+				for ( final long index : run.indices )
+				{
+					final Object data = cache.peekResidentData( new Key( run.timepoint, run.setup, run.level, index ) );
+					if ( data == null )
+						continue;
+					final PrimitiveType type = VolatileArrays.getPrimitiveType( data );
+					if ( type == PrimitiveType.UNDEFINED )
+						continue;
+					final int numBytes = VolatileArrays.getNumBytes( type, data );
+					final ByteBuffer record = ByteBuffer.allocate( HEADER_SIZE + numBytes ).order( ByteOrder.LITTLE_ENDIAN );
+					record.putInt( run.timepoint );
+					record.putInt( run.setup );
+					record.putInt( run.level );
+					record.putLong( index );
+					record.putInt( type.ordinal() );
+					record.putInt( VolatileArrays.getNumEntities( type, data ) );
+					record.putInt( numBytes );
+					final ByteBuffer payload = record.slice().order( ByteOrder.LITTLE_ENDIAN );
+					VolatileArrays.write( type, data, payload );
+					record.position( 0 );
+					writeFully( channel, record );
+				}
+			}
+		}
+		try
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Request all cells of the snapshot from {@code cache} with the lowest
+	 * priority, most recently used first. Images for the stacks of the
+	 * snapshot are created through {@code imgLoader}. Nothing is requested if
+	 * the snapshot was taken of a different data set.
+	 *
+	 * @param dataFile
+	 *            file containing the cell data, or {@code null}. If the file
+	 *            exists and was written for the data set of {@code cache},
+	 *            cells are read from it instead of being loaded by the
+	 *            {@link CacheArrayLoader}.
+	 */
+	public void restore( final VolatileGlobalCellCache cache, final ViewerImgLoader imgLoader, final File dataFile ) throws IOException
+	{
+		final String identity = cache.getDataSetIdentity();
+		if ( identity != null && dataSetIdentity != null && !identity.equals( dataSetIdentity ) )
+			return;
+		if ( identity != null && identity.equals( dataSetIdentity ) && dataFile != null && dataFile.isFile() )
+			cache.setSnapshotData( Data.open( dataFile, identity ) );
+
+		// keep the images (and hence their cell accessors) alive while requesting
+		final ArrayList< Object > images = new ArrayList<>();
+		for ( final Run run : runs )
+		{
+			try
+			{
+				if ( !cache.requestCells( run.timepoint, run.setup, run.level, run.indices ) )
+				{
+					images.add( imgLoader.getSetupImgLoader( run.setup ).getVolatileImage( run.timepoint, run.level ) );
+					cache.requestCells( run.timepoint, run.setup, run.level, run.indices );
+				}
+			}
+			catch ( final RuntimeException e )
+			{
+				// the snapshot does not match the data set
+				e.printStackTrace();
+			}
+		}
+		images.clear();
+	}
+
+	private static void writeFully( final FileChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+	}
+
+	private static void readFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException
+	{
+		long p = position;
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, p );
+			if ( n < 0 )
+				throw new IOException( "unexpected end of file" );
+			p += n;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Reads cell data from a file written by
+	 * {@link CacheSnapshot#writeData(VolatileGlobalCellCache, File)}. Each cell
+	 * can be taken once. The file is closed when all cells have been taken, or
+	 * when the {@link VolatileGlobalCellCache} is done with the restore (see
+	 * {@link VolatileGlobalCellCache#setSnapshotData(Data)}).
+	 */
+	static final class Data
+	{
+		private final FileChannel channel;
+
+		/**
+		 * File positions of cell records.
+		 */
+		private final HashMap< Key, Long > positions;
+
+		private Data( final FileChannel channel, final HashMap< Key, Long > positions )
+		{
+			this.channel = channel;
+			this.positions = positions;
+		}
+
+		/**
+		 * Open a data file.
+		 *
+		 * @param identity
+		 *            identity of the data set. The file must have been written
+		 *            for the same data set.
+		 */
+		static Data open( final File file, final String identity ) throws IOException
+		{
+			final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+			try
+			{
+				final ByteBuffer magic = ByteBuffer.allocate( 8 + 4 ).order( ByteOrder.LITTLE_ENDIAN );
+				readFully( channel, magic, 0 );
+				if ( magic.getLong() != MAGIC )
+					throw new IOException( "not a cache snapshot data file: " + file );
+				final int identityLength = magic.getInt();
+				final long size = channel.size();
+				if ( identityLength < 0 || 12 + identityLength > size )
+					throw new IOException( "corrupt cache snapshot data file: " + file );
+				final ByteBuffer fileIdentity = ByteBuffer.allocate( identityLength );
+				readFully( channel, fileIdentity, 12 );
+				if ( !identity.equals( new String( fileIdentity.array(), StandardCharsets.UTF_8 ) ) )
+					throw new IOException( "cache snapshot data file " + file + " belongs to a different data set" );
+				final HashMap< Key, Long > positions = new HashMap<>();
+				final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+				long position = 12 + identityLength;
+				while ( position + HEADER_SIZE <= size )
+				{
+					header.clear();
+					readFully( channel, header, position );
+					final Key key = new Key( header.getInt( 0 ), header.getInt( 4 ), header.getInt( 8 ), header.getLong( 12 ) );
+					final int numBytes = header.getInt( 28 );
+					if ( numBytes < 0 || position + HEADER_SIZE + numBytes > size )
+						break;
+					positions.put( key, position );
+					position += HEADER_SIZE + numBytes;
+				}
+				return new Data( channel, positions );
+			}
+			catch ( final IOException e )
+			{
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Read and remove the data of the cell with the given key.
+		 *
+		 * @param expectedType
+		 *            primitive type of the stack's cell data.
+		 * @param expectedNumEntities
+		 *            number of entities of the cell according to the
+		 *            {@link CellGrid} of the stack.
+		 * @return the cell data, or {@code null} if it is not in the file or
+		 *         does not match the expected type and size.
+		 */
+		synchronized Object take( final Key key, final PrimitiveType expectedType, final long expectedNumEntities )
+		{
+			final Long position = positions.remove( key );
+			if ( position == null )
+				return null;
+			try
+			{
+				final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+				readFully( channel, header, position );
+				final int typeOrdinal = header.getInt( 20 );
+				final int numEntities = header.getInt( 24 );
+				final int numBytes = header.getInt( 28 );
+				if ( typeOrdinal < 0 || typeOrdinal >= TYPES.length
+						|| TYPES[ typeOrdinal ] != expectedType
+						|| numEntities != expectedNumEntities
+						|| numBytes != ( long ) numEntities * VolatileArrays.getBytesPerEntity( expectedType ) )
+					return null;
+				final PrimitiveType type = TYPES[ typeOrdinal ];
+				final ByteBuffer payload = ByteBuffer.allocate( numBytes ).order( ByteOrder.LITTLE_ENDIAN );
+				readFully( channel, payload, position + HEADER_SIZE );
+				return VolatileArrays.read( type, numEntities, payload );
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+				return null;
+			}
+			finally
+			{
+				if ( positions.isEmpty() )
+					close();
+			}
+		}
+
+		synchronized void close()
+		{
+			positions.clear();
+			try
+			{
+				channel.close();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package bdv.img.cache;
+
+import net.imglib2.cache.img.PrimitiveType;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileCharArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileDoubleArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileLongArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Lossless compression of the data of volatile array accesses, for the
+ * {@link CompressedCellCache}.
+ * <p>
+ * Each value is replaced by its difference to the previous value (in storage
+ * order), which is zig-zag encoded such that small positive and negative
+ * differences become small unsigned numbers. Differences are bit-packed in
+ * blocks of {@value #BLOCK_SIZE} values, each block with the bit width of its
+ * largest difference. Smooth or constant regions, such as background, thus
+ * take a few bits per value, or one byte per block if they are constant.
+ * Floating point values are encoded by their raw bits, so that compression is
+ * lossless, but it is only effective for integer data.
+ * </p>
+ * <p>
+ * Only the types supported by {@link VolatileArrays} are handled. The type and
+ * number of entities are not part of the encoded data and have to be stored by
+ * the caller.
+ * </p>
+ */
+final class CellCodec
+{
+	static final int BLOCK_SIZE = 128;
+
+	private CellCodec()
+	{}
+
+	/**
+	 * Compress the data of a volatile array access.
+	 *
+	 * @param type
+	 *            the primitive type of {@code access}.
+	 * @param access
+	 *            the data to compress.
+	 * @return the compressed data.
+	 */
+	static byte[] encode( final PrimitiveType type, final Object access )
+	{
+		final int n = VolatileArrays.getNumEntities( type, access );
+		final int numBlocks = ( n + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+		final long[] block = new long[ BLOCK_SIZE ];
+
+		// first pass: bit widths of blocks, to allocate the output exactly
+		final byte[] widths = new byte[ numBlocks ];
+		long prev = 0;
+		int size = 0;
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final int offset = b * BLOCK_SIZE;
+			final int count = Math.min( BLOCK_SIZE, n - offset );
+			prev = differences( type, access, offset, count, prev, block );
+			long or = 0;
+			for ( int i = 0; i < count; ++i )
+				or |= block[ i ];
+			final int width = 64 - Long.numberOfLeadingZeros( or );
+			widths[ b ] = ( byte ) width;
+			size += 1 + ( count * width + 7 ) / 8;
+		}
+
+		// second pass: bit-pack differences
+		final BitWriter out = new BitWriter( new byte[ size ] );
+		prev = 0;
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			final int offset = b * BLOCK_SIZE;
+			final int count = Math.min( BLOCK_SIZE, n - offset );
+			prev = differences( type, access, offset, count, prev, block );
+			final int width = widths[ b ];
+			out.writeByte( width );
+			for ( int i = 0; i < count; ++i )
+				out.write( block[ i ], width );
+			out.flush();
+		}
+		return out.data;
+	}
+
+	/**
+	 * Decompress data that was compressed by
+	 * {@link #encode(PrimitiveType, Object)}.
+	 *
+	 * @param type
+	 *            the primitive type of the compressed access.
+	 * @param numEntities
+	 *            the number of entities of the compressed access.
+	 * @param data
+	 *            the compressed data.
+	 * @return a new valid {@link VolatileByteArray},
+	 *         {@link VolatileShortArray}, etc.
+	 */
+	static Object decode( final PrimitiveType type, final int numEntities, final byte[] data )
+	{
+		final Object array = createArray( type, numEntities );
+		final long[] block = new long[ BLOCK_SIZE ];
+		final BitReader in = new BitReader( data );
+		long prev = 0;
+		for ( int offset = 0; offset < numEntities; offset += BLOCK_SIZE )
+		{
+			final int count = Math.min( BLOCK_SIZE, numEntities - offset );
+			final int width = in.readByte();
+			for ( int i = 0; i < count; ++i )
+			{
+				final long zz = in.read( width );
+				prev += ( zz >>> 1 ) ^ -( zz & 1 );
+				block[ i ] = prev;
+			}
+			in.skipToByte();
+			store( type, block, array, offset, count );
+		}
+		return wrap( type, array );
+	}
+
+	/**
+	 * Put the zig-zag encoded differences of {@code count} values of
+	 * {@code access} starting at {@code offset} into {@code block}.
+	 *
+	 * @return the last value, from which the differences of the next block
+	 *         start.
+	 */
+	private static long differences( final PrimitiveType type, final Object access, final int offset, final int count, final long prev, final long[] block )
+	{
+		load( type, access, offset, count, block );
+		long p = prev;
+		for ( int i = 0; i < count; ++i )
+		{
+			final long v = block[ i ];
+			final long d = v - p;
+			block[ i ] = ( d << 1 ) ^ ( d >> 63 );
+			p = v;
+		}
+		return p;
+	}
+
+	private static void load( final PrimitiveType type, final Object access, final int offset, final int count, final long[] block )
+	{
+		switch ( type )
+		{
+		case BYTE:
+		{
+			final byte[] a = ( ( VolatileByteArray ) access ).getCurrentStorageArray();
+			for ( int i = 0; i < count; ++i )
+				block[ i ] = a[ offset + i ];
+			break;
+		}
+		case CHAR:
+		{
+			final char[] a = ( ( VolatileCharArray ) access ).getCurrentStorageArray();
+			for ( int i = 0; i < count; ++i )
+				block[ i ] = a[ offset + i ];
+			break;
+		}
+		case SHORT:
+		{
+			final short[] a = ( ( VolatileShortArray ) access ).getCurrentStorageArray();
+			for ( int i = 0; i < count; ++i )
+				block[ i ] = a[ offset + i ];
+			break;
+		}
+		case INT:
+		{
+			final int[] a = ( ( VolatileIntArray ) access ).getCurrentStorageArray();
+			for ( int i = 0; i < count; ++i )
+				block[ i ] = a[ offset + i ];
+			break;
+		}
+		case LONG:
+		{
+			final long[] a = ( ( VolatileLongArray ) access ).getCurrentStorageArray();
+			System.arraycopy( a, offset, block, 0, count );
+			break;
+		}
+		case FLOAT:
+		{
+			final float[] a = ( ( VolatileFloatArray ) access ).getCurrentStorageArray();
+			for ( int i = 0; i < count; ++i )
+				block[ i ] = Float.floatToRawIntBits( a[ offset + i ] );
+			break;
+		}
+		case DOUBLE:
+		{
+			final double[] a = ( ( VolatileDoubleArray ) access ).getCurrentStorageArray();
+			for ( int i = 0; i < count; ++i )
+				block[ i ] = Double.doubleToRawLongBits( a[ offset + i ] );
+			break;
+		}
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	private static void store( final PrimitiveType type, final long[] block, final Object array, final int offset, final int count )
+	{
+		switch ( type )
+		{
+		case BYTE:
+		{
+			final byte[] a = ( byte[] ) array;
+			for ( int i = 0; i < count; ++i )
+				a[ offset + i ] = ( byte ) block[ i ];
+			break;
+		}
+		case CHAR:
+		{
+			final char[] a = ( char[] ) array;
+			for ( int i = 0; i < count; ++i )
+				a[ offset + i ] = ( char ) block[ i ];
+			break;
+		}
+		case SHORT:
+		{
+			final short[] a = ( short[] ) array;
+			for ( int i = 0; i < count; ++i )
+				a[ offset + i ] = ( short ) block[ i ];
+			break;
+		}
+		case INT:
+		{
+			final int[] a = ( int[] ) array;
+			for ( int i = 0; i < count; ++i )
+				a[ offset + i ] = ( int ) block[ i ];
+			break;
+		}
+		case LONG:
+			System.arraycopy( block, 0, array, offset, count );
+			break;
+		case FLOAT:
+		{
+			final float[] a = ( float[] ) array;
+			for ( int i = 0; i < count; ++i )
+				a[ offset + i ] = Float.intBitsToFloat( ( int ) block[ i ] );
+			break;
+		}
+		case DOUBLE:
+		{
+			final double[] a = ( double[] ) array;
+			for ( int i = 0; i < count; ++i )
+				a[ offset + i ] = Double.longBitsToDouble( block[ i ] );
+			break;
+		}
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	private static Object createArray( final PrimitiveType type, final int numEntities )
+	{
+		switch ( type )
+		{
+		case BYTE:
+			return new byte[ numEntities ];
+		case CHAR:
+			return new char[ numEntities ];
+		case SHORT:
+			return new short[ numEntities ];
+		case INT:
+			return new int[ numEntities ];
+		case LONG:
+			return new long[ numEntities ];
+		case FLOAT:
+			return new float[ numEntities ];
+		case DOUBLE:
+			return new double[ numEntities ];
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	private static Object wrap( final PrimitiveType type, final Object array )
+	{
+		switch ( type )
+		{
+		case BYTE:
+			return new VolatileByteArray( ( byte[] ) array, true );
+		case CHAR:
+			return new VolatileCharArray( ( char[] ) array, true );
+		case SHORT:
+			return new VolatileShortArray( ( short[] ) array, true );
+		case INT:
+			return new VolatileIntArray( ( int[] ) array, true );
+		case LONG:
+			return new VolatileLongArray( ( long[] ) array, true );
+		case FLOAT:
+			return new VolatileFloatArray( ( float[] ) array, true );
+		case DOUBLE:
+			return new VolatileDoubleArray( ( double[] ) array, true );
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Writes values of up to 64 bits, least significant bit first. Less than 8
+	 * bits are pending between calls.
+	 */
+	private static final class BitWriter
+	{
+		final byte[] data;
+
+		private int pos;
+
+		private long pending;
+
+		private int numPending;
+
+		BitWriter( final byte[] data )
+		{
+			this.data = data;
+		}
+
+		void writeByte( final int value )
+		{
+			data[ pos++ ] = ( byte ) value;
+		}
+
+		void write( final long value, final int width )
+		{
+			if ( width > 32 )
+			{
+				write( value & 0xffffffffL, 32 );
+				write( value >>> 32, width - 32 );
+				return;
+			}
+			pending |= value << numPending;
+			numPending += width;
+			while ( numPending >= 8 )
+			{
+				data[ pos++ ] = ( byte ) pending;
+				pending >>>= 8;
+				numPending -= 8;
+			}
+		}
+
+		/**
+		 * Write pending bits, padded to a full byte.
+		 */
+		void flush()
+		{
+			if ( numPending > 0 )
+				data[ pos++ ] = ( byte ) pending;
+			pending = 0;
+			numPending = 0;
+		}
+	}
+
+	private static final class BitReader
+	{
+		private final byte[] data;
+
+		private int pos;
+
+		private long pending;
+
+		private int numPending;
+
+		BitReader( final byte[] data )
+		{
+			this.data = data;
+		}
+
+		int readByte()
+		{
+			return data[ pos++ ] & 0xff;
+		}
+
+		long read( final int width )
+		{
+			if ( width > 32 )
+			{
+				final long low = read( 32 );
+				return low | ( read( width - 32 ) << 32 );
+			}
+			while ( numPending < width )
+			{
+				pending |= ( data[ pos++ ] & 0xffL ) << numPending;
+				numPending += 8;
+			}
+			final long value = pending & ( ( 1L << width ) - 1 );
+			pending >>>= width;
+			numPending -= width;
+			return value;
+		}
+
+		/**
+		 * Discard the padding bits of the current byte.
+		 */
+		void skipToByte()
+		{
+			pending = 0;
+			numPending = 0;
+		}
+	}
+}
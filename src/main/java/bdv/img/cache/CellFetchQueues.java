@@ -0,0 +1,610 @@
+package bdv.img.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.imglib2.cache.queue.BlockingFetchQueues;
+
+/**
+ * Fetch queues for cell requests. This behaves like
+ * {@link BlockingFetchQueues} (which it replaces, overriding all queue
+ * operations), with additions:
+ * <ul>
+ * <li>It keeps track of how many requests are enqueued with each priority in
+ * the current frame (see {@link #getDepths()}).</li>
+ * <li>It collects requests for nearby cells of the same stack into batches,
+ * for {@link CacheArrayLoader CacheArrayLoaders} that support batched loading
+ * (see {@link CacheArrayLoader#getMaxBatchSize()}).</li>
+ * <li>It can be served by {@link SharedFetcherThreads}, together with the
+ * queues of other caches (see {@link #poll()}).</li>
+ * <li>It can notify the cache when a request of the current frame (that is,
+ * not from the prefetch queue) has been completed.</li>
+ * </ul>
+ * <p>
+ * The requests that are enqueued by the volatile cache are opaque. To know
+ * which cell a request is for, the image issuing the request sets a
+ * {@link #setRequestContext(BatchLoader, long) request context} on the current
+ * thread, which is attached to any request enqueued while it is set. When a
+ * request with a context is taken from the queue, other queued requests with
+ * the same {@link BatchLoader} and priority are removed, nearest cells first,
+ * and returned together as one {@link Callable}. That callable first has the
+ * {@link BatchLoader} preload the data of all cells of the batch, and then
+ * runs the individual requests, which pick up the preloaded data.
+ * </p>
+ */
+public class CellFetchQueues extends BlockingFetchQueues< Callable< ? > >
+{
+	/**
+	 * Loads the data of several cells of one stack at once. The data is held
+	 * until the individual requests for the cells are run.
+	 */
+	public interface BatchLoader
+	{
+		/**
+		 * @return how many cells to load at once at most.
+		 */
+		int getMaxBatchSize();
+
+		/**
+		 * @return the dimensions of the cell grid, used to find nearby cells.
+		 */
+		long[] getGridDimensions();
+
+		/**
+		 * Load the data of the cells with the given flattened indices.
+		 *
+		 * @param indices
+		 *            cell indices.
+		 * @throws CancellationException
+		 *             if the load was cancelled (see {@link LoadToken}). The
+		 *             requests of the batch are dropped in this case.
+		 */
+		void preload( long[] indices ) throws InterruptedException;
+
+		/**
+		 * Drop preloaded data of the given cells that was not picked up.
+		 *
+		 * @param indices
+		 *            cell indices.
+		 */
+		void discard( long[] indices );
+	}
+
+	/**
+	 * How many queued requests are examined at most when collecting a batch.
+	 */
+	private static final int MAX_BATCH_CANDIDATES = 1024;
+
+	/**
+	 * Default capacity of the prefetch queue.
+	 */
+	public static final int DEFAULT_PREFETCH_CAPACITY = 16384;
+
+	/**
+	 * {@link #peekPriority()} if only prefetch requests are enqueued. It is
+	 * lower than the priority of any request of the current frame.
+	 */
+	public static final int PREFETCH_PRIORITY = Integer.MAX_VALUE - 1;
+
+	/**
+	 * {@link #peekPriority()} if no requests are enqueued.
+	 */
+	public static final int NO_REQUESTS = Integer.MAX_VALUE;
+
+	private static final class RequestContext
+	{
+		BatchLoader loader;
+
+		long index;
+	}
+
+	private static final ThreadLocal< RequestContext > context = ThreadLocal.withInitial( RequestContext::new );
+
+	private static final class Request implements Callable< Object >
+	{
+		final Callable< ? > callable;
+
+		final int priority;
+
+		final BatchLoader loader;
+
+		final long index;
+
+		Request( final Callable< ? > callable, final int priority, final BatchLoader loader, final long index )
+		{
+			this.callable = callable;
+			this.priority = priority;
+			this.loader = loader;
+			this.index = index;
+		}
+
+		@Override
+		public Object call() throws Exception
+		{
+			return callable.call();
+		}
+	}
+
+	private static final class Batch implements Callable< Object >
+	{
+		final BatchLoader loader;
+
+		final ArrayList< Request > requests;
+
+		Batch( final BatchLoader loader, final ArrayList< Request > requests )
+		{
+			this.loader = loader;
+			this.requests = requests;
+		}
+
+		@Override
+		public Object call() throws Exception
+		{
+			final long[] indices = new long[ requests.size() ];
+			for ( int i = 0; i < indices.length; ++i )
+				indices[ i ] = requests.get( i ).index;
+			try
+			{
+				try
+				{
+					loader.preload( indices );
+				}
+				catch ( final CancellationException e )
+				{
+					// none of the cells is requested anymore
+					return null;
+				}
+				catch ( final RuntimeException e )
+				{
+					// the requests below load their cells individually
+					e.printStackTrace();
+				}
+				Exception failure = null;
+				for ( final Request request : requests )
+				{
+					try
+					{
+						request.callable.call();
+					}
+					catch ( final InterruptedException e )
+					{
+						throw e;
+					}
+					catch ( final Exception e )
+					{
+						if ( failure == null )
+							failure = e;
+					}
+				}
+				if ( failure != null )
+					throw failure;
+				return null;
+			}
+			finally
+			{
+				loader.discard( indices );
+			}
+		}
+	}
+
+	/**
+	 * Runs a request, and then the listener to be notified of its completion.
+	 */
+	private static final class Notifying implements Callable< Object >
+	{
+		final Callable< ? > callable;
+
+		final Runnable listener;
+
+		Notifying( final Callable< ? > callable, final Runnable listener )
+		{
+			this.callable = callable;
+			this.listener = listener;
+		}
+
+		@Override
+		public Object call() throws Exception
+		{
+			final Object result = callable.call();
+			listener.run();
+			return result;
+		}
+	}
+
+	private final ArrayDeque< Request >[] queues;
+
+	private final ArrayDeque< Request > prefetch;
+
+	private final int prefetchCapacity;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * Number of requests in {@link #queues}.
+	 */
+	private int count;
+
+	private final int[] depths;
+
+	private volatile long currentFrame = 0;
+
+	/**
+	 * Notified after a request has been enqueued, to wake up the
+	 * {@link SharedFetcherThreads} serving this queue. {@code null} if the queue
+	 * is served by its own threads.
+	 */
+	private volatile Runnable putListener;
+
+	/**
+	 * Notified after a request of the current frame has been completed
+	 * successfully. {@code null} if nobody is interested.
+	 */
+	private volatile Runnable completionListener;
+
+	public CellFetchQueues( final int numPriorities )
+	{
+		this( numPriorities, DEFAULT_PREFETCH_CAPACITY );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public CellFetchQueues( final int numPriorities, final int prefetchCapacity )
+	{
+		super( numPriorities );
+		queues = new ArrayDeque[ numPriorities ];
+		for ( int i = 0; i < numPriorities; ++i )
+			queues[ i ] = new ArrayDeque<>();
+		prefetch = new ArrayDeque<>( prefetchCapacity );
+		this.prefetchCapacity = prefetchCapacity;
+		depths = new int[ numPriorities ];
+	}
+
+	/**
+	 * Attach {@code loader} and cell {@code index} to requests that are
+	 * enqueued by the current thread, until {@link #clearRequestContext()} is
+	 * called.
+	 */
+	public static void setRequestContext( final BatchLoader loader, final long index )
+	{
+		final RequestContext c = context.get();
+		c.loader = loader;
+		c.index = index;
+	}
+
+	/**
+	 * Stop attaching a request context to requests that are enqueued by the
+	 * current thread.
+	 */
+	public static void clearRequestContext()
+	{
+		context.get().loader = null;
+	}
+
+	@Override
+	public void put( final Callable< ? > element, final int priority, final boolean enqueuToFront )
+	{
+		final RequestContext c = context.get();
+		final Request request = new Request( element, priority, c.loader, c.index );
+		lock.lock();
+		try
+		{
+			if ( enqueuToFront )
+				queues[ priority ].addFirst( request );
+			else
+				queues[ priority ].addLast( request );
+			++count;
+			++depths[ priority ];
+			notEmpty.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		final Runnable listener = putListener;
+		if ( listener != null )
+			listener.run();
+	}
+
+	@Override
+	public Callable< ? > take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			while ( count == 0 && prefetch.isEmpty() )
+				notEmpty.await();
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Like {@link #take()}, but returns {@code null} immediately instead of
+	 * waiting, if no requests are enqueued.
+	 */
+	public Callable< ? > poll()
+	{
+		lock.lock();
+		try
+		{
+			if ( count == 0 && prefetch.isEmpty() )
+				return null;
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the priority of the request that {@link #poll()} would return next.
+	 * This allows comparing the urgency of requests in different queues.
+	 *
+	 * @return the priority of the most urgent enqueued request of the current
+	 *         frame, {@link #PREFETCH_PRIORITY} if there are only prefetch
+	 *         requests, or {@link #NO_REQUESTS} if there are none.
+	 */
+	public int peekPriority()
+	{
+		lock.lock();
+		try
+		{
+			if ( count > 0 )
+				for ( int i = 0; i < queues.length; ++i )
+					if ( !queues[ i ].isEmpty() )
+						return i;
+			return prefetch.isEmpty() ? NO_REQUESTS : PREFETCH_PRIORITY;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the action to run after a request has been enqueued.
+	 */
+	void setPutListener( final Runnable listener )
+	{
+		putListener = listener;
+	}
+
+	/**
+	 * Set the action to run after a request of the current frame has been
+	 * completed successfully.
+	 */
+	void setCompletionListener( final Runnable listener )
+	{
+		completionListener = listener;
+	}
+
+	/**
+	 * Remove the next request, collecting a batch if possible. If the request
+	 * is not from the prefetch queue, it is wrapped to notify the
+	 * {@link #completionListener} when completed. Must be called while
+	 * holding the {@link #lock}, with at least one request enqueued.
+	 */
+	private Callable< ? > next()
+	{
+		final Runnable listener = completionListener;
+		final boolean current = count > 0;
+		final Callable< ? > callable = nextRequest();
+		return ( listener != null && current ) ? new Notifying( callable, listener ) : callable;
+	}
+
+	/**
+	 * Remove the next request, collecting a batch if possible. Must be called
+	 * while holding the {@link #lock}, with at least one request enqueued.
+	 */
+	private Callable< ? > nextRequest()
+	{
+		ArrayDeque< Request > queue = prefetch;
+		if ( count > 0 )
+		{
+			for ( int i = 0; i < queues.length; ++i )
+			{
+				if ( !queues[ i ].isEmpty() )
+				{
+					queue = queues[ i ];
+					--count;
+					--depths[ i ];
+					break;
+				}
+			}
+		}
+		final Request request = queue.poll();
+
+		final BatchLoader loader = request.loader;
+		if ( loader == null || loader.getMaxBatchSize() <= 1 )
+			return request.callable;
+
+		final ArrayList< Request > batch = collectBatch( request, queue );
+		if ( batch.size() == 1 )
+			return request.callable;
+		return new Batch( loader, batch );
+	}
+
+	/**
+	 * Remove requests for the same {@link BatchLoader} as {@code first} from
+	 * {@code queue}, nearest cells first, up to the maximum batch size. Must be
+	 * called while holding the {@link #lock}.
+	 */
+	private ArrayList< Request > collectBatch( final Request first, final ArrayDeque< Request > queue )
+	{
+		final BatchLoader loader = first.loader;
+		final int maxBatchSize = loader.getMaxBatchSize();
+		final long[] gridDimensions = loader.getGridDimensions();
+		final int n = gridDimensions.length;
+		final long[] firstPos = new long[ n ];
+		position( first.index, gridDimensions, firstPos );
+
+		final ArrayList< Request > candidates = new ArrayList<>();
+		final ArrayList< Long > distances = new ArrayList<>();
+		final long[] pos = new long[ n ];
+		int examined = 0;
+		for ( final Request r : queue )
+		{
+			if ( ++examined > MAX_BATCH_CANDIDATES )
+				break;
+			if ( r.loader != loader || r.index == first.index )
+				continue;
+			position( r.index, gridDimensions, pos );
+			long d = 0;
+			for ( int i = 0; i < n; ++i )
+				d = Math.max( d, Math.abs( pos[ i ] - firstPos[ i ] ) );
+			candidates.add( r );
+			distances.add( d );
+		}
+
+		final ArrayList< Request > batch = new ArrayList<>();
+		batch.add( first );
+		if ( candidates.isEmpty() )
+			return batch;
+
+		final Integer[] order = new Integer[ candidates.size() ];
+		for ( int i = 0; i < order.length; ++i )
+			order[ i ] = i;
+		Arrays.sort( order, ( a, b ) -> Long.compare( distances.get( a ), distances.get( b ) ) );
+		for ( int i = 0; i < order.length && batch.size() < maxBatchSize; ++i )
+			batch.add( candidates.get( order[ i ] ) );
+
+		final Iterator< Request > it = queue.iterator();
+		int removed = 0;
+		while ( it.hasNext() && removed < batch.size() - 1 )
+		{
+			final Request r = it.next();
+			if ( r != first && r.loader == loader && batch.contains( r ) )
+			{
+				it.remove();
+				++removed;
+				if ( queue != prefetch )
+				{
+					--count;
+					--depths[ r.priority ];
+				}
+			}
+		}
+		return batch;
+	}
+
+	private static void position( final long index, final long[] dimensions, final long[] position )
+	{
+		long i = index;
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			position[ d ] = i % dimensions[ d ];
+			i /= dimensions[ d ];
+		}
+	}
+
+	/**
+	 * Move all requests to the prefetch queue and start a new frame. If the
+	 * prefetch queue exceeds its capacity, the oldest requests are dropped.
+	 */
+	@Override
+	public void clearToPrefetch()
+	{
+		lock.lock();
+		try
+		{
+			++currentFrame;
+			for ( int i = queues.length - 1; i >= 0; --i )
+			{
+				final ArrayDeque< Request > q = queues[ i ];
+				for ( Request r = q.pollLast(); r != null; r = q.pollLast() )
+					prefetch.addFirst( r );
+				depths[ i ] = 0;
+			}
+			count = 0;
+			while ( prefetch.size() > prefetchCapacity )
+				prefetch.pollLast();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove all requests and start a new frame.
+	 */
+	@Override
+	public void clear()
+	{
+		lock.lock();
+		try
+		{
+			++currentFrame;
+			for ( int i = 0; i < queues.length; ++i )
+			{
+				queues[ i ].clear();
+				depths[ i ] = 0;
+			}
+			prefetch.clear();
+			count = 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long getCurrentFrame()
+	{
+		return currentFrame;
+	}
+
+	public int getNumPriorities()
+	{
+		return queues.length;
+	}
+
+	/**
+	 * Get the number of requests enqueued with each priority in the current
+	 * frame. Requests that have been moved to the prefetch queue are not
+	 * counted.
+	 */
+	public long[] getDepths()
+	{
+		lock.lock();
+		try
+		{
+			final long[] d = new long[ depths.length ];
+			for ( int i = 0; i < d.length; ++i )
+				d[ i ] = depths[ i ];
+			return d;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of requests in the prefetch queue.
+	 */
+	public int getPrefetchSize()
+	{
+		lock.lock();
+		try
+		{
+			return prefetch.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package bdv.img.cache;
+
+/**
+ * A request to load the data of one cell, used for batched loading with
+ * {@link CacheArrayLoader#loadArrays(java.util.List)}. The parameters are the
+ * same as for {@link CacheArrayLoader#loadArray(int, int, int, int[], long[])}.
+ */
+public class CellRequest
+{
+	private final int timepoint;
+
+	private final int setup;
+
+	private final int level;
+
+	private final int[] dimensions;
+
+	private final long[] min;
+
+	/**
+	 * @param timepoint
+	 *            the timepoint of the stack.
+	 * @param setup
+	 *            the setup of the stack.
+	 * @param level
+	 *            the resolution level of the stack (0 for full resolution).
+	 * @param dimensions
+	 *            the size of the block to load (in voxels).
+	 * @param min
+	 *            the min coordinate of the block in the stack (in voxels).
+	 */
+	public CellRequest( final int timepoint, final int setup, final int level, final int[] dimensions, final long[] min )
+	{
+		this.timepoint = timepoint;
+		this.setup = setup;
+		this.level = level;
+		this.dimensions = dimensions;
+		this.min = min;
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int getSetup()
+	{
+		return setup;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public int[] getDimensions()
+	{
+		return dimensions;
+	}
+
+	public long[] getMin()
+	{
+		return min;
+	}
+}
@@ -0,0 +1,268 @@
+package bdv.img.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import bdv.img.cache.VolatileGlobalCellCache.Key;
+import net.imglib2.cache.img.PrimitiveType;
+
+/**
+ * Storage tier for compressed cell data on the Java heap. Cells that are
+ * evicted from the in-memory cache of the {@link VolatileGlobalCellCache} are
+ * compressed with the lossless {@link CellCodec}, and decompressed when they
+ * are requested again, without going through the {@link CacheArrayLoader}.
+ * <p>
+ * This works well for integer data with smooth or empty regions, such as
+ * mostly-background light-sheet cells. Cells that do not compress to less than
+ * {@link #getMaxRatio()} of their size are not stored, such that they can go
+ * to the next tier instead.
+ * </p>
+ * <p>
+ * The tier has its own memory budget for compressed data. If a new cell does
+ * not fit, the cells that were stored longest ago are dropped.
+ * </p>
+ * <p>
+ * Only cells with data of the standard volatile array types are stored (see
+ * {@link VolatileArrays}).
+ * </p>
+ */
+public class CompressedCellCache
+{
+	private static final class Entry
+	{
+		final byte[] data;
+
+		final PrimitiveType type;
+
+		final int numEntities;
+
+		final int numBytes;
+
+		Entry( final byte[] data, final PrimitiveType type, final int numEntities, final int numBytes )
+		{
+			this.data = data;
+			this.type = type;
+			this.numEntities = numEntities;
+			this.numBytes = numBytes;
+		}
+	}
+
+	/**
+	 * Stored cells, in the order in which they were stored.
+	 */
+	private final LinkedHashMap< Key, Entry > entries = new LinkedHashMap<>();
+
+	private long maxBytes;
+
+	private double maxRatio = 0.75;
+
+	/**
+	 * Total size of the compressed data of all entries.
+	 */
+	private long compressedBytes;
+
+	/**
+	 * Total size of the uncompressed data of all entries.
+	 */
+	private long uncompressedBytes;
+
+	private long numDecoded;
+
+	private long decodeNanos;
+
+	/**
+	 * Create a compressed cell cache.
+	 *
+	 * @param maxBytes
+	 *            how many bytes of compressed data to keep at most.
+	 */
+	public CompressedCellCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Compress the data of a cell and store it.
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 * @param data
+	 *            the cell data.
+	 * @return {@code true} if the data was stored, {@code false} if its type
+	 *         is not supported, it does not compress well enough, or it is too
+	 *         large for the budget.
+	 */
+	public boolean put( final Key key, final Object data )
+	{
+		final PrimitiveType type = VolatileArrays.getPrimitiveType( data );
+		if ( type == PrimitiveType.UNDEFINED )
+			return false;
+		final int numBytes = VolatileArrays.getNumBytes( type, data );
+		final byte[] compressed = CellCodec.encode( type, data );
+		final double ratio;
+		synchronized ( this )
+		{
+			ratio = maxRatio;
+		}
+		if ( compressed.length > numBytes * ratio )
+			return false;
+
+		synchronized ( this )
+		{
+			if ( compressed.length > maxBytes )
+				return false;
+			removeEntry( key );
+			makeRoom( compressed.length );
+			entries.put( key, new Entry( compressed, type, VolatileArrays.getNumEntities( type, data ), numBytes ) );
+			compressedBytes += compressed.length;
+			uncompressedBytes += numBytes;
+			return true;
+		}
+	}
+
+	/**
+	 * Decompress the data of a cell and remove it from the tier.
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 * @return a new valid volatile array access with the cell data, or
+	 *         {@code null} if the cell is not stored.
+	 */
+	public Object remove( final Key key )
+	{
+		final Entry entry;
+		synchronized ( this )
+		{
+			entry = removeEntry( key );
+		}
+		if ( entry == null )
+			return null;
+		final long t0 = System.nanoTime();
+		final Object data = CellCodec.decode( entry.type, entry.numEntities, entry.data );
+		final long t = System.nanoTime() - t0;
+		synchronized ( this )
+		{
+			++numDecoded;
+			decodeNanos += t;
+		}
+		return data;
+	}
+
+	/**
+	 * Remove a cell from the tier without decompressing it, for example
+	 * because it is resident in memory again.
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 */
+	public synchronized void discard( final Key key )
+	{
+		removeEntry( key );
+	}
+
+	/**
+	 * Remove all cells.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		compressedBytes = 0;
+		uncompressedBytes = 0;
+	}
+
+	/**
+	 * Set how many bytes of compressed data to keep at most. If the currently
+	 * stored cells exceed the new budget, they are dropped immediately.
+	 */
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		makeRoom( 0 );
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Set the compression ratio (compressed / uncompressed size) above which
+	 * cells are not stored. Default is 0.75.
+	 */
+	public synchronized void setMaxRatio( final double maxRatio )
+	{
+		this.maxRatio = maxRatio;
+	}
+
+	public synchronized double getMaxRatio()
+	{
+		return maxRatio;
+	}
+
+	/**
+	 * Get how many bytes of compressed data are currently held.
+	 */
+	public synchronized long getCompressedBytes()
+	{
+		return compressedBytes;
+	}
+
+	/**
+	 * Get the uncompressed size of the currently held cells.
+	 */
+	public synchronized long getUncompressedBytes()
+	{
+		return uncompressedBytes;
+	}
+
+	/**
+	 * Get how many cells have been decompressed.
+	 */
+	public synchronized long getNumDecoded()
+	{
+		return numDecoded;
+	}
+
+	/**
+	 * Get the total time spent decompressing cells, in nanoseconds.
+	 */
+	public synchronized long getDecodeNanos()
+	{
+		return decodeNanos;
+	}
+
+	/**
+	 * Get how many cells are currently stored.
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	private Entry removeEntry( final Key key )
+	{
+		final Entry entry = entries.remove( key );
+		if ( entry != null )
+		{
+			compressedBytes -= entry.data.length;
+			uncompressedBytes -= entry.numBytes;
+		}
+		return entry;
+	}
+
+	/**
+	 * Drop the oldest entries until {@code numBytes} additional bytes fit into
+	 * the budget.
+	 */
+	private void makeRoom( final int numBytes )
+	{
+		final Iterator< Entry > it = entries.values().iterator();
+		while ( compressedBytes + numBytes > maxBytes && it.hasNext() )
+		{
+			final Entry entry = it.next();
+			it.remove();
+			compressedBytes -= entry.data.length;
+			uncompressedBytes -= entry.numBytes;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package bdv.img.cache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+import net.imglib2.cache.img.PrimitiveType;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+
+/**
+ * Shared data for uniform cells, i.e., cells whose entities all have the same
+ * value, such as empty background in sparse data sets.
+ * <p>
+ * When a cell is loaded, the {@link VolatileGlobalCellCache} replaces its data
+ * by the shared access of the same type, size, and value, if the cell is
+ * uniform (see {@link #deduplicate(Object)}). Thus, all uniform cells with the
+ * same value share one valid volatile array access, similar to the shared
+ * invalid array of {@link DefaultEmptyArrayCreator}. In the cache, a shared
+ * cell only counts with the size of its cell object (see
+ * {@link #CONSTANT_CELL_WEIGHT}).
+ * </p>
+ * <p>
+ * Shared accesses must not be modified. They are only weakly referenced here,
+ * and are dropped when no cell uses them anymore. To restore the data of an
+ * evicted uniform cell without keeping a copy, the cache keeps its
+ * {@link #describe(Object) descriptor} and gets the shared access for it
+ * again with {@link #restore(Key)}.
+ * </p>
+ * <p>
+ * Only the standard volatile array types are handled (see
+ * {@link VolatileArrays}).
+ * </p>
+ */
+public final class ConstantCells
+{
+	/**
+	 * Approximate memory used by a cell with shared data, in bytes: the cell
+	 * object with its position and dimensions.
+	 */
+	public static final long CONSTANT_CELL_WEIGHT = 128;
+
+	/**
+	 * Describes the shared data of uniform cells: type, size, and value.
+	 */
+	static final class Key
+	{
+		final PrimitiveType type;
+
+		final int numEntities;
+
+		final long bits;
+
+		final int hash;
+
+		Key( final PrimitiveType type, final int numEntities, final long bits )
+		{
+			this.type = type;
+			this.numEntities = numEntities;
+			this.bits = bits;
+			int h = type.hashCode();
+			h = 31 * h + numEntities;
+			h = 31 * h + Long.hashCode( bits );
+			this.hash = h;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return type == other.type && numEntities == other.numEntities && bits == other.bits;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
+	private static final class SharedReference extends WeakReference< Object >
+	{
+		final Key key;
+
+		SharedReference( final Key key, final Object referent, final ReferenceQueue< Object > queue )
+		{
+			super( referent, queue );
+			this.key = key;
+		}
+	}
+
+	private static final HashMap< Key, SharedReference > shared = new HashMap<>();
+
+	private static final ReferenceQueue< Object > queue = new ReferenceQueue<>();
+
+	private ConstantCells()
+	{}
+
+	/**
+	 * Get the shared access for the data of a uniform cell.
+	 *
+	 * @param access
+	 *            the data of a loaded cell.
+	 * @return the shared access with the same type, size, and value as
+	 *         {@code access}, if {@code access} is valid and uniform. This is
+	 *         {@code access} itself if there was no shared access for its value
+	 *         yet. If {@code access} is not uniform, {@code access} is
+	 *         returned.
+	 */
+	public static Object deduplicate( final Object access )
+	{
+		final PrimitiveType type = VolatileArrays.getPrimitiveType( access );
+		if ( type == PrimitiveType.UNDEFINED
+				|| !( ( VolatileAccess ) access ).isValid()
+				|| !VolatileArrays.isUniform( type, access ) )
+			return access;
+		final Key key = key( type, access );
+		synchronized ( shared )
+		{
+			expunge();
+			final SharedReference ref = shared.get( key );
+			final Object existing = ref == null ? null : ref.get();
+			if ( existing != null )
+				return existing;
+			shared.put( key, new SharedReference( key, access, queue ) );
+			return access;
+		}
+	}
+
+	/**
+	 * Check whether {@code access} is the shared data of uniform cells. This
+	 * does not look at all entities, so it is cheap.
+	 */
+	public static boolean isConstant( final Object access )
+	{
+		return describe( access ) != null;
+	}
+
+	/**
+	 * Get the descriptor of {@code access}, if it is the shared data of
+	 * uniform cells. This does not look at all entities, so it is cheap.
+	 *
+	 * @return the descriptor, or {@code null} if {@code access} is not shared
+	 *         data.
+	 */
+	static Key describe( final Object access )
+	{
+		final PrimitiveType type = VolatileArrays.getPrimitiveType( access );
+		if ( type == PrimitiveType.UNDEFINED || VolatileArrays.getNumEntities( type, access ) == 0 )
+			return null;
+		final Key key = key( type, access );
+		synchronized ( shared )
+		{
+			final SharedReference ref = shared.get( key );
+			return ref != null && ref.get() == access ? key : null;
+		}
+	}
+
+	/**
+	 * Get the shared access for a descriptor obtained with
+	 * {@link #describe(Object)}. If the shared access has been
+	 * garbage-collected in the meantime, a new one is created.
+	 */
+	static Object restore( final Key key )
+	{
+		synchronized ( shared )
+		{
+			expunge();
+			final SharedReference ref = shared.get( key );
+			final Object existing = ref == null ? null : ref.get();
+			if ( existing != null )
+				return existing;
+			final Object access = VolatileArrays.createUniform( key.type, key.numEntities, key.bits );
+			shared.put( key, new SharedReference( key, access, queue ) );
+			return access;
+		}
+	}
+
+	/**
+	 * Get the number of shared accesses.
+	 */
+	public static int size()
+	{
+		synchronized ( shared )
+		{
+			expunge();
+			return shared.size();
+		}
+	}
+
+	private static Key key( final PrimitiveType type, final Object access )
+	{
+		return new Key( type, VolatileArrays.getNumEntities( type, access ), VolatileArrays.getBits( type, access, 0 ) );
+	}
+
+	/**
+	 * Remove entries whose shared access has been garbage-collected. Must be
+	 * called while holding the {@link #shared} lock.
+	 */
+	private static void expunge()
+	{
+		while ( true )
+		{
+			final SharedReference ref = ( SharedReference ) queue.poll();
+			if ( ref == null )
+				break;
+			shared.remove( ref.key, ref );
+		}
+	}
+}
@@ -0,0 +1,1121 @@
+package bdv.img.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import bdv.img.cache.VolatileGlobalCellCache.Key;
+import bdv.util.Prefs;
+import net.imglib2.cache.img.PrimitiveType;
+
+/**
+ * Persistent storage tier for cell data on the local disk. This is meant for
+ * image loaders that fetch cells over the network, where loading a cell from
+ * the local disk is orders of magnitude faster than re-fetching it. Cells that
+ * are loaded by the {@link CacheArrayLoader} of a
+ * {@link VolatileGlobalCellCache} are written to disk, and when they are
+ * requested again (after being evicted from memory, or after a restart) they
+ * are read back from disk instead of being re-fetched.
+ * <p>
+ * Each data set (loader identity) has its own sub-directory of the cache base
+ * directory. Cells are appended to memory-mapped segment files of fixed size.
+ * When a segment is full, a compact index of the cells it contains is written
+ * next to it and a new segment is started. When the total size of the segments
+ * exceeds the budget, the oldest segment is compacted: cells in it that were
+ * accessed since it was filled are copied forward to the newest segment, the
+ * others are dropped, and the segment is deleted.
+ * </p>
+ * <p>
+ * The budget applies to the disk caches of all data sets in the base
+ * directory together. Each data set may use what the others leave of the
+ * budget. If they exceed it, the data sets that are not in use by any process
+ * are deleted, least recently used first. The shares are updated whenever a
+ * segment is sealed, so the budget may be exceeded by about one segment per
+ * open data set.
+ * </p>
+ * <p>
+ * Segments are unmapped before they are deleted, because mapped files cannot
+ * be deleted on some platforms. A marker file is created before deleting a
+ * segment. If the segment cannot be deleted, it still counts against the
+ * budget, deleting it is retried later, and it is deleted instead of read
+ * when the directory is opened again.
+ * </p>
+ * <p>
+ * Recency is tracked by a counter of accesses. The value of the counter when a
+ * segment was sealed is stored in its index file, and the last access of each
+ * cell is stored in an access file, which is rewritten whenever a segment is
+ * sealed and when the cache is {@link #close() closed} (at the latest when the
+ * JVM exits). Thus, compaction keeps the cells that were used recently across
+ * restarts.
+ * </p>
+ * <p>
+ * On startup, sealed segments are indexed from their index file and the
+ * segment that was being written is scanned record by record. Every record
+ * carries a checksum of its data, which is verified when the record is read,
+ * so records that were not completely written before a crash are never
+ * returned. A directory is used by at most one process at a time.
+ * </p>
+ * <p>
+ * Only cells with data of the standard volatile array types are stored (see
+ * {@link VolatileArrays}).
+ * </p>
+ */
+public class DiskCellCache
+{
+	private static final int RECORD_MAGIC = 0x43564442;
+
+	private static final int INDEX_MAGIC = 0x59564442;
+
+	private static final int ACCESS_MAGIC = 0x41564442;
+
+	/**
+	 * Record layout (little endian): magic, timepoint, setup, level (int),
+	 * index (long), primitive type ordinal, number of entities, checksum of
+	 * data, number of data bytes (int), data. Records are aligned to 8 bytes.
+	 * The magic is written last, so that a record without magic marks the end
+	 * of a segment.
+	 */
+	private static final int HEADER_SIZE = 40;
+
+	/**
+	 * Default size of segment files in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	private static final PrimitiveType[] TYPES = PrimitiveType.values();
+
+	private static final HashMap< File, DiskCellCache > openCaches = new HashMap<>();
+
+	/**
+	 * Closes the caches that are still open when the JVM exits, such that
+	 * their access stamps are written. Registered when the first cache is
+	 * opened.
+	 */
+	private static Thread shutdownHook;
+
+	private static final class Segment
+	{
+		final int number;
+
+		final File file;
+
+		final MappedByteBuffer map;
+
+		/**
+		 * Offset of the first unused byte.
+		 */
+		int end;
+
+		/**
+		 * Value of the access {@link DiskCellCache#clock} when the segment was
+		 * sealed.
+		 */
+		long sealedAt;
+
+		Segment( final int number, final File file, final MappedByteBuffer map )
+		{
+			this.number = number;
+			this.file = file;
+			this.map = map;
+			map.order( ByteOrder.LITTLE_ENDIAN );
+		}
+	}
+
+	private static final class Location
+	{
+		final Segment segment;
+
+		final int offset;
+
+		long lastAccess;
+
+		Location( final Segment segment, final int offset, final long lastAccess )
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final File baseDirectory;
+
+	private final File directory;
+
+	private final FileLock lock;
+
+	private final int segmentSize;
+
+	/**
+	 * Budget for the disk caches of all data sets in {@link #baseDirectory}.
+	 */
+	private long totalMaxBytes;
+
+	/**
+	 * Share of {@link #totalMaxBytes} for this data set: the total budget minus
+	 * the space used by the other data sets in {@link #baseDirectory}.
+	 */
+	private long maxBytes;
+
+	/**
+	 * Segments whose files could not be deleted. Deleting them is retried when
+	 * the next segment is sealed.
+	 */
+	private final ArrayList< Segment > undeleted = new ArrayList<>();
+
+	/**
+	 * All segments, oldest first. The last one is the {@link #active} segment.
+	 */
+	private final ArrayList< Segment > segments = new ArrayList<>();
+
+	private Segment active;
+
+	private final HashMap< Key, Location > index = new HashMap<>();
+
+	/**
+	 * Counts accesses, used to order cells by recency.
+	 */
+	private long clock;
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * How many times the cache was {@link #open(File, String, long) opened}
+	 * and not yet {@link #close() closed}. Guarded by {@link #openCaches}.
+	 */
+	private int numUsers;
+
+	private boolean closed;
+
+	/**
+	 * Get the disk cache for the data set with the given identity, in the
+	 * directory that is configured in the BigDataViewer preferences (see
+	 * {@link Prefs#diskCacheDir()}).
+	 *
+	 * @param identity
+	 *            a string that uniquely identifies the data set and its cell
+	 *            grids, e.g., the URL of the image server.
+	 * @return the disk cache, or {@code null} if no cache directory is
+	 *         configured or the cache cannot be opened. It should be
+	 *         {@link #close() closed} when it is no longer used.
+	 */
+	public static DiskCellCache forDataSet( final String identity )
+	{
+		final String dir = Prefs.diskCacheDir();
+		if ( dir == null || dir.isEmpty() )
+			return null;
+		try
+		{
+			return open( new File( dir ), identity, Prefs.diskCacheMaxBytes() );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Cannot use disk cache in " + dir );
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Get the disk cache for the data set with the given identity. Within one
+	 * JVM, the same instance is returned for the same directory and identity,
+	 * until it has been {@link #close() closed} as often as it was opened.
+	 *
+	 * @param baseDirectory
+	 *            base directory for disk caches. A sub-directory is created for
+	 *            each data set.
+	 * @param identity
+	 *            a string that uniquely identifies the data set and its cell
+	 *            grids, e.g., the URL of the image server.
+	 * @param maxBytes
+	 *            how many bytes of disk space to use at most for the disk
+	 *            caches of all data sets in {@code baseDirectory}.
+	 * @return the disk cache.
+	 * @throws IOException
+	 *             if the directory cannot be created or read, or is in use by
+	 *             another process.
+	 */
+	public static DiskCellCache open( final File baseDirectory, final String identity, final long maxBytes ) throws IOException
+	{
+		final File directory = new File( baseDirectory, String.format( "%016x", hash( identity ) ) ).getCanonicalFile();
+		synchronized ( openCaches )
+		{
+			DiskCellCache cache = openCaches.get( directory );
+			if ( cache == null )
+			{
+				cache = new DiskCellCache( baseDirectory.getCanonicalFile(), directory, identity, maxBytes, DEFAULT_SEGMENT_SIZE );
+				openCaches.put( directory, cache );
+				if ( shutdownHook == null )
+				{
+					shutdownHook = new Thread( DiskCellCache::closeAll, "bdv-disk-cache-shutdown" );
+					Runtime.getRuntime().addShutdownHook( shutdownHook );
+				}
+			}
+			else
+				cache.setMaxBytes( Math.max( maxBytes, cache.getMaxBytes() ) );
+			++cache.numUsers;
+			return cache;
+		}
+	}
+
+	/**
+	 * Close the cache. When it has been closed as often as it was opened, the
+	 * access stamps of the cells are written, the directory is unlocked, and
+	 * the cache stores and returns no more cells. Opening the same data set
+	 * again then creates a new instance.
+	 */
+	public void close()
+	{
+		synchronized ( openCaches )
+		{
+			if ( numUsers > 0 && --numUsers > 0 )
+				return;
+			openCaches.remove( directory, this );
+		}
+		closeNow();
+	}
+
+	/**
+	 * Close all caches that are still open, when the JVM exits.
+	 */
+	private static void closeAll()
+	{
+		final ArrayList< DiskCellCache > caches;
+		synchronized ( openCaches )
+		{
+			caches = new ArrayList<>( openCaches.values() );
+			openCaches.clear();
+		}
+		for ( final DiskCellCache cache : caches )
+			cache.closeNow();
+	}
+
+	private synchronized void closeNow()
+	{
+		if ( closed )
+			return;
+		closed = true;
+		try
+		{
+			active.map.force();
+			writeAccessStamps();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+		try
+		{
+			lock.channel().close();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+		index.clear();
+	}
+
+	private DiskCellCache( final File baseDirectory, final File directory, final String identity, final long maxBytes, final int segmentSize ) throws IOException
+	{
+		this.baseDirectory = baseDirectory;
+		this.directory = directory;
+		this.totalMaxBytes = maxBytes;
+		this.segmentSize = segmentSize;
+
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "cannot create directory " + directory );
+
+		@SuppressWarnings( "resource" )
+		final RandomAccessFile lockFile = new RandomAccessFile( new File( directory, "lock" ), "rw" );
+		lock = lockFile.getChannel().tryLock();
+		if ( lock == null )
+		{
+			lockFile.close();
+			throw new IOException( "directory " + directory + " is used by another process" );
+		}
+
+		final File identityFile = new File( directory, "identity" );
+		final byte[] identityBytes = identity.getBytes( StandardCharsets.UTF_8 );
+		if ( identityFile.isFile() )
+		{
+			final String existing = new String( Files.readAllBytes( identityFile.toPath() ), StandardCharsets.UTF_8 );
+			if ( !existing.equals( identity ) )
+			{
+				lock.release();
+				lockFile.close();
+				throw new IOException( "directory " + directory + " is used for a different data set: " + existing );
+			}
+		}
+		else
+			Files.write( identityFile.toPath(), identityBytes );
+
+		updateShare();
+		openSegments();
+	}
+
+	/**
+	 * Read the data of a cell from disk.
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 * @return a new valid volatile array access with the cell data, or
+	 *         {@code null} if the cell is not stored.
+	 */
+	public synchronized Object get( final Key key )
+	{
+		if ( closed )
+			return null;
+		final Location location = index.get( key );
+		if ( location == null )
+			return null;
+
+		final ByteBuffer record = location.segment.map;
+		final int offset = location.offset;
+		final int typeOrdinal = record.getInt( offset + 24 );
+		final int numEntities = record.getInt( offset + 28 );
+		final int numBytes = record.getInt( offset + 36 );
+		if ( record.getInt( offset ) != RECORD_MAGIC
+				|| record.getInt( offset + 4 ) != key.getTimepoint()
+				|| record.getInt( offset + 8 ) != key.getSetup()
+				|| record.getInt( offset + 12 ) != key.getLevel()
+				|| record.getLong( offset + 16 ) != key.getIndex()
+				|| typeOrdinal < 0 || typeOrdinal >= TYPES.length
+				|| numBytes < 0 || recordSize( numBytes ) > segmentSize - offset )
+		{
+			index.remove( key );
+			return null;
+		}
+
+		final ByteBuffer data = slice( record, offset + HEADER_SIZE, numBytes );
+		crc.reset();
+		crc.update( data.duplicate() );
+		if ( record.getInt( offset + 32 ) != ( int ) crc.getValue() )
+		{
+			index.remove( key );
+			return null;
+		}
+
+		location.lastAccess = ++clock;
+		return VolatileArrays.read( TYPES[ typeOrdinal ], numEntities, data );
+	}
+
+	/**
+	 * Write the data of a cell to disk.
+	 * <p>
+	 * Cells that contain only zeros are not stored. Image loaders that fetch
+	 * cells over the network return zero-filled cells if a request fails, and
+	 * these should not outlive the session.
+	 * </p>
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 * @param data
+	 *            the cell data.
+	 * @return {@code true} if the data was stored.
+	 */
+	public synchronized boolean put( final Key key, final Object data )
+	{
+		if ( closed )
+			return false;
+		final PrimitiveType type = VolatileArrays.getPrimitiveType( data );
+		if ( type == PrimitiveType.UNDEFINED || VolatileArrays.isZero( type, data ) )
+			return false;
+		final int numBytes = VolatileArrays.getNumBytes( type, data );
+		final int recordSize = recordSize( numBytes );
+		if ( recordSize > segmentSize )
+			return false;
+
+		try
+		{
+			if ( active.end + recordSize > segmentSize )
+				startNewSegment();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			return false;
+		}
+
+		final int offset = active.end;
+		final ByteBuffer record = active.map;
+		final ByteBuffer payload = slice( record, offset + HEADER_SIZE, numBytes );
+		VolatileArrays.write( type, data, payload );
+		crc.reset();
+		crc.update( payload );
+		record.putInt( offset + 4, key.getTimepoint() );
+		record.putInt( offset + 8, key.getSetup() );
+		record.putInt( offset + 12, key.getLevel() );
+		record.putLong( offset + 16, key.getIndex() );
+		record.putInt( offset + 24, type.ordinal() );
+		record.putInt( offset + 28, VolatileArrays.getNumEntities( type, data ) );
+		record.putInt( offset + 32, ( int ) crc.getValue() );
+		record.putInt( offset + 36, numBytes );
+		record.putInt( offset, RECORD_MAGIC );
+		active.end += recordSize;
+
+		index.put( key, new Location( active, offset, ++clock ) );
+		return true;
+	}
+
+	/**
+	 * Set how many bytes of disk space to use at most for the disk caches of
+	 * all data sets in the base directory. If the segments exceed the share of
+	 * this data set in the new budget, they are compacted immediately.
+	 */
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.totalMaxBytes = maxBytes;
+		if ( !closed )
+		{
+			updateShare();
+			compact();
+		}
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return totalMaxBytes;
+	}
+
+	/**
+	 * Get how many bytes of disk space are currently used by segment files of
+	 * this data set.
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return ( long ) ( segments.size() + undeleted.size() ) * segmentSize;
+	}
+
+	/**
+	 * Get how many cells are currently stored.
+	 */
+	public synchronized int size()
+	{
+		return index.size();
+	}
+
+	/**
+	 * Delete all stored cells.
+	 */
+	public synchronized void clear()
+	{
+		if ( closed )
+			return;
+		for ( final Segment segment : segments )
+			delete( segment );
+		segments.clear();
+		index.clear();
+		try
+		{
+			active = createSegment( active.number + 1 );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Open existing segments and build the index.
+	 */
+	private void openSegments() throws IOException
+	{
+		final ArrayList< Integer > numbers = new ArrayList<>();
+		final ArrayList< Integer > deleted = new ArrayList<>();
+		final File[] files = directory.listFiles();
+		if ( files != null )
+			for ( final File file : files )
+			{
+				final String name = file.getName();
+				if ( name.startsWith( "segment-" ) && ( name.endsWith( ".dat" ) || name.endsWith( ".del" ) ) )
+				{
+					try
+					{
+						final int number = Integer.parseInt( name.substring( 8, name.length() - 4 ) );
+						( name.endsWith( ".dat" ) ? numbers : deleted ).add( number );
+					}
+					catch ( final NumberFormatException e )
+					{}
+				}
+			}
+
+		// segments that could not be deleted before
+		int nextNumber = 0;
+		for ( final int number : deleted )
+		{
+			nextNumber = Math.max( nextNumber, number + 1 );
+			numbers.remove( Integer.valueOf( number ) );
+			if ( deleteFiles( number ) )
+				deletedMarkerFile( number ).delete();
+			else
+				System.err.println( "cannot delete " + segmentFile( number ) );
+		}
+		numbers.sort( null );
+
+		for ( final int number : numbers )
+		{
+			final File file = segmentFile( number );
+			final Segment segment = new Segment( number, file, map( file, segmentSize ) );
+			if ( !readIndex( segment ) )
+				scan( segment );
+			segments.add( segment );
+			clock = Math.max( clock, segment.sealedAt );
+		}
+		readAccessStamps();
+
+		final int last = segments.size() - 1;
+		for ( int i = 0; i < last; ++i )
+			if ( !indexFile( segments.get( i ).number ).isFile() )
+				seal( segments.get( i ) );
+
+		if ( last >= 0 && !indexFile( segments.get( last ).number ).isFile() )
+			active = segments.get( last );
+		else
+			active = createSegment( Math.max( nextNumber, last >= 0 ? segments.get( last ).number + 1 : 0 ) );
+
+		compact();
+	}
+
+	/**
+	 * Add the records of {@code segment} to the index, by scanning the segment
+	 * from the beginning up to the first record that has no valid header.
+	 */
+	private void scan( final Segment segment )
+	{
+		final ByteBuffer map = segment.map;
+		int offset = 0;
+		while ( offset + HEADER_SIZE <= segmentSize && map.getInt( offset ) == RECORD_MAGIC )
+		{
+			final int typeOrdinal = map.getInt( offset + 24 );
+			final int numBytes = map.getInt( offset + 36 );
+			if ( typeOrdinal < 0 || typeOrdinal >= TYPES.length || numBytes < 0 || recordSize( numBytes ) > segmentSize - offset )
+				break;
+			final Key key = new Key(
+					map.getInt( offset + 4 ),
+					map.getInt( offset + 8 ),
+					map.getInt( offset + 12 ),
+					map.getLong( offset + 16 ) );
+			index.put( key, new Location( segment, offset, 0 ) );
+			offset += recordSize( numBytes );
+		}
+		segment.end = offset;
+	}
+
+	/**
+	 * Set the {@link Location#lastAccess} of indexed cells, and the
+	 * {@link #clock}, from the access file.
+	 */
+	private void readAccessStamps()
+	{
+		final File file = accessFile();
+		if ( !file.isFile() )
+			return;
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			if ( in.readInt() != ACCESS_MAGIC )
+				return;
+			clock = Math.max( clock, in.readLong() );
+			final int n = in.readInt();
+			for ( int i = 0; i < n; ++i )
+			{
+				final int timepoint = in.readInt();
+				final int setup = in.readInt();
+				final int level = in.readInt();
+				final long cellIndex = in.readLong();
+				final long lastAccess = in.readLong();
+				final Location location = index.get( new Key( timepoint, setup, level, cellIndex ) );
+				if ( location != null )
+					location.lastAccess = lastAccess;
+			}
+		}
+		catch ( final IOException e )
+		{
+			file.delete();
+		}
+	}
+
+	/**
+	 * Write the {@link #clock} and the {@link Location#lastAccess} of all
+	 * indexed cells to the access file.
+	 */
+	private void writeAccessStamps() throws IOException
+	{
+		int n = 0;
+		for ( final Location location : index.values() )
+			if ( location.lastAccess != 0 )
+				++n;
+
+		final File file = accessFile();
+		final File tmp = new File( directory, file.getName() + ".tmp" );
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) )
+		{
+			out.writeInt( ACCESS_MAGIC );
+			out.writeLong( clock );
+			out.writeInt( n );
+			for ( final Map.Entry< Key, Location > entry : index.entrySet() )
+			{
+				final long lastAccess = entry.getValue().lastAccess;
+				if ( lastAccess == 0 )
+					continue;
+				final Key key = entry.getKey();
+				out.writeInt( key.getTimepoint() );
+				out.writeInt( key.getSetup() );
+				out.writeInt( key.getLevel() );
+				out.writeLong( key.getIndex() );
+				out.writeLong( lastAccess );
+			}
+		}
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Add the records of {@code segment} to the index, from its index file.
+	 * Index files in an outdated format are deleted.
+	 *
+	 * @return {@code false} if there is no valid index file.
+	 */
+	private boolean readIndex( final Segment segment )
+	{
+		final File file = indexFile( segment.number );
+		if ( !file.isFile() )
+			return false;
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+		{
+			if ( in.readInt() != INDEX_MAGIC )
+			{
+				in.close();
+				file.delete();
+				return false;
+			}
+			segment.end = in.readInt();
+			segment.sealedAt = in.readLong();
+			final int n = in.readInt();
+			for ( int i = 0; i < n; ++i )
+			{
+				final int timepoint = in.readInt();
+				final int setup = in.readInt();
+				final int level = in.readInt();
+				final long cellIndex = in.readLong();
+				final int offset = in.readInt();
+				index.put( new Key( timepoint, setup, level, cellIndex ), new Location( segment, offset, 0 ) );
+			}
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			file.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Flush {@code segment} and write the index file for the cells that it
+	 * contains. The access stamps of all cells are written too.
+	 */
+	private void seal( final Segment segment ) throws IOException
+	{
+		segment.sealedAt = clock;
+		segment.map.force();
+		final ArrayList< Map.Entry< Key, Location > > entries = new ArrayList<>();
+		for ( final Map.Entry< Key, Location > entry : index.entrySet() )
+			if ( entry.getValue().segment == segment )
+				entries.add( entry );
+
+		final File file = indexFile( segment.number );
+		final File tmp = new File( directory, file.getName() + ".tmp" );
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) )
+		{
+			out.writeInt( INDEX_MAGIC );
+			out.writeInt( segment.end );
+			out.writeLong( segment.sealedAt );
+			out.writeInt( entries.size() );
+			for ( final Map.Entry< Key, Location > entry : entries )
+			{
+				final Key key = entry.getKey();
+				out.writeInt( key.getTimepoint() );
+				out.writeInt( key.getSetup() );
+				out.writeInt( key.getLevel() );
+				out.writeLong( key.getIndex() );
+				out.writeInt( entry.getValue().offset );
+			}
+		}
+		if ( !tmp.renameTo( file ) )
+			throw new IOException( "cannot write " + file );
+		writeAccessStamps();
+	}
+
+	private void startNewSegment() throws IOException
+	{
+		seal( active );
+		active = createSegment( active.number + 1 );
+		retryDeletes();
+		updateShare();
+		compact();
+	}
+
+	private Segment createSegment( final int number ) throws IOException
+	{
+		final File file = segmentFile( number );
+		final Segment segment = new Segment( number, file, map( file, segmentSize ) );
+		segments.add( segment );
+		return segment;
+	}
+
+	/**
+	 * Compact the oldest segments until the budget is met. Cells that were
+	 * accessed after their segment was sealed are copied forward to the active
+	 * segment, up to half of its size, most recently used first. The remaining
+	 * cells are dropped.
+	 */
+	private void compact()
+	{
+		while ( segments.size() > 1 && getUsedBytes() > maxBytes )
+		{
+			final Segment victim = segments.remove( 0 );
+
+			final ArrayList< Location > hot = new ArrayList<>();
+			final ArrayList< Key > hotKeys = new ArrayList<>();
+			final Iterator< Map.Entry< Key, Location > > it = index.entrySet().iterator();
+			while ( it.hasNext() )
+			{
+				final Map.Entry< Key, Location > entry = it.next();
+				final Location location = entry.getValue();
+				if ( location.segment == victim )
+				{
+					it.remove();
+					if ( location.lastAccess > victim.sealedAt )
+					{
+						hot.add( location );
+						hotKeys.add( entry.getKey() );
+					}
+				}
+			}
+
+			final Integer[] order = new Integer[ hot.size() ];
+			for ( int i = 0; i < order.length; ++i )
+				order[ i ] = i;
+			Arrays.sort( order, ( a, b ) -> Long.compare( hot.get( b ).lastAccess, hot.get( a ).lastAccess ) );
+
+			int budget = segmentSize / 2;
+			for ( final int i : order )
+			{
+				final Location location = hot.get( i );
+				final int recordSize = recordSize( victim.map.getInt( location.offset + 36 ) );
+				if ( recordSize > budget || active.end + recordSize > segmentSize )
+					continue;
+				budget -= recordSize;
+				final int offset = active.end;
+				final ByteBuffer target = active.map;
+				final ByteBuffer dst = slice( target, offset + 4, recordSize - 4 );
+				dst.put( slice( victim.map, location.offset + 4, recordSize - 4 ) );
+				target.putInt( offset, RECORD_MAGIC );
+				active.end += recordSize;
+				index.put( hotKeys.get( i ), new Location( active, offset, location.lastAccess ) );
+			}
+
+			delete( victim );
+		}
+	}
+
+	/**
+	 * Delete the files of a segment that is no longer indexed. The segment is
+	 * marked as deleted and unmapped first. If its files cannot be deleted,
+	 * they still count against the budget, and deleting them is retried by
+	 * {@link #retryDeletes()} and when the directory is opened again.
+	 */
+	private void delete( final Segment segment )
+	{
+		final File marker = deletedMarkerFile( segment.number );
+		try
+		{
+			marker.createNewFile();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+		unmap( segment.map );
+		if ( deleteFiles( segment.number ) )
+			marker.delete();
+		else
+		{
+			System.err.println( "cannot delete " + segment.file + ", will retry" );
+			undeleted.add( segment );
+		}
+	}
+
+	/**
+	 * Delete the segment and index file of segment {@code number}.
+	 *
+	 * @return {@code true} if both files are gone.
+	 */
+	private boolean deleteFiles( final int number )
+	{
+		final File idx = indexFile( number );
+		final File dat = segmentFile( number );
+		final boolean idxDeleted = idx.delete() || !idx.exists();
+		final boolean datDeleted = dat.delete() || !dat.exists();
+		return idxDeleted && datDeleted;
+	}
+
+	/**
+	 * Try again to delete the files of {@link #undeleted} segments.
+	 */
+	private void retryDeletes()
+	{
+		undeleted.removeIf( segment -> {
+			if ( !deleteFiles( segment.number ) )
+				return false;
+			deletedMarkerFile( segment.number ).delete();
+			return true;
+		} );
+	}
+
+	/**
+	 * Update {@link #maxBytes}, the share of this data set in the budget for
+	 * all data sets in the {@link #baseDirectory}. If the data sets together
+	 * exceed the budget, other data sets that are not in use are deleted,
+	 * least recently used first.
+	 */
+	private void updateShare()
+	{
+		final ArrayList< File > others = new ArrayList<>();
+		final File[] dirs = baseDirectory.listFiles();
+		if ( dirs != null )
+			for ( final File dir : dirs )
+				if ( !dir.equals( directory ) && new File( dir, "identity" ).isFile() )
+					others.add( dir );
+
+		long othersBytes = 0;
+		final HashMap< File, Long > usedBytes = new HashMap<>();
+		for ( final File dir : others )
+		{
+			final long used = usedBytes( dir );
+			usedBytes.put( dir, used );
+			othersBytes += used;
+		}
+
+		if ( othersBytes + getUsedBytes() > totalMaxBytes )
+		{
+			others.sort( Comparator.comparingLong( DiskCellCache::lastUsed ) );
+			for ( final File dir : others )
+			{
+				if ( othersBytes + getUsedBytes() <= totalMaxBytes )
+					break;
+				if ( deleteDataSet( dir ) )
+					othersBytes -= usedBytes.get( dir );
+			}
+		}
+
+		maxBytes = Math.max( 0, totalMaxBytes - othersBytes );
+	}
+
+	/**
+	 * Get how many bytes the segment files in the data set directory
+	 * {@code dir} use.
+	 */
+	private static long usedBytes( final File dir )
+	{
+		long used = 0;
+		final File[] files = dir.listFiles();
+		if ( files != null )
+			for ( final File file : files )
+				if ( file.getName().startsWith( "segment-" ) && file.getName().endsWith( ".dat" ) )
+					used += file.length();
+		return used;
+	}
+
+	/**
+	 * Get when the data set directory {@code dir} was last used, which is when
+	 * its access stamps were last written.
+	 */
+	private static long lastUsed( final File dir )
+	{
+		return Math.max( new File( dir, "access" ).lastModified(), dir.lastModified() );
+	}
+
+	/**
+	 * Delete the data set directory {@code dir}, if it is not in use by this
+	 * or another process.
+	 *
+	 * @return {@code true} if all segment files of the data set were deleted.
+	 */
+	private static boolean deleteDataSet( final File dir )
+	{
+		boolean deleted = true;
+		try ( final RandomAccessFile lockFile = new RandomAccessFile( new File( dir, "lock" ), "rw" ) )
+		{
+			final FileLock lock;
+			try
+			{
+				lock = lockFile.getChannel().tryLock();
+			}
+			catch ( final OverlappingFileLockException e )
+			{
+				// in use by this process
+				return false;
+			}
+			if ( lock == null )
+				return false;
+
+			final File[] files = dir.listFiles();
+			if ( files != null )
+				for ( final File file : files )
+				{
+					final String name = file.getName();
+					if ( !name.equals( "lock" ) && !name.equals( "identity" ) && !file.delete() && file.exists() )
+					{
+						System.err.println( "cannot delete " + file );
+						if ( name.endsWith( ".dat" ) )
+							deleted = false;
+					}
+				}
+			if ( deleted )
+				new File( dir, "identity" ).delete();
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			return false;
+		}
+		if ( deleted )
+		{
+			new File( dir, "lock" ).delete();
+			dir.delete();
+		}
+		return deleted;
+	}
+
+	private File segmentFile( final int number )
+	{
+		return new File( directory, String.format( "segment-%08d.dat", number ) );
+	}
+
+	private File indexFile( final int number )
+	{
+		return new File( directory, String.format( "segment-%08d.idx", number ) );
+	}
+
+	private File deletedMarkerFile( final int number )
+	{
+		return new File( directory, String.format( "segment-%08d.del", number ) );
+	}
+
+	private File accessFile()
+	{
+		return new File( directory, "access" );
+	}
+
+	private static MappedByteBuffer map( final File file, final int size ) throws IOException
+	{
+		try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+		{
+			return raf.getChannel().map( MapMode.READ_WRITE, 0, size );
+		}
+	}
+
+	/**
+	 * Release the mapping of {@code buffer} now, instead of when it is
+	 * garbage-collected, such that its file can be deleted. The buffer must
+	 * not be accessed afterwards. If this is not supported by the JVM, the
+	 * mapping is released by the garbage collector.
+	 */
+	private static void unmap( final MappedByteBuffer buffer )
+	{
+		try
+		{
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			Method invokeCleaner = null;
+			try
+			{
+				invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			}
+			catch ( final NoSuchMethodException e )
+			{}
+			if ( invokeCleaner != null )
+			{
+				// Java 9 and later
+				final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+				theUnsafe.setAccessible( true );
+				invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+			}
+			else
+			{
+				// Java 8
+				final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+				cleanerMethod.setAccessible( true );
+				final Object cleaner = cleanerMethod.invoke( buffer );
+				if ( cleaner != null )
+					cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+			}
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{}
+	}
+
+	private static ByteBuffer slice( final ByteBuffer buffer, final int offset, final int length )
+	{
+		final ByteBuffer b = buffer.duplicate();
+		b.limit( offset + length );
+		b.position( offset );
+		return b.slice().order( buffer.order() );
+	}
+
+	private static int recordSize( final int numBytes )
+	{
+		return ( HEADER_SIZE + numBytes + 7 ) & ~7;
+	}
+
+	/**
+	 * Compute a fingerprint of the content that describes a data set, for
+	 * example the metadata that a server returns for it. Appending this to a
+	 * data set identity that is based on a URL makes sure that the disk cache
+	 * is not used anymore if different data is published under the same URL.
+	 *
+	 * @param content
+	 *            the content describing the data set.
+	 * @return a hexadecimal hash of {@code content}.
+	 */
+	public static String fingerprint( final String content )
+	{
+		return String.format( "%016x", hash( content ) );
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of {@code s}, used to name the directory of a data
+	 * set.
+	 */
+	private static long hash( final String s )
+	{
+		long h = 0xcbf29ce484222325L;
+		for ( final byte b : s.getBytes( StandardCharsets.UTF_8 ) )
+		{
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,98 @@
+package bdv.img.cache;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Notifies listeners that requested data has been loaded, coalescing
+ * notifications: after a load, the listeners are run once after a short delay,
+ * no matter how many more loads complete in the meantime. This lets a renderer
+ * that waits for missing data repaint when data arrives, at most once per
+ * delay.
+ * <p>
+ * Listeners are run on a single shared daemon thread.
+ * </p>
+ */
+final class LoadNotifier
+{
+	private static ScheduledExecutorService timer;
+
+	private static synchronized ScheduledExecutorService timer()
+	{
+		if ( timer == null )
+			timer = Executors.newSingleThreadScheduledExecutor( r -> {
+				final Thread thread = new Thread( r, "bdv-load-notifier" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		return timer;
+	}
+
+	private final CopyOnWriteArrayList< Runnable > listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Whether a notification is scheduled.
+	 */
+	private final AtomicBoolean pending = new AtomicBoolean();
+
+	private volatile long delayMillis;
+
+	/**
+	 * @param delayMillis
+	 *            how long to collect loads before notifying listeners.
+	 */
+	LoadNotifier( final long delayMillis )
+	{
+		this.delayMillis = delayMillis;
+	}
+
+	void addListener( final Runnable listener )
+	{
+		listeners.add( listener );
+	}
+
+	void removeListener( final Runnable listener )
+	{
+		listeners.remove( listener );
+	}
+
+	void setDelayMillis( final long delayMillis )
+	{
+		this.delayMillis = delayMillis;
+	}
+
+	long getDelayMillis()
+	{
+		return delayMillis;
+	}
+
+	/**
+	 * Called when data has been loaded. Schedules a notification, unless one is
+	 * already scheduled.
+	 */
+	void loaded()
+	{
+		if ( listeners.isEmpty() || !pending.compareAndSet( false, true ) )
+			return;
+		timer().schedule( this::notifyListeners, delayMillis, TimeUnit.MILLISECONDS );
+	}
+
+	private void notifyListeners()
+	{
+		pending.set( false );
+		for ( final Runnable listener : listeners )
+		{
+			try
+			{
+				listener.run();
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package bdv.img.cache;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Allows to cancel a cell load that is in progress. The
+ * {@link VolatileGlobalCellCache} cancels loads of cells that are no longer
+ * requested by any frame (see
+ * {@link VolatileGlobalCellCache#setCancelStaleLoads(boolean)}).
+ * <p>
+ * Cancellation is cooperative. A {@link CacheArrayLoader} gets the token of the
+ * load running on the current thread with {@link #current()}. It can check
+ * {@link #checkCancelled()} between I/O steps, and register
+ * {@link #onCancel(Runnable) actions} that abort blocking I/O, for example by
+ * closing a network connection. A cancelled load should end by throwing a
+ * {@link CancellationException} (from {@link #checkCancelled()}), instead of
+ * returning partial data.
+ * </p>
+ */
+public final class LoadToken
+{
+	/**
+	 * Token for code that does not run inside a cancellable load. It is never
+	 * cancelled, and does not keep {@link #onCancel(Runnable) actions}.
+	 */
+	private static final LoadToken NONE = new LoadToken();
+
+	private static final ThreadLocal< LoadToken > current = ThreadLocal.withInitial( () -> NONE );
+
+	private volatile boolean cancelled;
+
+	private final ArrayList< Runnable > actions = new ArrayList<>();
+
+	LoadToken()
+	{}
+
+	/**
+	 * Get the token of the load running on the current thread. If no
+	 * cancellable load is running, a token that is never cancelled is
+	 * returned.
+	 */
+	public static LoadToken current()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Make {@code token} the token of the current thread.
+	 *
+	 * @return the previous token of the current thread, to be restored with
+	 *         {@link #exit(LoadToken)}.
+	 */
+	static LoadToken enter( final LoadToken token )
+	{
+		final LoadToken previous = current.get();
+		current.set( token );
+		return previous;
+	}
+
+	/**
+	 * Restore the {@code previous} token of the current thread.
+	 */
+	static void exit( final LoadToken previous )
+	{
+		current.set( previous );
+	}
+
+	/**
+	 * Check whether the load has been cancelled.
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Throw a {@link CancellationException} if the load has been cancelled.
+	 */
+	public void checkCancelled() throws CancellationException
+	{
+		if ( cancelled )
+			throw new CancellationException( "cell load cancelled" );
+	}
+
+	/**
+	 * Register an action that aborts the load, for example by closing a
+	 * connection. If the load has already been cancelled, the action is run
+	 * immediately. Actions are run on the thread that cancels the load, so
+	 * they must not block.
+	 */
+	public void onCancel( final Runnable action )
+	{
+		if ( this == NONE )
+			return;
+		synchronized ( actions )
+		{
+			if ( !cancelled )
+			{
+				actions.add( action );
+				return;
+			}
+		}
+		action.run();
+	}
+
+	/**
+	 * Cancel the load and run the registered actions.
+	 */
+	void cancel()
+	{
+		final Runnable[] toRun;
+		synchronized ( actions )
+		{
+			if ( cancelled )
+				return;
+			cancelled = true;
+			toRun = actions.toArray( new Runnable[ 0 ] );
+			actions.clear();
+		}
+		for ( final Runnable action : toRun )
+		{
+			try
+			{
+				action.run();
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Check whether {@code t} or one of its causes is a
+	 * {@link CancellationException}.
+	 */
+	public static boolean isCancellation( final Throwable t )
+	{
+		for ( Throwable c = t; c != null; c = c.getCause() )
+			if ( c instanceof CancellationException )
+				return true;
+		return false;
+	}
+}
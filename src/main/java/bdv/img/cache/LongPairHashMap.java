@@ -0,0 +1,254 @@
+package bdv.img.cache;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A hash map from pairs of primitive {@code long} keys to non-null values,
+ * using open addressing with linear probing. Lookups do not allocate and do not
+ * block in the absence of concurrent modifications (they use an optimistic
+ * read of a {@link StampedLock}). Modifications are serialized.
+ * <p>
+ * This is used to look up resident cells by their packed (timepoint, setup,
+ * level, index) coordinates without boxing or creating key objects.
+ * </p>
+ *
+ * @param <V>
+ *            value type
+ */
+public class LongPairHashMap< V >
+{
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private static final class Table
+	{
+		/**
+		 * Interleaved key pairs.
+		 */
+		final long[] keys;
+
+		/**
+		 * Values. A {@code null} value marks an empty slot.
+		 */
+		final Object[] values;
+
+		final int mask;
+
+		Table( final int capacity )
+		{
+			keys = new long[ 2 * capacity ];
+			values = new Object[ capacity ];
+			mask = capacity - 1;
+		}
+	}
+
+	private final StampedLock lock = new StampedLock();
+
+	private Table table = new Table( INITIAL_CAPACITY );
+
+	private int size;
+
+	/**
+	 * Get the value associated with the key pair ({@code k0}, {@code k1}).
+	 *
+	 * @return the value, or {@code null} if there is no value for the key.
+	 */
+	public V get( final long k0, final long k1 )
+	{
+		final long stamp = lock.tryOptimisticRead();
+		if ( stamp != 0 )
+		{
+			final V value = find( table, k0, k1 );
+			if ( lock.validate( stamp ) )
+				return value;
+		}
+		final long readStamp = lock.readLock();
+		try
+		{
+			return find( table, k0, k1 );
+		}
+		finally
+		{
+			lock.unlockRead( readStamp );
+		}
+	}
+
+	/**
+	 * Associate {@code value} with the key pair ({@code k0}, {@code k1}),
+	 * replacing the previous value, if any.
+	 */
+	public void put( final long k0, final long k1, final V value )
+	{
+		if ( value == null )
+			throw new NullPointerException();
+		final long stamp = lock.writeLock();
+		try
+		{
+			if ( 2 * ( size + 1 ) > table.values.length )
+				table = resize( table, 2 * table.values.length );
+			if ( insert( table, k0, k1, value ) )
+				++size;
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+	}
+
+	/**
+	 * Remove the value associated with the key pair ({@code k0}, {@code k1}),
+	 * if it is {@code expected} (compared by identity).
+	 *
+	 * @return {@code true} if the value was removed.
+	 */
+	public boolean remove( final long k0, final long k1, final V expected )
+	{
+		final long stamp = lock.writeLock();
+		try
+		{
+			final Table t = table;
+			final int slot = slot( t, k0, k1 );
+			if ( slot < 0 || t.values[ slot ] != expected )
+				return false;
+			delete( t, slot );
+			--size;
+			return true;
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+	}
+
+	/**
+	 * Remove all values.
+	 */
+	public void clear()
+	{
+		final long stamp = lock.writeLock();
+		try
+		{
+			table = new Table( INITIAL_CAPACITY );
+			size = 0;
+		}
+		finally
+		{
+			lock.unlockWrite( stamp );
+		}
+	}
+
+	public int size()
+	{
+		final long stamp = lock.readLock();
+		try
+		{
+			return size;
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < V > V find( final Table t, final long k0, final long k1 )
+	{
+		final long[] keys = t.keys;
+		final Object[] values = t.values;
+		final int mask = t.mask;
+		int i = hash( k0, k1 ) & mask;
+		for ( int n = 0; n <= mask; ++n )
+		{
+			final Object value = values[ i ];
+			if ( value == null )
+				return null;
+			if ( keys[ 2 * i ] == k0 && keys[ 2 * i + 1 ] == k1 )
+				return ( V ) value;
+			i = ( i + 1 ) & mask;
+		}
+		return null;
+	}
+
+	private static int slot( final Table t, final long k0, final long k1 )
+	{
+		final int mask = t.mask;
+		int i = hash( k0, k1 ) & mask;
+		for ( int n = 0; n <= mask; ++n )
+		{
+			if ( t.values[ i ] == null )
+				return -1;
+			if ( t.keys[ 2 * i ] == k0 && t.keys[ 2 * i + 1 ] == k1 )
+				return i;
+			i = ( i + 1 ) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return {@code true} if a new key was inserted, {@code false} if the
+	 *         value of an existing key was replaced.
+	 */
+	private static boolean insert( final Table t, final long k0, final long k1, final Object value )
+	{
+		final int mask = t.mask;
+		int i = hash( k0, k1 ) & mask;
+		while ( t.values[ i ] != null )
+		{
+			if ( t.keys[ 2 * i ] == k0 && t.keys[ 2 * i + 1 ] == k1 )
+			{
+				t.values[ i ] = value;
+				return false;
+			}
+			i = ( i + 1 ) & mask;
+		}
+		t.keys[ 2 * i ] = k0;
+		t.keys[ 2 * i + 1 ] = k1;
+		t.values[ i ] = value;
+		return true;
+	}
+
+	/**
+	 * Empty {@code slot}, shifting back subsequent entries of the probe
+	 * sequence, so that no tombstones are needed.
+	 */
+	private static void delete( final Table t, final int slot )
+	{
+		final long[] keys = t.keys;
+		final Object[] values = t.values;
+		final int mask = t.mask;
+		int hole = slot;
+		int j = slot;
+		while ( true )
+		{
+			j = ( j + 1 ) & mask;
+			if ( values[ j ] == null )
+				break;
+			final int home = hash( keys[ 2 * j ], keys[ 2 * j + 1 ] ) & mask;
+			if ( ( ( j - home ) & mask ) >= ( ( j - hole ) & mask ) )
+			{
+				keys[ 2 * hole ] = keys[ 2 * j ];
+				keys[ 2 * hole + 1 ] = keys[ 2 * j + 1 ];
+				values[ hole ] = values[ j ];
+				hole = j;
+			}
+		}
+		values[ hole ] = null;
+	}
+
+	private static Table resize( final Table t, final int capacity )
+	{
+		final Table r = new Table( capacity );
+		for ( int i = 0; i < t.values.length; ++i )
+			if ( t.values[ i ] != null )
+				insert( r, t.keys[ 2 * i ], t.keys[ 2 * i + 1 ], t.values[ i ] );
+		return r;
+	}
+
+	private static int hash( final long k0, final long k1 )
+	{
+		long h = k0 * 0x9e3779b97f4a7c15L + k1;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return ( int ) h;
+	}
+}
@@ -0,0 +1,748 @@
+package bdv.img.cache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+
+/**
+ * A {@link LoaderCache} that keeps loaded values strongly referenced up to a
+ * maximum total weight (for cells: a number of bytes). When the budget is
+ * exceeded, values are evicted in CLOCK order, which approximates LRU: values
+ * that have been accessed since the clock hand last passed them get a second
+ * chance.
+ * <p>
+ * Evicted values are not dropped immediately, but demoted to
+ * {@link SoftReference soft references}. If they are requested again before
+ * being garbage collected, they are promoted back to the strongly referenced
+ * set. Thus, soft references are only a fallback behind the hard memory
+ * budget, and the garbage collector has to clear at most the values that do
+ * not fit into the budget anyway.
+ * </p>
+ * <p>
+ * Eviction can be guided by a {@link RetentionCost}: among several candidates
+ * at the clock hand, the value that is most costly to keep is evicted first.
+ * </p>
+ * <p>
+ * Values can be {@link #setPinned(Predicate) pinned} by key. Pinned resident
+ * values are never evicted and do not count against the maximum weight.
+ * </p>
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type
+ */
+public class MemoryBoundedLoaderCache< K, V > implements LoaderCache< K, V >
+{
+	/**
+	 * Computes the weight (for example, the number of bytes) of a loaded
+	 * value.
+	 */
+	@FunctionalInterface
+	public interface Weigher< K, V >
+	{
+		long weigh( K key, V value );
+	}
+
+	/**
+	 * Notified when a value is demoted from the strongly referenced set to a
+	 * soft reference.
+	 */
+	@FunctionalInterface
+	public interface EvictionListener< K, V >
+	{
+		void evicted( K key, V value );
+	}
+
+	/**
+	 * Estimates how costly it is to keep a value resident, for example how far
+	 * the value is from what is currently displayed. When values have to be
+	 * evicted, the value with the highest cost among several candidates is
+	 * evicted first. The cost is computed while holding the cache lock, so it
+	 * must be fast.
+	 */
+	@FunctionalInterface
+	public interface RetentionCost< K >
+	{
+		double cost( K key );
+	}
+
+	/**
+	 * Handle to a strongly referenced (resident) value.
+	 */
+	public interface Resident< V >
+	{
+		/**
+		 * Get the value, or {@code null} if it is no longer resident.
+		 */
+		V get();
+
+		/**
+		 * Mark the value as recently used, like a cache hit.
+		 */
+		void touch();
+
+		/**
+		 * Get the weight of the value.
+		 */
+		long getWeight();
+	}
+
+	/**
+	 * Notified when a value becomes resident and when it stops being resident
+	 * (because it is evicted or the cache is invalidated). This allows to
+	 * maintain a secondary index of resident values that serves cache hits
+	 * directly. Listener methods are called while holding the cache lock, so
+	 * they must be fast and must not call back into the cache.
+	 */
+	public interface ResidencyListener< K, V >
+	{
+		void admitted( K key, Resident< V > resident );
+
+		void removed( K key, Resident< V > resident );
+	}
+
+	private final ConcurrentHashMap< K, Entry > map = new ConcurrentHashMap<>();
+
+	private final ReferenceQueue< V > queue = new ReferenceQueue<>();
+
+	private final Weigher< ? super K, ? super V > weigher;
+
+	private final EvictionListener< ? super K, ? super V > evictionListener;
+
+	private final ResidencyListener< ? super K, V > residencyListener;
+
+	/**
+	 * Strongly referenced (resident) entries, in clock order. Also used as the
+	 * lock guarding {@link #residentWeight} and {@link #maxWeight}.
+	 */
+	private final ArrayDeque< Entry > clock = new ArrayDeque<>();
+
+	private long residentWeight;
+
+	private long maxWeight;
+
+	/**
+	 * Resident entries whose keys are {@link #pinned}. These are not in the
+	 * {@link #clock} and not counted in {@link #residentWeight}.
+	 */
+	private final ArrayList< Entry > pinnedEntries = new ArrayList<>();
+
+	private long pinnedWeight;
+
+	private Predicate< ? super K > pinned;
+
+	private RetentionCost< ? super K > retentionCost;
+
+	/**
+	 * With a {@link RetentionCost}, how many unreferenced entries at the clock
+	 * hand are compared to choose the next entry to evict.
+	 */
+	private static final int EVICTION_CANDIDATES = 16;
+
+	/**
+	 * Scratch list for {@link #selectVictim(Entry)}. Guarded by the
+	 * {@link #clock} lock.
+	 */
+	private final ArrayList< Entry > examinedEntries = new ArrayList<>( 2 * EVICTION_CANDIDATES );
+
+	private long evictionCount;
+
+	/**
+	 * Create a cache that keeps loaded values strongly referenced up to a total
+	 * weight of {@code maxWeight}.
+	 *
+	 * @param maxWeight
+	 *            maximum total weight of strongly referenced values.
+	 * @param weigher
+	 *            computes the weight of loaded values.
+	 */
+	public MemoryBoundedLoaderCache( final long maxWeight, final Weigher< ? super K, ? super V > weigher )
+	{
+		this( maxWeight, weigher, null );
+	}
+
+	/**
+	 * Create a cache that keeps loaded values strongly referenced up to a total
+	 * weight of {@code maxWeight}.
+	 *
+	 * @param maxWeight
+	 *            maximum total weight of strongly referenced values.
+	 * @param weigher
+	 *            computes the weight of loaded values.
+	 * @param evictionListener
+	 *            notified when values are demoted to soft references. May be
+	 *            {@code null}.
+	 */
+	public MemoryBoundedLoaderCache(
+			final long maxWeight,
+			final Weigher< ? super K, ? super V > weigher,
+			final EvictionListener< ? super K, ? super V > evictionListener )
+	{
+		this( maxWeight, weigher, evictionListener, null );
+	}
+
+	/**
+	 * Create a cache that keeps loaded values strongly referenced up to a total
+	 * weight of {@code maxWeight}.
+	 *
+	 * @param maxWeight
+	 *            maximum total weight of strongly referenced values.
+	 * @param weigher
+	 *            computes the weight of loaded values.
+	 * @param evictionListener
+	 *            notified when values are demoted to soft references. May be
+	 *            {@code null}.
+	 * @param residencyListener
+	 *            notified when values become resident or stop being resident.
+	 *            May be {@code null}.
+	 */
+	public MemoryBoundedLoaderCache(
+			final long maxWeight,
+			final Weigher< ? super K, ? super V > weigher,
+			final EvictionListener< ? super K, ? super V > evictionListener,
+			final ResidencyListener< ? super K, V > residencyListener )
+	{
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		this.evictionListener = evictionListener;
+		this.residencyListener = residencyListener;
+	}
+
+	final class CacheSoftReference extends SoftReference< V >
+	{
+		private final Entry entry;
+
+		public CacheSoftReference( final V referent, final Entry entry )
+		{
+			super( referent, queue );
+			this.entry = entry;
+		}
+	}
+
+	final class Entry implements Resident< V >
+	{
+		final K key;
+
+		private volatile CacheSoftReference ref;
+
+		/**
+		 * Strong reference to the value. Non-null while the entry is resident,
+		 * {@code null} after it has been demoted to the soft reference.
+		 */
+		private volatile V value;
+
+		private long weight;
+
+		/**
+		 * Set when the entry is accessed, cleared when the clock hand passes.
+		 */
+		volatile boolean referenced;
+
+		/**
+		 * Whether the entry is in {@link #pinnedEntries}. Guarded by the
+		 * {@link #clock} lock.
+		 */
+		boolean isPinned;
+
+		boolean loaded;
+
+		public Entry( final K key )
+		{
+			this.key = key;
+			this.ref = null;
+			this.loaded = false;
+		}
+
+		public V getValue()
+		{
+			final V v = value;
+			if ( v != null )
+				return v;
+			final Reference< V > r = ref;
+			return r == null ? null : r.get();
+		}
+
+		@Override
+		public V get()
+		{
+			return value;
+		}
+
+		@Override
+		public void touch()
+		{
+			referenced = true;
+		}
+
+		@Override
+		public long getWeight()
+		{
+			return weight;
+		}
+
+		public void setValue( final V value, final long weight )
+		{
+			this.loaded = true;
+			this.weight = weight;
+			this.ref = new CacheSoftReference( value, this );
+		}
+	}
+
+	@Override
+	public V getIfPresent( final K key )
+	{
+		cleanUp();
+		final Entry entry = map.get( key );
+		if ( entry == null )
+			return null;
+		final V value = entry.getValue();
+		if ( value != null )
+			touch( entry, value );
+		return value;
+	}
+
+	@Override
+	public V get( final K key, final CacheLoader< ? super K, ? extends V > loader ) throws ExecutionException
+	{
+		cleanUp();
+		final Entry entry = map.computeIfAbsent( key, ( k ) -> new Entry( k ) );
+		V value = entry.getValue();
+		if ( value == null )
+		{
+			synchronized ( entry )
+			{
+				if ( entry.loaded )
+				{
+					value = entry.getValue();
+					if ( value == null )
+					{
+						/*
+						 * The entry was already loaded, but its value has been
+						 * garbage collected. We need to create a new entry.
+						 */
+						map.remove( key, entry );
+						return get( key, loader );
+					}
+				}
+				else
+				{
+					try
+					{
+						value = loader.get( key );
+						entry.setValue( value, weigher.weigh( key, value ) );
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+						throw new ExecutionException( e );
+					}
+					catch ( final Exception e )
+					{
+						throw new ExecutionException( e );
+					}
+				}
+			}
+		}
+		touch( entry, value );
+		return value;
+	}
+
+	@Override
+	public void invalidateAll()
+	{
+		synchronized ( clock )
+		{
+			for ( final Entry entry : clock )
+			{
+				entry.value = null;
+				if ( residencyListener != null )
+					residencyListener.removed( entry.key, entry );
+			}
+			clock.clear();
+			residentWeight = 0;
+			for ( final Entry entry : pinnedEntries )
+			{
+				entry.value = null;
+				entry.isPinned = false;
+				if ( residencyListener != null )
+					residencyListener.removed( entry.key, entry );
+			}
+			pinnedEntries.clear();
+			pinnedWeight = 0;
+		}
+		for ( final Entry entry : map.values() )
+		{
+			final CacheSoftReference ref = entry.ref;
+			if ( ref != null )
+				ref.clear();
+		}
+		map.clear();
+		cleanUp();
+	}
+
+	/**
+	 * Set the maximum total weight of strongly referenced values. If the
+	 * currently resident values exceed the new budget, they are evicted
+	 * immediately.
+	 *
+	 * @param maxWeight
+	 *            maximum total weight of strongly referenced values.
+	 */
+	public void setMaxWeight( final long maxWeight )
+	{
+		final ArrayList< Entry > evicted;
+		synchronized ( clock )
+		{
+			this.maxWeight = maxWeight;
+			evicted = evict();
+		}
+		notifyEvicted( evicted );
+	}
+
+	/**
+	 * Get the maximum total weight of strongly referenced values.
+	 *
+	 * @return maximum total weight of strongly referenced values.
+	 */
+	public long getMaxWeight()
+	{
+		synchronized ( clock )
+		{
+			return maxWeight;
+		}
+	}
+
+	/**
+	 * Get the total weight of currently strongly referenced values.
+	 *
+	 * @return total weight of currently strongly referenced values.
+	 */
+	public long getResidentWeight()
+	{
+		synchronized ( clock )
+		{
+			return residentWeight;
+		}
+	}
+
+	/**
+	 * Get the total weight of currently strongly referenced values that are
+	 * pinned. These are not included in {@link #getResidentWeight()}.
+	 *
+	 * @return total weight of pinned resident values.
+	 */
+	public long getPinnedWeight()
+	{
+		synchronized ( clock )
+		{
+			return pinnedWeight;
+		}
+	}
+
+	/**
+	 * Set the cost function that chooses which values to evict first. Without
+	 * a cost function (the default), values are evicted in clock order.
+	 *
+	 * @param retentionCost
+	 *            the cost function, or {@code null}.
+	 */
+	public void setRetentionCost( final RetentionCost< ? super K > retentionCost )
+	{
+		synchronized ( clock )
+		{
+			this.retentionCost = retentionCost;
+		}
+	}
+
+	/**
+	 * Set which keys are pinned. Resident values with pinned keys are never
+	 * evicted and do not count against the maximum weight. Values with pinned
+	 * keys that are not resident become pinned when they are loaded or
+	 * accessed.
+	 * <p>
+	 * The predicate is evaluated whenever a value becomes resident, and for all
+	 * resident values when this method or {@link #updatePinned()} is called.
+	 * It is called while holding the cache lock, so it must be fast. Values
+	 * that are no longer pinned count against the maximum weight again and may
+	 * be evicted immediately.
+	 * </p>
+	 *
+	 * @param pinned
+	 *            which keys are pinned, or {@code null} to pin nothing.
+	 */
+	public void setPinned( final Predicate< ? super K > pinned )
+	{
+		synchronized ( clock )
+		{
+			this.pinned = pinned;
+		}
+		updatePinned();
+	}
+
+	/**
+	 * Re-evaluate the pinned predicate (see {@link #setPinned(Predicate)}) for
+	 * all resident values. This must be called when the set of keys accepted
+	 * by the predicate changes.
+	 */
+	public void updatePinned()
+	{
+		final ArrayList< Entry > evicted;
+		synchronized ( clock )
+		{
+			final Predicate< ? super K > p = pinned;
+			final int size = clock.size();
+			for ( int i = 0; i < size; ++i )
+			{
+				final Entry entry = clock.poll();
+				if ( p != null && p.test( entry.key ) )
+				{
+					residentWeight -= entry.weight;
+					pinnedWeight += entry.weight;
+					entry.isPinned = true;
+					pinnedEntries.add( entry );
+				}
+				else
+					clock.add( entry );
+			}
+			final int numPinned = pinnedEntries.size();
+			for ( int i = numPinned - 1; i >= 0; --i )
+			{
+				final Entry entry = pinnedEntries.get( i );
+				if ( entry.isPinned && ( p == null || !p.test( entry.key ) ) )
+				{
+					pinnedWeight -= entry.weight;
+					residentWeight += entry.weight;
+					entry.isPinned = false;
+					entry.referenced = true;
+					clock.add( entry );
+				}
+			}
+			pinnedEntries.removeIf( entry -> !entry.isPinned );
+			evicted = evict();
+		}
+		notifyEvicted( evicted );
+	}
+
+	/**
+	 * Get the keys of strongly referenced values that are not pinned, most
+	 * recently used first. The order is approximated from the clock: values
+	 * that have been accessed since the clock hand last passed them come
+	 * first, each group ordered by the time it was (re-)inserted into the
+	 * clock.
+	 *
+	 * @return keys of resident values.
+	 */
+	public ArrayList< K > getResidentKeys()
+	{
+		synchronized ( clock )
+		{
+			final ArrayList< K > keys = new ArrayList<>( clock.size() );
+			final ArrayList< K > unreferenced = new ArrayList<>();
+			final Iterator< Entry > it = clock.descendingIterator();
+			while ( it.hasNext() )
+			{
+				final Entry entry = it.next();
+				if ( entry.referenced )
+					keys.add( entry.key );
+				else
+					unreferenced.add( entry.key );
+			}
+			keys.addAll( unreferenced );
+			return keys;
+		}
+	}
+
+	/**
+	 * Get the value for {@code key}, if it is present, without marking it as
+	 * recently used.
+	 *
+	 * @return the value, or {@code null} if it is not present.
+	 */
+	public V peek( final K key )
+	{
+		final Entry entry = map.get( key );
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * Check whether the value for {@code key} is strongly referenced, i.e., it
+	 * has been loaded and has not been demoted to a soft reference, or has been
+	 * made resident again since.
+	 *
+	 * @return {@code true} if the value is resident.
+	 */
+	public boolean isResident( final K key )
+	{
+		final Entry entry = map.get( key );
+		return entry != null && entry.value != null;
+	}
+
+	/**
+	 * Get how many values have been demoted to soft references so far.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictionCount()
+	{
+		synchronized ( clock )
+		{
+			return evictionCount;
+		}
+	}
+
+	/**
+	 * Mark {@code entry} as recently used. If it was demoted to a soft
+	 * reference, make it resident again.
+	 */
+	private void touch( final Entry entry, final V value )
+	{
+		if ( entry.value != null )
+		{
+			entry.referenced = true;
+			return;
+		}
+		ArrayList< Entry > evicted = null;
+		synchronized ( clock )
+		{
+			if ( entry.value == null && map.get( entry.key ) == entry )
+			{
+				entry.value = value;
+				entry.referenced = false;
+				if ( pinned != null && pinned.test( entry.key ) )
+				{
+					entry.isPinned = true;
+					pinnedEntries.add( entry );
+					pinnedWeight += entry.weight;
+				}
+				else
+				{
+					clock.add( entry );
+					residentWeight += entry.weight;
+				}
+				if ( residencyListener != null )
+					residencyListener.admitted( entry.key, entry );
+				evicted = evict();
+			}
+		}
+		notifyEvicted( evicted );
+	}
+
+	/**
+	 * Demote entries to soft references until {@link #residentWeight} is within
+	 * {@link #maxWeight}. Must be called while holding the {@link #clock} lock.
+	 *
+	 * @return the demoted entries, if there is an {@link EvictionListener}.
+	 */
+	private ArrayList< Entry > evict()
+	{
+		ArrayList< Entry > evicted = null;
+		int secondChances = clock.size();
+		while ( residentWeight > maxWeight && !clock.isEmpty() )
+		{
+			final Entry first = clock.poll();
+			if ( first.referenced && secondChances-- > 0 )
+			{
+				first.referenced = false;
+				clock.add( first );
+			}
+			else
+			{
+				final Entry entry = retentionCost == null ? first : selectVictim( first );
+				if ( evictionListener != null )
+				{
+					if ( evicted == null )
+						evicted = new ArrayList<>();
+					evicted.add( entry );
+				}
+				entry.value = null;
+				residentWeight -= entry.weight;
+				++evictionCount;
+				if ( residencyListener != null )
+					residencyListener.removed( entry.key, entry );
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Choose the entry to evict among {@code first} (which has been removed
+	 * from the clock) and the next unreferenced entries at the clock hand,
+	 * according to the {@link #retentionCost}. The examined entries are taken
+	 * from the clock hand and all but the chosen one are put back in their
+	 * original order, so this costs O({@link #EVICTION_CANDIDATES}) regardless
+	 * of the clock size. Must be called while holding the {@link #clock} lock.
+	 */
+	private Entry selectVictim( final Entry first )
+	{
+		final ArrayList< Entry > examined = examinedEntries;
+		Entry victim = first;
+		double maxCost = retentionCost.cost( first.key );
+		int candidates = 1;
+		while ( !clock.isEmpty() && candidates < EVICTION_CANDIDATES && examined.size() < 2 * EVICTION_CANDIDATES )
+		{
+			final Entry entry = clock.poll();
+			examined.add( entry );
+			if ( entry.referenced )
+				continue;
+			++candidates;
+			final double cost = retentionCost.cost( entry.key );
+			if ( cost > maxCost )
+			{
+				maxCost = cost;
+				victim = entry;
+			}
+		}
+		for ( int i = examined.size() - 1; i >= 0; --i )
+		{
+			final Entry entry = examined.get( i );
+			if ( entry != victim )
+				clock.addFirst( entry );
+		}
+		if ( victim != first )
+			clock.addFirst( first );
+		examined.clear();
+		return victim;
+	}
+
+	/**
+	 * Notify the {@link EvictionListener} about demoted entries. Must be called
+	 * without holding the {@link #clock} lock.
+	 */
+	private void notifyEvicted( final ArrayList< Entry > evicted )
+	{
+		if ( evicted == null )
+			return;
+		for ( final Entry entry : evicted )
+		{
+			final V value = entry.getValue();
+			if ( value != null )
+				evictionListener.evicted( entry.key, value );
+		}
+	}
+
+	/**
+	 * Remove entries from the cache whose references have been
+	 * garbage-collected.
+	 */
+	public void cleanUp()
+	{
+		while ( true )
+		{
+			@SuppressWarnings( "unchecked" )
+			final CacheSoftReference poll = ( CacheSoftReference ) queue.poll();
+			if ( poll == null )
+				break;
+			map.remove( poll.entry.key, poll.entry );
+		}
+	}
+}
@@ -0,0 +1,411 @@
+package bdv.img.cache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import bdv.util.Prefs;
+
+/**
+ * Shrinks the memory budget of all {@link VolatileGlobalCellCache}s while the
+ * heap is short of memory, and restores it step by step when memory becomes
+ * available again.
+ * <p>
+ * The monitor sets collection usage thresholds on the heap memory pools that
+ * support them (typically the old generation). If a pool is still above its
+ * threshold after a garbage collection, the budgets are shrunk by
+ * {@link #getShrinkFactor()}, down to {@link #getMinScale()} of the configured
+ * budgets. Cells that no longer fit are evicted from the caches, so that the
+ * heap is freed before the JVM runs out of memory. While the pools are below
+ * {@link #getLowThreshold()} after garbage collections, the budgets are grown
+ * again, until they reach the configured values.
+ * </p>
+ * <p>
+ * The monitor is disabled by default, and only installs its notification
+ * listener and thresholds when it is {@link #setEnabled(boolean) enabled}, or
+ * when {@link Prefs#memoryPressureMonitor()} is set. Pools that already have a
+ * collection usage threshold, for example set by the host application, are
+ * left alone. For these, the monitor reacts to the notifications for the
+ * existing threshold, if usage is also above {@link #getHighThreshold()}.
+ * </p>
+ * <p>
+ * Caches register themselves when they are created. They are only weakly
+ * referenced by the monitor.
+ * </p>
+ */
+public final class MemoryPressureMonitor
+{
+	private static MemoryPressureMonitor instance;
+
+	/**
+	 * Notifications that arrive within this interval after shrinking the
+	 * budgets are ignored, to give the caches time to evict.
+	 */
+	private static final long MIN_SHRINK_INTERVAL_MILLIS = 500;
+
+	/**
+	 * How often memory usage is checked while the budgets are shrunk.
+	 */
+	private static final long RESTORE_INTERVAL_MILLIS = 2000;
+
+	/**
+	 * Get the process-wide monitor.
+	 */
+	public static synchronized MemoryPressureMonitor getInstance()
+	{
+		if ( instance == null )
+		{
+			instance = new MemoryPressureMonitor();
+			if ( Prefs.memoryPressureMonitor() )
+				instance.setEnabled( true );
+		}
+		return instance;
+	}
+
+	/**
+	 * Heap pools for which collection usage thresholds are set. These are the
+	 * pools that also support usage thresholds, which excludes the young
+	 * generation pools that are emptied by every collection.
+	 */
+	private final List< MemoryPoolMXBean > pools = new ArrayList<>();
+
+	/**
+	 * The collection usage thresholds that this monitor has set, by pool.
+	 * Pools that had a threshold already are not included.
+	 */
+	private final Map< MemoryPoolMXBean, Long > ownThresholds = new HashMap<>();
+
+	private final List< WeakReference< VolatileGlobalCellCache > > caches = new ArrayList<>();
+
+	/**
+	 * The listener for memory notifications, or {@code null} if the monitor is
+	 * not enabled.
+	 */
+	private NotificationListener listener;
+
+	/**
+	 * Checks memory usage while the budgets are shrunk. {@code null} while
+	 * the budgets are at their configured values.
+	 */
+	private ScheduledExecutorService restorer;
+
+	private double highThreshold = 0.8;
+
+	private double lowThreshold = 0.6;
+
+	private double shrinkFactor = 0.75;
+
+	/**
+	 * Budgets are grown more slowly than they are shrunk, to avoid oscillating
+	 * around the threshold.
+	 */
+	private double growFactor = 1 / Math.sqrt( shrinkFactor );
+
+	private double minScale = 1.0 / 16;
+
+	/**
+	 * The current scale of the memory budgets.
+	 */
+	private double scale = 1;
+
+	private long lastShrinkNanos;
+
+	private MemoryPressureMonitor()
+	{
+		for ( final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+			if ( pool.getType() == MemoryType.HEAP
+					&& pool.isUsageThresholdSupported()
+					&& pool.isCollectionUsageThresholdSupported()
+					&& pool.getUsage().getMax() > 0 )
+				pools.add( pool );
+	}
+
+	/**
+	 * Check whether heap memory usage can be monitored. If not, the monitor
+	 * does nothing.
+	 */
+	public boolean isSupported()
+	{
+		return !pools.isEmpty();
+	}
+
+	/**
+	 * Enable or disable the monitor. When enabled, collection usage
+	 * thresholds are set on the heap pools that do not have one yet, and
+	 * memory notifications are handled. When disabled, these thresholds are
+	 * removed again, and the memory budgets of all caches are restored.
+	 */
+	public synchronized void setEnabled( final boolean enabled )
+	{
+		if ( !isSupported() || enabled == isEnabled() )
+			return;
+		final NotificationEmitter emitter = ( NotificationEmitter ) ManagementFactory.getMemoryMXBean();
+		if ( enabled )
+		{
+			setThresholds();
+			listener = ( notification, handback ) -> handle( notification );
+			emitter.addNotificationListener( listener, null, null );
+		}
+		else
+		{
+			try
+			{
+				emitter.removeNotificationListener( listener );
+			}
+			catch ( final ListenerNotFoundException e )
+			{
+				e.printStackTrace();
+			}
+			listener = null;
+			for ( final Map.Entry< MemoryPoolMXBean, Long > entry : ownThresholds.entrySet() )
+				if ( entry.getKey().getCollectionUsageThreshold() == entry.getValue() )
+					entry.getKey().setCollectionUsageThreshold( 0 );
+			ownThresholds.clear();
+			stopRestorer();
+			applyScale( 1 );
+		}
+	}
+
+	public synchronized boolean isEnabled()
+	{
+		return listener != null;
+	}
+
+	/**
+	 * Register a cache, whose memory budget should be shrunk while the heap is
+	 * short of memory.
+	 */
+	public synchronized void register( final VolatileGlobalCellCache cache )
+	{
+		if ( !isSupported() )
+			return;
+		removeCleared();
+		caches.add( new WeakReference<>( cache ) );
+		if ( scale < 1 )
+			cache.setMemoryPressureScale( scale );
+	}
+
+	/**
+	 * Stop shrinking the memory budget of {@code cache}, and restore its
+	 * configured budget.
+	 */
+	public synchronized void unregister( final VolatileGlobalCellCache cache )
+	{
+		final Iterator< WeakReference< VolatileGlobalCellCache > > it = caches.iterator();
+		while ( it.hasNext() )
+		{
+			final VolatileGlobalCellCache c = it.next().get();
+			if ( c == null || c == cache )
+				it.remove();
+		}
+		cache.setMemoryPressureScale( 1 );
+	}
+
+	/**
+	 * Get the factor by which memory budgets are currently scaled. This is
+	 * {@code 1} if the heap is not short of memory.
+	 */
+	public synchronized double getScale()
+	{
+		return scale;
+	}
+
+	/**
+	 * Set the fraction of the maximum size of a heap pool that counts as
+	 * memory pressure, if it is still used after a garbage collection.
+	 *
+	 * @param highThreshold
+	 *            fraction of the maximum pool size in {@code (0, 1)}.
+	 */
+	public synchronized void setHighThreshold( final double highThreshold )
+	{
+		if ( highThreshold <= 0 || highThreshold >= 1 )
+			throw new IllegalArgumentException( "threshold must be in (0, 1)" );
+		this.highThreshold = highThreshold;
+		if ( isEnabled() )
+			setThresholds();
+	}
+
+	public synchronized double getHighThreshold()
+	{
+		return highThreshold;
+	}
+
+	/**
+	 * Set the fraction of the maximum size of a heap pool below which memory
+	 * budgets are restored, if it is used after a garbage collection.
+	 *
+	 * @param lowThreshold
+	 *            fraction of the maximum pool size in {@code (0, 1)}.
+	 */
+	public synchronized void setLowThreshold( final double lowThreshold )
+	{
+		if ( lowThreshold <= 0 || lowThreshold >= 1 )
+			throw new IllegalArgumentException( "threshold must be in (0, 1)" );
+		this.lowThreshold = lowThreshold;
+	}
+
+	public synchronized double getLowThreshold()
+	{
+		return lowThreshold;
+	}
+
+	/**
+	 * Set the factor by which memory budgets are shrunk on each notification
+	 * of memory pressure.
+	 *
+	 * @param shrinkFactor
+	 *            factor in {@code (0, 1)}.
+	 */
+	public synchronized void setShrinkFactor( final double shrinkFactor )
+	{
+		if ( shrinkFactor <= 0 || shrinkFactor >= 1 )
+			throw new IllegalArgumentException( "shrink factor must be in (0, 1)" );
+		this.shrinkFactor = shrinkFactor;
+		this.growFactor = 1 / Math.sqrt( shrinkFactor );
+	}
+
+	public synchronized double getShrinkFactor()
+	{
+		return shrinkFactor;
+	}
+
+	/**
+	 * Set the fraction of the configured budgets below which memory budgets
+	 * are not shrunk.
+	 *
+	 * @param minScale
+	 *            fraction in {@code [0, 1]}.
+	 */
+	public synchronized void setMinScale( final double minScale )
+	{
+		if ( minScale < 0 || minScale > 1 )
+			throw new IllegalArgumentException( "minimum scale must be in [0, 1]" );
+		this.minScale = minScale;
+		if ( scale < minScale )
+			applyScale( minScale );
+	}
+
+	public synchronized double getMinScale()
+	{
+		return minScale;
+	}
+
+	/**
+	 * Set the collection usage threshold of all pools that do not have one
+	 * set by someone else.
+	 */
+	private void setThresholds()
+	{
+		for ( final MemoryPoolMXBean pool : pools )
+		{
+			final Long own = ownThresholds.get( pool );
+			final long current = pool.getCollectionUsageThreshold();
+			if ( current != 0 && ( own == null || current != own ) )
+			{
+				ownThresholds.remove( pool );
+				continue;
+			}
+			final long threshold = ( long ) ( pool.getUsage().getMax() * highThreshold );
+			pool.setCollectionUsageThreshold( threshold );
+			ownThresholds.put( pool, threshold );
+		}
+	}
+
+	private void handle( final Notification notification )
+	{
+		if ( !MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals( notification.getType() ) )
+			return;
+		final MemoryNotificationInfo info = MemoryNotificationInfo.from( ( CompositeData ) notification.getUserData() );
+		final MemoryUsage usage = info.getUsage();
+		if ( usage.getMax() > 0 && usage.getUsed() > usage.getMax() * getHighThreshold() )
+			shrink();
+	}
+
+	/**
+	 * Shrink the memory budgets by one step. Notifications that arrive in quick
+	 * succession, for example from consecutive collections of the same
+	 * allocation burst, are handled as one step.
+	 */
+	private synchronized void shrink()
+	{
+		final long now = System.nanoTime();
+		if ( lastShrinkNanos != 0 && now - lastShrinkNanos < TimeUnit.MILLISECONDS.toNanos( MIN_SHRINK_INTERVAL_MILLIS ) )
+			return;
+		lastShrinkNanos = now;
+		applyScale( Math.max( minScale, scale * shrinkFactor ) );
+		if ( restorer == null )
+		{
+			restorer = Executors.newSingleThreadScheduledExecutor( r -> {
+				final Thread thread = new Thread( r, "bdv-memory-pressure" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+			restorer.scheduleWithFixedDelay( this::restore, RESTORE_INTERVAL_MILLIS, RESTORE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	/**
+	 * Grow the memory budgets by one step, if all pools have been below
+	 * {@link #getLowThreshold()} after their last garbage collection. Once the
+	 * budgets are back at their configured values, the {@link #restorer} is
+	 * stopped.
+	 */
+	private synchronized void restore()
+	{
+		for ( final MemoryPoolMXBean pool : pools )
+		{
+			final MemoryUsage usage = pool.getCollectionUsage();
+			if ( usage == null || usage.getUsed() > usage.getMax() * lowThreshold )
+				return;
+		}
+		applyScale( Math.min( 1, scale * growFactor ) );
+		if ( scale >= 1 )
+			stopRestorer();
+	}
+
+	private void stopRestorer()
+	{
+		if ( restorer != null )
+		{
+			restorer.shutdown();
+			restorer = null;
+		}
+	}
+
+	private void applyScale( final double newScale )
+	{
+		if ( newScale == scale )
+			return;
+		scale = newScale;
+		removeCleared();
+		for ( final WeakReference< VolatileGlobalCellCache > ref : caches )
+		{
+			final VolatileGlobalCellCache cache = ref.get();
+			if ( cache != null )
+				cache.setMemoryPressureScale( newScale );
+		}
+	}
+
+	private void removeCleared()
+	{
+		caches.removeIf( ref -> ref.get() == null );
+	}
+}
@@ -0,0 +1,343 @@
+package bdv.img.cache;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import bdv.img.cache.VolatileGlobalCellCache.Key;
+import net.imglib2.cache.img.PrimitiveType;
+
+/**
+ * Storage tier for cell data outside of the Java heap. Cells that are evicted
+ * from the in-memory cache of the {@link VolatileGlobalCellCache} are copied
+ * into direct {@link ByteBuffer ByteBuffers}. When a cell is requested again,
+ * it is copied back to the heap, without going through the
+ * {@link CacheArrayLoader}.
+ * <p>
+ * The tier has its own memory budget. If a new cell does not fit, the cells
+ * that were stored longest ago are dropped. Buffers of dropped or restored
+ * cells are re-used for new cells of the same size. Note that direct buffers
+ * count against the {@code -XX:MaxDirectMemorySize} limit of the JVM, and that
+ * the memory of buffers that are dropped is only returned when they are
+ * garbage-collected. Therefore, the budget is capped at
+ * {@link #DIRECT_MEMORY_FRACTION} of that limit (see
+ * {@link #getMaxDirectMemory()}). If direct memory runs out nevertheless,
+ * the cell is not stored, and the budget is reduced to what could be
+ * allocated.
+ * </p>
+ * <p>
+ * Only cells with data of the standard volatile array types are stored (see
+ * {@link VolatileArrays}).
+ * </p>
+ */
+public class OffHeapCellCache
+{
+	/**
+	 * Fraction of the direct memory limit of the JVM that may be used by the
+	 * tier. The rest is left for other users of direct memory, and for
+	 * dropped buffers that have not been garbage-collected yet.
+	 */
+	public static final double DIRECT_MEMORY_FRACTION = 0.75;
+
+	private static final class Entry
+	{
+		final ByteBuffer buffer;
+
+		final PrimitiveType type;
+
+		final int numEntities;
+
+		Entry( final ByteBuffer buffer, final PrimitiveType type, final int numEntities )
+		{
+			this.buffer = buffer;
+			this.type = type;
+			this.numEntities = numEntities;
+		}
+	}
+
+	/**
+	 * Stored cells, in the order in which they were stored.
+	 */
+	private final LinkedHashMap< Key, Entry > entries = new LinkedHashMap<>();
+
+	/**
+	 * Buffers that are not used by any entry, by capacity.
+	 */
+	private final HashMap< Integer, ArrayDeque< ByteBuffer > > freeBuffers = new HashMap<>();
+
+	private int numFreeBuffers;
+
+	private long maxBytes;
+
+	/**
+	 * Total capacity of all buffers that are held, used or free.
+	 */
+	private long allocatedBytes;
+
+	/**
+	 * Create an off-heap cell cache.
+	 *
+	 * @param maxBytes
+	 *            how many bytes of direct memory to use at most.
+	 */
+	public OffHeapCellCache( final long maxBytes )
+	{
+		this.maxBytes = capMaxBytes( maxBytes );
+	}
+
+	/**
+	 * Copy the data of a cell into off-heap memory.
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 * @param data
+	 *            the cell data.
+	 * @return {@code true} if the data was stored, {@code false} if its type
+	 *         is not supported, it is too large for the budget, or direct
+	 *         memory is exhausted.
+	 */
+	public synchronized boolean put( final Key key, final Object data )
+	{
+		final PrimitiveType type = VolatileArrays.getPrimitiveType( data );
+		if ( type == PrimitiveType.UNDEFINED )
+			return false;
+		final int numBytes = VolatileArrays.getNumBytes( type, data );
+		if ( numBytes > maxBytes )
+			return false;
+
+		final Entry previous = entries.remove( key );
+		if ( previous != null )
+			release( previous.buffer );
+
+		final ByteBuffer buffer = allocate( numBytes );
+		if ( buffer == null )
+			return false;
+		VolatileArrays.write( type, data, buffer );
+		entries.put( key, new Entry( buffer, type, VolatileArrays.getNumEntities( type, data ) ) );
+		return true;
+	}
+
+	/**
+	 * Copy the data of a cell back to the heap and remove it from off-heap
+	 * memory.
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 * @return a new valid volatile array access with the cell data, or
+	 *         {@code null} if the cell is not stored.
+	 */
+	public synchronized Object remove( final Key key )
+	{
+		final Entry entry = entries.remove( key );
+		if ( entry == null )
+			return null;
+		final Object data = VolatileArrays.read( entry.type, entry.numEntities, entry.buffer );
+		release( entry.buffer );
+		return data;
+	}
+
+	/**
+	 * Remove a cell from off-heap memory without copying it back, for example
+	 * because it is resident in memory again.
+	 *
+	 * @param key
+	 *            the key of the cell.
+	 */
+	public synchronized void discard( final Key key )
+	{
+		final Entry entry = entries.remove( key );
+		if ( entry != null )
+			release( entry.buffer );
+	}
+
+	/**
+	 * Remove all cells and let go of all buffers.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		freeBuffers.clear();
+		numFreeBuffers = 0;
+		allocatedBytes = 0;
+	}
+
+	/**
+	 * Set how many bytes of direct memory to use at most. The budget is capped
+	 * at {@link #DIRECT_MEMORY_FRACTION} of {@link #getMaxDirectMemory()}. If
+	 * the currently stored cells exceed the new budget, they are dropped
+	 * immediately.
+	 */
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = capMaxBytes( maxBytes );
+		makeRoom( 0 );
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Get how many bytes of direct memory are currently held.
+	 */
+	public synchronized long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+
+	/**
+	 * Get how many cells are currently stored.
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	private ByteBuffer allocate( final int numBytes )
+	{
+		final ByteBuffer free = pollFree( numBytes );
+		if ( free != null )
+			return free;
+
+		final ByteBuffer reused = makeRoom( numBytes );
+		if ( reused != null )
+			return reused;
+
+		final ByteBuffer buffer;
+		try
+		{
+			buffer = ByteBuffer.allocateDirect( numBytes ).order( ByteOrder.nativeOrder() );
+		}
+		catch ( final OutOfMemoryError e )
+		{
+			/*
+			 * Direct memory is used up, by other users or by dropped buffers
+			 * that are not garbage-collected yet. Let go of the free buffers
+			 * and don't try to grow beyond what is allocated now, because
+			 * every failed allocation blocks the evicting thread for a
+			 * garbage collection.
+			 */
+			freeBuffers.clear();
+			numFreeBuffers = 0;
+			allocatedBytes = 0;
+			for ( final Entry entry : entries.values() )
+				allocatedBytes += entry.buffer.capacity();
+			maxBytes = allocatedBytes;
+			return null;
+		}
+		allocatedBytes += numBytes;
+		return buffer;
+	}
+
+	/**
+	 * Drop free buffers and then the oldest entries until {@code numBytes}
+	 * additional bytes fit into the budget. If a dropped entry has a buffer of
+	 * exactly {@code numBytes} capacity, stop and return that buffer for
+	 * re-use.
+	 */
+	private ByteBuffer makeRoom( final int numBytes )
+	{
+		while ( allocatedBytes + numBytes > maxBytes && numFreeBuffers > 0 )
+		{
+			final Iterator< ArrayDeque< ByteBuffer > > it = freeBuffers.values().iterator();
+			final ArrayDeque< ByteBuffer > buffers = it.next();
+			allocatedBytes -= buffers.poll().capacity();
+			--numFreeBuffers;
+			if ( buffers.isEmpty() )
+				it.remove();
+		}
+
+		final Iterator< Entry > it = entries.values().iterator();
+		while ( allocatedBytes + numBytes > maxBytes && it.hasNext() )
+		{
+			final ByteBuffer buffer = it.next().buffer;
+			it.remove();
+			if ( buffer.capacity() == numBytes )
+				return buffer;
+			allocatedBytes -= buffer.capacity();
+		}
+
+		return null;
+	}
+
+	private ByteBuffer pollFree( final int numBytes )
+	{
+		final ArrayDeque< ByteBuffer > buffers = freeBuffers.get( numBytes );
+		if ( buffers == null )
+			return null;
+		final ByteBuffer buffer = buffers.poll();
+		--numFreeBuffers;
+		if ( buffers.isEmpty() )
+			freeBuffers.remove( numBytes );
+		return buffer;
+	}
+
+	/**
+	 * Get the maximum amount of direct memory of the JVM. This is the value of
+	 * {@code -XX:MaxDirectMemorySize} if it is set, and the maximum heap size
+	 * otherwise, which is the default of the JVM.
+	 */
+	public static long getMaxDirectMemory()
+	{
+		final String option = "-XX:MaxDirectMemorySize=";
+		for ( final String arg : ManagementFactory.getRuntimeMXBean().getInputArguments() )
+		{
+			if ( arg.startsWith( option ) )
+			{
+				try
+				{
+					return parseSize( arg.substring( option.length() ) );
+				}
+				catch ( final NumberFormatException e )
+				{
+					break;
+				}
+			}
+		}
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	private static long capMaxBytes( final long maxBytes )
+	{
+		return Math.min( maxBytes, ( long ) ( getMaxDirectMemory() * DIRECT_MEMORY_FRACTION ) );
+	}
+
+	/**
+	 * Parse a JVM size option value, such as {@code 512m} or {@code 32g}.
+	 */
+	private static long parseSize( final String value )
+	{
+		final String v = value.trim().toLowerCase();
+		final char unit = v.isEmpty() ? ' ' : v.charAt( v.length() - 1 );
+		final int shift;
+		switch ( unit )
+		{
+		case 'k':
+			shift = 10;
+			break;
+		case 'm':
+			shift = 20;
+			break;
+		case 'g':
+			shift = 30;
+			break;
+		case 't':
+			shift = 40;
+			break;
+		default:
+			return Long.parseLong( v );
+		}
+		return Long.parseLong( v.substring( 0, v.length() - 1 ) ) << shift;
+	}
+
+	private void release( final ByteBuffer buffer )
+	{
+		freeBuffers.computeIfAbsent( buffer.capacity(), k -> new ArrayDeque<>() ).add( buffer );
+		++numFreeBuffers;
+	}
+}
@@ -0,0 +1,619 @@
+package bdv.img.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.imglib2.cache.queue.FetcherThreads;
+
+/**
+ * One pool of threads that loads cells for the {@link CellFetchQueues} of
+ * several caches, instead of each cache having its own fetcher threads.
+ * <p>
+ * Each queue is registered as a {@link Client} with bounds for its number of
+ * concurrent loads, which reflect how much concurrency its storage may benefit
+ * from (for example a single load for an HDF5 file, whose reads are
+ * serialized, and many for a remote server). Within the bounds, the limit
+ * adapts to the measured load throughput of the queue. It is adjusted by hill
+ * climbing: in every measurement interval in which the queue used all its
+ * allowed loads, the number of completed loads per second is compared to the
+ * previous interval. The limit keeps moving in the same direction while
+ * throughput improves, and turns around when it drops or, when growing, stays
+ * flat. If the mean load latency rises far above the lowest latency observed
+ * without any throughput gain, the limit is reduced.
+ * </p>
+ * <p>
+ * Idle threads take the most urgent request of all registered queues (see
+ * {@link CellFetchQueues#peekPriority()}), so requests of the current frame
+ * of one queue are loaded before the prefetch backlog of another. Among
+ * requests of equal urgency, queues are served in order of
+ * {@link Client#setPriority(int) priority}, and round-robin among queues of
+ * equal priority. A queue that has reached its limit of concurrent loads is
+ * skipped, so slow storage does not tie up all threads.
+ * </p>
+ * <p>
+ * Threads are created as needed, up to the total limit of concurrent loads
+ * of all registered queues, or {@link #getMaxThreads()}, whichever is
+ * smaller. Queues are only weakly referenced, and clients whose queues have
+ * been garbage-collected are removed.
+ * </p>
+ */
+public class SharedFetcherThreads
+{
+	/**
+	 * Minimum duration of a measurement interval.
+	 */
+	private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos( 250 );
+
+	/**
+	 * Minimum number of completed loads in a measurement interval.
+	 */
+	private static final int MIN_SAMPLES = 8;
+
+	/**
+	 * A queue is considered saturated if its loads were in progress for at
+	 * least this fraction of the interval times its limit.
+	 */
+	private static final double MIN_BUSY_FRACTION = 0.9;
+
+	/**
+	 * Relative throughput change that is considered significant.
+	 */
+	private static final double TOLERANCE = 0.05;
+
+	/**
+	 * Reduce the limit, if the mean latency exceeds the lowest observed mean
+	 * latency by this factor without any throughput gain.
+	 */
+	private static final double LATENCY_FACTOR = 4;
+
+	/**
+	 * A queue served by the {@link SharedFetcherThreads}.
+	 */
+	public final class Client
+	{
+		private final WeakReference< CellFetchQueues > queue;
+
+		private final int minConcurrentLoads;
+
+		private final int maxConcurrentLoads;
+
+		/**
+		 * Current limit of concurrent loads, between
+		 * {@link #minConcurrentLoads} and {@link #maxConcurrentLoads}.
+		 */
+		private int limit;
+
+		private int numActive;
+
+		private int priority;
+
+		private long pauseUntilMillis;
+
+		private int direction = 1;
+
+		private long intervalStart = System.nanoTime();
+
+		private int completed;
+
+		private long busyNanos;
+
+		private double lastThroughput;
+
+		private double minLatency = Double.MAX_VALUE;
+
+		private Client( final CellFetchQueues queue, final int minConcurrentLoads, final int maxConcurrentLoads )
+		{
+			this.queue = new WeakReference<>( queue );
+			this.minConcurrentLoads = minConcurrentLoads;
+			this.maxConcurrentLoads = maxConcurrentLoads;
+			limit = minConcurrentLoads;
+		}
+
+		public int getMinConcurrentLoads()
+		{
+			return minConcurrentLoads;
+		}
+
+		public int getMaxConcurrentLoads()
+		{
+			return maxConcurrentLoads;
+		}
+
+		/**
+		 * Get the current limit of concurrent loads, which adapts to the
+		 * measured throughput.
+		 */
+		public int getConcurrentLoads()
+		{
+			lock.lock();
+			try
+			{
+				return limit;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Set the priority of this queue. Requests of queues with higher
+		 * priority are loaded first.
+		 */
+		public void setPriority( final int priority )
+		{
+			lock.lock();
+			try
+			{
+				this.priority = priority;
+				sortClients();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		public int getPriority()
+		{
+			lock.lock();
+			try
+			{
+				return priority;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Stop taking requests from this queue for the given time. Loads that
+		 * are in progress are completed.
+		 *
+		 * @param ms
+		 *            milliseconds to pause.
+		 */
+		public void pauseFor( final long ms )
+		{
+			pauseUntil( System.currentTimeMillis() + ms );
+		}
+
+		/**
+		 * Stop taking requests from this queue until the given time. Loads
+		 * that are in progress are completed.
+		 *
+		 * @param timeMillis
+		 *            time (as returned by {@link System#currentTimeMillis()})
+		 *            until which to pause.
+		 */
+		public void pauseUntil( final long timeMillis )
+		{
+			lock.lock();
+			try
+			{
+				pauseUntilMillis = timeMillis;
+				available.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Take requests from this queue again immediately.
+		 */
+		public void wakeUp()
+		{
+			pauseUntil( 0 );
+		}
+
+		/**
+		 * Get a {@link FetcherThreads} view of this client, for code that
+		 * expects the per-cache fetcher threads of imglib2-cache. It does not
+		 * start any threads itself. Pausing and waking it up pauses and wakes
+		 * up this client.
+		 */
+		public FetcherThreads asFetcherThreads()
+		{
+			return new ClientFetcherThreads( queue.get(), this );
+		}
+
+		/**
+		 * Stop serving this queue.
+		 */
+		public void unregister()
+		{
+			lock.lock();
+			try
+			{
+				clients.remove( this );
+				updateMaxThreads();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			final CellFetchQueues q = queue.get();
+			if ( q != null )
+				q.setPutListener( null );
+		}
+
+		/**
+		 * Record a completed load and adapt the limit of concurrent loads, if
+		 * a measurement interval is complete. Must be called while holding
+		 * the {@link #lock}.
+		 */
+		private void loadCompleted( final long loadNanos )
+		{
+			++completed;
+			busyNanos += loadNanos;
+
+			final long now = System.nanoTime();
+			final long elapsed = now - intervalStart;
+			if ( elapsed < INTERVAL_NANOS || completed < MIN_SAMPLES )
+				return;
+
+			final boolean saturated = busyNanos >= MIN_BUSY_FRACTION * limit * elapsed;
+			final double throughput = completed * 1e9 / elapsed;
+			final double latency = ( double ) busyNanos / completed;
+			intervalStart = now;
+			completed = 0;
+			busyNanos = 0;
+
+			if ( !saturated )
+			{
+				// no backlog: throughput reflects demand, not concurrency
+				lastThroughput = 0;
+				return;
+			}
+
+			minLatency = Math.min( minLatency, latency );
+			if ( lastThroughput > 0 )
+			{
+				if ( throughput < lastThroughput * ( 1 - TOLERANCE ) )
+					direction = -direction;
+				else if ( throughput < lastThroughput * ( 1 + TOLERANCE ) )
+				{
+					if ( direction > 0 || latency > LATENCY_FACTOR * minLatency )
+						direction = -1;
+				}
+			}
+			lastThroughput = throughput;
+
+			int n = limit + direction;
+			if ( n < minConcurrentLoads || n > maxConcurrentLoads )
+			{
+				direction = -direction;
+				n = Math.max( minConcurrentLoads, Math.min( maxConcurrentLoads, limit + direction ) );
+			}
+			if ( n > limit )
+				available.signalAll();
+			limit = n;
+		}
+	}
+
+	/**
+	 * A request taken from the queue of a client.
+	 */
+	/**
+	 * {@link FetcherThreads} without threads of its own, that forwards
+	 * pausing to a {@link Client}.
+	 */
+	private static final class ClientFetcherThreads extends FetcherThreads
+	{
+		private final Client client;
+
+		ClientFetcherThreads( final CellFetchQueues queue, final Client client )
+		{
+			super( queue, 0 );
+			this.client = client;
+		}
+
+		@Override
+		public void pauseFor( final long ms )
+		{
+			client.pauseFor( ms );
+		}
+
+		@Override
+		public void pauseUntil( final long timeMillis )
+		{
+			client.pauseUntil( timeMillis );
+		}
+
+		@Override
+		public void wakeUp()
+		{
+			client.wakeUp();
+		}
+	}
+
+	private static final class Task
+	{
+		final Client client;
+
+		final Callable< ? > request;
+
+		final long startNanos = System.nanoTime();
+
+		Task( final Client client, final Callable< ? > request )
+		{
+			this.client = client;
+			this.request = request;
+		}
+	}
+
+	private final int maxThreads;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when requests may have become available to idle threads: when
+	 * a request is enqueued, a load completes, or a queue is resumed.
+	 */
+	private final Condition available = lock.newCondition();
+
+	/**
+	 * Registered clients, ordered by decreasing priority.
+	 */
+	private final ArrayList< Client > clients = new ArrayList<>();
+
+	private int numThreads;
+
+	/**
+	 * Create a shared fetcher thread pool.
+	 *
+	 * @param maxThreads
+	 *            the maximum number of threads.
+	 */
+	public SharedFetcherThreads( final int maxThreads )
+	{
+		if ( maxThreads < 1 )
+			throw new IllegalArgumentException( "invalid maximum number of threads " + maxThreads );
+		this.maxThreads = maxThreads;
+	}
+
+	public int getMaxThreads()
+	{
+		return maxThreads;
+	}
+
+	/**
+	 * Get the number of threads that have been created.
+	 */
+	public int getNumThreads()
+	{
+		lock.lock();
+		try
+		{
+			return numThreads;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start serving {@code queue} with a fixed limit of concurrent loads. The
+	 * queue must not be served by other threads.
+	 *
+	 * @param queue
+	 *            the queue from which to take requests.
+	 * @param maxConcurrentLoads
+	 *            how many requests of {@code queue} to load concurrently at
+	 *            most.
+	 * @return the client, to set the priority of the queue, pause it, or
+	 *         unregister it.
+	 */
+	public Client register( final CellFetchQueues queue, final int maxConcurrentLoads )
+	{
+		return register( queue, maxConcurrentLoads, maxConcurrentLoads );
+	}
+
+	/**
+	 * Start serving {@code queue} with a limit of concurrent loads that adapts
+	 * to the measured throughput. The queue must not be served by other
+	 * threads.
+	 *
+	 * @param queue
+	 *            the queue from which to take requests.
+	 * @param minConcurrentLoads
+	 *            the lower bound of the limit of concurrent loads. This is
+	 *            also the initial limit.
+	 * @param maxConcurrentLoads
+	 *            the upper bound of the limit of concurrent loads.
+	 * @return the client, to set the priority of the queue, pause it, or
+	 *         unregister it.
+	 */
+	public Client register( final CellFetchQueues queue, final int minConcurrentLoads, final int maxConcurrentLoads )
+	{
+		if ( minConcurrentLoads < 1 || maxConcurrentLoads < minConcurrentLoads )
+			throw new IllegalArgumentException( "invalid bounds of concurrent loads [" + minConcurrentLoads + ", " + maxConcurrentLoads + "]" );
+		final Client client = new Client( queue, minConcurrentLoads, maxConcurrentLoads );
+		lock.lock();
+		try
+		{
+			clients.add( client );
+			sortClients();
+			updateMaxThreads();
+			// the queue may already contain requests
+			available.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		queue.setPutListener( this::requestAdded );
+		return client;
+	}
+
+	private void requestAdded()
+	{
+		lock.lock();
+		try
+		{
+			available.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stable sort of clients by decreasing priority. Must be called while
+	 * holding the {@link #lock}.
+	 */
+	private void sortClients()
+	{
+		clients.sort( ( a, b ) -> Integer.compare( b.priority, a.priority ) );
+	}
+
+	/**
+	 * Create threads up to the total limit of concurrent loads. Must be called
+	 * while holding the {@link #lock}.
+	 */
+	private void updateMaxThreads()
+	{
+		int n = 0;
+		for ( final Client client : clients )
+			n += client.maxConcurrentLoads;
+		n = Math.min( n, maxThreads );
+		while ( numThreads < n )
+		{
+			final Thread thread = new Thread( new Fetcher(), String.format( "SharedFetcher-%d", numThreads ) );
+			thread.setDaemon( true );
+			thread.start();
+			++numThreads;
+		}
+	}
+
+	/**
+	 * Wait until a request can be taken from one of the registered queues and
+	 * take the most urgent one.
+	 *
+	 * @return the client and its request.
+	 */
+	private Task take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try
+		{
+			while ( true )
+			{
+				final long now = System.currentTimeMillis();
+				long wakeUp = Long.MAX_VALUE;
+				Client best = null;
+				CellFetchQueues bestQueue = null;
+				int bestPriority = CellFetchQueues.NO_REQUESTS;
+				for ( final Iterator< Client > it = clients.iterator(); it.hasNext(); )
+				{
+					final Client client = it.next();
+					if ( client.numActive >= client.limit )
+						continue;
+					if ( client.pauseUntilMillis > now )
+					{
+						wakeUp = Math.min( wakeUp, client.pauseUntilMillis );
+						continue;
+					}
+					final CellFetchQueues queue = client.queue.get();
+					if ( queue == null )
+					{
+						it.remove();
+						continue;
+					}
+					// clients are ordered by priority, so the first client
+					// with the most urgent request wins ties
+					final int priority = queue.peekPriority();
+					if ( priority < bestPriority )
+					{
+						best = client;
+						bestQueue = queue;
+						bestPriority = priority;
+					}
+				}
+				if ( best != null )
+				{
+					final Callable< ? > request = bestQueue.poll();
+					if ( request == null )
+						continue;
+					++best.numActive;
+					// round-robin among clients of equal priority
+					clients.remove( best );
+					int i = clients.size();
+					while ( i > 0 && clients.get( i - 1 ).priority < best.priority )
+						--i;
+					clients.add( i, best );
+					return new Task( best, request );
+				}
+				if ( wakeUp == Long.MAX_VALUE )
+					available.await();
+				else
+					available.await( wakeUp - now, TimeUnit.MILLISECONDS );
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void completed( final Task task )
+	{
+		lock.lock();
+		try
+		{
+			--task.client.numActive;
+			task.client.loadCompleted( System.nanoTime() - task.startNanos );
+			available.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private final class Fetcher implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			while ( true )
+			{
+				try
+				{
+					final Task task = take();
+					try
+					{
+						task.request.call();
+					}
+					catch ( final InterruptedException e )
+					{
+						throw e;
+					}
+					catch ( final Exception e )
+					{
+						if ( !LoadToken.isCancellation( e ) )
+							e.printStackTrace();
+					}
+					finally
+					{
+						completed( task );
+					}
+				}
+				catch ( final InterruptedException e )
+				{
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package bdv.img.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.imglib2.cache.img.PrimitiveType;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileCharArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileDoubleArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileLongArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
+
+/**
+ * Helpers for moving the data of (non-dirty) {@link VolatileByteArray},
+ * {@link VolatileShortArray}, etc. cell accesses in and out of
+ * {@link ByteBuffer ByteBuffers}. This is used by cache tiers that store cell
+ * data outside of the Java heap.
+ * <p>
+ * Only the standard volatile array access classes are supported (exact class
+ * match). For other accesses {@link #getPrimitiveType(Object)} returns
+ * {@link PrimitiveType#UNDEFINED}, and such cells should be kept on the heap.
+ * </p>
+ * <p>
+ * Data is written and read using the current {@link ByteBuffer#order() byte
+ * order} of the buffer, starting at its current position. The position of the
+ * buffer is not modified.
+ * </p>
+ */
+public final class VolatileArrays
+{
+	private VolatileArrays()
+	{}
+
+	/**
+	 * Get the primitive type of a volatile array access.
+	 *
+	 * @param access
+	 *            cell data.
+	 * @return the primitive type of {@code access}, or
+	 *         {@link PrimitiveType#UNDEFINED} if {@code access} is not one of
+	 *         the supported volatile array types.
+	 */
+	public static PrimitiveType getPrimitiveType( final Object access )
+	{
+		final Class< ? > c = access.getClass();
+		if ( c == VolatileByteArray.class )
+			return PrimitiveType.BYTE;
+		else if ( c == VolatileCharArray.class )
+			return PrimitiveType.CHAR;
+		else if ( c == VolatileShortArray.class )
+			return PrimitiveType.SHORT;
+		else if ( c == VolatileIntArray.class )
+			return PrimitiveType.INT;
+		else if ( c == VolatileLongArray.class )
+			return PrimitiveType.LONG;
+		else if ( c == VolatileFloatArray.class )
+			return PrimitiveType.FLOAT;
+		else if ( c == VolatileDoubleArray.class )
+			return PrimitiveType.DOUBLE;
+		else
+			return PrimitiveType.UNDEFINED;
+	}
+
+	/**
+	 * Get the number of bytes occupied by one entity of the given primitive
+	 * type.
+	 */
+	public static int getBytesPerEntity( final PrimitiveType type )
+	{
+		switch ( type )
+		{
+		case BYTE:
+			return 1;
+		case CHAR:
+		case SHORT:
+			return 2;
+		case INT:
+		case FLOAT:
+			return 4;
+		case LONG:
+		case DOUBLE:
+			return 8;
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Get the number of entities (primitive array elements) of a volatile
+	 * array access of the given primitive type.
+	 */
+	public static int getNumEntities( final PrimitiveType type, final Object access )
+	{
+		switch ( type )
+		{
+		case BYTE:
+			return ( ( VolatileByteArray ) access ).getCurrentStorageArray().length;
+		case CHAR:
+			return ( ( VolatileCharArray ) access ).getCurrentStorageArray().length;
+		case SHORT:
+			return ( ( VolatileShortArray ) access ).getCurrentStorageArray().length;
+		case INT:
+			return ( ( VolatileIntArray ) access ).getCurrentStorageArray().length;
+		case LONG:
+			return ( ( VolatileLongArray ) access ).getCurrentStorageArray().length;
+		case FLOAT:
+			return ( ( VolatileFloatArray ) access ).getCurrentStorageArray().length;
+		case DOUBLE:
+			return ( ( VolatileDoubleArray ) access ).getCurrentStorageArray().length;
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Get the number of bytes required to store the data of a volatile array
+	 * access of the given primitive type.
+	 */
+	public static int getNumBytes( final PrimitiveType type, final Object access )
+	{
+		return getNumEntities( type, access ) * getBytesPerEntity( type );
+	}
+
+	/**
+	 * Check whether all entities of a volatile array access of the given
+	 * primitive type are zero.
+	 */
+	public static boolean isZero( final PrimitiveType type, final Object access )
+	{
+		switch ( type )
+		{
+		case BYTE:
+			for ( final byte v : ( ( VolatileByteArray ) access ).getCurrentStorageArray() )
+				if ( v != 0 )
+					return false;
+			return true;
+		case CHAR:
+			for ( final char v : ( ( VolatileCharArray ) access ).getCurrentStorageArray() )
+				if ( v != 0 )
+					return false;
+			return true;
+		case SHORT:
+			for ( final short v : ( ( VolatileShortArray ) access ).getCurrentStorageArray() )
+				if ( v != 0 )
+					return false;
+			return true;
+		case INT:
+			for ( final int v : ( ( VolatileIntArray ) access ).getCurrentStorageArray() )
+				if ( v != 0 )
+					return false;
+			return true;
+		case LONG:
+			for ( final long v : ( ( VolatileLongArray ) access ).getCurrentStorageArray() )
+				if ( v != 0 )
+					return false;
+			return true;
+		case FLOAT:
+			for ( final float v : ( ( VolatileFloatArray ) access ).getCurrentStorageArray() )
+				if ( Float.floatToRawIntBits( v ) != 0 )
+					return false;
+			return true;
+		case DOUBLE:
+			for ( final double v : ( ( VolatileDoubleArray ) access ).getCurrentStorageArray() )
+				if ( Double.doubleToRawLongBits( v ) != 0 )
+					return false;
+			return true;
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Get the raw bits of an entity of a volatile array access of the given
+	 * primitive type, zero-extended to {@code long}.
+	 */
+	public static long getBits( final PrimitiveType type, final Object access, final int index )
+	{
+		switch ( type )
+		{
+		case BYTE:
+			return ( ( VolatileByteArray ) access ).getCurrentStorageArray()[ index ] & 0xffL;
+		case CHAR:
+			return ( ( VolatileCharArray ) access ).getCurrentStorageArray()[ index ];
+		case SHORT:
+			return ( ( VolatileShortArray ) access ).getCurrentStorageArray()[ index ] & 0xffffL;
+		case INT:
+			return ( ( VolatileIntArray ) access ).getCurrentStorageArray()[ index ] & 0xffffffffL;
+		case LONG:
+			return ( ( VolatileLongArray ) access ).getCurrentStorageArray()[ index ];
+		case FLOAT:
+			return Float.floatToRawIntBits( ( ( VolatileFloatArray ) access ).getCurrentStorageArray()[ index ] ) & 0xffffffffL;
+		case DOUBLE:
+			return Double.doubleToRawLongBits( ( ( VolatileDoubleArray ) access ).getCurrentStorageArray()[ index ] );
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Check whether all entities of a volatile array access of the given
+	 * primitive type have the same value (the same raw bits, for floating
+	 * point types). Accesses without entities are not uniform.
+	 */
+	public static boolean isUniform( final PrimitiveType type, final Object access )
+	{
+		switch ( type )
+		{
+		case BYTE:
+		{
+			final byte[] a = ( ( VolatileByteArray ) access ).getCurrentStorageArray();
+			for ( int i = 1; i < a.length; ++i )
+				if ( a[ i ] != a[ 0 ] )
+					return false;
+			return a.length > 0;
+		}
+		case CHAR:
+		{
+			final char[] a = ( ( VolatileCharArray ) access ).getCurrentStorageArray();
+			for ( int i = 1; i < a.length; ++i )
+				if ( a[ i ] != a[ 0 ] )
+					return false;
+			return a.length > 0;
+		}
+		case SHORT:
+		{
+			final short[] a = ( ( VolatileShortArray ) access ).getCurrentStorageArray();
+			for ( int i = 1; i < a.length; ++i )
+				if ( a[ i ] != a[ 0 ] )
+					return false;
+			return a.length > 0;
+		}
+		case INT:
+		{
+			final int[] a = ( ( VolatileIntArray ) access ).getCurrentStorageArray();
+			for ( int i = 1; i < a.length; ++i )
+				if ( a[ i ] != a[ 0 ] )
+					return false;
+			return a.length > 0;
+		}
+		case LONG:
+		{
+			final long[] a = ( ( VolatileLongArray ) access ).getCurrentStorageArray();
+			for ( int i = 1; i < a.length; ++i )
+				if ( a[ i ] != a[ 0 ] )
+					return false;
+			return a.length > 0;
+		}
+		case FLOAT:
+		{
+			final float[] a = ( ( VolatileFloatArray ) access ).getCurrentStorageArray();
+			if ( a.length == 0 )
+				return false;
+			final int first = Float.floatToRawIntBits( a[ 0 ] );
+			for ( int i = 1; i < a.length; ++i )
+				if ( Float.floatToRawIntBits( a[ i ] ) != first )
+					return false;
+			return true;
+		}
+		case DOUBLE:
+		{
+			final double[] a = ( ( VolatileDoubleArray ) access ).getCurrentStorageArray();
+			if ( a.length == 0 )
+				return false;
+			final long first = Double.doubleToRawLongBits( a[ 0 ] );
+			for ( int i = 1; i < a.length; ++i )
+				if ( Double.doubleToRawLongBits( a[ i ] ) != first )
+					return false;
+			return true;
+		}
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Write the data of a volatile array access to {@code buffer}. The buffer
+	 * must have at least {@link #getNumBytes(PrimitiveType, Object)} bytes
+	 * remaining.
+	 *
+	 * @param type
+	 *            the primitive type of {@code access}.
+	 * @param access
+	 *            the data to write.
+	 * @param buffer
+	 *            the buffer to write to.
+	 */
+	public static void write( final PrimitiveType type, final Object access, final ByteBuffer buffer )
+	{
+		switch ( type )
+		{
+		case BYTE:
+			buffer.duplicate().put( ( ( VolatileByteArray ) access ).getCurrentStorageArray() );
+			break;
+		case CHAR:
+			buffer.asCharBuffer().put( ( ( VolatileCharArray ) access ).getCurrentStorageArray() );
+			break;
+		case SHORT:
+			buffer.asShortBuffer().put( ( ( VolatileShortArray ) access ).getCurrentStorageArray() );
+			break;
+		case INT:
+			buffer.asIntBuffer().put( ( ( VolatileIntArray ) access ).getCurrentStorageArray() );
+			break;
+		case LONG:
+			buffer.asLongBuffer().put( ( ( VolatileLongArray ) access ).getCurrentStorageArray() );
+			break;
+		case FLOAT:
+			buffer.asFloatBuffer().put( ( ( VolatileFloatArray ) access ).getCurrentStorageArray() );
+			break;
+		case DOUBLE:
+			buffer.asDoubleBuffer().put( ( ( VolatileDoubleArray ) access ).getCurrentStorageArray() );
+			break;
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Read a valid volatile array access of the given primitive type from
+	 * {@code buffer}.
+	 *
+	 * @param type
+	 *            the primitive type of the access to create.
+	 * @param numEntities
+	 *            the number of entities (primitive array elements) to read.
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return a new valid {@link VolatileByteArray}, {@link VolatileShortArray},
+	 *         etc.
+	 */
+	public static Object read( final PrimitiveType type, final int numEntities, final ByteBuffer buffer )
+	{
+		switch ( type )
+		{
+		case BYTE:
+		{
+			final byte[] data = new byte[ numEntities ];
+			buffer.duplicate().get( data );
+			return new VolatileByteArray( data, true );
+		}
+		case CHAR:
+		{
+			final char[] data = new char[ numEntities ];
+			buffer.asCharBuffer().get( data );
+			return new VolatileCharArray( data, true );
+		}
+		case SHORT:
+		{
+			final short[] data = new short[ numEntities ];
+			buffer.asShortBuffer().get( data );
+			return new VolatileShortArray( data, true );
+		}
+		case INT:
+		{
+			final int[] data = new int[ numEntities ];
+			buffer.asIntBuffer().get( data );
+			return new VolatileIntArray( data, true );
+		}
+		case LONG:
+		{
+			final long[] data = new long[ numEntities ];
+			buffer.asLongBuffer().get( data );
+			return new VolatileLongArray( data, true );
+		}
+		case FLOAT:
+		{
+			final float[] data = new float[ numEntities ];
+			buffer.asFloatBuffer().get( data );
+			return new VolatileFloatArray( data, true );
+		}
+		case DOUBLE:
+		{
+			final double[] data = new double[ numEntities ];
+			buffer.asDoubleBuffer().get( data );
+			return new VolatileDoubleArray( data, true );
+		}
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+
+	/**
+	 * Create a valid volatile array access whose entities all have the same
+	 * value.
+	 *
+	 * @param type
+	 *            the primitive type of the access to create.
+	 * @param numEntities
+	 *            the number of entities (primitive array elements).
+	 * @param bits
+	 *            the raw bits of the value, as returned by
+	 *            {@link #getBits(PrimitiveType, Object, int)}.
+	 * @return a new valid {@link VolatileByteArray}, {@link VolatileShortArray},
+	 *         etc.
+	 */
+	public static Object createUniform( final PrimitiveType type, final int numEntities, final long bits )
+	{
+		switch ( type )
+		{
+		case BYTE:
+		{
+			final byte[] data = new byte[ numEntities ];
+			Arrays.fill( data, ( byte ) bits );
+			return new VolatileByteArray( data, true );
+		}
+		case CHAR:
+		{
+			final char[] data = new char[ numEntities ];
+			Arrays.fill( data, ( char ) bits );
+			return new VolatileCharArray( data, true );
+		}
+		case SHORT:
+		{
+			final short[] data = new short[ numEntities ];
+			Arrays.fill( data, ( short ) bits );
+			return new VolatileShortArray( data, true );
+		}
+		case INT:
+		{
+			final int[] data = new int[ numEntities ];
+			Arrays.fill( data, ( int ) bits );
+			return new VolatileIntArray( data, true );
+		}
+		case LONG:
+		{
+			final long[] data = new long[ numEntities ];
+			Arrays.fill( data, bits );
+			return new VolatileLongArray( data, true );
+		}
+		case FLOAT:
+		{
+			final float[] data = new float[ numEntities ];
+			Arrays.fill( data, Float.intBitsToFloat( ( int ) bits ) );
+			return new VolatileFloatArray( data, true );
+		}
+		case DOUBLE:
+		{
+			final double[] data = new double[ numEntities ];
+			Arrays.fill( data, Double.longBitsToDouble( bits ) );
+			return new VolatileDoubleArray( data, true );
+		}
+		default:
+			throw new IllegalArgumentException( "unsupported primitive type " + type );
+		}
+	}
+}
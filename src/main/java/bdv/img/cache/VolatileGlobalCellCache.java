@@ -29,22 +29,40 @@
  */
 package bdv.img.cache;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import bdv.cache.CacheControl;
+import bdv.cache.CacheStatistics;
+import bdv.cache.LatencyHistogram;
+import bdv.img.cache.MemoryBoundedLoaderCache.Resident;
+import bdv.img.cache.MemoryBoundedLoaderCache.ResidencyListener;
 import net.imglib2.cache.Cache;
 import net.imglib2.cache.CacheLoader;
-import net.imglib2.cache.LoaderCache;
+import net.imglib2.cache.img.PrimitiveType;
 import net.imglib2.cache.queue.BlockingFetchQueues;
-import net.imglib2.cache.queue.FetcherThreads;
-import net.imglib2.cache.ref.SoftRefLoaderCache;
 import net.imglib2.cache.ref.WeakRefVolatileCache;
 import net.imglib2.cache.util.KeyBimap;
 import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.cache.volatiles.UncheckedVolatileCache;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
 import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
 
 public class VolatileGlobalCellCache implements CacheControl
 {
@@ -62,107 +80,1577 @@ public class VolatileGlobalCellCache implements CacheControl
 
 		private final long index;
 
+		private final int bytesPerElement;
+
+		/**
+		 * Create a Key for the specified cell.
+		 *
+		 * @param timepoint
+		 *            timepoint coordinate of the cell
+		 * @param setup
+		 *            setup coordinate of the cell
+		 * @param level
+		 *            level coordinate of the cell
+		 * @param index
+		 *            index of the cell (flattened spatial coordinate of the
+		 *            cell)
+		 */
+		public Key( final int timepoint, final int setup, final int level, final long index )
+		{
+			this( timepoint, setup, level, index, 1 );
+		}
+
+		/**
+		 * Create a Key for the specified cell. Note that
+		 * {@code bytesPerElement} is not used for {@code hashcode()/equals()}.
+		 *
+		 * @param timepoint
+		 *            timepoint coordinate of the cell
+		 * @param setup
+		 *            setup coordinate of the cell
+		 * @param level
+		 *            level coordinate of the cell
+		 * @param index
+		 *            index of the cell (flattened spatial coordinate of the
+		 *            cell)
+		 * @param bytesPerElement
+		 *            how many bytes one element (voxel) of the cell occupies.
+		 *            This is used to weigh cells against the memory budget of
+		 *            the cache.
+		 */
+		public Key( final int timepoint, final int setup, final int level, final long index, final int bytesPerElement )
+		{
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.index = index;
+			this.bytesPerElement = bytesPerElement;
+
+			int value = Long.hashCode( index );
+			value = 31 * value + level;
+			value = 31 * value + setup;
+			value = 31 * value + timepoint;
+			hashcode = value;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( this == other )
+				return true;
+			if ( !( other instanceof VolatileGlobalCellCache.Key ) )
+				return false;
+			final Key that = ( Key ) other;
+			return ( this.index == that.index ) && ( this.timepoint == that.timepoint ) && ( this.setup == that.setup ) && ( this.level == that.level );
+		}
+
+		final int hashcode;
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+
+		public int getTimepoint()
+		{
+			return timepoint;
+		}
+
+		public int getSetup()
+		{
+			return setup;
+		}
+
+		public int getLevel()
+		{
+			return level;
+		}
+
+		public long getIndex()
+		{
+			return index;
+		}
+
+		public int getBytesPerElement()
+		{
+			return bytesPerElement;
+		}
+	}
+
+	private final BlockingFetchQueues< Callable< ? > > queue;
+
+	protected final MemoryBoundedLoaderCache< Key, Cell< ? > > backingCache;
+
+	/**
+	 * The memory budget set by the user. The budget of {@link #backingCache}
+	 * is this, scaled by {@link #memoryPressureScale}.
+	 */
+	private volatile long maxCacheBytes;
+
+	/**
+	 * Factor by which the {@link MemoryPressureMonitor} shrinks the memory
+	 * budget while the heap is short of memory.
+	 */
+	private volatile double memoryPressureScale = 1;
+
+	/**
+	 * Optional compressed tier, to which cells evicted from
+	 * {@link #backingCache} are moved if they compress well. {@code null} if
+	 * disabled.
+	 */
+	private volatile CompressedCellCache compressedCache;
+
+	/**
+	 * The memory budget of the {@link #compressedCache} set by the user, before
+	 * scaling by {@link #memoryPressureScale}.
+	 */
+	private long maxCompressedBytes;
+
+	/**
+	 * Optional off-heap tier, to which cells evicted from
+	 * {@link #backingCache} are moved. {@code null} if disabled.
+	 */
+	private volatile OffHeapCellCache offHeapCache;
+
+	/**
+	 * Maximum number of evicted cells of one cache that wait to be moved to
+	 * the tiers. Cells that are evicted while this many are waiting are not
+	 * moved, and only stay softly referenced.
+	 */
+	private static final int MAX_PENDING_DEMOTIONS = 256;
+
+	/**
+	 * Moves evicted cells to the tiers (see {@link #cellEvicted(Key, Cell)}),
+	 * so that copying and compressing cell data does not hold up the render
+	 * or fetcher thread that caused the eviction. Shared by all caches.
+	 */
+	private static final ExecutorService demotionExecutor = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "bdv-cell-demotion" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	/**
+	 * Number of evicted cells of this cache that wait for the
+	 * {@link #demotionExecutor}.
+	 */
+	private final AtomicInteger pendingDemotions = new AtomicInteger();
+
+	/**
+	 * Incremented by {@link #clearCache()}, so that cells evicted before are
+	 * not moved to the tiers afterwards.
+	 */
+	private volatile int demotionGeneration;
+
+	/**
+	 * Maximum number of {@link #evictedConstantCells}.
+	 */
+	private static final int MAX_EVICTED_CONSTANT_CELLS = 1 << 16;
+
+	/**
+	 * Evicted cells whose data was shared uniform data (see
+	 * {@link ConstantCells}), with the descriptors of their data, least
+	 * recently evicted first. If the compressed or off-heap tier is enabled,
+	 * such cells are remembered here instead of being copied to a tier, and
+	 * their data is restored through {@link ConstantCells#restore}. At most
+	 * {@link #MAX_EVICTED_CONSTANT_CELLS} cells are remembered.
+	 */
+	private final EvictedConstantCells evictedConstantCells = new EvictedConstantCells();
+
+	private static final class EvictedConstantCells extends LinkedHashMap< Key, ConstantCells.Key >
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< Key, ConstantCells.Key > eldest )
+		{
+			return size() > MAX_EVICTED_CONSTANT_CELLS;
+		}
+	}
+
+	/**
+	 * Notifies {@link #addLoadListener(Runnable) load listeners} when requests
+	 * of the current frame have been completed. Only used if {@link #queue} is
+	 * a {@link CellFetchQueues}.
+	 */
+	private final LoadNotifier loadNotifier = new LoadNotifier( 10 );
+
+	/**
+	 * Whether loaded uniform cells share their data, see {@link ConstantCells}.
+	 */
+	private volatile boolean deduplicateConstantCells = true;
+
+	/**
+	 * Persistent tier for loaded cells. {@code null} if disabled.
+	 */
+	private volatile DiskCellCache diskCache;
+
+	/**
+	 * Cell data of a restored {@link CacheSnapshot}, or {@code null}.
+	 */
+	private volatile CacheSnapshot.Data snapshotData;
+
+	/**
+	 * Identity of the cached data set, or {@code null} if unknown.
+	 */
+	private volatile String dataSetIdentity;
+
+	/**
+	 * Cells that are resident in {@link #backingCache}, by packed
+	 * (timepoint, setup) and (level, index) keys (see {@link #packKey0(int, int)}
+	 * and {@link #packKey1(int, long)}). This serves cache hits without
+	 * allocating boxed indices and {@link Key} objects.
+	 */
+	private final LongPairHashMap< Resident< Cell< ? > > > residentCells = new LongPairHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder loads = new LongAdder();
+
+	private final LongAdder offHeapRestores = new LongAdder();
+
+	private final LongAdder compressedRestores = new LongAdder();
+
+	private final LongAdder diskRestores = new LongAdder();
+
+	private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+	/**
+	 * Bytes of resident cell data by packed (setup, level) key.
+	 */
+	private final ConcurrentHashMap< Long, AtomicLong > residentBytes = new ConcurrentHashMap<>();
+
+	/**
+	 * Pinned (timepoint, setup, level) stacks, by packed (timepoint, setup)
+	 * key and level. Modifications are synchronized on {@code this}.
+	 */
+	private final LongPairHashMap< Boolean > pinnedStacks = new LongPairHashMap<>();
+
+	/**
+	 * The most recently created image of each stack, to load the cells of stacks when they are pinned. The images
+	 * strongly reference their {@link CellAccess}, so entries are cleared when
+	 * images are no longer used.
+	 */
+	private final ConcurrentHashMap< StackId, WeakReference< CellAccess< ? > > > images = new ConcurrentHashMap<>();
+
+	/**
+	 * Cell loads in progress, by the keys of the cells being loaded. A batch
+	 * load is registered under the keys of all its cells.
+	 */
+	private final ConcurrentHashMap< Key, InFlightLoad > inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Whether loads whose cells were not requested by the last complete frame
+	 * are cancelled.
+	 */
+	private volatile boolean cancelStaleLoads = true;
+
+	/**
+	 * Number of the current frame, incremented by {@link #prepareNextFrame()}.
+	 */
+	private final AtomicLong frame = new AtomicLong();
+
+	/**
+	 * Number of the last frame that was rendered completely (see
+	 * {@link #frameComplete()}), or -1 if there was none.
+	 */
+	private volatile long lastCompleteFrame = -1;
+
+	/**
+	 * A cell load in progress.
+	 */
+	private static final class InFlightLoad
+	{
+		final LoadToken token = new LoadToken();
+
+		/**
+		 * Number of the frame that last requested (one of) the cell(s) being
+		 * loaded, or in which the load started.
+		 */
+		volatile long lastRequestedFrame;
+
+		InFlightLoad( final long frame )
+		{
+			lastRequestedFrame = frame;
+		}
+	}
+
+	/**
+	 * Identifies a (timepoint, setup, level) stack.
+	 */
+	private static final class StackId
+	{
+		final int timepoint;
+
+		final int setup;
+
+		final int level;
+
+		StackId( final int timepoint, final int setup, final int level )
+		{
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof StackId ) )
+				return false;
+			final StackId that = ( StackId ) other;
+			return timepoint == that.timepoint && setup == that.setup && level == that.level;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * ( 31 * timepoint + setup ) + level;
+		}
+	}
+
+	/**
+	 * Create a new global cache with a new fetch queue served by the specified
+	 * number of fetcher threads. Loaded cells are kept in memory up to
+	 * {@link #defaultMaxCacheBytes()}.
+	 * <p>
+	 * To adapt the number of concurrent loads to the measured load
+	 * throughput, use {@link #VolatileGlobalCellCache(BlockingFetchQueues)}
+	 * with a {@link CellFetchQueues} and register it with the
+	 * {@link CacheManager} instead (see
+	 * {@link CacheManager#register(VolatileGlobalCellCache, CellFetchQueues, int, int)}).
+	 * </p>
+	 *
+	 * @param maxNumLevels
+	 *            the highest occurring mipmap level plus 1.
+	 * @param numFetcherThreads
+	 *            how many threads should be created to load data.
+	 */
+	public VolatileGlobalCellCache( final int maxNumLevels, final int numFetcherThreads )
+	{
+		this( maxNumLevels, numFetcherThreads, defaultMaxCacheBytes() );
+	}
+
+	/**
+	 * Create a new global cache with a new fetch queue served by the specified
+	 * number of fetcher threads.
+	 *
+	 * @param maxNumLevels
+	 *            the highest occurring mipmap level plus 1.
+	 * @param numFetcherThreads
+	 *            how many threads should be created to load data.
+	 * @param maxCacheBytes
+	 *            how many bytes of cell data to keep in memory. Cells beyond
+	 *            this budget are only softly referenced.
+	 */
+	public VolatileGlobalCellCache( final int maxNumLevels, final int numFetcherThreads, final long maxCacheBytes )
+	{
+		final CellFetchQueues fetchQueues = new CellFetchQueues( maxNumLevels );
+		queue = fetchQueues;
+		// SharedFetcherThreads, unlike FetcherThreads, does not report
+		// cancelled loads as errors
+		new SharedFetcherThreads( numFetcherThreads ).register( fetchQueues, numFetcherThreads );
+		this.maxCacheBytes = maxCacheBytes;
+		backingCache = createBackingCache( maxCacheBytes );
+		if ( queue instanceof CellFetchQueues )
+			( ( CellFetchQueues ) queue ).setCompletionListener( loadNotifier::loaded );
+		MemoryPressureMonitor.getInstance().register( this );
+	}
+
+	/**
+	 * Create a new global cache with the specified fetch queue. (It is the
+	 * callers responsibility to create fetcher threads that serve the queue.)
+	 * Queue depths are only reported in {@link #getStatistics()} if the queue
+	 * is a {@link CellFetchQueues}. Loaded cells are kept in memory up to {@link #defaultMaxCacheBytes()}.
+	 *
+	 * @param queue
+	 *            queue to which asynchronous data loading jobs are submitted
+	 */
+	public VolatileGlobalCellCache( final BlockingFetchQueues< Callable< ? > > queue )
+	{
+		this( queue, defaultMaxCacheBytes() );
+	}
+
+	/**
+	 * Create a new global cache with the specified fetch queue. (It is the
+	 * callers responsibility to create fetcher threads that serve the queue.)
+	 *
+	 * @param queue
+	 *            queue to which asynchronous data loading jobs are submitted
+	 * @param maxCacheBytes
+	 *            how many bytes of cell data to keep in memory. Cells beyond
+	 *            this budget are only softly referenced.
+	 */
+	public VolatileGlobalCellCache( final BlockingFetchQueues< Callable< ? > > queue, final long maxCacheBytes )
+	{
+		this.queue = queue;
+		this.maxCacheBytes = maxCacheBytes;
+		backingCache = createBackingCache( maxCacheBytes );
+		if ( queue instanceof CellFetchQueues )
+			( ( CellFetchQueues ) queue ).setCompletionListener( loadNotifier::loaded );
+		MemoryPressureMonitor.getInstance().register( this );
+	}
+
+	private MemoryBoundedLoaderCache< Key, Cell< ? > > createBackingCache( final long maxCacheBytes )
+	{
+		final MemoryBoundedLoaderCache< Key, Cell< ? > > cache = new MemoryBoundedLoaderCache<>(
+				maxCacheBytes,
+				( key, cell ) -> ConstantCells.isConstant( cell.getData() )
+						? ConstantCells.CONSTANT_CELL_WEIGHT
+						: cell.size() * key.getBytesPerElement(),
+				this::cellEvicted,
+				new ResidencyListener< Key, Cell< ? > >()
+				{
+					@Override
+					public void admitted( final Key key, final Resident< Cell< ? > > resident )
+					{
+						residentBytes.computeIfAbsent( packSetupLevel( key.setup, key.level ), k -> new AtomicLong() ).addAndGet( resident.getWeight() );
+						if ( isPackable( key.level, key.index ) )
+							residentCells.put( packKey0( key.timepoint, key.setup ), packKey1( key.level, key.index ), resident );
+						discardEvicted( key );
+					}
+
+					@Override
+					public void removed( final Key key, final Resident< Cell< ? > > resident )
+					{
+						final AtomicLong bytes = residentBytes.get( packSetupLevel( key.setup, key.level ) );
+						if ( bytes != null )
+							bytes.addAndGet( -resident.getWeight() );
+						if ( isPackable( key.level, key.index ) )
+							residentCells.remove( packKey0( key.timepoint, key.setup ), packKey1( key.level, key.index ), resident );
+					}
+				} );
+		cache.setPinned( key -> pinnedStacks.get( packKey0( key.timepoint, key.setup ), key.level ) != null );
+		return cache;
+	}
+
+	private static long packSetupLevel( final int setup, final int level )
+	{
+		return ( ( long ) setup << 32 ) | ( level & 0xffffffffL );
+	}
+
+	private static long packKey0( final int timepoint, final int setup )
+	{
+		return ( ( long ) timepoint << 32 ) | ( setup & 0xffffffffL );
+	}
+
+	private static long packKey1( final int level, final long index )
+	{
+		return ( ( long ) level << 56 ) | index;
+	}
+
+	/**
+	 * Whether {@code level} and {@code index} fit into {@link #packKey1(int, long)}.
+	 */
+	private static boolean isPackable( final int level, final long index )
+	{
+		return level >= 0 && level < 256 && index >= 0 && index < ( 1L << 56 );
+	}
+
+	/**
+	 * Called when a cell is evicted from the in-memory {@link #backingCache},
+	 * on the thread whose cache access caused the eviction. Hands the cell to
+	 * the {@link #demotionExecutor}, which moves it to the tiers (see
+	 * {@link #demote(Key, Cell)}). Until then, the cell stays strongly
+	 * referenced by the pending task, so it can still be found in the
+	 * {@link #backingCache}.
+	 */
+	private void cellEvicted( final Key key, final Cell< ? > cell )
+	{
+		if ( compressedCache == null && offHeapCache == null )
+			return;
+		if ( pendingDemotions.incrementAndGet() > MAX_PENDING_DEMOTIONS )
+		{
+			pendingDemotions.decrementAndGet();
+			return;
+		}
+		final int generation = demotionGeneration;
+		demotionExecutor.execute( () -> {
+			try
+			{
+				if ( generation == demotionGeneration && !backingCache.isResident( key ) )
+					demote( key, cell );
+			}
+			finally
+			{
+				pendingDemotions.decrementAndGet();
+			}
+		} );
+	}
+
+	/**
+	 * Move the data of an evicted cell to the compressed tier, if that is
+	 * enabled and the data compresses well, or otherwise to the off-heap tier,
+	 * if that is enabled. Both tiers copy the data. Cells with shared uniform
+	 * data (see {@link ConstantCells}) are not copied. Only the descriptor of
+	 * their data is remembered in {@link #evictedConstantCells}.
+	 * <p>
+	 * The evicted cell stays softly referenced and may become resident again
+	 * when it is accessed. Then its copy is removed from the tiers (see
+	 * {@link #discardEvicted(Key)}), such that it does not count against their
+	 * budgets twice.
+	 * </p>
+	 */
+	private void demote( final Key key, final Cell< ? > cell )
+	{
+		final CompressedCellCache compressed = compressedCache;
+		final OffHeapCellCache offHeap = offHeapCache;
+		if ( compressed == null && offHeap == null )
+			return;
+		final ConstantCells.Key constant = ConstantCells.describe( cell.getData() );
+		if ( constant != null )
+		{
+			synchronized ( evictedConstantCells )
+			{
+				evictedConstantCells.put( key, constant );
+			}
+		}
+		else if ( compressed == null || !compressed.put( key, cell.getData() ) )
+		{
+			if ( offHeap != null )
+				offHeap.put( key, cell.getData() );
+		}
+		// The cell may have become resident again while it was copied.
+		if ( backingCache.isResident( key ) )
+			discardEvicted( key );
+	}
+
+	/**
+	 * Remove the copies of an evicted cell from the compressed and off-heap
+	 * tiers and from {@link #evictedConstantCells}, because the cell is
+	 * resident again. This is called while holding the lock of the
+	 * {@link #backingCache}. The tiers have their own locks and never call
+	 * back into the {@link #backingCache}.
+	 */
+	private void discardEvicted( final Key key )
+	{
+		synchronized ( evictedConstantCells )
+		{
+			evictedConstantCells.remove( key );
+		}
+		final CompressedCellCache compressed = compressedCache;
+		if ( compressed != null )
+			compressed.discard( key );
+		final OffHeapCellCache offHeap = offHeapCache;
+		if ( offHeap != null )
+			offHeap.discard( key );
+	}
+
+	/**
+	 * Replace the data of a loaded cell by the shared data of uniform cells
+	 * with the same value, if it is uniform.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private < A > A deduplicate( final A data )
+	{
+		if ( !deduplicateConstantCells )
+			return data;
+		return ( A ) ConstantCells.deduplicate( data );
+	}
+
+	/**
+	 * Try to restore the data of a previously evicted cell from the shared
+	 * data of uniform cells, the compressed tier, the off-heap tier, the data
+	 * of a restored {@link CacheSnapshot}, or the disk tier.
+	 *
+	 * @param type
+	 *            primitive type of the cell data.
+	 * @param numEntities
+	 *            number of entities of the cell data. Snapshot data that does
+	 *            not match {@code type} and {@code numEntities} is ignored.
+	 * @return the cell data or {@code null} if the cell is not available
+	 *         compressed, off-heap, or on disk.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private < A > A restoreEvicted( final Key key, final PrimitiveType type, final long numEntities )
+	{
+		final ConstantCells.Key constant;
+		synchronized ( evictedConstantCells )
+		{
+			constant = evictedConstantCells.isEmpty() ? null : evictedConstantCells.remove( key );
+		}
+		if ( constant != null )
+			return ( A ) ConstantCells.restore( constant );
+		final CompressedCellCache compressed = compressedCache;
+		if ( compressed != null )
+		{
+			final Object data = compressed.remove( key );
+			if ( data != null )
+			{
+				compressedRestores.increment();
+				return ( A ) data;
+			}
+		}
+		final OffHeapCellCache offHeap = offHeapCache;
+		if ( offHeap != null )
+		{
+			final Object data = offHeap.remove( key );
+			if ( data != null )
+			{
+				offHeapRestores.increment();
+				return ( A ) data;
+			}
+		}
+		final CacheSnapshot.Data snapshot = snapshotData;
+		if ( snapshot != null && type != PrimitiveType.UNDEFINED )
+		{
+			final Object data = snapshot.take( key, type, numEntities );
+			if ( data != null )
+			{
+				diskRestores.increment();
+				return ( A ) data;
+			}
+		}
+		final DiskCellCache disk = diskCache;
+		if ( disk != null )
+		{
+			final Object data = disk.get( key );
+			if ( data != null )
+			{
+				diskRestores.increment();
+				return ( A ) data;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called when a cell has been loaded by a {@link CacheArrayLoader}. Writes
+	 * the cell data to the disk tier, if that is enabled.
+	 */
+	private void cellLoaded( final Key key, final Object data )
+	{
+		final DiskCellCache disk = diskCache;
+		if ( disk != null )
+			disk.put( key, data );
+	}
+
+	/**
+	 * Register a load of the cells with the given keys as in progress, and
+	 * make its {@link LoadToken} the token of the current thread.
+	 *
+	 * @return the load, to be passed to {@link #endLoad(Key[], InFlightLoad, LoadToken)}.
+	 */
+	private InFlightLoad beginLoad( final Key[] keys )
+	{
+		final InFlightLoad load = new InFlightLoad( frame.get() );
+		for ( final Key key : keys )
+			inFlight.put( key, load );
+		return load;
+	}
+
+	/**
+	 * Unregister a load registered with {@link #beginLoad(Key[])} and restore
+	 * the {@code previous} token of the current thread.
+	 */
+	private void endLoad( final Key[] keys, final InFlightLoad load, final LoadToken previous )
+	{
+		LoadToken.exit( previous );
+		for ( final Key key : keys )
+			inFlight.remove( key, load );
+	}
+
+	/**
+	 * Note that a frame requested the cell with the given key, which is not
+	 * valid yet. This keeps a load of the cell that is in progress from being
+	 * cancelled.
+	 */
+	private void requested( final Key key )
+	{
+		final InFlightLoad load = inFlight.get( key );
+		if ( load != null )
+			load.lastRequestedFrame = frame.get();
+	}
+
+	/**
+	 * Set whether cell loads that are in progress are cancelled if their cells
+	 * were not requested by the last complete frame (see
+	 * {@link #frameComplete()}). Staleness is counted in rendered frames, not
+	 * in time, so loads are not cancelled while the viewer is idle.
+	 * Cancellation is checked when the next frame is prepared (see
+	 * {@link #prepareNextFrame()}). Cancelled cells are loaded again when they
+	 * are requested again. Loads are only aborted early if the
+	 * {@link CacheArrayLoader} supports it (see {@link LoadToken}).
+	 *
+	 * @param cancel
+	 *            whether to cancel stale loads. The default is {@code true}.
+	 */
+	public void setCancelStaleLoads( final boolean cancel )
+	{
+		cancelStaleLoads = cancel;
+	}
+
+	public boolean isCancelStaleLoads()
+	{
+		return cancelStaleLoads;
+	}
+
+	/**
+	 * Load listeners are notified when a request of the current frame has
+	 * been completed, at most once per
+	 * {@link #setLoadNotificationDelay(long) notification delay}. This
+	 * requires that the fetch queue is a {@link CellFetchQueues}.
+	 */
+	@Override
+	public void addLoadListener( final Runnable listener )
+	{
+		loadNotifier.addListener( listener );
+	}
+
+	@Override
+	public void removeLoadListener( final Runnable listener )
+	{
+		loadNotifier.removeListener( listener );
+	}
+
+	@Override
+	public boolean notifiesLoadListeners()
+	{
+		return queue instanceof CellFetchQueues;
+	}
+
+	/**
+	 * Set how long to collect completed requests before notifying load
+	 * listeners (see {@link #addLoadListener(Runnable)}). The default is 10
+	 * ms.
+	 *
+	 * @param ms
+	 *            notification delay in milliseconds.
+	 */
+	public void setLoadNotificationDelay( final long ms )
+	{
+		loadNotifier.setDelayMillis( ms );
+	}
+
+	public long getLoadNotificationDelay()
+	{
+		return loadNotifier.getDelayMillis();
+	}
+
+	/**
+	 * Cancel loads whose cells have not been requested since the last complete
+	 * frame started, or all loads if {@code all == true}.
+	 */
+	private void cancelLoads( final boolean all )
+	{
+		final long complete = lastCompleteFrame;
+		if ( inFlight.isEmpty() || ( !all && ( !cancelStaleLoads || complete < 0 ) ) )
+			return;
+		for ( final InFlightLoad load : inFlight.values() )
+			if ( all || load.lastRequestedFrame < complete )
+				load.token.cancel();
+	}
+
+	/**
+	 * Get the default memory budget for cell data, which is a quarter of the
+	 * maximum heap size.
+	 *
+	 * @return default number of bytes of cell data to keep in memory.
+	 */
+	public static long defaultMaxCacheBytes()
+	{
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/**
+	 * Set how many bytes of cell data to keep in memory. Cells beyond this
+	 * budget are evicted in least-recently-used order. Evicted cells remain
+	 * softly referenced until they are garbage-collected.
+	 * <p>
+	 * While the heap is short of memory, the {@link MemoryPressureMonitor}
+	 * temporarily keeps less than this in memory (see
+	 * {@link #getEffectiveMaxCacheBytes()}).
+	 * </p>
+	 *
+	 * @param maxCacheBytes
+	 *            how many bytes of cell data to keep in memory.
+	 */
+	public void setMaxCacheBytes( final long maxCacheBytes )
+	{
+		this.maxCacheBytes = maxCacheBytes;
+		updateMaxWeight();
+	}
+
+	/**
+	 * Get how many bytes of cell data are kept in memory at most, when the
+	 * heap is not short of memory.
+	 *
+	 * @return the memory budget for cell data in bytes.
+	 */
+	public long getMaxCacheBytes()
+	{
+		return maxCacheBytes;
+	}
+
+	/**
+	 * Get how many bytes of cell data are currently kept in memory at most.
+	 * This is less than {@link #getMaxCacheBytes()} while the
+	 * {@link MemoryPressureMonitor} has shrunk the budget.
+	 *
+	 * @return the current memory budget for cell data in bytes.
+	 */
+	public long getEffectiveMaxCacheBytes()
+	{
+		return backingCache.getMaxWeight();
+	}
+
+	/**
+	 * Scale the memory budget by {@code scale}. Called by the
+	 * {@link MemoryPressureMonitor}.
+	 */
+	void setMemoryPressureScale( final double scale )
+	{
+		memoryPressureScale = scale;
+		updateMaxWeight();
+	}
+
+	private synchronized void updateMaxWeight()
+	{
+		backingCache.setMaxWeight( ( long ) ( maxCacheBytes * memoryPressureScale ) );
+		if ( compressedCache != null )
+			compressedCache.setMaxBytes( ( long ) ( maxCompressedBytes * memoryPressureScale ) );
+	}
+
+	/**
+	 * Get how many bytes of cell data are currently kept in memory, not
+	 * counting pinned cells (see {@link #getPinnedBytes()}).
+	 *
+	 * @return the number of bytes of currently resident cell data.
+	 */
+	public long getCacheBytes()
+	{
+		return backingCache.getResidentWeight();
+	}
+
+	/**
+	 * Get how many bytes of cell data of pinned stacks are currently kept in
+	 * memory. These do not count against {@link #getMaxCacheBytes()}.
+	 *
+	 * @return the number of bytes of resident pinned cell data.
+	 */
+	public long getPinnedBytes()
+	{
+		return backingCache.getPinnedWeight();
+	}
+
+	/**
+	 * Pin the (timepoint, setup, level) stack. All cells of the stack are
+	 * loaded in the background, and kept in memory until the stack is
+	 * unpinned. Pinned cells are never evicted and do not count against the
+	 * memory budget (see {@link #setMaxCacheBytes(long)}).
+	 * <p>
+	 * This is meant for the coarsest mipmap levels, such that rendering can
+	 * always fall back to valid data. Cells are loaded for images of the stack
+	 * that exist when it is pinned, or are created later (see
+	 * {@link #createImg(CellGrid, int, int, int, CacheHints, CacheArrayLoader, NativeType)}).
+	 * </p>
+	 *
+	 * @param timepoint
+	 *            timepoint index of the stack
+	 * @param setup
+	 *            setup id of the stack
+	 * @param level
+	 *            mipmap level of the stack
+	 */
+	public void pin( final int timepoint, final int setup, final int level )
+	{
+		synchronized ( this )
+		{
+			if ( pinnedStacks.get( packKey0( timepoint, setup ), level ) != null )
+				return;
+			pinnedStacks.put( packKey0( timepoint, setup ), level, Boolean.TRUE );
+		}
+		backingCache.updatePinned();
+		final WeakReference< CellAccess< ? > > ref = images.get( new StackId( timepoint, setup, level ) );
+		final CellAccess< ? > access = ref == null ? null : ref.get();
+		if ( access != null )
+			access.requestAll();
+	}
+
+	/**
+	 * Unpin the (timepoint, setup, level) stack. Its resident cells count
+	 * against the memory budget again and may be evicted.
+	 *
+	 * @param timepoint
+	 *            timepoint index of the stack
+	 * @param setup
+	 *            setup id of the stack
+	 * @param level
+	 *            mipmap level of the stack
+	 */
+	public void unpin( final int timepoint, final int setup, final int level )
+	{
+		final boolean removed;
+		synchronized ( this )
+		{
+			removed = pinnedStacks.remove( packKey0( timepoint, setup ), level, Boolean.TRUE );
+		}
+		if ( removed )
+			backingCache.updatePinned();
+	}
+
+	/**
+	 * Unpin all stacks.
+	 */
+	public void unpinAll()
+	{
+		synchronized ( this )
+		{
+			pinnedStacks.clear();
+		}
+		backingCache.updatePinned();
+	}
+
+	/**
+	 * Check whether the (timepoint, setup, level) stack is pinned.
+	 *
+	 * @return {@code true} if the stack is pinned.
+	 */
+	public boolean isPinned( final int timepoint, final int setup, final int level )
+	{
+		return pinnedStacks.get( packKey0( timepoint, setup ), level ) != null;
+	}
+
+	/**
+	 * Set the cost function that chooses which cells to evict first when the
+	 * memory budget is exceeded, for example based on the distance of cells
+	 * from what is currently displayed. Without a cost function (the
+	 * default), cells are evicted in approximately least-recently-used order.
+	 *
+	 * @param cost
+	 *            the cost function, or {@code null}.
+	 * @see MemoryBoundedLoaderCache#setRetentionCost(MemoryBoundedLoaderCache.RetentionCost)
+	 */
+	public void setRetentionCost( final MemoryBoundedLoaderCache.RetentionCost< ? super Key > cost )
+	{
+		backingCache.setRetentionCost( cost );
+	}
+
+	/**
+	 * Get the cell grid of the (timepoint, setup, level) stack, if an image of
+	 * the stack exists (see
+	 * {@link #createImg(CellGrid, int, int, int, CacheHints, CacheArrayLoader, NativeType)}).
+	 *
+	 * @return the cell grid, or {@code null} if there is no image of the
+	 *         stack.
+	 */
+	public CellGrid getCellGrid( final int timepoint, final int setup, final int level )
+	{
+		final WeakReference< CellAccess< ? > > ref = images.get( new StackId( timepoint, setup, level ) );
+		final CellAccess< ? > access = ref == null ? null : ref.get();
+		return access == null ? null : access.grid;
+	}
+
+	/**
+	 * Get the keys of resident cells, most recently used first. Cells of
+	 * pinned stacks are not included.
+	 *
+	 * @return keys of resident cells.
+	 */
+	public List< Key > getResidentKeys()
+	{
+		return backingCache.getResidentKeys();
+	}
+
+	/**
+	 * Get the data of a resident cell, without marking it as recently used.
+	 *
+	 * @return the cell data, or {@code null} if the cell is not in memory.
+	 */
+	Object peekResidentData( final Key key )
+	{
+		final Cell< ? > cell = backingCache.peek( key );
+		return cell == null ? null : cell.getData();
+	}
+
+	/**
+	 * Use the cell data of a restored {@link CacheSnapshot} before asking the
+	 * {@link CacheArrayLoader}.
+	 *
+	 * @param data
+	 *            the snapshot data, or {@code null}.
+	 */
+	void setSnapshotData( final CacheSnapshot.Data data )
+	{
+		final CacheSnapshot.Data previous = snapshotData;
+		snapshotData = data;
+		if ( previous != null )
+			previous.close();
+	}
+
+	/**
+	 * Set the identity of the cached data set, for example the path and
+	 * modification time of the file or the URL from which it is loaded. A
+	 * {@link CacheSnapshot} is only restored into a cache with the same data
+	 * set identity.
+	 *
+	 * @param identity
+	 *            the identity, or {@code null} if it is unknown.
+	 */
+	public void setDataSetIdentity( final String identity )
+	{
+		dataSetIdentity = identity;
+	}
+
+	/**
+	 * Get the identity of the cached data set.
+	 *
+	 * @return the identity, or {@code null} if it is unknown.
+	 * @see #setDataSetIdentity(String)
+	 */
+	public String getDataSetIdentity()
+	{
+		return dataSetIdentity;
+	}
+
+	/**
+	 * Request the specified cells of the (timepoint, setup, level) stack with
+	 * the lowest priority, at the back of the queue. Cells that are already
+	 * resident are not requested. This only works if an image of the stack
+	 * exists (see
+	 * {@link #createImg(CellGrid, int, int, int, CacheHints, CacheArrayLoader, NativeType)}).
+	 *
+	 * @param timepoint
+	 *            timepoint id of the stack
+	 * @param setup
+	 *            setup id of the stack
+	 * @param level
+	 *            mipmap level of the stack
+	 * @param indices
+	 *            indices of the cells to request
+	 * @return {@code true} if the cells were requested, {@code false} if there
+	 *         is no image of the stack.
+	 */
+	public boolean requestCells( final int timepoint, final int setup, final int level, final long[] indices )
+	{
+		final WeakReference< CellAccess< ? > > ref = images.get( new StackId( timepoint, setup, level ) );
+		final CellAccess< ? > access = ref == null ? null : ref.get();
+		if ( access == null )
+			return false;
+		final int priority = queue instanceof CellFetchQueues
+				? ( ( CellFetchQueues ) queue ).getNumPriorities() - 1
+				: access.priority;
+		access.request( indices, priority );
+		return true;
+	}
+
+	/**
+	 * Request all cells of pinned stacks for which images exist.
+	 */
+	private void requestPinned()
+	{
+		for ( final Map.Entry< StackId, WeakReference< CellAccess< ? > > > entry : images.entrySet() )
+		{
+			final StackId id = entry.getKey();
+			if ( !isPinned( id.timepoint, id.setup, id.level ) )
+				continue;
+			final CellAccess< ? > access = entry.getValue().get();
+			if ( access != null )
+				access.requestAll();
+		}
+	}
+
+	/**
+	 * Enable, resize, or disable the off-heap tier. When enabled, cells that
+	 * are evicted from the in-memory cache (see
+	 * {@link #setMaxCacheBytes(long)}) are copied to direct memory, and copied
+	 * back when they are needed again, instead of being re-loaded by the
+	 * {@link CacheArrayLoader}.
+	 *
+	 * @param maxOffHeapBytes
+	 *            how many bytes of direct memory to use for evicted cells. If
+	 *            {@code maxOffHeapBytes <= 0}, the off-heap tier is disabled.
+	 *            The budget is capped below the direct memory limit of the
+	 *            JVM (see {@link OffHeapCellCache#setMaxBytes(long)}).
+	 */
+	public synchronized void setMaxOffHeapBytes( final long maxOffHeapBytes )
+	{
+		if ( maxOffHeapBytes <= 0 )
+		{
+			if ( offHeapCache != null )
+			{
+				offHeapCache.clear();
+				offHeapCache = null;
+			}
+		}
+		else if ( offHeapCache == null )
+			offHeapCache = new OffHeapCellCache( maxOffHeapBytes );
+		else
+			offHeapCache.setMaxBytes( maxOffHeapBytes );
+	}
+
+	/**
+	 * Enable, resize, or disable the compressed tier. When enabled, cells that
+	 * are evicted from the in-memory cache (see
+	 * {@link #setMaxCacheBytes(long)}) are compressed losslessly and kept on
+	 * the heap, and decompressed when they are needed again. Cells that do not
+	 * compress well go to the off-heap tier instead, if that is enabled (see
+	 * {@link #setMaxOffHeapBytes(long)}). Like the in-memory cache, the
+	 * compressed tier is shrunk by the {@link MemoryPressureMonitor} while the
+	 * heap is short of memory.
+	 *
+	 * @param maxCompressedBytes
+	 *            how many bytes of heap memory to use for compressed cells. If
+	 *            {@code maxCompressedBytes <= 0}, the compressed tier is
+	 *            disabled.
+	 * @see CompressedCellCache
+	 */
+	public synchronized void setMaxCompressedBytes( final long maxCompressedBytes )
+	{
+		this.maxCompressedBytes = Math.max( 0, maxCompressedBytes );
+		if ( maxCompressedBytes <= 0 )
+		{
+			if ( compressedCache != null )
+			{
+				compressedCache.clear();
+				compressedCache = null;
+			}
+		}
+		else
+		{
+			if ( compressedCache == null )
+				compressedCache = new CompressedCellCache( maxCompressedBytes );
+			updateMaxWeight();
+		}
+	}
+
+	/**
+	 * Set whether loaded cells whose elements all have the same value should
+	 * share one copy of their data, such that they take almost no memory in
+	 * the cache. This is enabled by default.
+	 *
+	 * @see ConstantCells
+	 */
+	public void setDeduplicateConstantCells( final boolean deduplicate )
+	{
+		deduplicateConstantCells = deduplicate;
+	}
+
+	public boolean isDeduplicateConstantCells()
+	{
+		return deduplicateConstantCells;
+	}
+
+	/**
+	 * Get how many bytes of heap memory are used for compressed cells at most,
+	 * when the heap is not short of memory.
+	 *
+	 * @return the memory budget of the compressed tier in bytes, or 0 if it is
+	 *         disabled.
+	 */
+	public synchronized long getMaxCompressedBytes()
+	{
+		return maxCompressedBytes;
+	}
+
+	/**
+	 * Get how many bytes of direct memory are used for evicted cells at most.
+	 *
+	 * @return the memory budget of the off-heap tier in bytes, or 0 if it is
+	 *         disabled.
+	 */
+	public long getMaxOffHeapBytes()
+	{
+		final OffHeapCellCache offHeap = offHeapCache;
+		return offHeap == null ? 0 : offHeap.getMaxBytes();
+	}
+
+	/**
+	 * Set the persistent disk tier. When set, cells that are loaded by the
+	 * {@link CacheArrayLoader} are written to disk, and cells that are not in
+	 * memory are read from disk before asking the {@link CacheArrayLoader}.
+	 * This is meant for image loaders that fetch cells over the network. The
+	 * disk cache must be used for only one data set, see
+	 * {@link DiskCellCache#forDataSet(String)}.
+	 *
+	 * @param diskCache
+	 *            the disk tier, or {@code null} to disable it.
+	 */
+	public void setDiskCache( final DiskCellCache diskCache )
+	{
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * Get the persistent disk tier.
+	 *
+	 * @return the disk tier, or {@code null} if it is disabled.
+	 */
+	public DiskCellCache getDiskCache()
+	{
+		return diskCache;
+	}
+
+	/**
+	 * Disable the persistent disk tier and {@link DiskCellCache#close() close}
+	 * it. This is meant to be called when the image loader that opened the
+	 * disk tier is closed.
+	 */
+	public void closeDiskCache()
+	{
+		final DiskCellCache disk = diskCache;
+		diskCache = null;
+		if ( disk != null )
+			disk.close();
+	}
+
+	/**
+	 * Provides the cells of one image: from {@link #residentCells} if
+	 * possible, otherwise from the volatile cache. If {@code batchLoader} is
+	 * not {@code null}, it is attached to requests that the volatile cache
+	 * enqueues for cells, such that they can be batched with requests for
+	 * nearby cells (see {@link CellFetchQueues}).
+	 */
+	private final class CellAccess< A > implements VolatileCachedCellImg.Get< Cell< A > >
+	{
+		private final UncheckedVolatileCache< Long, Cell< ? > > vcache;
+
+		private final CellBatchLoader< A > batchLoader;
+
+		private final long numCells;
+
+		private final int priority;
+
 		/**
-		 * Create a Key for the specified cell. Note that {@code cellDims} and
-		 * {@code cellMin} are not used for {@code hashcode()/equals()}.
-		 *
-		 * @param timepoint
-		 *            timepoint coordinate of the cell
-		 * @param setup
-		 *            setup coordinate of the cell
-		 * @param level
-		 *            level coordinate of the cell
-		 * @param index
-		 *            index of the cell (flattened spatial coordinate of the
-		 *            cell)
+		 * Whether cells are looked up in {@link #residentCells}.
 		 */
-		public Key( final int timepoint, final int setup, final int level, final long index )
+		private final boolean packable;
+
+		private final long key0;
+
+		private final long key1;
+
+		private final int timepoint;
+
+		private final int setup;
+
+		private final int level;
+
+		private final CellGrid grid;
+
+		CellAccess(
+				final UncheckedVolatileCache< Long, Cell< ? > > vcache,
+				final CellBatchLoader< A > batchLoader,
+				final CellGrid grid,
+				final int timepoint,
+				final int setup,
+				final int level,
+				final CacheHints cacheHints )
 		{
+			this.vcache = vcache;
+			this.batchLoader = batchLoader;
+			numCells = Intervals.numElements( grid.getGridDimensions() );
+			priority = cacheHints.getQueuePriority();
+			packable = isPackable( level, numCells - 1 );
+			key0 = packKey0( timepoint, setup );
+			key1 = packable ? packKey1( level, 0 ) : 0;
 			this.timepoint = timepoint;
 			this.setup = setup;
 			this.level = level;
-			this.index = index;
-
-			int value = Long.hashCode( index );
-			value = 31 * value + level;
-			value = 31 * value + setup;
-			value = 31 * value + timepoint;
-			hashcode = value;
+			this.grid = grid;
 		}
 
+		@SuppressWarnings( "unchecked" )
 		@Override
-		public boolean equals( final Object other )
+		public Cell< A > get( final long index, final CacheHints cacheHints )
 		{
-			if ( this == other )
-				return true;
-			if ( !( other instanceof VolatileGlobalCellCache.Key ) )
-				return false;
-			final Key that = ( Key ) other;
-			return ( this.index == that.index ) && ( this.timepoint == that.timepoint ) && ( this.setup == that.setup ) && ( this.level == that.level );
+			final Cell< A > cell = getResident( index );
+			if ( cell != null )
+			{
+				hits.increment();
+				return cell;
+			}
+			final Cell< ? > volatileCell = getVolatile( index, cacheHints );
+			if ( isValid( volatileCell ) )
+				hits.increment();
+			else
+			{
+				misses.increment();
+				if ( !inFlight.isEmpty() )
+					requested( new Key( timepoint, setup, level, index ) );
+			}
+			return ( Cell< A > ) volatileCell;
 		}
 
-		final int hashcode;
+		/**
+		 * Enqueue requests for all cells that are not resident, with the
+		 * priority of the image, at the back of the queue.
+		 */
+		void requestAll()
+		{
+			final CacheHints hints = new CacheHints( LoadingStrategy.VOLATILE, priority, false );
+			for ( long index = 0; index < numCells; ++index )
+				if ( getResident( index ) == null )
+					getVolatile( index, hints );
+		}
 
-		@Override
-		public int hashCode()
+		/**
+		 * Enqueue requests for the given cells that are not resident, with
+		 * the given priority, at the back of the queue.
+		 */
+		void request( final long[] indices, final int priority )
 		{
-			return hashcode;
+			final CacheHints hints = new CacheHints( LoadingStrategy.VOLATILE, priority, false );
+			for ( final long index : indices )
+				if ( index >= 0 && index < numCells && getResident( index ) == null )
+					getVolatile( index, hints );
 		}
-	}
 
-	private final BlockingFetchQueues< Callable< ? > > queue;
+		@SuppressWarnings( "unchecked" )
+		private Cell< A > getResident( final long index )
+		{
+			if ( !packable )
+				return null;
+			final Resident< Cell< ? > > resident = residentCells.get( key0, key1 | index );
+			if ( resident == null )
+				return null;
+			final Cell< ? > cell = resident.get();
+			if ( cell != null )
+				resident.touch();
+			return ( Cell< A > ) cell;
+		}
 
-	protected final LoaderCache< Key, Cell< ? > > backingCache;
+		private Cell< ? > getVolatile( final long index, final CacheHints cacheHints )
+		{
+			if ( batchLoader == null )
+				return vcache.get( index, cacheHints );
+			CellFetchQueues.setRequestContext( batchLoader, index );
+			try
+			{
+				return vcache.get( index, cacheHints );
+			}
+			finally
+			{
+				CellFetchQueues.clearRequestContext();
+			}
+		}
+	}
 
 	/**
-	 * Create a new global cache with a new fetch queue served by the specified
-	 * number of fetcher threads.
-	 *
-	 * @param maxNumLevels
-	 *            the highest occurring mipmap level plus 1.
-	 * @param numFetcherThreads
-	 *            how many threads should be created to load data.
+	 * Loads batches of cells of one image with
+	 * {@link CacheArrayLoader#loadArrays(List)}, and holds the data until the
+	 * individual cells are requested from the cache loader.
 	 */
-	public VolatileGlobalCellCache( final int maxNumLevels, final int numFetcherThreads )
+	private final class CellBatchLoader< A > implements CellFetchQueues.BatchLoader
 	{
-		queue = new BlockingFetchQueues<>( maxNumLevels );
-		new FetcherThreads( queue, numFetcherThreads );
-		backingCache = new SoftRefLoaderCache<>();
+		private final CellGrid grid;
+
+		private final long[] gridDimensions;
+
+		private final int timepoint;
+
+		private final int setup;
+
+		private final int level;
+
+		private final CacheArrayLoader< A > cacheArrayLoader;
+
+		private final ConcurrentHashMap< Long, A > preloaded = new ConcurrentHashMap<>();
+
+		CellBatchLoader( final CellGrid grid, final int timepoint, final int setup, final int level, final CacheArrayLoader< A > cacheArrayLoader )
+		{
+			this.grid = grid;
+			this.gridDimensions = grid.getGridDimensions();
+			this.timepoint = timepoint;
+			this.setup = setup;
+			this.level = level;
+			this.cacheArrayLoader = cacheArrayLoader;
+		}
+
+		@Override
+		public int getMaxBatchSize()
+		{
+			return cacheArrayLoader.getMaxBatchSize();
+		}
+
+		@Override
+		public long[] getGridDimensions()
+		{
+			return gridDimensions;
+		}
+
+		@Override
+		public void preload( final long[] indices ) throws InterruptedException
+		{
+			final boolean packable = isPackable( level, Intervals.numElements( gridDimensions ) - 1 );
+			final long key0 = packKey0( timepoint, setup );
+			final int n = grid.numDimensions();
+			final ArrayList< CellRequest > requests = new ArrayList<>( indices.length );
+			final ArrayList< Long > requested = new ArrayList<>( indices.length );
+			for ( final long index : indices )
+			{
+				if ( packable )
+				{
+					final Resident< Cell< ? > > resident = residentCells.get( key0, packKey1( level, index ) );
+					if ( resident != null && resident.get() != null )
+						continue;
+				}
+				if ( preloaded.containsKey( index ) )
+					continue;
+				final long[] cellMin = new long[ n ];
+				final int[] cellDims = new int[ n ];
+				grid.getCellDimensions( index, cellMin, cellDims );
+				requests.add( new CellRequest( timepoint, setup, level, cellDims, cellMin ) );
+				requested.add( index );
+			}
+			if ( requests.isEmpty() )
+				return;
+
+			final Key[] keys = new Key[ requested.size() ];
+			for ( int i = 0; i < keys.length; ++i )
+				keys[ i ] = new Key( timepoint, setup, level, requested.get( i ) );
+			final InFlightLoad load = beginLoad( keys );
+			final LoadToken previous = LoadToken.enter( load.token );
+			final long t0 = System.nanoTime();
+			final List< A > arrays;
+			try
+			{
+				arrays = cacheArrayLoader.loadArrays( requests );
+			}
+			finally
+			{
+				endLoad( keys, load, previous );
+			}
+			final long perCell = ( System.nanoTime() - t0 ) / requests.size();
+			for ( int i = 0; i < requests.size(); ++i )
+			{
+				preloaded.put( requested.get( i ), arrays.get( i ) );
+				loadLatency.record( perCell );
+				loads.increment();
+			}
+		}
+
+		@Override
+		public void discard( final long[] indices )
+		{
+			for ( final long index : indices )
+				preloaded.remove( index );
+		}
+
+		/**
+		 * Remove and return preloaded data for the given cell, or {@code null}
+		 * if there is none.
+		 */
+		A takePreloaded( final long index )
+		{
+			return preloaded.remove( index );
+		}
 	}
 
 	/**
-	 * Create a new global cache with the specified fetch queue. (It is the
-	 * callers responsibility to create fetcher threads that serve the queue.)
-	 *
-	 * @param queue
-	 *            queue to which asynchronous data loading jobs are submitted
+	 * Check whether the data of a cell is valid.
 	 */
-	public VolatileGlobalCellCache( final BlockingFetchQueues< Callable< ? > > queue )
+	private static boolean isValid( final Cell< ? > cell )
 	{
-		this.queue = queue;
-		backingCache = new SoftRefLoaderCache<>();
+		final Object data = cell.getData();
+		return !( data instanceof VolatileAccess ) || ( ( VolatileAccess ) data ).isValid();
+	}
+
+	@Override
+	public CacheStatistics getStatistics()
+	{
+		final TreeMap< Integer, long[] > perSetup = new TreeMap<>();
+		for ( final Map.Entry< Long, AtomicLong > entry : residentBytes.entrySet() )
+		{
+			final long bytes = entry.getValue().get();
+			if ( bytes == 0 )
+				continue;
+			final int setup = ( int ) ( entry.getKey() >> 32 );
+			final int level = ( int ) ( long ) entry.getKey();
+			long[] levels = perSetup.get( setup );
+			if ( levels == null || levels.length <= level )
+			{
+				levels = levels == null ? new long[ level + 1 ] : Arrays.copyOf( levels, level + 1 );
+				perSetup.put( setup, levels );
+			}
+			levels[ level ] = bytes;
+		}
+		final CompressedCellCache compressed = compressedCache;
+		return new CacheStatistics(
+				hits.sum(),
+				misses.sum(),
+				loads.sum(),
+				offHeapRestores.sum(),
+				compressedRestores.sum(),
+				diskRestores.sum(),
+				backingCache.getEvictionCount(),
+				backingCache.getResidentWeight() + backingCache.getPinnedWeight(),
+				backingCache.getMaxWeight(),
+				compressed == null ? 0 : compressed.getCompressedBytes(),
+				compressed == null ? 0 : compressed.getUncompressedBytes(),
+				compressed == null ? 0 : compressed.getDecodeNanos(),
+				perSetup,
+				queue instanceof CellFetchQueues ? ( ( CellFetchQueues ) queue ).getDepths() : new long[ 0 ],
+				loadLatency.getCounts() );
 	}
 
 	/**
 	 * Prepare the cache for providing data for the "next frame",
 	 * by moving pending cell request to the prefetch queue
-	 * ({@link BlockingFetchQueues#clearToPrefetch()}).
+	 * ({@link BlockingFetchQueues#clearToPrefetch()}). Loads in progress whose
+	 * cells were not requested by the last complete frame are cancelled (see
+	 * {@link #setCancelStaleLoads(boolean)}).
 	 */
 	@Override
 	public void prepareNextFrame()
 	{
 		queue.clearToPrefetch();
+		closeFinishedSnapshot();
+		cancelLoads( false );
+		frame.incrementAndGet();
+	}
+
+	/**
+	 * Record that the current frame has been rendered completely, so all cells
+	 * needed for it have been requested. When the next frame is prepared, loads
+	 * of cells that were not requested since the start of this frame are
+	 * cancelled.
+	 */
+	@Override
+	public void frameComplete()
+	{
+		lastCompleteFrame = frame.get();
+	}
+
+	/**
+	 * Close the data of a restored {@link CacheSnapshot} once no requests are
+	 * pending: then all requested snapshot cells have either been restored or
+	 * dropped from the prefetch queue, and the restore has ended.
+	 */
+	private void closeFinishedSnapshot()
+	{
+		if ( snapshotData != null
+				&& queue instanceof CellFetchQueues
+				&& ( ( CellFetchQueues ) queue ).getPrefetchSize() == 0 )
+			setSnapshotData( null );
 	}
 
 	/**
 	 * Remove all references to loaded data as well as all enqueued requests
-	 * from the cache.
+	 * from the cache. Cells of pinned stacks are requested again.
 	 */
 	public void clearCache()
 	{
 		backingCache.invalidateAll();
 		queue.clear();
+		cancelLoads( true );
 		backingCache.invalidateAll();
+		++demotionGeneration;
+		final CompressedCellCache compressed = compressedCache;
+		if ( compressed != null )
+			compressed.clear();
+		final OffHeapCellCache offHeap = offHeapCache;
+		if ( offHeap != null )
+			offHeap.clear();
+		synchronized ( evictedConstantCells )
+		{
+			evictedConstantCells.clear();
+		}
+		setSnapshotData( null );
+		requestPinned();
 	}
 
 	/**
@@ -202,6 +1690,11 @@ public class VolatileGlobalCellCache implements CacheControl
 			final CacheArrayLoader< A > cacheArrayLoader,
 			final T type )
 	{
+		final int bytesPerElement = cacheArrayLoader.getBytesPerElement();
+		final PrimitiveType primitiveType = PrimitiveType.forNativeType( type );
+		final CellBatchLoader< A > batchLoader = ( queue instanceof CellFetchQueues && cacheArrayLoader.getMaxBatchSize() > 1 )
+				? new CellBatchLoader<>( grid, timepoint, setup, level, cacheArrayLoader )
+				: null;
 		final CacheLoader< Long, Cell< ? > > loader = new CacheLoader< Long, Cell< ? > >()
 		{
 			@Override
@@ -211,15 +1704,38 @@ public class VolatileGlobalCellCache implements CacheControl
 				final long[] cellMin = new long[ n ];
 				final int[] cellDims = new int[ n ];
 				grid.getCellDimensions( key, cellMin, cellDims );
-				return new Cell<>(
-						cellDims,
-						cellMin,
-						cacheArrayLoader.loadArray( timepoint, setup, level, cellDims, cellMin ) );
+				final Key cellKey = new Key( timepoint, setup, level, key, bytesPerElement );
+				A data = restoreEvicted( cellKey, primitiveType, type.getEntitiesPerPixel().mulCeil( Intervals.numElements( cellDims ) ) );
+				if ( data == null && batchLoader != null )
+				{
+					data = batchLoader.takePreloaded( key );
+					if ( data != null )
+						cellLoaded( cellKey, data );
+				}
+				if ( data == null )
+				{
+					final Key[] keys = { cellKey };
+					final InFlightLoad load = beginLoad( keys );
+					final LoadToken previous = LoadToken.enter( load.token );
+					final long t0 = System.nanoTime();
+					try
+					{
+						data = cacheArrayLoader.loadArray( timepoint, setup, level, cellDims, cellMin );
+					}
+					finally
+					{
+						endLoad( keys, load, previous );
+					}
+					loadLatency.record( System.nanoTime() - t0 );
+					loads.increment();
+					cellLoaded( cellKey, data );
+				}
+				return new Cell<>( cellDims, cellMin, deduplicate( data ) );
 			}
 		};
 
 		final KeyBimap< Long, Key > bimap = KeyBimap.< Long, Key >build(
-				index -> new Key( timepoint, setup, level, index ),
+				index -> new Key( timepoint, setup, level, index, bytesPerElement ),
 				key -> key.index );
 
 		final Cache< Long, Cell< ? > > cache = backingCache
@@ -235,9 +1751,14 @@ public class VolatileGlobalCellCache implements CacheControl
 				cache, queue, createInvalid )
 						.unchecked();
 
-		@SuppressWarnings( "unchecked" )
-		final VolatileCachedCellImg< T, A > img = new VolatileCachedCellImg<>( grid, type, cacheHints,
-				( i, h ) -> ( Cell< A > ) vcache.get( i, h ) );
+		final CellAccess< A > access = new CellAccess<>( vcache, batchLoader, grid, timepoint, setup, level, cacheHints );
+		final StackId id = new StackId( timepoint, setup, level );
+		images.values().removeIf( ref -> ref.get() == null );
+		images.put( id, new WeakReference<>( access ) );
+		if ( isPinned( timepoint, setup, level ) )
+			access.requestAll();
+
+		final VolatileCachedCellImg< T, A > img = new VolatileCachedCellImg<>( grid, type, cacheHints, access );
 
 		return img;
 	}
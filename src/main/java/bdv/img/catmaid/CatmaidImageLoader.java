@@ -29,9 +29,14 @@
  */
 package bdv.img.catmaid;
 
+import java.util.Arrays;
+
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
+import bdv.img.cache.CacheManager;
+import bdv.img.cache.CellFetchQueues;
+import bdv.img.cache.DiskCellCache;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
@@ -119,7 +124,12 @@ public class CatmaidImageLoader extends AbstractViewerSetupImgLoader< ARGBType,
 		}
 
 		loader = new CatmaidVolatileIntArrayLoader( urlFormat, tileWidth, tileHeight, zScales );
-		cache = new VolatileGlobalCellCache( numScales, 10 );
+		final CellFetchQueues queue = new CellFetchQueues( numScales );
+		cache = new VolatileGlobalCellCache( queue );
+		CacheManager.getInstance().register( cache, queue, 2, 32 );
+		cache.setDataSetIdentity(
+				"catmaid:" + urlFormat + ":" + width + "x" + height + "x" + depth + ":" + zScale + ":" + Arrays.deepToString( this.blockDimensions ) );
+		cache.setDiskCache( DiskCellCache.forDataSet( cache.getDataSetIdentity() ) );
 	}
 
 	public CatmaidImageLoader(
@@ -222,6 +232,17 @@ public class CatmaidImageLoader extends AbstractViewerSetupImgLoader< ARGBType,
 		return cache.createImg( grid, timepointId, setupId, level, cacheHints, loader, type );
 	}
 
+	/**
+	 * Clear the cache and close the disk cache. Images that were obtained from
+	 * this loader will stop working.
+	 */
+	public void close()
+	{
+		cache.clearCache();
+		CacheManager.getInstance().unregister( cache );
+		cache.closeDiskCache();
+	}
+
 	@Override
 	public VolatileGlobalCellCache getCacheControl()
 	{
@@ -38,6 +38,7 @@ import java.net.URL;
 import javax.imageio.ImageIO;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.LoadToken;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
 
 public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< VolatileIntArray >
@@ -121,6 +122,7 @@ public class CatmaidVolatileIntArrayLoader implements CacheArrayLoader< Volatile
 					y < ym;
 					++r, y += tileHeight )
 			{
+				LoadToken.current().checkCancelled();
 				try
 				{
 					final String urlString = String.format( urlFormat, level, scale, x, y, z, tileWidth, tileHeight, r, c );
@@ -43,6 +43,8 @@ import java.util.concurrent.Executors;
 
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
+import bdv.img.cache.CacheManager;
+import bdv.img.cache.CellFetchQueues;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.util.ConstantRandomAccessible;
 import bdv.util.MipmapTransforms;
@@ -66,7 +68,6 @@ import net.imglib2.FinalInterval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.queue.BlockingFetchQueues;
 import net.imglib2.cache.queue.FetcherThreads;
 import net.imglib2.cache.volatiles.CacheHints;
 import net.imglib2.cache.volatiles.LoadingStrategy;
@@ -212,9 +213,12 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 				shortLoader = new Hdf5VolatileShortArrayLoader( hdf5Access );
 
 
-				final BlockingFetchQueues< Callable< ? > > queue = new BlockingFetchQueues<>( maxNumLevels );
-				fetchers = new FetcherThreads( queue, 1 );
+				final CellFetchQueues queue = new CellFetchQueues( maxNumLevels );
 				cache = new VolatileGlobalCellCache( queue );
+				// IHDF5Access serializes all reads, so concurrent loads would
+				// only wait for each other
+				fetchers = CacheManager.getInstance().register( cache, queue, 1 ).asFetcherThreads();
+				cache.setDataSetIdentity( "hdf5:" + hdf5File.getAbsolutePath() + "@" + hdf5File.lastModified() );
 			}
 		}
 	}
@@ -236,6 +240,7 @@ public class Hdf5ImageLoader implements ViewerImgLoader, MultiResolutionImgLoade
 				isOpen = false;
 
 				cache.clearCache();
+				CacheManager.getInstance().unregister( cache );
 				hdf5Access.closeAllDataSets();
 
 				// only close reader if we constructed it ourselves
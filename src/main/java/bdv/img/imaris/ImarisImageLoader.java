@@ -37,6 +37,8 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.CacheManager;
+import bdv.img.cache.CellFetchQueues;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.hdf5.MipmapInfo;
 import bdv.img.hdf5.ViewLevelId;
@@ -122,7 +124,12 @@ public class ImarisImageLoader< T extends NativeType< T >, V extends Volatile< T
 					throw new RuntimeException( e );
 				}
 				loader = dataType.createArrayLoader( hdf5Access );
-				cache = new VolatileGlobalCellCache( maxNumLevels, 1 );
+				final CellFetchQueues queue = new CellFetchQueues( maxNumLevels );
+				cache = new VolatileGlobalCellCache( queue );
+				// IHDF5Access serializes all reads, so concurrent loads would
+				// only wait for each other
+				CacheManager.getInstance().register( cache, queue, 1 );
+				cache.setDataSetIdentity( "imaris:" + hdf5File.getAbsolutePath() + "@" + hdf5File.lastModified() );
 
 				for ( final BasicViewSetup setup : setups )
 				{
@@ -41,6 +41,9 @@ import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
 import bdv.cache.CacheControl;
+import bdv.img.cache.CacheManager;
+import bdv.img.cache.CellFetchQueues;
+import bdv.img.cache.DiskCellCache;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
@@ -85,7 +88,14 @@ public class OpenConnectomeImageLoader extends AbstractViewerSetupImgLoader< Uns
 		blockDimensions = info.getLevelCellDimensions();
 		mipmapTransforms = info.getLevelTransforms( mode );
 
-		cache = new VolatileGlobalCellCache( numScales, 10 );
+		final CellFetchQueues queue = new CellFetchQueues( numScales );
+		cache = new VolatileGlobalCellCache( queue );
+		CacheManager.getInstance().register( cache, queue, 2, 32 );
+		// the token info fingerprint invalidates the disk cache if the server
+		// publishes different data or cell grids for the token
+		cache.setDataSetIdentity( "openconnectome:" + baseUrl + "/" + token + "/" + mode
+				+ "@" + DiskCellCache.fingerprint( new Gson().toJson( info ) ) );
+		cache.setDiskCache( DiskCellCache.forDataSet( cache.getDataSetIdentity() ) );
 		System.out.println( info.getOffsets( mode )[ 0 ][ 2 ] + " " + imageDimensions[ 0 ][ 2 ] );
 
 		loader = new OpenConnectomeVolatileArrayLoader(
@@ -255,6 +265,17 @@ public class OpenConnectomeImageLoader extends AbstractViewerSetupImgLoader< Uns
 		return cache.createImg( grid, timepointId, setupId, level, cacheHints, loader, type );
 	}
 
+	/**
+	 * Clear the cache and close the disk cache. Images that were obtained from
+	 * this loader will stop working.
+	 */
+	public void close()
+	{
+		cache.clearCache();
+		CacheManager.getInstance().unregister( cache );
+		cache.closeDiskCache();
+	}
+
 	@Override
 	public CacheControl getCacheControl()
 	{
@@ -37,6 +37,7 @@ import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.LoadToken;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 
 public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< VolatileByteArray >
@@ -88,24 +89,6 @@ public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< Vola
 			final int level,
 			final int[] dimensions,
 			final long[] min ) throws InterruptedException
-	{
-		try
-		{
-			return tryLoadArray( timepoint, setup, level, dimensions, min );
-		}
-		catch ( final OutOfMemoryError e )
-		{
-			System.gc();
-			return tryLoadArray( timepoint, setup, level, dimensions, min );
-		}
-	}
-
-	public VolatileByteArray tryLoadArray(
-			final int timepoint,
-			final int setup,
-			final int level,
-			final int[] dimensions,
-			final long[] min ) throws InterruptedException
 	{
 		final byte[] data = new byte[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 
@@ -131,7 +114,10 @@ public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< Vola
 		try
 		{
 			final URL file = new URL( url.toString() );
+			final LoadToken token = LoadToken.current();
+			token.checkCancelled();
 			final InputStream in = file.openStream();
+			token.onCancel( () -> closeQuietly( in ) );
 			final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
 			final byte[] chunk = new byte[ 4096 ];
 			int l;
@@ -147,6 +133,8 @@ public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< Vola
 		}
 		catch ( final IOException e )
 		{
+			// reading fails if the stream was closed because the load was cancelled
+			LoadToken.current().checkCancelled();
 			System.out.println( "failed loading x=" + min[ 0 ] + " y=" + min[ 1 ] + " z=" + min[ 2 ] + " url(" + url.toString() + ")" );
 		}
 		catch( final DataFormatException e )
@@ -156,4 +144,14 @@ public class OpenConnectomeVolatileArrayLoader implements CacheArrayLoader< Vola
 
 		return new VolatileByteArray( data, true );
 	}
+
+	private static void closeQuietly( final InputStream in )
+	{
+		try
+		{
+			in.close();
+		}
+		catch ( final IOException e )
+		{}
+	}
 }
@@ -31,13 +31,18 @@ package bdv.img.remote;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
 import com.google.gson.GsonBuilder;
 
 import bdv.AbstractViewerSetupImgLoader;
 import bdv.ViewerImgLoader;
+import bdv.img.cache.CacheManager;
+import bdv.img.cache.CellFetchQueues;
+import bdv.img.cache.DiskCellCache;
 import bdv.img.cache.VolatileCachedCellImg;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.hdf5.DimsAndExistence;
@@ -107,13 +112,18 @@ public class RemoteImageLoader implements ViewerImgLoader
 				isOpen = true;
 
 				final URL url = new URL( baseUrl + "?p=init" );
+				final String json = readString( url );
 				final GsonBuilder gsonBuilder = new GsonBuilder();
 				gsonBuilder.registerTypeAdapter( AffineTransform3D.class, new AffineTransform3DJsonSerializer() );
-				metadata = gsonBuilder.create().fromJson(
-						new InputStreamReader( url.openStream() ),
-						RemoteImageLoaderMetaData.class );
+				metadata = gsonBuilder.create().fromJson( json, RemoteImageLoaderMetaData.class );
 				shortLoader = new RemoteVolatileShortArrayLoader( this );
-				cache = new VolatileGlobalCellCache( metadata.maxNumLevels, 10 );
+				final CellFetchQueues queue = new CellFetchQueues( metadata.maxNumLevels );
+				cache = new VolatileGlobalCellCache( queue );
+				CacheManager.getInstance().register( cache, queue, 2, 32 );
+				// the metadata fingerprint invalidates the disk cache if the
+				// server publishes different data or cell grids at baseUrl
+				cache.setDataSetIdentity( "remote:" + baseUrl + "@" + DiskCellCache.fingerprint( json ) );
+				cache.setDiskCache( DiskCellCache.forDataSet( cache.getDataSetIdentity() ) );
 				cellsDimensions = metadata.createCellsDimensions();
 				for ( final int setupId : metadata.perSetupMipmapInfo.keySet() )
 					setupImgLoaders.put( setupId, new SetupImgLoader( setupId ) );
@@ -121,6 +131,42 @@ public class RemoteImageLoader implements ViewerImgLoader
 		}
 	}
 
+	private static String readString( final URL url ) throws IOException
+	{
+		try ( final Reader reader = new InputStreamReader( url.openStream(), StandardCharsets.UTF_8 ) )
+		{
+			final StringBuilder sb = new StringBuilder();
+			final char[] buf = new char[ 8192 ];
+			int n;
+			while ( ( n = reader.read( buf ) ) >= 0 )
+				sb.append( buf, 0, n );
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Clear the cache and close the disk cache. Images that were obtained from
+	 * this loader before {@link #close()} will stop working. Requesting images
+	 * after {@link #close()} will cause the loader to be opened again (with a
+	 * new cache).
+	 */
+	public void close()
+	{
+		if ( isOpen )
+		{
+			synchronized ( this )
+			{
+				if ( !isOpen )
+					return;
+				isOpen = false;
+
+				cache.clearCache();
+				CacheManager.getInstance().unregister( cache );
+				cache.closeDiskCache();
+			}
+		}
+	}
+
 	private void tryopen()
 	{
 		try
@@ -35,6 +35,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 
 import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.LoadToken;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 
 public class RemoteVolatileShortArrayLoader implements CacheArrayLoader< VolatileShortArray >
@@ -65,7 +66,10 @@ public class RemoteVolatileShortArrayLoader implements CacheArrayLoader< Volatil
 					min[ 0 ],
 					min[ 1 ],
 					min[ 2 ] ) );
+			final LoadToken token = LoadToken.current();
+			token.checkCancelled();
 			final InputStream s = url.openStream();
+			token.onCancel( () -> closeQuietly( s ) );
 			final byte[] buf = new byte[ data.length * 2 ];
 			for ( int i = 0, l = s.read( buf, 0, buf.length ); l > 0; i += l, l = s.read( buf, i, buf.length - i ) );
 			for ( int i = 0, j = 0; i < data.length; ++i, j += 2 )
@@ -78,11 +82,23 @@ public class RemoteVolatileShortArrayLoader implements CacheArrayLoader< Volatil
 		}
 		catch ( final IOException e )
 		{
+			// reading fails if the stream was closed because the load was cancelled
+			LoadToken.current().checkCancelled();
 			e.printStackTrace();
 		}
 		return new VolatileShortArray( data, true );
 	}
 
+	private static void closeQuietly( final InputStream s )
+	{
+		try
+		{
+			s.close();
+		}
+		catch ( final IOException e )
+		{}
+	}
+
 	@Override
 	public int getBytesPerElement() {
 		return 2;
@@ -0,0 +1,155 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.viewer.TimePointListener;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+
+/**
+ * Pins the coarsest mipmap levels of every setup for the timepoints around the
+ * current timepoint in a {@link VolatileGlobalCellCache} (see
+ * {@link VolatileGlobalCellCache#pin(int, int, int)}), such that rendering can
+ * always fall back to valid data. When the current timepoint changes, stacks
+ * that are no longer in the window are unpinned.
+ */
+public class CoarseLevelPinning implements TimePointListener
+{
+	private final VolatileGlobalCellCache cache;
+
+	private final ViewerImgLoader imgLoader;
+
+	private final List< TimePoint > timepoints;
+
+	private final List< ? extends BasicViewSetup > setups;
+
+	private final Set< ViewId > missingViews;
+
+	private final int numLevels;
+
+	private final int timepointRadius;
+
+	/**
+	 * Currently pinned stacks, as (timepoint id, setup id, level) triples.
+	 */
+	private List< int[] > pinned = new ArrayList<>();
+
+	/**
+	 * @param spimData
+	 *            the data set. Its image loader must be a
+	 *            {@link ViewerImgLoader}.
+	 * @param cache
+	 *            the cache of the image loader.
+	 * @param numLevels
+	 *            how many of the coarsest mipmap levels of every setup to pin.
+	 * @param timepointRadius
+	 *            how many timepoints before and after the current timepoint to
+	 *            pin.
+	 */
+	public CoarseLevelPinning(
+			final AbstractSpimData< ? > spimData,
+			final VolatileGlobalCellCache cache,
+			final int numLevels,
+			final int timepointRadius )
+	{
+		final AbstractSequenceDescription< ?, ?, ? > seq = spimData.getSequenceDescription();
+		this.cache = cache;
+		this.imgLoader = ( ViewerImgLoader ) seq.getImgLoader();
+		this.timepoints = seq.getTimePoints().getTimePointsOrdered();
+		this.setups = seq.getViewSetupsOrdered();
+		this.missingViews = seq.getMissingViews() == null ? null : seq.getMissingViews().getMissingViews();
+		this.numLevels = numLevels;
+		this.timepointRadius = timepointRadius;
+	}
+
+	@Override
+	public synchronized void timePointChanged( final int timePointIndex )
+	{
+		final List< int[] > stacks = new ArrayList<>();
+		final int tmin = Math.max( 0, timePointIndex - timepointRadius );
+		final int tmax = Math.min( timepoints.size() - 1, timePointIndex + timepointRadius );
+		for ( int t = tmin; t <= tmax; ++t )
+		{
+			final int timepointId = timepoints.get( t ).getId();
+			for ( final BasicViewSetup setup : setups )
+			{
+				final int setupId = setup.getId();
+				if ( missingViews != null && missingViews.contains( new ViewId( timepointId, setupId ) ) )
+					continue;
+				final int numMipmapLevels = imgLoader.getSetupImgLoader( setupId ).getMipmapResolutions().length;
+				for ( int level = Math.max( 0, numMipmapLevels - numLevels ); level < numMipmapLevels; ++level )
+					stacks.add( new int[] { timepointId, setupId, level } );
+			}
+		}
+
+		for ( final int[] stack : pinned )
+			if ( !contains( stacks, stack ) )
+				cache.unpin( stack[ 0 ], stack[ 1 ], stack[ 2 ] );
+
+		for ( final int[] stack : stacks )
+		{
+			if ( cache.isPinned( stack[ 0 ], stack[ 1 ], stack[ 2 ] ) )
+				continue;
+			cache.pin( stack[ 0 ], stack[ 1 ], stack[ 2 ] );
+			// creating the image requests all cells of the pinned stack
+			final ViewerSetupImgLoader< ?, ? > setupImgLoader = imgLoader.getSetupImgLoader( stack[ 1 ] );
+			setupImgLoader.getVolatileImage( stack[ 0 ], stack[ 2 ] );
+		}
+		pinned = stacks;
+	}
+
+	/**
+	 * Unpin all stacks pinned by this {@link CoarseLevelPinning}.
+	 */
+	public synchronized void unpinAll()
+	{
+		for ( final int[] stack : pinned )
+			cache.unpin( stack[ 0 ], stack[ 1 ], stack[ 2 ] );
+		pinned = new ArrayList<>();
+	}
+
+	private static boolean contains( final List< int[] > stacks, final int[] stack )
+	{
+		for ( final int[] s : stacks )
+			if ( s[ 0 ] == stack[ 0 ] && s[ 1 ] == stack[ 1 ] && s[ 2 ] == stack[ 2 ] )
+				return true;
+		return false;
+	}
+}
@@ -67,6 +67,53 @@ public class Prefs
 		return getInstance().scaleBarBgColor;
 	}
 
+	/**
+	 * Get the base directory for persistent disk caches of cells loaded over
+	 * the network (see {@link bdv.img.cache.DiskCellCache}).
+	 *
+	 * @return the directory, or an empty string if disk caching is disabled.
+	 */
+	public static String diskCacheDir()
+	{
+		return getInstance().diskCacheDir;
+	}
+
+	/**
+	 * Get how many bytes of disk space to use at most for the disk caches of
+	 * all data sets together.
+	 */
+	public static long diskCacheMaxBytes()
+	{
+		return getInstance().diskCacheSizeMB << 20;
+	}
+
+	/**
+	 * Whether to save the data of resident cells together with the cache
+	 * snapshot in the settings file (see {@link bdv.img.cache.CacheSnapshot}).
+	 */
+	public static boolean cacheSnapshotData()
+	{
+		return getInstance().cacheSnapshotData;
+	}
+
+	/**
+	 * Whether to save a cache snapshot to the settings file when the viewer
+	 * window is closed.
+	 */
+	public static boolean cacheSnapshotOnExit()
+	{
+		return getInstance().cacheSnapshotOnExit;
+	}
+
+	/**
+	 * Whether to shrink the memory budgets of the cell caches while the heap is
+	 * short of memory (see {@link bdv.img.cache.MemoryPressureMonitor}).
+	 */
+	public static boolean memoryPressureMonitor()
+	{
+		return getInstance().memoryPressureMonitor;
+	}
+
 	public static void showScaleBar( final boolean show )
 	{
 		getInstance().showScaleBar = show;
@@ -97,6 +144,31 @@ public class Prefs
 		getInstance().scaleBarBgColor = color;
 	}
 
+	public static void diskCacheDir( final String dir )
+	{
+		getInstance().diskCacheDir = dir;
+	}
+
+	public static void diskCacheSizeMB( final long sizeMB )
+	{
+		getInstance().diskCacheSizeMB = sizeMB;
+	}
+
+	public static void cacheSnapshotData( final boolean save )
+	{
+		getInstance().cacheSnapshotData = save;
+	}
+
+	public static void cacheSnapshotOnExit( final boolean save )
+	{
+		getInstance().cacheSnapshotOnExit = save;
+	}
+
+	public static void memoryPressureMonitor( final boolean enabled )
+	{
+		getInstance().memoryPressureMonitor = enabled;
+	}
+
 	private static Prefs instance;
 
 	public static Prefs getInstance()
@@ -114,6 +186,11 @@ public class Prefs
 	private static final String SHOW_SCALE_BAR_IN_MOVIE = "show-scale-bar-in-movie";
 	private static final String SCALE_BAR_COLOR = "scale-bar-color";
 	private static final String SCALE_BAR_BG_COLOR = "scale-bar-bg-color";
+	private static final String DISK_CACHE_DIR = "disk-cache-dir";
+	private static final String DISK_CACHE_SIZE_MB = "disk-cache-size-mb";
+	private static final String CACHE_SNAPSHOT_DATA = "cache-snapshot-data";
+	private static final String CACHE_SNAPSHOT_ON_EXIT = "cache-snapshot-on-exit";
+	private static final String MEMORY_PRESSURE_MONITOR = "memory-pressure-monitor";
 
 	private boolean showScaleBar;
 	private boolean showMultibox;
@@ -121,6 +198,11 @@ public class Prefs
 	private boolean showScaleBarInMovie;
 	private int scaleBarColor;
 	private int scaleBarBgColor;
+	private String diskCacheDir;
+	private long diskCacheSizeMB;
+	private boolean cacheSnapshotData;
+	private boolean cacheSnapshotOnExit;
+	private boolean memoryPressureMonitor;
 
 	private Prefs( final Properties p )
 	{
@@ -130,6 +212,11 @@ public class Prefs
 		showScaleBarInMovie = getBoolean( p, SHOW_SCALE_BAR_IN_MOVIE, false );
 		scaleBarColor = getInt( p, SCALE_BAR_COLOR, 0xffffffff );
 		scaleBarBgColor = getInt( p, SCALE_BAR_BG_COLOR, 0x88000000 );
+		diskCacheDir = getString( p, DISK_CACHE_DIR, "" );
+		diskCacheSizeMB = getLong( p, DISK_CACHE_SIZE_MB, 10240 );
+		cacheSnapshotData = getBoolean( p, CACHE_SNAPSHOT_DATA, false );
+		cacheSnapshotOnExit = getBoolean( p, CACHE_SNAPSHOT_ON_EXIT, false );
+		memoryPressureMonitor = getBoolean( p, MEMORY_PRESSURE_MONITOR, false );
 	}
 
 	private boolean getBoolean( final Properties p, final String key, final boolean defaultValue )
@@ -152,6 +239,26 @@ public class Prefs
 		}
 	}
 
+	private long getLong( final Properties p, final String key, final long defaultValue )
+	{
+		try
+		{
+			final String property = ( p != null ) ? p.getProperty( key ) : null;
+			return ( property != null ) ? Long.decode( property ).longValue() : defaultValue;
+		}
+		catch ( final NumberFormatException e )
+		{
+			e.printStackTrace();
+			return defaultValue;
+		}
+	}
+
+	private String getString( final Properties p, final String key, final String defaultValue )
+	{
+		final String property = ( p != null ) ? p.getProperty( key ) : null;
+		return ( property != null ) ? property.trim() : defaultValue;
+	}
+
 	private double getDouble( final Properties p, final String key, final double defaultValue )
 	{
 		try
@@ -211,6 +318,11 @@ public class Prefs
 		properties.put( SHOW_SCALE_BAR_IN_MOVIE, "" + prefs.showScaleBarInMovie );
 		properties.put( SCALE_BAR_COLOR, "" + prefs.scaleBarColor );
 		properties.put( SCALE_BAR_BG_COLOR, "" + prefs.scaleBarBgColor );
+		properties.put( DISK_CACHE_DIR, prefs.diskCacheDir );
+		properties.put( DISK_CACHE_SIZE_MB, "" + prefs.diskCacheSizeMB );
+		properties.put( CACHE_SNAPSHOT_DATA, "" + prefs.cacheSnapshotData );
+		properties.put( CACHE_SNAPSHOT_ON_EXIT, "" + prefs.cacheSnapshotOnExit );
+		properties.put( MEMORY_PRESSURE_MONITOR, "" + prefs.memoryPressureMonitor );
 		return properties;
 	}
 
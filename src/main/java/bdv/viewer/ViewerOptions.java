@@ -35,6 +35,8 @@ import org.scijava.ui.behaviour.KeyPressedManager;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
 import bdv.BehaviourTransformEventHandler3D;
+import bdv.img.cache.CacheManager;
+import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.viewer.animate.MessageOverlayAnimator;
 import bdv.viewer.render.AccumulateProjector;
 import bdv.viewer.render.AccumulateProjectorARGB;
@@ -124,6 +126,54 @@ public class ViewerOptions
 		return this;
 	}
 
+	/**
+	 * Set whether several visible sources are rendered in one pass, sampling
+	 * all sources for each pixel, instead of rendering each source to its own
+	 * screen image first. This saves memory and bandwidth with many sources.
+	 * It only applies with the default {@link #accumulateProjectorFactory}.
+	 *
+	 * @param f
+	 *            Whether to render several sources in one pass.
+	 * @see MultiResolutionRenderer#setFuseSources(boolean)
+	 */
+	public ViewerOptions fuseSources( final boolean f )
+	{
+		values.fuseSources = f;
+		return this;
+	}
+
+	/**
+	 * Set whether in-plane translations of the view are rendered by shifting
+	 * the last frame and rendering only the newly exposed pixels. This keeps
+	 * full resolution while panning.
+	 *
+	 * @param p
+	 *            Whether to render in-plane translations incrementally.
+	 * @see MultiResolutionRenderer#setIncrementalPanning(boolean)
+	 */
+	public ViewerOptions incrementalPanning( final boolean p )
+	{
+		values.incrementalPanning = p;
+		return this;
+	}
+
+	/**
+	 * Set whether frames are rendered progressively at full resolution,
+	 * instead of at the coarser {@link #screenScales(double[]) screen scales}
+	 * first. A sparse subset of pixels is rendered first, and the remaining
+	 * pixels are filled in by the following passes, without discarding pixels
+	 * that were already rendered.
+	 *
+	 * @param p
+	 *            Whether to render frames progressively.
+	 * @see MultiResolutionRenderer#setProgressiveRendering(boolean)
+	 */
+	public ViewerOptions progressiveRendering( final boolean p )
+	{
+		values.progressiveRendering = p;
+		return this;
+	}
+
 	/**
 	 * Set how many threads to use for rendering.
 	 *
@@ -189,6 +239,97 @@ public class ViewerOptions
 		return this;
 	}
 
+	/**
+	 * Set how many bytes of cell data the cache should keep in memory. If the
+	 * cache of the image loader is registered with the {@link CacheManager},
+	 * this sets the budget shared by all registered caches.
+	 *
+	 * @param b
+	 *            memory budget for cached cell data in bytes. If {@code b <= 0},
+	 *            the default budget of the image loader's cache is used.
+	 * @see VolatileGlobalCellCache#setMaxCacheBytes(long)
+	 * @see CacheManager#setMaxCacheBytes(long)
+	 */
+	public ViewerOptions maxCacheBytes( final long b )
+	{
+		values.maxCacheBytes = b;
+		return this;
+	}
+
+	/**
+	 * Set how many bytes of direct (off-heap) memory the cache should use for
+	 * cells that are evicted from the in-memory cache.
+	 *
+	 * @param b
+	 *            memory budget for off-heap cell data in bytes. If
+	 *            {@code b <= 0}, no off-heap memory is used.
+	 * @see VolatileGlobalCellCache#setMaxOffHeapBytes(long)
+	 */
+	public ViewerOptions maxOffHeapCacheBytes( final long b )
+	{
+		values.maxOffHeapCacheBytes = b;
+		return this;
+	}
+
+	/**
+	 * Set how many bytes of heap memory the cache should use for compressed
+	 * copies of cells that are evicted from the in-memory cache.
+	 *
+	 * @param b
+	 *            memory budget for compressed cell data in bytes. If
+	 *            {@code b <= 0}, cells are not compressed.
+	 * @see VolatileGlobalCellCache#setMaxCompressedBytes(long)
+	 */
+	public ViewerOptions maxCompressedCacheBytes( final long b )
+	{
+		values.maxCompressedCacheBytes = b;
+		return this;
+	}
+
+	/**
+	 * Set how many of the coarsest mipmap levels of every setup the cache
+	 * should keep in memory for the timepoints around the current timepoint.
+	 * Cells of these levels are loaded in the background and never evicted.
+	 *
+	 * @param n
+	 *            number of coarsest levels to pin. If {@code n <= 0}, no levels
+	 *            are pinned.
+	 * @see VolatileGlobalCellCache#pin(int, int, int)
+	 */
+	public ViewerOptions numPinnedLevels( final int n )
+	{
+		values.numPinnedLevels = n;
+		return this;
+	}
+
+	/**
+	 * Set how many timepoints before and after the current timepoint to pin
+	 * coarse levels for (see {@link #numPinnedLevels(int)}).
+	 *
+	 * @param r
+	 *            timepoint radius.
+	 */
+	public ViewerOptions pinnedTimepointRadius( final int r )
+	{
+		values.pinnedTimepointRadius = r;
+		return this;
+	}
+
+	/**
+	 * Set whether the cache should evict cells that are far from what is
+	 * currently displayed first (in time, resolution, and space), instead of
+	 * evicting least recently used cells first.
+	 *
+	 * @param b
+	 *            whether to use view-aware eviction.
+	 * @see VolatileGlobalCellCache#setRetentionCost(bdv.img.cache.MemoryBoundedLoaderCache.RetentionCost)
+	 */
+	public ViewerOptions viewAwareEviction( final boolean b )
+	{
+		values.viewAwareEviction = b;
+		return this;
+	}
+
 	/**
 	 * Set the {@link InputTriggerConfig} from which keyboard and mouse action mapping is loaded.
 	 *
@@ -234,6 +375,12 @@ public class ViewerOptions
 
 		private boolean doubleBuffered = true;
 
+		private boolean incrementalPanning = true;
+
+		private boolean progressiveRendering = false;
+
+		private boolean fuseSources = true;
+
 		private int numRenderingThreads = 3;
 
 		private int numSourceGroups = 10;
@@ -246,6 +393,18 @@ public class ViewerOptions
 
 		private AccumulateProjectorFactory< ARGBType > accumulateProjectorFactory = AccumulateProjectorARGB.factory;
 
+		private long maxCacheBytes = -1;
+
+		private long maxOffHeapCacheBytes = 0;
+
+		private long maxCompressedCacheBytes = 0;
+
+		private int numPinnedLevels = 0;
+
+		private int pinnedTimepointRadius = 1;
+
+		private boolean viewAwareEviction = true;
+
 		private InputTriggerConfig inputTriggerConfig = null;
 
 		private KeyPressedManager keyPressedManager = null;
@@ -258,12 +417,21 @@ public class ViewerOptions
 				screenScales( screenScales ).
 				targetRenderNanos( targetRenderNanos ).
 				doubleBuffered( doubleBuffered ).
+				incrementalPanning( incrementalPanning ).
+				progressiveRendering( progressiveRendering ).
+				fuseSources( fuseSources ).
 				numRenderingThreads( numRenderingThreads ).
 				numSourceGroups( numSourceGroups ).
 				useVolatileIfAvailable( useVolatileIfAvailable ).
 				msgOverlay( msgOverlay ).
 				transformEventHandlerFactory( transformEventHandlerFactory ).
 				accumulateProjectorFactory( accumulateProjectorFactory ).
+				maxCacheBytes( maxCacheBytes ).
+				maxOffHeapCacheBytes( maxOffHeapCacheBytes ).
+				maxCompressedCacheBytes( maxCompressedCacheBytes ).
+				numPinnedLevels( numPinnedLevels ).
+				pinnedTimepointRadius( pinnedTimepointRadius ).
+				viewAwareEviction( viewAwareEviction ).
 				inputTriggerConfig( inputTriggerConfig );
 		}
 
@@ -292,6 +460,21 @@ public class ViewerOptions
 			return doubleBuffered;
 		}
 
+		public boolean isIncrementalPanning()
+		{
+			return incrementalPanning;
+		}
+
+		public boolean isProgressiveRendering()
+		{
+			return progressiveRendering;
+		}
+
+		public boolean isFuseSources()
+		{
+			return fuseSources;
+		}
+
 		public int getNumRenderingThreads()
 		{
 			return numRenderingThreads;
@@ -322,6 +505,36 @@ public class ViewerOptions
 			return accumulateProjectorFactory;
 		}
 
+		public long getMaxCacheBytes()
+		{
+			return maxCacheBytes;
+		}
+
+		public long getMaxOffHeapCacheBytes()
+		{
+			return maxOffHeapCacheBytes;
+		}
+
+		public long getMaxCompressedCacheBytes()
+		{
+			return maxCompressedCacheBytes;
+		}
+
+		public int getNumPinnedLevels()
+		{
+			return numPinnedLevels;
+		}
+
+		public int getPinnedTimepointRadius()
+		{
+			return pinnedTimepointRadius;
+		}
+
+		public boolean isViewAwareEviction()
+		{
+			return viewAwareEviction;
+		}
+
 		public InputTriggerConfig getInputTriggerConfig()
 		{
 			return inputTriggerConfig;
@@ -53,12 +53,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import javax.management.ObjectName;
 import javax.swing.DefaultBoundedRangeModel;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
@@ -69,6 +73,7 @@ import javax.swing.event.ChangeListener;
 import org.jdom2.Element;
 
 import bdv.cache.CacheControl;
+import bdv.cache.CacheStatisticsBean;
 import bdv.util.Affine3DHelpers;
 import bdv.util.InvokeOnEDT;
 import bdv.util.Prefs;
@@ -161,9 +166,8 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 	protected final JSlider sliderTime;
 
 	/**
-	 * A {@link ThreadGroup} for (only) the threads used by this
-	 * {@link ViewerPanel}, that is, {@link #painterThread} and
-	 * {@link #renderingExecutorService}.
+	 * A {@link ThreadGroup} for the {@link #painterThread} of this
+	 * {@link ViewerPanel}.
 	 */
 	protected ThreadGroup threadGroup;
 
@@ -173,10 +177,18 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 	protected final PainterThread painterThread;
 
 	/**
-	 * The {@link ExecutorService} used for rendereing.
+	 * The {@link ExecutorService} used for rendereing. This is a
+	 * {@link ForkJoinPool}, so that projectors can split their work
+	 * recursively with work stealing.
 	 */
 	protected final ExecutorService renderingExecutorService;
 
+	/**
+	 * Name of the JMX bean exposing the statistics of the cache (see
+	 * {@link CacheStatisticsBean}), or {@code null} if registration failed.
+	 */
+	private final ObjectName cacheStatisticsName;
+
 	/**
 	 * Keeps track of the current mouse coordinates, which are used to provide
 	 * the current global position (see {@link #getGlobalMouseCoordinates(RealPositionable)}).
@@ -282,9 +294,9 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 		display.addOverlayRenderer( renderTarget );
 		display.addOverlayRenderer( this );
 
-		renderingExecutorService = Executors.newFixedThreadPool(
+		renderingExecutorService = new ForkJoinPool(
 				options.getNumRenderingThreads(),
-				new RenderThreadFactory() );
+				new RenderThreadFactory(), null, false );
 		imageRenderer = new MultiResolutionRenderer(
 				renderTarget, painterThread,
 				options.getScreenScales(),
@@ -295,6 +307,10 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 				options.isUseVolatileIfAvailable(),
 				options.getAccumulateProjectorFactory(),
 				cacheControl );
+		imageRenderer.setIncrementalPanning( options.isIncrementalPanning() );
+		imageRenderer.setProgressiveRendering( options.isProgressiveRendering() );
+		imageRenderer.setFuseSources( options.isFuseSources() );
+		cacheStatisticsName = CacheStatisticsBean.register( cacheControl, "ViewerPanel" );
 
 		mouseCoordinates = new MouseCoordinateListener();
 		display.addHandler( mouseCoordinates );
@@ -562,7 +578,7 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 		state.setViewerTransform( transform );
 		for ( final TransformListener< AffineTransform3D > l : transformListeners )
 			l.transformChanged( viewerTransform );
-		requestRepaint();
+		imageRenderer.requestTransformRepaint();
 	}
 
 	@Override
@@ -1126,13 +1142,14 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 			e.printStackTrace();
 		}
 		renderingExecutorService.shutdown();
+		CacheStatisticsBean.unregister( cacheStatisticsName );
 		state.kill();
 		imageRenderer.kill();
 	}
 
 	protected static final AtomicInteger panelNumber = new AtomicInteger( 1 );
 
-	protected class RenderThreadFactory implements ThreadFactory
+	protected class RenderThreadFactory implements ThreadFactory, ForkJoinPool.ForkJoinWorkerThreadFactory
 	{
 		private final String threadNameFormat = String.format(
 				"bdv-panel-%d-thread-%%d",
@@ -1152,6 +1169,59 @@ public class ViewerPanel extends JPanel implements OverlayRenderer, TransformLis
 				t.setPriority( Thread.NORM_PRIORITY );
 			return t;
 		}
+
+		/**
+		 * Context class loader of the thread that created the panel. Rendering
+		 * threads of the {@link ForkJoinPool} get it as well, instead of the
+		 * system class loader that the default worker factory may set.
+		 */
+		private final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+
+		@Override
+		public ForkJoinWorkerThread newThread( final ForkJoinPool pool )
+		{
+			final String name = String.format( threadNameFormat, threadNumber.getAndIncrement() );
+			if ( Thread.currentThread().getThreadGroup() == threadGroup )
+				return new RenderWorkerThread( pool, name, contextClassLoader );
+
+			/*
+			 * A ForkJoinWorkerThread joins the group of the thread that
+			 * creates it. Usually that is the painter thread or another
+			 * rendering thread. Otherwise, create it from a thread in the
+			 * panel's threadGroup.
+			 */
+			final FutureTask< ForkJoinWorkerThread > create = new FutureTask<>( () -> new RenderWorkerThread( pool, name, contextClassLoader ) );
+			new Thread( threadGroup, create, name + "-creator" ).start();
+			try
+			{
+				return create.get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+	}
+
+	/**
+	 * A rendering thread of the {@link ForkJoinPool}, set up like the threads
+	 * created by {@link RenderThreadFactory#newThread(Runnable)}.
+	 */
+	protected static class RenderWorkerThread extends ForkJoinWorkerThread
+	{
+		protected RenderWorkerThread( final ForkJoinPool pool, final String name, final ClassLoader contextClassLoader )
+		{
+			super( pool );
+			setName( name );
+			setContextClassLoader( contextClassLoader );
+			if ( getPriority() != Thread.NORM_PRIORITY )
+				setPriority( Thread.NORM_PRIORITY );
+		}
 	}
 
 	public TransformAwareBufferedImageOverlayRenderer renderTarget()
@@ -30,9 +30,8 @@
 package bdv.viewer.render;
 
 import java.util.ArrayList;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.imglib2.Cursor;
@@ -43,7 +42,23 @@ import net.imglib2.ui.InterruptibleProjector;
 import net.imglib2.ui.util.StopWatch;
 import net.imglib2.view.Views;
 
-public abstract class AccumulateProjector< A, B > implements VolatileProjector
+/**
+ * {@link VolatileProjector} that renders several sources with their own
+ * projectors and then combines the rendered images into the target, see
+ * {@link #accumulate(Cursor[], Object)}.
+ * <p>
+ * If the {@link ExecutorService} is a {@link ForkJoinPool}, the source
+ * projectors that are not yet valid are mapped concurrently, sharing the pool
+ * by work stealing. Otherwise, they are mapped one after another.
+ * </p>
+ * <p>
+ * {@link #setStride(int)} is passed on to the source projectors that are
+ * {@link ProgressiveProjector}s. All target pixels are accumulated from the
+ * source images, in which unrendered pixels are filled by the source
+ * projectors.
+ * </p>
+ */
+public abstract class AccumulateProjector< A, B > implements ProgressiveProjector
 {
 	protected final ArrayList< VolatileProjector > sourceProjectors;
 
@@ -110,68 +125,63 @@ public abstract class AccumulateProjector< A, B > implements VolatileProjector
 		stopWatch.start();
 
 		valid = true;
+		final ArrayList< VolatileProjector > invalidProjectors = new ArrayList<>();
 		for ( final VolatileProjector p : sourceProjectors )
 			if ( !p.isValid() )
+				invalidProjectors.add( p );
+		if ( executorService instanceof ForkJoinPool && invalidProjectors.size() > 1 )
+		{
+			// Render all sources concurrently. Their tasks are forked into the
+			// same pool, so idle threads steal work from any of them.
+			final boolean[] success = new boolean[ invalidProjectors.size() ];
+			RenderTasks.run( executorService, numThreads, invalidProjectors.size(), 1, ( from, to ) -> {
+				for ( int i = from; i < to; ++i )
+					success[ i ] = invalidProjectors.get( i ).map( clearUntouchedTargetPixels );
+			} );
+			for ( int i = 0; i < success.length; ++i )
+				if ( !success[ i ] )
+					return false;
+				else
+					valid &= invalidProjectors.get( i ).isValid();
+		}
+		else
+		{
+			for ( final VolatileProjector p : invalidProjectors )
 				if ( !p.map( clearUntouchedTargetPixels ) )
 					return false;
 				else
 					valid &= p.isValid();
+		}
 
 		final int width = ( int ) target.dimension( 0 );
 		final int height = ( int ) target.dimension( 1 );
-		final int length = width * height;
 
-		final boolean createExecutor = ( executorService == null );
-		final ExecutorService ex = createExecutor ? Executors.newFixedThreadPool( numThreads ) : executorService;
-		final int numTasks = Math.min( numThreads * 10, height );
-		final double taskLength = ( double ) length / numTasks;
 		final int numSources = sources.size();
-		final ArrayList< Callable< Void > > tasks = new ArrayList<>( numTasks );
-		for ( int taskNum = 0; taskNum < numTasks; ++taskNum )
-		{
-			final int myOffset = ( int ) ( taskNum * taskLength );
-			final int myLength = ( (taskNum == numTasks - 1 ) ? length : ( int ) ( ( taskNum + 1 ) * taskLength ) ) - myOffset;
+		RenderTasks.run( executorService, numThreads, height, Math.max( 1, 16384 / width ), ( fromRow, toRow ) -> {
+			if ( interrupted.get() )
+				return;
 
-			final Callable< Void > r = new Callable< Void >()
+			final int myOffset = fromRow * width;
+			final int myLength = ( toRow - fromRow ) * width;
+
+			@SuppressWarnings( "unchecked" )
+			final Cursor< ? extends A >[] sourceCursors = new Cursor[ numSources ];
+			for ( int s = 0; s < numSources; ++s )
 			{
-				@SuppressWarnings( "unchecked" )
-				@Override
-				public Void call()
-				{
-					if ( interrupted.get() )
-						return null;
-
-					final Cursor< ? extends A >[] sourceCursors = new Cursor[ numSources ];
-					for ( int s = 0; s < numSources; ++s )
-					{
-						final Cursor< ? extends A > c = sources.get( s ).cursor();
-						c.jumpFwd( myOffset );
-						sourceCursors[ s ] = c;
-					}
-					final Cursor< B > targetCursor = iterableTarget.cursor();
-					targetCursor.jumpFwd( myOffset );
-
-					for ( int i = 0; i < myLength; ++i )
-					{
-						for ( int s = 0; s < numSources; ++s )
-							sourceCursors[ s ].fwd();
-						accumulate( sourceCursors, targetCursor.next() );
-					}
-					return null;
-				}
-			};
-			tasks.add( r );
-		}
-		try
-		{
-			ex.invokeAll( tasks );
-		}
-		catch ( final InterruptedException e )
-		{
-			Thread.currentThread().interrupt();
-		}
-		if ( createExecutor )
-			ex.shutdown();
+				final Cursor< ? extends A > c = sources.get( s ).cursor();
+				c.jumpFwd( myOffset );
+				sourceCursors[ s ] = c;
+			}
+			final Cursor< B > targetCursor = iterableTarget.cursor();
+			targetCursor.jumpFwd( myOffset );
+
+			for ( int i = 0; i < myLength; ++i )
+			{
+				for ( int s = 0; s < numSources; ++s )
+					sourceCursors[ s ].fwd();
+				accumulate( sourceCursors, targetCursor.next() );
+			}
+		} );
 
 		lastFrameRenderNanoTime = stopWatch.nanoTime();
 
@@ -199,4 +209,12 @@ public abstract class AccumulateProjector< A, B > implements VolatileProjector
 	{
 		return valid;
 	}
+
+	@Override
+	public void setStride( final int stride )
+	{
+		for ( final VolatileProjector p : sourceProjectors )
+			if ( p instanceof ProgressiveProjector )
+				( ( ProgressiveProjector ) p ).setStride( stride );
+	}
 }
@@ -0,0 +1,493 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.converter.Converter;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.ui.util.StopWatch;
+
+/**
+ * {@link VolatileProjector} that renders several sources, each a hierarchy of
+ * (possibly {@link Volatile}) levels, and sums their ARGB values into the
+ * target in one pass. The result is the same as rendering each source with a
+ * {@link VolatileHierarchyProjector} and combining them with
+ * {@link AccumulateProjectorARGB}, but there is no screen image and mask per
+ * source.
+ * <p>
+ * Instead, for each source a bitset records which pixels have been rendered
+ * from its best level. Pixels where this is not the case for some source are
+ * rendered again in the next {@link #map()} call: all sources are sampled,
+ * from the best valid level of each. Bitsets are laid out in square tiles of
+ * {@link #TILE_SIZE} pixels, such that each row of a tile is one {@code long}.
+ * Tiles are rendered in parallel (see {@link RenderTasks}), and complete tiles
+ * are skipped.
+ * </p>
+ * <p>
+ * With a {@link #setStride(int) stride} larger than 1, only a regular subset
+ * of the target pixels is rendered, and the remaining pixels are filled from
+ * their nearest rendered neighbor (see {@link ProgressiveProjector}).
+ * </p>
+ */
+public class FusedVolatileProjectorARGB implements ProgressiveProjector
+{
+	/**
+	 * A source to render: its levels, best first, and the converter to ARGB.
+	 *
+	 * @param <T>
+	 *            pixel type
+	 */
+	public static class FusedSource< T >
+	{
+		private final List< ? extends RandomAccessible< T > > levels;
+
+		private final Converter< ? super T, ARGBType > converter;
+
+		private final boolean isVolatile;
+
+		/**
+		 * @param levels
+		 *            the source, transformed to the target, at each level,
+		 *            best level first.
+		 * @param converter
+		 *            converts source values to ARGB.
+		 * @param isVolatile
+		 *            whether source values are {@link Volatile}. If not, they
+		 *            are always valid.
+		 */
+		public FusedSource(
+				final List< ? extends RandomAccessible< T > > levels,
+				final Converter< ? super T, ARGBType > converter,
+				final boolean isVolatile )
+		{
+			this.levels = levels;
+			this.converter = converter;
+			this.isVolatile = isVolatile;
+		}
+	}
+
+	/**
+	 * Width and height of the tiles, in pixels. This is 64, so that each row
+	 * of a tile is one {@code long} of the bitsets.
+	 */
+	public static final int TILE_SIZE = 64;
+
+	protected final List< FusedSource< ? > > sources;
+
+	protected final RandomAccessibleInterval< ARGBType > target;
+
+	protected final int width;
+
+	protected final int height;
+
+	protected final int numTilesX;
+
+	/**
+	 * For each source, a bit for each target pixel, which is set if the
+	 * pixel was rendered from the best level of the source. Bits of tile
+	 * {@code t} start at {@code long} {@code t * TILE_SIZE}, one {@code long}
+	 * per row.
+	 */
+	protected final long[][] complete;
+
+	/**
+	 * For each tile, whether all its pixels are complete for all sources.
+	 */
+	protected final boolean[] tileComplete;
+
+	protected final int numThreads;
+
+	protected final ExecutorService executorService;
+
+	protected final AtomicBoolean interrupted = new AtomicBoolean();
+
+	protected volatile boolean valid = false;
+
+	/**
+	 * Only target pixels whose coordinates are multiples of {@code stride}
+	 * are rendered.
+	 */
+	protected volatile int stride = 1;
+
+	/**
+	 * Time needed for rendering the last frame, in nano-seconds.
+	 */
+	protected long lastFrameRenderNanoTime;
+
+	public FusedVolatileProjectorARGB(
+			final List< FusedSource< ? > > sources,
+			final RandomAccessibleInterval< ARGBType > target,
+			final int numThreads,
+			final ExecutorService executorService )
+	{
+		this.sources = new ArrayList<>( sources );
+		this.target = target;
+		width = ( int ) target.dimension( 0 );
+		height = ( int ) target.dimension( 1 );
+		numTilesX = ( width + TILE_SIZE - 1 ) / TILE_SIZE;
+		final int numTiles = numTilesX * ( ( height + TILE_SIZE - 1 ) / TILE_SIZE );
+		complete = new long[ sources.size() ][ numTiles * TILE_SIZE ];
+		tileComplete = new boolean[ numTiles ];
+		this.numThreads = numThreads;
+		this.executorService = executorService;
+		lastFrameRenderNanoTime = -1;
+	}
+
+	@Override
+	public void cancel()
+	{
+		interrupted.set( true );
+	}
+
+	@Override
+	public long getLastFrameRenderNanoTime()
+	{
+		return lastFrameRenderNanoTime;
+	}
+
+	@Override
+	public boolean isValid()
+	{
+		return valid;
+	}
+
+	@Override
+	public void setStride( final int stride )
+	{
+		if ( stride < 1 || stride > MAX_STRIDE || Integer.bitCount( stride ) != 1 )
+			throw new IllegalArgumentException( "stride must be a power of two <= " + MAX_STRIDE );
+		this.stride = stride;
+	}
+
+	/**
+	 * Mark the target pixels in the rectangle from ({@code minX}, {@code minY})
+	 * (inclusive) to ({@code maxX}, {@code maxY}) (exclusive), relative to the
+	 * target min, as rendered from the best level of all sources. Their
+	 * values in the target are kept.
+	 */
+	public void markRendered( final int minX, final int minY, final int maxX, final int maxY )
+	{
+		if ( minX >= maxX || minY >= maxY )
+			return;
+		for ( int tile = 0; tile < tileComplete.length; ++tile )
+		{
+			final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+			final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+			final int x1 = Math.min( x0 + TILE_SIZE, width );
+			final int y1 = Math.min( y0 + TILE_SIZE, height );
+			final int mx0 = Math.max( x0, minX );
+			final int mx1 = Math.min( x1, maxX );
+			final int my0 = Math.max( y0, minY );
+			final int my1 = Math.min( y1, maxY );
+			if ( mx0 >= mx1 || my0 >= my1 )
+				continue;
+			final long bits = bits( mx1 - x0 ) & ~bits( mx0 - x0 );
+			for ( final long[] c : complete )
+				for ( int y = my0; y < my1; ++y )
+					c[ tile * TILE_SIZE + y - y0 ] |= bits;
+			tileComplete[ tile ] = isTileComplete( tile );
+		}
+	}
+
+	@Override
+	public boolean map()
+	{
+		return map( true );
+	}
+
+	/**
+	 * Render all pixels that are not complete for all sources. Every pixel is
+	 * written the first time, so {@code clearUntouchedTargetPixels} has no
+	 * effect.
+	 */
+	@Override
+	public boolean map( final boolean clearUntouchedTargetPixels )
+	{
+		interrupted.set( false );
+
+		final StopWatch stopWatch = new StopWatch();
+		stopWatch.start();
+
+		final int stride = this.stride;
+		final int[] dirtyTiles = new int[ tileComplete.length ];
+		int numDirtyTiles = 0;
+		for ( int tile = 0; tile < tileComplete.length; ++tile )
+			if ( !tileComplete[ tile ] )
+				dirtyTiles[ numDirtyTiles++ ] = tile;
+
+		RenderTasks.run( executorService, numThreads, numDirtyTiles, 1, ( from, to ) -> {
+			final Sampler< ? >[] samplers = new Sampler[ sources.size() ];
+			for ( int s = 0; s < samplers.length; ++s )
+				samplers[ s ] = new Sampler<>( sources.get( s ) );
+			final RandomAccess< ARGBType > targetRandomAccess = target.randomAccess( target );
+			for ( int t = from; t < to; ++t )
+				if ( !mapTile( dirtyTiles[ t ], stride, samplers, targetRandomAccess ) )
+					return;
+		} );
+
+		if ( stride > 1 && !interrupted.get() )
+			RenderTasks.run( executorService, numThreads, numDirtyTiles, 1, ( from, to ) -> {
+				final RandomAccess< ARGBType > anchorRandomAccess = target.randomAccess( target );
+				final RandomAccess< ARGBType > targetRandomAccess = target.randomAccess( target );
+				for ( int t = from; t < to; ++t )
+					fillUnrenderedTile( dirtyTiles[ t ], stride, anchorRandomAccess, targetRandomAccess );
+			} );
+
+		lastFrameRenderNanoTime = stopWatch.nanoTime();
+
+		if ( interrupted.get() )
+			return false;
+
+		boolean allComplete = true;
+		for ( final boolean c : tileComplete )
+			allComplete &= c;
+		valid = allComplete;
+		return true;
+	}
+
+	/**
+	 * Render the pixels of a tile that are not complete for all sources and
+	 * whose coordinates are multiples of {@code stride}.
+	 *
+	 * @return {@code false} if rendering was interrupted.
+	 */
+	protected boolean mapTile( final int tile, final int stride, final Sampler< ? >[] samplers, final RandomAccess< ARGBType > targetRandomAccess )
+	{
+		final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+		final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+		final int x1 = Math.min( x0 + TILE_SIZE, width );
+		final int y1 = Math.min( y0 + TILE_SIZE, height );
+		final long rowBits = bits( x1 - x0 );
+		final long columnBits = latticeBits( stride );
+		final long minX = target.min( 0 ) + x0;
+
+		boolean tileDone = true;
+		for ( int y = y0; y < y1; ++y )
+		{
+			if ( interrupted.get() )
+				return false;
+
+			final int row = tile * TILE_SIZE + y - y0;
+			long todo = rowBits & ~completeBits( row );
+			if ( todo == 0 )
+				continue;
+			if ( ( y - y0 ) % stride != 0 )
+			{
+				tileDone = false;
+				continue;
+			}
+			todo &= columnBits;
+
+			final long ty = target.min( 1 ) + y;
+			for ( final Sampler< ? > sampler : samplers )
+				sampler.setRow( ty );
+			targetRandomAccess.setPosition( ty, 1 );
+
+			while ( todo != 0 )
+			{
+				final int bit = Long.numberOfTrailingZeros( todo );
+				todo &= todo - 1;
+				final long x = minX + bit;
+
+				int aSum = 0, rSum = 0, gSum = 0, bSum = 0;
+				for ( int s = 0; s < samplers.length; ++s )
+				{
+					final int level = samplers[ s ].sample( x );
+					if ( level < 0 )
+						continue;
+					if ( level == 0 )
+						complete[ s ][ row ] |= 1L << bit;
+					final int value = samplers[ s ].argb.get();
+					aSum += ARGBType.alpha( value );
+					rSum += ARGBType.red( value );
+					gSum += ARGBType.green( value );
+					bSum += ARGBType.blue( value );
+				}
+				if ( aSum > 255 )
+					aSum = 255;
+				if ( rSum > 255 )
+					rSum = 255;
+				if ( gSum > 255 )
+					gSum = 255;
+				if ( bSum > 255 )
+					bSum = 255;
+				targetRandomAccess.setPosition( x, 0 );
+				targetRandomAccess.get().set( ARGBType.rgba( rSum, gSum, bSum, aSum ) );
+			}
+
+			if ( ( rowBits & ~completeBits( row ) ) != 0 )
+				tileDone = false;
+		}
+		tileComplete[ tile ] = tileDone;
+		return true;
+	}
+
+	/**
+	 * Fill the pixels of a tile that are not complete for all sources and
+	 * whose coordinates are not multiples of {@code stride} with the value of
+	 * the pixel at the top-left corner of their
+	 * {@code stride}&times;{@code stride} block.
+	 */
+	protected void fillUnrenderedTile( final int tile, final int stride, final RandomAccess< ARGBType > anchorRandomAccess, final RandomAccess< ARGBType > targetRandomAccess )
+	{
+		final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+		final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+		final int x1 = Math.min( x0 + TILE_SIZE, width );
+		final int y1 = Math.min( y0 + TILE_SIZE, height );
+		final long rowBits = bits( x1 - x0 );
+		final long columnBits = latticeBits( stride );
+		final long minX = target.min( 0 ) + x0;
+
+		for ( int y = y0; y < y1; ++y )
+		{
+			final int row = tile * TILE_SIZE + y - y0;
+			final int dy = ( y - y0 ) % stride;
+			long todo = rowBits & ~completeBits( row ) & ( dy == 0 ? ~columnBits : -1L );
+			if ( todo == 0 )
+				continue;
+
+			anchorRandomAccess.setPosition( target.min( 1 ) + y - dy, 1 );
+			targetRandomAccess.setPosition( target.min( 1 ) + y, 1 );
+			while ( todo != 0 )
+			{
+				final int bit = Long.numberOfTrailingZeros( todo );
+				todo &= todo - 1;
+				anchorRandomAccess.setPosition( minX + bit - bit % stride, 0 );
+				targetRandomAccess.setPosition( minX + bit, 0 );
+				targetRandomAccess.get().set( anchorRandomAccess.get() );
+			}
+		}
+	}
+
+	/**
+	 * Get the bits of a tile row that are complete for all sources.
+	 */
+	private long completeBits( final int row )
+	{
+		long bits = -1L;
+		for ( final long[] c : complete )
+			bits &= c[ row ];
+		return bits;
+	}
+
+	private boolean isTileComplete( final int tile )
+	{
+		final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+		final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+		final long rowBits = bits( Math.min( x0 + TILE_SIZE, width ) - x0 );
+		final int numRows = Math.min( y0 + TILE_SIZE, height ) - y0;
+		for ( int r = 0; r < numRows; ++r )
+			if ( ( rowBits & ~completeBits( tile * TILE_SIZE + r ) ) != 0 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Get a {@code long} with the bits at multiples of {@code stride} set.
+	 */
+	private static long latticeBits( final int stride )
+	{
+		long bits = 0;
+		for ( int i = 0; i < 64; i += stride )
+			bits |= 1L << i;
+		return bits;
+	}
+
+	/**
+	 * Get a {@code long} with the lowest {@code n} bits set.
+	 */
+	private static long bits( final int n )
+	{
+		return n >= 64 ? -1L : ( 1L << n ) - 1;
+	}
+
+	/**
+	 * Samples one source, from the best valid level.
+	 */
+	protected static class Sampler< T >
+	{
+		private final FusedSource< T > source;
+
+		private final ArrayList< RandomAccess< T > > accesses;
+
+		/**
+		 * The ARGB value of the last {@link #sample(long)}.
+		 */
+		final ARGBType argb = new ARGBType();
+
+		Sampler( final FusedSource< T > source )
+		{
+			this.source = source;
+			accesses = new ArrayList<>( source.levels.size() );
+			for ( final RandomAccessible< T > level : source.levels )
+			{
+				final RandomAccess< T > access = level.randomAccess();
+				access.setPosition( new long[ access.numDimensions() ] );
+				accesses.add( access );
+			}
+		}
+
+		void setRow( final long y )
+		{
+			for ( final RandomAccess< T > access : accesses )
+				access.setPosition( y, 1 );
+		}
+
+		/**
+		 * Sample the source at {@code x} in the current row, from the best
+		 * valid level, into {@link #argb}.
+		 *
+		 * @return the level that was sampled, or -1 if no level was valid.
+		 */
+		int sample( final long x )
+		{
+			for ( int level = 0; level < accesses.size(); ++level )
+			{
+				final RandomAccess< T > access = accesses.get( level );
+				access.setPosition( x, 0 );
+				final T value = access.get();
+				if ( !source.isVolatile || ( ( Volatile< ? > ) value ).isValid() )
+				{
+					source.converter.convert( value, argb );
+					return level;
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -94,12 +94,25 @@ import net.imglib2.ui.util.GuiUtil;
  * display remains interactive.
  * <p>
  * The renderer tries to maintain a per-frame rendering time close to a desired
- * number of <code>targetRenderNanos</code> nanoseconds. If the rendering time
- * (in nanoseconds) for the (currently) highest scaled screen image is above
- * this threshold, a coarser screen scale is chosen as the highest screen scale
- * to use. Similarly, if the rendering time for the (currently) second-highest
- * scaled screen image is below this threshold, this finer screen scale chosen
- * as the highest screen scale to use.
+ * number of <code>targetRenderNanos</code> nanoseconds. The rendering time
+ * (including time spent waiting for data) of each completely rendered frame is
+ * recorded by a {@link ScreenScaleController}, which predicts the rendering
+ * time at each screen scale for the current sources and interpolation. The
+ * finest screen scale that is predicted to be rendered within
+ * <code>targetRenderNanos</code> is chosen as the highest screen scale to use.
+ * <p>
+ * If the viewing transformation was only translated within the viewing plane
+ * by whole screen pixels (see {@link #requestTransformRepaint()}), and the last
+ * frame was rendered completely at full resolution, the last frame is shifted
+ * and only the newly exposed pixels are rendered, at full resolution (see
+ * {@link #setIncrementalPanning(boolean)}).
+ * <p>
+ * Alternatively, frames can be rendered progressively at full resolution (see
+ * {@link #setProgressiveRendering(boolean)}). Then the first pass renders only
+ * every n-th pixel in x and y, with n chosen such that the pass is predicted
+ * to be rendered within <code>targetRenderNanos</code>, and fills the other
+ * pixels from their rendered neighbors. Each following pass halves n, and
+ * renders only the pixels that were not rendered before.
  * <p>
  * The renderer uses multiple threads (if desired) and double-buffering (if
  * desired).
@@ -118,8 +131,13 @@ import net.imglib2.ui.util.GuiUtil;
  * rendering pass, all currently valid data for the best fitting mipmap level
  * and all coarser levels is rendered to a {@link #renderImages temporary image}
  * for each visible source. Then the temporary images are combined to the final
- * image for display. The number of passes required until all data is valid
- * might differ between visible sources.
+ * image for display. With the default accumulation, several sources are
+ * instead sampled and summed in one pass by a {@link FusedVolatileProjectorARGB}
+ * (see {@link #setFuseSources(boolean)}). The number of passes required until
+ * all data is valid might differ between visible sources. If the cache notifies when requested
+ * data has been loaded (see {@link CacheControl#notifiesLoadListeners()}),
+ * another pass is rendered when data arrives. Otherwise, passes are repeated
+ * until all data is valid.
  * <p>
  * Rendering timing is tied to a {@link CacheControl} control for IO budgeting, etc.
  *
@@ -209,15 +227,26 @@ public class MultiResolutionRenderer
 	protected AffineTransform3D[] screenScaleTransforms;
 
 	/**
-	 * If the rendering time (in nanoseconds) for the (currently) highest scaled
-	 * screen image is above this threshold, increase the
-	 * {@link #maxScreenScaleIndex index} of the highest screen scale to use.
-	 * Similarly, if the rendering time for the (currently) second-highest
-	 * scaled screen image is below this threshold, decrease the
-	 * {@link #maxScreenScaleIndex index} of the highest screen scale to use.
+	 * Target rendering time (in nanoseconds) for the highest scaled screen
+	 * image. The {@link #maxScreenScaleIndex index} of the highest screen
+	 * scale to use is chosen by the {@link #screenScaleController} such that
+	 * rendering is predicted to take no longer than this.
 	 */
 	protected final long targetRenderNanos;
 
+	/**
+	 * Predicts rendering times from measured frames and chooses
+	 * {@link #maxScreenScaleIndex}.
+	 */
+	protected final ScreenScaleController screenScaleController;
+
+	/**
+	 * Whether the first {@link VolatileProjector#map(boolean) map} of the
+	 * current {@link #projector} renders all pixels of the screen image, i.e.,
+	 * the frame can be measured by the {@link #screenScaleController}.
+	 */
+	private boolean projectorRendersFullFrame;
+
 	/**
 	 * The index of the (coarsest) screen scale with which to start rendering.
 	 * Once this level is painted, rendering proceeds to lower screen scales
@@ -271,9 +300,92 @@ public class MultiResolutionRenderer
 	 */
 	protected boolean newFrameRequest;
 
+	/**
+	 * How often the {@link #cacheControl} notified that requested data has
+	 * been loaded (see {@link CacheControl#addLoadListener(Runnable)}).
+	 */
+	private long numLoadNotifications;
+
+	/**
+	 * Whether the last frame was rendered completely at the finest screen
+	 * scale, but is missing data. The next load notification triggers a
+	 * repaint.
+	 */
+	private boolean waitingForData;
+
+	/**
+	 * Listener added to the {@link #cacheControl}.
+	 */
+	private final Runnable loadListener = this::dataLoaded;
+
+	/**
+	 * Whether several visible sources are rendered by one
+	 * {@link FusedVolatileProjectorARGB} instead of one projector and screen
+	 * image per source (see {@link #setFuseSources(boolean)}).
+	 */
+	private boolean fuseSources = true;
+
+	/**
+	 * Whether in-plane translations of the viewer transform are rendered by
+	 * shifting the last frame (see {@link #setIncrementalPanning(boolean)}).
+	 */
+	private boolean incrementalPanning = true;
+
+	/**
+	 * Whether frames are rendered progressively at full resolution (see
+	 * {@link #setProgressiveRendering(boolean)}).
+	 */
+	private boolean progressiveRendering = false;
+
+	/**
+	 * The stride of the last pass of the current {@link #projector}, if it
+	 * renders progressively (see {@link ProgressiveProjector}). 1 otherwise.
+	 */
+	private int progressiveStride = 1;
+
+	/**
+	 * The stride for the first pass of progressive rendering if nothing is
+	 * known about rendering times. This corresponds to the coarsest screen
+	 * scale.
+	 */
+	private final int maxProgressiveStride;
+
+	/**
+	 * Whether a repaint was requested for something other than a change of
+	 * the viewer transform (see {@link #requestRepaint()} and
+	 * {@link #requestTransformRepaint()}). Then the last frame cannot be
+	 * shifted.
+	 */
+	private boolean stateChangeRequest = true;
+
+	/**
+	 * The render id (index into {@link #screenImages}) of the last frame, if
+	 * it was rendered completely, at full resolution, and is still intact, so
+	 * that it can be shifted for incremental panning. -1 otherwise.
+	 */
+	private int lastFrameRenderId = -1;
+
+	/**
+	 * The viewer transform of the last frame, if {@link #lastFrameRenderId}
+	 * is valid.
+	 */
+	private final AffineTransform3D lastFrameTransform = new AffineTransform3D();
+
+	/**
+	 * The render id of the current {@link #projector}.
+	 */
+	private int projectorRenderId;
+
+	/**
+	 * Whether the current {@link #projector} can render frames that continue
+	 * a shifted last frame, i.e., all its source projectors are
+	 * {@link VolatileHierarchyProjector}s.
+	 */
+	private boolean projectorSupportsShift;
+
 	/**
 	 * The timepoint for which last a projector was
-	 * {@link #createProjector(ViewerState, int, ARGBScreenImage) created}.
+	 * {@link #createProjector(ViewerState, int, ARGBScreenImage, int[]) created}.
 	 */
 	protected int previousTimepoint;
 
@@ -345,6 +457,11 @@ public class MultiResolutionRenderer
 
 		maxScreenScaleIndex = screenScales.length - 1;
 		requestedScreenScaleIndex = maxScreenScaleIndex;
+		screenScaleController = new ScreenScaleController( screenScales.length );
+		int stride = 1;
+		while ( stride < ProgressiveProjector.MAX_STRIDE && stride * 2 * screenScales[ screenScales.length - 1 ] <= 1 )
+			stride *= 2;
+		maxProgressiveStride = stride;
 		renderingMayBeCancelled = true;
 		this.numRenderingThreads = numRenderingThreads;
 		this.renderingExecutorService = renderingExecutorService;
@@ -353,6 +470,7 @@ public class MultiResolutionRenderer
 		this.cacheControl = cacheControl;
 		newFrameRequest = false;
 		previousTimepoint = -1;
+		cacheControl.addLoadListener( loadListener );
 	}
 
 	/**
@@ -470,8 +588,12 @@ public class MultiResolutionRenderer
 
 		final boolean createProjector;
 
+		final long loadNotificationsBeforeRendering;
+
 		synchronized ( this )
 		{
+			loadNotificationsBeforeRendering = numLoadNotifications;
+
 			// Rendering may be cancelled unless we are rendering at coarsest
 			// screen scale and coarsest mipmap level.
 			renderingMayBeCancelled = ( requestedScreenScaleIndex < maxScreenScaleIndex );
@@ -480,35 +602,72 @@ public class MultiResolutionRenderer
 			if ( clearQueue )
 				cacheControl.prepareNextFrame();
 			createProjector = newFrameRequest || resized || ( requestedScreenScaleIndex != currentScreenScaleIndex );
+			final boolean mayShiftLastFrame = newFrameRequest && !stateChangeRequest && !resized && incrementalPanning && lastFrameRenderId >= 0;
 			newFrameRequest = false;
+			stateChangeRequest = false;
 
 			if ( createProjector )
 			{
 				final int renderId = renderIdQueue.peek();
-				currentScreenScaleIndex = requestedScreenScaleIndex;
-				bufferedImage = bufferedImages[ currentScreenScaleIndex ][ renderId ];
-				final ARGBScreenImage screenImage = screenImages[ currentScreenScaleIndex ][ renderId ];
 				synchronized ( state )
 				{
+					// If the viewer transform was only translated in-plane by
+					// whole pixels, shift the last frame and render only the
+					// newly exposed pixels, at full resolution.
+					final int[] shift = mayShiftLastFrame ? getLastFrameShift( state ) : null;
+					if ( shift != null )
+					{
+						requestedScreenScaleIndex = 0;
+						renderingMayBeCancelled = ( 0 < maxScreenScaleIndex );
+					}
+					else if ( progressiveRendering )
+					{
+						// The first pass of progressive rendering takes the
+						// place of the coarsest screen scale.
+						requestedScreenScaleIndex = 0;
+						renderingMayBeCancelled = false;
+					}
+					currentScreenScaleIndex = requestedScreenScaleIndex;
+					bufferedImage = bufferedImages[ currentScreenScaleIndex ][ renderId ];
+					final ARGBScreenImage screenImage = screenImages[ currentScreenScaleIndex ][ renderId ];
 					final int numVisibleSources = state.getVisibleSourceIndices().size();
-					checkRenewRenderImages( numVisibleSources );
-					checkRenewMaskArrays( numVisibleSources );
-					p = createProjector( state, currentScreenScaleIndex, screenImage );
+					final int numBufferedSources = isFused( numVisibleSources ) ? 0 : numVisibleSources;
+					final boolean renewed = checkRenewRenderImages( numBufferedSources ) | checkRenewMaskArrays( numBufferedSources );
+					final int[] shifted = ( shift != null && !renewed ) ? shiftLastFrame( renderId, shift[ 0 ], shift[ 1 ] ) : null;
+					invalidateLastFrame( renderId );
+					p = createProjector( state, currentScreenScaleIndex, screenImage, shifted );
+					progressiveStride = 1;
+					if ( progressiveRendering && shift == null && p instanceof ProgressiveProjector )
+					{
+						progressiveStride = chooseProgressiveStride();
+						( ( ProgressiveProjector ) p ).setStride( progressiveStride );
+					}
 				}
 				projector = p;
+				projectorRenderId = renderId;
 			}
 			else
 			{
 				bufferedImage = null;
 				p = projector;
+				invalidateLastFrame( projectorRenderId );
+				if ( progressiveStride > 1 )
+				{
+					// Render the next pass of progressive rendering, keeping
+					// the pixels rendered so far.
+					progressiveStride /= 2;
+					( ( ProgressiveProjector ) p ).setStride( progressiveStride );
+					renderingMayBeCancelled = true;
+				}
 			}
 
 			requestedScreenScaleIndex = 0;
 		}
 
 		// try rendering
+		final long startNanos = System.nanoTime();
 		final boolean success = p.map( createProjector );
-		final long rendertime = p.getLastFrameRenderNanoTime();
+		final long rendertime = System.nanoTime() - startNanos;
 
 		synchronized ( this )
 		{
@@ -526,37 +685,58 @@ public class MultiResolutionRenderer
 							renderIdQueue.add( id );
 					}
 
-					if ( currentScreenScaleIndex == maxScreenScaleIndex )
+					if ( projectorRendersFullFrame )
 					{
-						if ( rendertime > targetRenderNanos && maxScreenScaleIndex < screenScales.length - 1 )
-							maxScreenScaleIndex++;
-						else if ( rendertime < targetRenderNanos / 3 && maxScreenScaleIndex > 0 )
-							maxScreenScaleIndex--;
-					}
-					else if ( currentScreenScaleIndex == maxScreenScaleIndex - 1 )
-					{
-						if ( rendertime < targetRenderNanos && maxScreenScaleIndex > 0 )
-							maxScreenScaleIndex--;
+						final long[] numPixels = new long[ screenScales.length ];
+						for ( int i = 0; i < numPixels.length; ++i )
+							numPixels[ i ] = screenImages[ i ][ 0 ].size();
+						final long numRenderedPixels = numPixels[ currentScreenScaleIndex ] / ( ( long ) progressiveStride * progressiveStride );
+						screenScaleController.addMeasurement( currentScreenScaleIndex, numRenderedPixels, rendertime );
+						maxScreenScaleIndex = screenScaleController.chooseMaxScreenScaleIndex( numPixels, targetRenderNanos, maxScreenScaleIndex );
 					}
 //					System.out.println( String.format( "rendering:%4d ms", rendertime / 1000000 ) );
 //					System.out.println( "scale = " + currentScreenScaleIndex );
 //					System.out.println( "maxScreenScaleIndex = " + maxScreenScaleIndex + "  (" + screenImages[ maxScreenScaleIndex ][ 0 ].dimension( 0 ) + " x " + screenImages[ maxScreenScaleIndex ][ 0 ].dimension( 1 ) + ")" );
 				}
 
-				if ( currentScreenScaleIndex > 0 )
+				if ( currentScreenScaleIndex == 0 && projectorSupportsShift && p.isValid() )
+				{
+					lastFrameRenderId = projectorRenderId;
+					lastFrameTransform.set( currentProjectorTransform );
+				}
+				else if ( createProjector )
+					lastFrameRenderId = -1;
+
+				if ( currentScreenScaleIndex == 0 && progressiveStride == 1 )
+					cacheControl.frameComplete();
+
+				if ( progressiveStride > 1 )
+					requestRepaint( currentScreenScaleIndex );
+				else if ( currentScreenScaleIndex > 0 )
 					requestRepaint( currentScreenScaleIndex - 1 );
 				else if ( !p.isValid() )
 				{
-					try
+					if ( cacheControl.notifiesLoadListeners() )
 					{
-						Thread.sleep( 1 );
+						// repaint when more data arrives
+						if ( numLoadNotifications != loadNotificationsBeforeRendering )
+							requestRepaint( currentScreenScaleIndex );
+						else
+							waitingForData = true;
 					}
-					catch ( final InterruptedException e )
+					else
 					{
-						// restore interrupted state
-						Thread.currentThread().interrupt();
+						try
+						{
+							Thread.sleep( 1 );
+						}
+						catch ( final InterruptedException e )
+						{
+							// restore interrupted state
+							Thread.currentThread().interrupt();
+						}
+						requestRepaint( currentScreenScaleIndex );
 					}
-					requestRepaint( currentScreenScaleIndex );
 				}
 			}
 		}
@@ -569,11 +749,43 @@ public class MultiResolutionRenderer
 	 * screen scale index and mipmap level.
 	 */
 	public synchronized void requestRepaint()
+	{
+		stateChangeRequest = true;
+		newFrameRequest = true;
+		requestRepaint( maxScreenScaleIndex );
+	}
+
+	/**
+	 * Request a repaint of the display from the painter thread after only the
+	 * viewer transform has changed. If the transform was translated within
+	 * the viewing plane by whole screen pixels, the last frame is shifted and
+	 * only the newly exposed pixels are rendered, at full resolution.
+	 * Otherwise, this is the same as {@link #requestRepaint()}.
+	 */
+	public synchronized void requestTransformRepaint()
 	{
 		newFrameRequest = true;
 		requestRepaint( maxScreenScaleIndex );
 	}
 
+	/**
+	 * Set whether in-plane translations of the viewer transform (see
+	 * {@link #requestTransformRepaint()}) are rendered by shifting the last
+	 * frame. This requires that the last frame was rendered completely at
+	 * full resolution.
+	 */
+	public synchronized void setIncrementalPanning( final boolean incrementalPanning )
+	{
+		this.incrementalPanning = incrementalPanning;
+		if ( !incrementalPanning )
+			lastFrameRenderId = -1;
+	}
+
+	public synchronized boolean isIncrementalPanning()
+	{
+		return incrementalPanning;
+	}
+
 	/**
 	 * Request a repaint of the display from the painter thread. The painter
 	 * thread will trigger a {@link #paint(ViewerState)} as soon as possible (that is,
@@ -582,6 +794,7 @@ public class MultiResolutionRenderer
 	 */
 	public synchronized void requestRepaint( final int screenScaleIndex )
 	{
+		waitingForData = false;
 		if ( renderingMayBeCancelled && projector != null )
 			projector.cancel();
 		if ( screenScaleIndex > requestedScreenScaleIndex )
@@ -589,6 +802,17 @@ public class MultiResolutionRenderer
 		painterThread.requestRepaint();
 	}
 
+	/**
+	 * Called by the {@link #cacheControl} when requested data has been
+	 * loaded. Repaints if the last frame is waiting for data.
+	 */
+	private synchronized void dataLoaded()
+	{
+		++numLoadNotifications;
+		if ( waitingForData )
+			requestRepaint( currentScreenScaleIndex );
+	}
+
 	/**
 	 * DON'T USE THIS.
 	 * <p>
@@ -599,6 +823,7 @@ public class MultiResolutionRenderer
 	 */
 	public void kill()
 	{
+		cacheControl.removeLoadListener( loadListener );
 		if ( display instanceof TransformAwareBufferedImageOverlayRenderer )
 			( ( TransformAwareBufferedImageOverlayRenderer ) display ).kill();
 		projector = null;
@@ -614,10 +839,167 @@ public class MultiResolutionRenderer
 			bufferedImages[ i ] = null;
 	}
 
+	/**
+	 * Set whether frames are rendered progressively at full resolution,
+	 * instead of at coarser screen scales first. The first pass renders every
+	 * n-th pixel in x and y, and fills the other pixels from their rendered
+	 * neighbors. n is the smallest power of two for which the pass is
+	 * predicted to be rendered within <code>targetRenderNanos</code>. Each
+	 * following pass halves n and renders only the pixels that were not
+	 * rendered before, so that no rendered pixel is discarded. This requires a
+	 * {@link ProgressiveProjector}. Other projectors render the full frame at
+	 * full resolution.
+	 */
+	public synchronized void setProgressiveRendering( final boolean progressiveRendering )
+	{
+		this.progressiveRendering = progressiveRendering;
+	}
+
+	public synchronized boolean isProgressiveRendering()
+	{
+		return progressiveRendering;
+	}
+
+	/**
+	 * Choose the stride for the first pass of progressive rendering: the
+	 * smallest power of two for which the pass is predicted to be rendered
+	 * within {@link #targetRenderNanos}, at most
+	 * {@link #maxProgressiveStride}.
+	 */
+	private int chooseProgressiveStride()
+	{
+		final long numPixels = screenImages[ 0 ][ 0 ].size();
+		int stride = 1;
+		while ( stride < maxProgressiveStride && !( screenScaleController.predictRenderNanos( 0, numPixels / ( ( long ) stride * stride ) ) <= targetRenderNanos ) )
+			stride *= 2;
+		return stride;
+	}
+
+	/**
+	 * Set whether several visible sources are rendered by one
+	 * {@link FusedVolatileProjectorARGB}, which samples all sources and sums
+	 * them into the screen image in one pass. Otherwise, each source is
+	 * rendered to its own screen image and mask by a separate projector, and
+	 * these are combined by the {@link AccumulateProjectorFactory}. Sources
+	 * are only fused with the default {@link AccumulateProjectorARGB#factory}.
+	 */
+	public synchronized void setFuseSources( final boolean fuseSources )
+	{
+		this.fuseSources = fuseSources;
+	}
+
+	public synchronized boolean isFuseSources()
+	{
+		return fuseSources;
+	}
+
+	/**
+	 * Whether {@code numVisibleSources} sources are rendered by a
+	 * {@link FusedVolatileProjectorARGB}.
+	 */
+	private boolean isFused( final int numVisibleSources )
+	{
+		return fuseSources && numVisibleSources > 1 && accumulateProjectorFactory == AccumulateProjectorARGB.factory;
+	}
+
+	/**
+	 * Mark the last frame as not shiftable, if rendering into the buffers of
+	 * {@code renderId} overwrites it.
+	 */
+	private void invalidateLastFrame( final int renderId )
+	{
+		// the render images of the sources are shared by all frames
+		if ( !doubleBuffered || renderImages[ 0 ].length > 0 || renderId == lastFrameRenderId )
+			lastFrameRenderId = -1;
+	}
+
+	/**
+	 * Get the shift of the full resolution screen image from the last frame
+	 * to the current viewer transform.
+	 *
+	 * @return { dx, dy } in screen pixels, or {@code null} if the viewer
+	 *         transform did not change by an in-plane translation by whole
+	 *         pixels (or by more than the screen size).
+	 */
+	private int[] getLastFrameShift( final ViewerState viewerState )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		viewerState.getViewerTransform( transform );
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+			{
+				final double a = transform.get( r, c );
+				if ( Math.abs( a - lastFrameTransform.get( r, c ) ) > 1e-9 * Math.max( 1, Math.abs( a ) ) )
+					return null;
+			}
+		if ( Math.abs( transform.get( 2, 3 ) - lastFrameTransform.get( 2, 3 ) ) > 1e-6 )
+			return null;
+
+		final AffineTransform3D screenScaleTransform = screenScaleTransforms[ 0 ];
+		final double sx = screenScaleTransform.get( 0, 0 ) * ( transform.get( 0, 3 ) - lastFrameTransform.get( 0, 3 ) );
+		final double sy = screenScaleTransform.get( 1, 1 ) * ( transform.get( 1, 3 ) - lastFrameTransform.get( 1, 3 ) );
+		final long dx = Math.round( sx );
+		final long dy = Math.round( sy );
+		if ( Math.abs( sx - dx ) > 1e-6 || Math.abs( sy - dy ) > 1e-6 )
+			return null;
+
+		final ARGBScreenImage screenImage = screenImages[ 0 ][ 0 ];
+		if ( Math.abs( dx ) >= screenImage.dimension( 0 ) || Math.abs( dy ) >= screenImage.dimension( 1 ) )
+			return null;
+
+		return new int[] { ( int ) dx, ( int ) dy };
+	}
+
+	/**
+	 * Copy the last frame, shifted by ({@code dx}, {@code dy}), to the full
+	 * resolution screen image with {@code renderId}. If sources are rendered
+	 * to separate render images, these are shifted as well.
+	 *
+	 * @return the rectangle { minX, minY, maxX, maxY } (max exclusive) of
+	 *         pixels that were copied from the last frame.
+	 */
+	private int[] shiftLastFrame( final int renderId, final int dx, final int dy )
+	{
+		final ARGBScreenImage target = screenImages[ 0 ][ renderId ];
+		final int w = ( int ) target.dimension( 0 );
+		final int h = ( int ) target.dimension( 1 );
+		shift( screenImages[ 0 ][ lastFrameRenderId ].getData(), target.getData(), w, h, dx, dy );
+		for ( final ARGBScreenImage renderImage : renderImages[ 0 ] )
+			shift( renderImage.getData(), renderImage.getData(), w, h, dx, dy );
+		return new int[] { Math.max( 0, dx ), Math.max( 0, dy ), Math.min( w, w + dx ), Math.min( h, h + dy ) };
+	}
+
+	/**
+	 * Copy the {@code w x h} image {@code src} shifted by ({@code dx},
+	 * {@code dy}) to {@code dst}. {@code src} and {@code dst} may be the same
+	 * array. Pixels of {@code dst} that are not covered by the shifted
+	 * {@code src} are left unchanged.
+	 */
+	private static void shift( final int[] src, final int[] dst, final int w, final int h, final int dx, final int dy )
+	{
+		final int minX = Math.max( 0, dx );
+		final int length = Math.min( w, w + dx ) - minX;
+		final int minY = Math.max( 0, dy );
+		final int maxY = Math.min( h, h + dy );
+		if ( dy > 0 )
+			for ( int y = maxY - 1; y >= minY; --y )
+				System.arraycopy( src, ( y - dy ) * w + minX - dx, dst, y * w + minX, length );
+		else
+			for ( int y = minY; y < maxY; ++y )
+				System.arraycopy( src, ( y - dy ) * w + minX - dx, dst, y * w + minX, length );
+	}
+
+	/**
+	 * @param shifted
+	 *            if not {@code null}, the rectangle { minX, minY, maxX, maxY }
+	 *            of pixels that have been copied from the shifted last frame.
+	 *            These are not rendered again.
+	 */
 	private VolatileProjector createProjector(
 			final ViewerState viewerState,
 			final int screenScaleIndex,
-			final ARGBScreenImage screenImage )
+			final ARGBScreenImage screenImage,
+			final int[] shifted )
 	{
 		/*
 		 * This shouldn't be necessary, with
@@ -627,12 +1009,24 @@ public class MultiResolutionRenderer
 		final List< SourceState< ? > > sourceStates = viewerState.getSources();
 		final List< Integer > visibleSourceIndices = viewerState.getVisibleSourceIndices();
 		VolatileProjector projector;
+		projectorSupportsShift = true;
+		projectorRendersFullFrame = shifted == null;
+		screenScaleController.setCostKey( getCostKey( viewerState ) );
 		if ( visibleSourceIndices.isEmpty() )
 			projector = new EmptyProjector<>( screenImage );
 		else if ( visibleSourceIndices.size() == 1 )
 		{
 			final int i = visibleSourceIndices.get( 0 );
 			projector = createSingleSourceProjector( viewerState, sourceStates.get( i ), i, currentScreenScaleIndex, screenImage, renderMaskArrays[ 0 ] );
+			markShifted( projector, shifted );
+		}
+		else if ( isFused( visibleSourceIndices.size() ) )
+		{
+			final ArrayList< FusedVolatileProjectorARGB.FusedSource< ? > > fusedSources = new ArrayList<>();
+			for ( final int i : visibleSourceIndices )
+				fusedSources.add( createFusedSource( viewerState, sourceStates.get( i ), i, screenImage ) );
+			projector = new FusedVolatileProjectorARGB( fusedSources, screenImage, numRenderingThreads, renderingExecutorService );
+			markShifted( projector, shifted );
 		}
 		else
 		{
@@ -648,6 +1042,7 @@ public class MultiResolutionRenderer
 				final VolatileProjector p = createSingleSourceProjector(
 						viewerState, sourceStates.get( i ), i, currentScreenScaleIndex,
 						renderImage, maskArray );
+				markShifted( p, shifted );
 				sourceProjectors.add( p );
 				sources.add( sourceStates.get( i ).getSpimSource() );
 				sourceImages.add( renderImage );
@@ -660,6 +1055,51 @@ public class MultiResolutionRenderer
 		return projector;
 	}
 
+	/**
+	 * Get the {@link ScreenScaleController#setCostKey(String) cost key} for
+	 * rendering the visible sources of {@code viewerState}: the interpolation
+	 * method, whether sources are fused, and the source types.
+	 */
+	private String getCostKey( final ViewerState viewerState )
+	{
+		final List< Integer > visibleSourceIndices = viewerState.getVisibleSourceIndices();
+		final StringBuilder key = new StringBuilder( viewerState.getInterpolation().name() );
+		if ( isFused( visibleSourceIndices.size() ) )
+			key.append( " fused" );
+		for ( final int i : visibleSourceIndices )
+			key.append( ' ' ).append( viewerState.getSources().get( i ).getSpimSource().getType().getClass().getSimpleName() );
+		return key.toString();
+	}
+
+	/**
+	 * Get the controller that chooses the screen scale to start rendering
+	 * with, e.g., to inspect its predictions or tune it.
+	 */
+	public ScreenScaleController getScreenScaleController()
+	{
+		return screenScaleController;
+	}
+
+	/**
+	 * Tell a source projector which pixels have been copied from the shifted
+	 * last frame. Updates {@link #projectorSupportsShift}.
+	 */
+	private void markShifted( final VolatileProjector projector, final int[] shifted )
+	{
+		if ( projector instanceof VolatileHierarchyProjector )
+		{
+			if ( shifted != null )
+				( ( VolatileHierarchyProjector< ?, ? > ) projector ).markRendered( shifted[ 0 ], shifted[ 1 ], shifted[ 2 ], shifted[ 3 ] );
+		}
+		else if ( projector instanceof FusedVolatileProjectorARGB )
+		{
+			if ( shifted != null )
+				( ( FusedVolatileProjectorARGB ) projector ).markRendered( shifted[ 0 ], shifted[ 1 ], shifted[ 2 ], shifted[ 3 ] );
+		}
+		else
+			projectorSupportsShift = false;
+	}
+
 	private static class SimpleVolatileProjector< A, B > extends SimpleInterruptibleProjector< A, B > implements VolatileProjector
 	{
 		private boolean valid = false;
@@ -723,6 +1163,52 @@ public class MultiResolutionRenderer
 			final int screenScaleIndex,
 			final ARGBScreenImage screenImage,
 			final byte[] maskArray )
+	{
+		final ArrayList< RandomAccessible< T > > renderList = createVolatileRenderList( viewerState, source, screenImage );
+		return new VolatileHierarchyProjector<>( renderList, source.getConverter(), screenImage, maskArray, numRenderingThreads, renderingExecutorService );
+	}
+
+	private < T > FusedVolatileProjectorARGB.FusedSource< ? > createFusedSource(
+			final ViewerState viewerState,
+			final SourceState< T > source,
+			final int sourceIndex,
+			final ARGBScreenImage screenImage )
+	{
+		if ( useVolatileIfAvailable )
+		{
+			if ( source.asVolatile() != null )
+				return createVolatileFusedSource( viewerState, source.asVolatile(), screenImage );
+			else if ( source.getSpimSource().getType() instanceof Volatile )
+			{
+				@SuppressWarnings( "unchecked" )
+				final SourceState< ? extends Volatile< ? > > vsource = ( SourceState< ? extends Volatile< ? > > ) source;
+				return createVolatileFusedSource( viewerState, vsource, screenImage );
+			}
+		}
+
+		final AffineTransform3D screenScaleTransform = screenScaleTransforms[ currentScreenScaleIndex ];
+		final int bestLevel = viewerState.getBestMipMapLevel( screenScaleTransform, sourceIndex );
+		return new FusedVolatileProjectorARGB.FusedSource<>(
+				Collections.singletonList( getTransformedSource( viewerState, source.getSpimSource(), screenScaleTransform, bestLevel, null ) ),
+				source.getConverter(), false );
+	}
+
+	private < T extends Volatile< ? > > FusedVolatileProjectorARGB.FusedSource< T > createVolatileFusedSource(
+			final ViewerState viewerState,
+			final SourceState< T > source,
+			final ARGBScreenImage screenImage )
+	{
+		return new FusedVolatileProjectorARGB.FusedSource<>( createVolatileRenderList( viewerState, source, screenImage ), source.getConverter(), true );
+	}
+
+	/**
+	 * Get the levels of a volatile source to render, transformed to the
+	 * screen, best level first. Prefetches the cells required for rendering.
+	 */
+	private < T extends Volatile< ? > > ArrayList< RandomAccessible< T > > createVolatileRenderList(
+			final ViewerState viewerState,
+			final SourceState< T > source,
+			final ARGBScreenImage screenImage )
 	{
 		final AffineTransform3D screenScaleTransform = screenScaleTransforms[ currentScreenScaleIndex ];
 		final ArrayList< RandomAccessible< T > > renderList = new ArrayList<>();
@@ -754,9 +1240,12 @@ public class MultiResolutionRenderer
 			renderList.add( getTransformedSource( viewerState, spimSource, screenScaleTransform, l.getMipmapLevel(), l.getRenderCacheHints() ) );
 
 		if ( hints.renewHintsAfterPaintingOnce() )
+		{
 			newFrameRequest = true;
+			stateChangeRequest = true;
+		}
 
-		return new VolatileHierarchyProjector<>( renderList, source.getConverter(), screenImage, maskArray, numRenderingThreads, renderingExecutorService );
+		return renderList;
 	}
 
 	private static < T > RandomAccessible< T > getTransformedSource(
@@ -782,6 +1271,11 @@ public class MultiResolutionRenderer
 		sourceToScreen.concatenate( sourceTransform );
 		sourceToScreen.preConcatenate( screenScaleTransform );
 
+		// sample cells directly, if possible
+		final RandomAccessible< T > direct = NearestNeighborCellImgView.create( img, ipimg, sourceToScreen );
+		if ( direct != null )
+			return direct;
+
 		return RealViews.affine( ipimg, sourceToScreen );
 	}
 
@@ -0,0 +1,362 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.interpolation.Interpolant;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.outofbounds.OutOfBoundsConstantValueFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+
+/**
+ * A 3D {@link AbstractCellImg}, extended by a constant value, interpolated
+ * with nearest-neighbor interpolation, and transformed by an affine transform.
+ * This is equivalent to
+ * {@code RealViews.affine( Views.interpolate( Views.extendValue( img, value ), new NearestNeighborInterpolatorFactory<>() ), transform )},
+ * but its {@link RandomAccess} indexes the data of the current cell directly,
+ * instead of going through the transformed, interpolated, and extended views
+ * and the cell random access. Moving along a dimension steps incrementally in
+ * source coordinates, and the current cell is only looked up again when the
+ * nearest source voxel leaves it.
+ * <p>
+ * Use {@link #create(RandomAccessibleInterval, RealRandomAccessible, AffineTransform3D)}
+ * to check whether an interpolated source can be rendered this way.
+ * </p>
+ *
+ * @param <T>
+ *            pixel type
+ * @param <A>
+ *            access type of the cells
+ * @param <C>
+ *            cell type
+ */
+public class NearestNeighborCellImgView< T extends NativeType< T >, A, C extends Cell< A > > implements RandomAccessible< T >
+{
+	private final AbstractCellImg< T, A, C, ? > img;
+
+	private final RandomAccessibleInterval< C > cells;
+
+	private final CellGrid grid;
+
+	private final T outOfBoundsValue;
+
+	/**
+	 * The transform from target to source coordinates.
+	 */
+	private final AffineTransform3D targetToSource;
+
+	/**
+	 * Source image dimensions.
+	 */
+	private final long[] dimensions = new long[ 3 ];
+
+	/**
+	 * Dimensions of regular cells.
+	 */
+	private final int[] cellDimensions = new int[ 3 ];
+
+	public NearestNeighborCellImgView( final AbstractCellImg< T, A, C, ? > img, final T outOfBoundsValue, final AffineTransform3D sourceToTarget )
+	{
+		this.img = img;
+		this.cells = img.getCells();
+		this.grid = img.getCellGrid();
+		this.outOfBoundsValue = outOfBoundsValue;
+		this.targetToSource = sourceToTarget.inverse();
+		for ( int d = 0; d < 3; ++d )
+		{
+			dimensions[ d ] = grid.imgDimension( d );
+			cellDimensions[ d ] = grid.cellDimension( d );
+		}
+	}
+
+	/**
+	 * Get a {@link NearestNeighborCellImgView} for an interpolated source, if
+	 * possible.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interpolated
+	 *            the interpolated source image.
+	 * @param sourceToTarget
+	 *            the transform from source to target coordinates.
+	 * @return a {@link NearestNeighborCellImgView} that is equivalent to
+	 *         {@code RealViews.affine( interpolated, sourceToTarget )}, or
+	 *         {@code null} if {@code img} is not a 3D {@link AbstractCellImg}
+	 *         or {@code interpolated} is not {@code img}, extended by a
+	 *         constant value, with nearest-neighbor interpolation.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public static < T > RandomAccessible< T > create(
+			final RandomAccessibleInterval< T > img,
+			final RealRandomAccessible< T > interpolated,
+			final AffineTransform3D sourceToTarget )
+	{
+		if ( !( img instanceof AbstractCellImg ) || img.numDimensions() != 3 || !( interpolated instanceof Interpolant ) )
+			return null;
+
+		final Interpolant< T, ? > interpolant = ( Interpolant< T, ? > ) interpolated;
+		if ( !( interpolant.getInterpolatorFactory() instanceof NearestNeighborInterpolatorFactory )
+				|| !( interpolant.getSource() instanceof ExtendedRandomAccessibleInterval ) )
+			return null;
+
+		final ExtendedRandomAccessibleInterval< T, ? > extended = ( ExtendedRandomAccessibleInterval< T, ? > ) interpolant.getSource();
+		if ( extended.getSource() != img || !( extended.getOutOfBoundsFactory() instanceof OutOfBoundsConstantValueFactory ) )
+			return null;
+
+		final Object value = ( ( OutOfBoundsConstantValueFactory ) extended.getOutOfBoundsFactory() ).getValue();
+		return new NearestNeighborCellImgView( ( AbstractCellImg ) img, ( NativeType ) value, sourceToTarget );
+	}
+
+	@Override
+	public int numDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess()
+	{
+		return new NearestNeighborCellAccess();
+	}
+
+	@Override
+	public RandomAccess< T > randomAccess( final Interval interval )
+	{
+		return randomAccess();
+	}
+
+	private final class NearestNeighborCellAccess extends Point implements RandomAccess< T >, AbstractCellImg.CellImgSampler< C >
+	{
+		private final T type;
+
+		private final RandomAccess< C > cellAccess;
+
+		private C cell;
+
+		private final long[] cellGridPosition = new long[ 3 ];
+
+		private final long[] cellMin = new long[ 3 ];
+
+		private final long[] cellMax = new long[ 3 ];
+
+		private final int[] currentCellDimensions = new int[ 3 ];
+
+		private int cellStepY;
+
+		private int cellStepZ;
+
+		/**
+		 * The source position corresponding to {@link #position}, if
+		 * {@link #sourcePositionValid}.
+		 */
+		private final double[] sourcePosition = new double[ 3 ];
+
+		private boolean sourcePositionValid;
+
+		NearestNeighborCellAccess()
+		{
+			super( 3 );
+			type = img.createLinkedType();
+			cellAccess = cells.randomAccess();
+			// no current cell
+			for ( int d = 0; d < 3; ++d )
+				cellMax[ d ] = -1;
+		}
+
+		NearestNeighborCellAccess( final NearestNeighborCellAccess a )
+		{
+			this();
+			setPosition( a );
+		}
+
+		@Override
+		public C getCell()
+		{
+			return cell;
+		}
+
+		@Override
+		public T get()
+		{
+			if ( !sourcePositionValid )
+			{
+				for ( int r = 0; r < 3; ++r )
+					sourcePosition[ r ] = targetToSource.get( r, 0 ) * position[ 0 ]
+							+ targetToSource.get( r, 1 ) * position[ 1 ]
+							+ targetToSource.get( r, 2 ) * position[ 2 ]
+							+ targetToSource.get( r, 3 );
+				sourcePositionValid = true;
+			}
+
+			final long x = Math.round( sourcePosition[ 0 ] );
+			final long y = Math.round( sourcePosition[ 1 ] );
+			final long z = Math.round( sourcePosition[ 2 ] );
+			if ( x < 0 || y < 0 || z < 0 || x >= dimensions[ 0 ] || y >= dimensions[ 1 ] || z >= dimensions[ 2 ] )
+				return outOfBoundsValue;
+
+			if ( x < cellMin[ 0 ] || y < cellMin[ 1 ] || z < cellMin[ 2 ] || x > cellMax[ 0 ] || y > cellMax[ 1 ] || z > cellMax[ 2 ] )
+				updateCell( x, y, z );
+
+			type.updateIndex( ( int ) ( ( x - cellMin[ 0 ] ) + ( y - cellMin[ 1 ] ) * cellStepY + ( z - cellMin[ 2 ] ) * cellStepZ ) );
+			return type;
+		}
+
+		/**
+		 * Make the cell containing source voxel ({@code x, y, z}) the current
+		 * cell.
+		 */
+		private void updateCell( final long x, final long y, final long z )
+		{
+			cellGridPosition[ 0 ] = x / cellDimensions[ 0 ];
+			cellGridPosition[ 1 ] = y / cellDimensions[ 1 ];
+			cellGridPosition[ 2 ] = z / cellDimensions[ 2 ];
+			cellAccess.setPosition( cellGridPosition );
+			cell = cellAccess.get();
+			grid.getCellDimensions( cellGridPosition, cellMin, currentCellDimensions );
+			for ( int d = 0; d < 3; ++d )
+				cellMax[ d ] = cellMin[ d ] + currentCellDimensions[ d ] - 1;
+			cellStepY = currentCellDimensions[ 0 ];
+			cellStepZ = currentCellDimensions[ 0 ] * currentCellDimensions[ 1 ];
+			type.updateContainer( this );
+		}
+
+		@Override
+		public void fwd( final int d )
+		{
+			++position[ d ];
+			if ( sourcePositionValid )
+			{
+				sourcePosition[ 0 ] += targetToSource.get( 0, d );
+				sourcePosition[ 1 ] += targetToSource.get( 1, d );
+				sourcePosition[ 2 ] += targetToSource.get( 2, d );
+			}
+		}
+
+		@Override
+		public void bck( final int d )
+		{
+			super.bck( d );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void move( final int distance, final int d )
+		{
+			super.move( distance, d );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void move( final long distance, final int d )
+		{
+			super.move( distance, d );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void move( final Localizable localizable )
+		{
+			super.move( localizable );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void move( final int[] distance )
+		{
+			super.move( distance );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void move( final long[] distance )
+		{
+			super.move( distance );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void setPosition( final Localizable localizable )
+		{
+			super.setPosition( localizable );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void setPosition( final int[] pos )
+		{
+			super.setPosition( pos );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void setPosition( final long[] pos )
+		{
+			super.setPosition( pos );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void setPosition( final int pos, final int d )
+		{
+			super.setPosition( pos, d );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public void setPosition( final long pos, final int d )
+		{
+			super.setPosition( pos, d );
+			sourcePositionValid = false;
+		}
+
+		@Override
+		public NearestNeighborCellAccess copy()
+		{
+			return new NearestNeighborCellAccess( this );
+		}
+
+		@Override
+		public NearestNeighborCellAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+}
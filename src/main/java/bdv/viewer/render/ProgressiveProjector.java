@@ -0,0 +1,57 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+/**
+ * A {@link VolatileProjector} that can render the target progressively at
+ * full resolution. With a stride {@code s > 1}, {@link #map(boolean)} renders
+ * only target pixels whose coordinates (relative to the target min) are both
+ * multiples of {@code s}, and fills each remaining pixel that was not rendered
+ * yet with the value of the rendered pixel at the top-left corner of its
+ * {@code s}&times;{@code s} block. Halving the stride in subsequent
+ * {@link #map(boolean)} calls renders the remaining pixels, while pixels that
+ * are already rendered are kept.
+ */
+public interface ProgressiveProjector extends VolatileProjector
+{
+	/**
+	 * Set the stride for subsequent {@link #map(boolean)} calls.
+	 *
+	 * @param stride
+	 *            a power of two, at most {@link #MAX_STRIDE}. Stride 1 renders
+	 *            all pixels.
+	 */
+	public void setStride( int stride );
+
+	/**
+	 * The largest supported stride.
+	 */
+	public static final int MAX_STRIDE = 64;
+}
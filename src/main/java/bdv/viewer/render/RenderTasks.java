@@ -0,0 +1,172 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs rendering work that is split into independent items, such as screen
+ * tiles or rows, on an {@link ExecutorService}.
+ * <p>
+ * If the executor is a {@link ForkJoinPool}, the range of items is split
+ * recursively into halves, down to a given grain size, and idle threads steal
+ * halves from busy ones. Thus, items that are expensive to render (for example
+ * tiles over dense data) do not hold up threads that finished cheap items.
+ * Otherwise, the items are split into {@code 10 * numThreads} chunks of equal
+ * size which are run with {@link ExecutorService#invokeAll(java.util.Collection)}.
+ * </p>
+ */
+final class RenderTasks
+{
+	/**
+	 * Renders a range of items.
+	 */
+	interface Range
+	{
+		/**
+		 * Render items {@code from} (inclusive) to {@code to} (exclusive).
+		 */
+		void run( int from, int to );
+	}
+
+	private RenderTasks()
+	{}
+
+	/**
+	 * Render items {@code 0} to {@code numItems} (exclusive), and wait until
+	 * all are done.
+	 *
+	 * @param executorService
+	 *            executor to run on. If {@code null}, a new fixed thread pool
+	 *            is created (and shut down afterwards).
+	 * @param numThreads
+	 *            number of threads to split the work for, if
+	 *            {@code executorService} is not a {@link ForkJoinPool}.
+	 * @param numItems
+	 *            number of items.
+	 * @param grainSize
+	 *            minimum number of items of a range, if
+	 *            {@code executorService} is a {@link ForkJoinPool}.
+	 * @param range
+	 *            renders a range of items.
+	 */
+	static void run(
+			final ExecutorService executorService,
+			final int numThreads,
+			final int numItems,
+			final int grainSize,
+			final Range range )
+	{
+		if ( numItems <= 0 )
+			return;
+
+		if ( executorService instanceof ForkJoinPool )
+		{
+			final ForkJoinPool pool = ( ForkJoinPool ) executorService;
+			final Split task = new Split( range, 0, numItems, Math.max( 1, grainSize ) );
+			try
+			{
+				if ( ForkJoinTask.getPool() == pool )
+					task.invoke();
+				else
+					pool.invoke( task );
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		final boolean createExecutor = ( executorService == null );
+		final ExecutorService ex = createExecutor ? Executors.newFixedThreadPool( numThreads ) : executorService;
+		final int numTasks = Math.max( 1, Math.min( numThreads * 10, numItems ) );
+		final double itemsPerTask = ( double ) numItems / numTasks;
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>( numTasks );
+		for ( int taskNum = 0; taskNum < numTasks; ++taskNum )
+		{
+			final int from = ( int ) ( taskNum * itemsPerTask );
+			final int to = ( taskNum == numTasks - 1 ) ? numItems : ( int ) ( ( taskNum + 1 ) * itemsPerTask );
+			tasks.add( () -> {
+				range.run( from, to );
+				return null;
+			} );
+		}
+		try
+		{
+			ex.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		if ( createExecutor )
+			ex.shutdown();
+	}
+
+	private static final class Split extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Range range;
+
+		private final int from;
+
+		private final int to;
+
+		private final int grainSize;
+
+		Split( final Range range, final int from, final int to, final int grainSize )
+		{
+			this.range = range;
+			this.from = from;
+			this.to = to;
+			this.grainSize = grainSize;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( to - from <= grainSize )
+				range.run( from, to );
+			else
+			{
+				final int mid = ( from + to ) >>> 1;
+				invokeAll( new Split( range, from, mid, grainSize ), new Split( range, mid, to, grainSize ) );
+			}
+		}
+	}
+}
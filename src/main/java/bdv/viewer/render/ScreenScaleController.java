@@ -0,0 +1,239 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Predicts the time to render a frame at each screen scale, and chooses the
+ * highest screen scale (the coarsest, at which rendering starts) of the
+ * {@link MultiResolutionRenderer}.
+ * <p>
+ * Frames are classified by a <em>cost key</em> that describes what is
+ * rendered, e.g., the interpolation method and the types of the visible
+ * sources (see {@link #setCostKey(String)}). For each cost key and screen
+ * scale, the controller keeps an exponential moving average of the time per
+ * rendered pixel, measured on frames that were rendered completely (see
+ * {@link #addMeasurement(int, long, long)}). Measured times include time spent
+ * waiting for data. The time for a screen scale without measurements is
+ * extrapolated from the nearest screen scale with measurements. For a new cost
+ * key, the averages of the previous cost key are taken as a starting point.
+ * </p>
+ * <p>
+ * The chosen screen scale is the finest one whose predicted time fits the
+ * target render time (see {@link #chooseMaxScreenScaleIndex(long[], long, int)}).
+ * To avoid switching back and forth, a finer screen scale than the current
+ * one is only chosen if its predicted time fits with a
+ * {@link #setFinerMargin(double) margin}.
+ * </p>
+ */
+public class ScreenScaleController
+{
+	private final int numScreenScales;
+
+	/**
+	 * Average nanoseconds per pixel for each cost key and screen scale.
+	 * {@code NaN} where there are no measurements.
+	 */
+	private final HashMap< String, double[] > nanosPerPixel = new HashMap<>();
+
+	private String costKey = "";
+
+	private double[] currentNanosPerPixel;
+
+	private double smoothing = 0.3;
+
+	private double finerMargin = 0.75;
+
+	public ScreenScaleController( final int numScreenScales )
+	{
+		this.numScreenScales = numScreenScales;
+		currentNanosPerPixel = new double[ numScreenScales ];
+		Arrays.fill( currentNanosPerPixel, Double.NaN );
+		nanosPerPixel.put( costKey, currentNanosPerPixel );
+	}
+
+	/**
+	 * Set the cost key of the frames that are rendered next.
+	 */
+	public synchronized void setCostKey( final String key )
+	{
+		if ( key.equals( costKey ) )
+			return;
+		double[] values = nanosPerPixel.get( key );
+		if ( values == null )
+		{
+			values = currentNanosPerPixel.clone();
+			nanosPerPixel.put( key, values );
+		}
+		costKey = key;
+		currentNanosPerPixel = values;
+	}
+
+	public synchronized String getCostKey()
+	{
+		return costKey;
+	}
+
+	/**
+	 * Add the time for rendering a complete frame.
+	 *
+	 * @param screenScaleIndex
+	 *            screen scale of the frame.
+	 * @param numPixels
+	 *            number of pixels of the frame.
+	 * @param renderNanos
+	 *            time for rendering the frame, in nanoseconds.
+	 */
+	public synchronized void addMeasurement( final int screenScaleIndex, final long numPixels, final long renderNanos )
+	{
+		if ( numPixels <= 0 || renderNanos < 0 )
+			return;
+		final double measured = ( double ) renderNanos / numPixels;
+		final double previous = currentNanosPerPixel[ screenScaleIndex ];
+		currentNanosPerPixel[ screenScaleIndex ] = Double.isNaN( previous )
+				? measured
+				: previous + smoothing * ( measured - previous );
+	}
+
+	/**
+	 * Get the average time per pixel at a screen scale, for the current cost
+	 * key. If there are no measurements at this screen scale, the average of
+	 * the nearest screen scale with measurements is returned.
+	 *
+	 * @return nanoseconds per pixel, or {@code NaN} if there are no
+	 *         measurements.
+	 */
+	public synchronized double getNanosPerPixel( final int screenScaleIndex )
+	{
+		for ( int distance = 0; distance < numScreenScales; ++distance )
+		{
+			final int finer = screenScaleIndex - distance;
+			if ( finer >= 0 && !Double.isNaN( currentNanosPerPixel[ finer ] ) )
+				return currentNanosPerPixel[ finer ];
+			final int coarser = screenScaleIndex + distance;
+			if ( coarser < numScreenScales && !Double.isNaN( currentNanosPerPixel[ coarser ] ) )
+				return currentNanosPerPixel[ coarser ];
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Predict the time for rendering a frame of {@code numPixels} pixels at a
+	 * screen scale, for the current cost key.
+	 *
+	 * @return predicted nanoseconds, or {@code NaN} if there are no
+	 *         measurements.
+	 */
+	public synchronized double predictRenderNanos( final int screenScaleIndex, final long numPixels )
+	{
+		return getNanosPerPixel( screenScaleIndex ) * numPixels;
+	}
+
+	/**
+	 * Choose the highest screen scale index to use.
+	 *
+	 * @param numPixels
+	 *            number of pixels of a frame, for each screen scale.
+	 * @param targetRenderNanos
+	 *            target time for rendering a frame.
+	 * @param currentMaxScreenScaleIndex
+	 *            the current highest screen scale index.
+	 * @return the smallest screen scale index (i.e., the finest screen scale)
+	 *         at which rendering is predicted to take no longer than
+	 *         {@code targetRenderNanos}, or the largest index if there is
+	 *         none. If there are no measurements, returns
+	 *         {@code currentMaxScreenScaleIndex}.
+	 */
+	public synchronized int chooseMaxScreenScaleIndex( final long[] numPixels, final long targetRenderNanos, final int currentMaxScreenScaleIndex )
+	{
+		if ( Double.isNaN( getNanosPerPixel( 0 ) ) )
+			return currentMaxScreenScaleIndex;
+		for ( int i = 0; i < numScreenScales; ++i )
+		{
+			final double budget = i < currentMaxScreenScaleIndex
+					? finerMargin * targetRenderNanos
+					: targetRenderNanos;
+			if ( predictRenderNanos( i, numPixels[ i ] ) <= budget )
+				return i;
+		}
+		return numScreenScales - 1;
+	}
+
+	/**
+	 * Set the weight of a new measurement in the moving averages, between 0
+	 * (exclusive) and 1 (inclusive). The default is 0.3.
+	 */
+	public synchronized void setSmoothing( final double smoothing )
+	{
+		this.smoothing = smoothing;
+	}
+
+	public synchronized double getSmoothing()
+	{
+		return smoothing;
+	}
+
+	/**
+	 * Set the fraction of the target render time that the predicted time at a
+	 * finer screen scale than the current one must fit into, to switch to
+	 * that screen scale. The default is 0.75.
+	 */
+	public synchronized void setFinerMargin( final double finerMargin )
+	{
+		this.finerMargin = finerMargin;
+	}
+
+	public synchronized double getFinerMargin()
+	{
+		return finerMargin;
+	}
+
+	/**
+	 * Forget all measurements.
+	 */
+	public synchronized void clear()
+	{
+		nanosPerPixel.clear();
+		Arrays.fill( currentNanosPerPixel, Double.NaN );
+		nanosPerPixel.put( costKey, currentNanosPerPixel );
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		final StringBuilder sb = new StringBuilder( "ScreenScaleController{" );
+		sb.append( "costKey=" ).append( costKey );
+		sb.append( ", nanosPerPixel=" ).append( Arrays.toString( currentNanosPerPixel ) );
+		sb.append( "}" );
+		return sb.toString();
+	}
+}
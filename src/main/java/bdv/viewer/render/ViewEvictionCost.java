@@ -0,0 +1,253 @@
+/*
+ * #%L
+ * BigDataViewer core classes with minimal dependencies
+ * %%
+ * Copyright (C) 2012 - 2016 Tobias Pietzsch, Stephan Saalfeld, Stephan Preibisch,
+ * Jean-Yves Tinevez, HongKee Moon, Johannes Schindelin, Curtis Rueden, John Bogovic
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package bdv.viewer.render;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bdv.img.cache.MemoryBoundedLoaderCache.RetentionCost;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.cache.VolatileGlobalCellCache.Key;
+import bdv.viewer.Source;
+import bdv.viewer.ViewerPanel;
+import bdv.viewer.state.ViewerState;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.ui.TransformListener;
+
+/**
+ * A {@link RetentionCost} for cells of a {@link VolatileGlobalCellCache} that
+ * is based on what a {@link ViewerPanel} displays. Cells are evicted first if
+ * they are
+ * <ul>
+ * <li>in timepoints far from the current timepoint,</li>
+ * <li>at mipmap levels far from the level that best matches the current
+ * zoom, or</li>
+ * <li>far from the center of the screen (in the displayed plane or in
+ * depth).</li>
+ * </ul>
+ * <p>
+ * The view is updated after each rendered frame, when this is notified as a
+ * {@link ViewerPanel#addRenderTransformListener(TransformListener) render
+ * transform listener}.
+ * </p>
+ */
+public class ViewEvictionCost implements RetentionCost< Key >, TransformListener< AffineTransform3D >
+{
+	/**
+	 * Cost per timepoint of distance from the current timepoint.
+	 */
+	private static final double TIMEPOINT_WEIGHT = 1.0;
+
+	/**
+	 * Cost per mipmap level of distance from the best level.
+	 */
+	private static final double LEVEL_WEIGHT = 1.0;
+
+	/**
+	 * Cost per half screen diagonal of distance from the screen center.
+	 */
+	private static final double DISTANCE_WEIGHT = 1.0;
+
+	/**
+	 * What is displayed for one setup.
+	 */
+	private static final class SetupView
+	{
+		final int bestLevel;
+
+		/**
+		 * Transforms from source to screen coordinates, for each mipmap level.
+		 */
+		final AffineTransform3D[] sourceToScreen;
+
+		SetupView( final int bestLevel, final AffineTransform3D[] sourceToScreen )
+		{
+			this.bestLevel = bestLevel;
+			this.sourceToScreen = sourceToScreen;
+		}
+	}
+
+	private static final class View
+	{
+		final int timepoint;
+
+		final double centerX;
+
+		final double centerY;
+
+		final double halfDiagonal;
+
+		final Map< Integer, SetupView > setups;
+
+		View( final int timepoint, final int width, final int height, final Map< Integer, SetupView > setups )
+		{
+			this.timepoint = timepoint;
+			centerX = 0.5 * width;
+			centerY = 0.5 * height;
+			halfDiagonal = Math.max( 1, 0.5 * Math.sqrt( ( double ) width * width + ( double ) height * height ) );
+			this.setups = setups;
+		}
+	}
+
+	private final ViewerPanel viewer;
+
+	private final VolatileGlobalCellCache cache;
+
+	private final Map< Source< ? >, Integer > setupIds;
+
+	private final Map< Integer, Integer > timepointIndices;
+
+	private volatile View view;
+
+	private double[] lastTransform;
+
+	private int lastTimepoint = -1;
+
+	private int lastWidth;
+
+	private int lastHeight;
+
+	/**
+	 * @param viewer
+	 *            the viewer that displays cells of {@code cache}.
+	 * @param cache
+	 *            the cache.
+	 * @param setupIds
+	 *            setup ids (as used in cell keys) of the sources of the viewer.
+	 *            Sources that are not in the map are ignored.
+	 * @param timepointIds
+	 *            timepoint ids (as used in cell keys) by timepoint index, or
+	 *            {@code null} if timepoint ids are timepoint indices.
+	 */
+	public ViewEvictionCost(
+			final ViewerPanel viewer,
+			final VolatileGlobalCellCache cache,
+			final Map< Source< ? >, Integer > setupIds,
+			final List< Integer > timepointIds )
+	{
+		this.viewer = viewer;
+		this.cache = cache;
+		this.setupIds = setupIds;
+		if ( timepointIds == null )
+			timepointIndices = null;
+		else
+		{
+			timepointIndices = new HashMap<>();
+			for ( int i = 0; i < timepointIds.size(); ++i )
+				timepointIndices.put( timepointIds.get( i ), i );
+		}
+	}
+
+	@Override
+	public synchronized void transformChanged( final AffineTransform3D transform )
+	{
+		final ViewerState state = viewer.getState();
+		final int timepoint = state.getCurrentTimepoint();
+		final int width = viewer.getDisplay().getWidth();
+		final int height = viewer.getDisplay().getHeight();
+		final double[] t = transform.getRowPackedCopy();
+		if ( timepoint == lastTimepoint && width == lastWidth && height == lastHeight && Arrays.equals( t, lastTransform ) )
+			return;
+		lastTimepoint = timepoint;
+		lastWidth = width;
+		lastHeight = height;
+		lastTransform = t;
+
+		final HashMap< Integer, SetupView > setups = new HashMap<>();
+		final AffineTransform3D screenScaleTransform = new AffineTransform3D();
+		for ( int i = 0; i < state.numSources(); ++i )
+		{
+			final Source< ? > source = state.getSources().get( i ).getSpimSource();
+			final Integer setupId = setupIds.get( source );
+			if ( setupId == null || !source.isPresent( timepoint ) )
+				continue;
+			final AffineTransform3D[] sourceToScreen = new AffineTransform3D[ source.getNumMipmapLevels() ];
+			for ( int level = 0; level < sourceToScreen.length; ++level )
+			{
+				final AffineTransform3D m = new AffineTransform3D();
+				source.getSourceTransform( timepoint, level, m );
+				m.preConcatenate( transform );
+				sourceToScreen[ level ] = m;
+			}
+			setups.put( setupId, new SetupView( state.getBestMipMapLevel( screenScaleTransform, i ), sourceToScreen ) );
+		}
+		view = new View( timepoint, width, height, setups );
+	}
+
+	@Override
+	public double cost( final Key key )
+	{
+		final View v = view;
+		if ( v == null )
+			return 0;
+
+		final int timepoint = timepointIndex( key.getTimepoint() );
+		double cost = TIMEPOINT_WEIGHT * Math.abs( timepoint - v.timepoint );
+
+		final int level = key.getLevel();
+		final SetupView setup = v.setups.get( key.getSetup() );
+		if ( setup == null )
+			return cost;
+		cost += LEVEL_WEIGHT * Math.abs( level - setup.bestLevel );
+
+		if ( level < setup.sourceToScreen.length )
+		{
+			final CellGrid grid = cache.getCellGrid( key.getTimepoint(), key.getSetup(), level );
+			if ( grid != null && grid.numDimensions() <= 3 )
+			{
+				final int n = grid.numDimensions();
+				final long[] cellMin = new long[ n ];
+				final int[] cellDims = new int[ n ];
+				grid.getCellDimensions( key.getIndex(), cellMin, cellDims );
+				final double[] center = new double[ 3 ];
+				for ( int d = 0; d < n; ++d )
+					center[ d ] = cellMin[ d ] + 0.5 * cellDims[ d ];
+				final double[] screen = new double[ 3 ];
+				setup.sourceToScreen[ level ].apply( center, screen );
+				final double dx = screen[ 0 ] - v.centerX;
+				final double dy = screen[ 1 ] - v.centerY;
+				final double dz = screen[ 2 ];
+				cost += DISTANCE_WEIGHT * Math.sqrt( dx * dx + dy * dy + dz * dz ) / v.halfDiagonal;
+			}
+		}
+		return cost;
+	}
+
+	private int timepointIndex( final int timepointId )
+	{
+		if ( timepointIndices == null )
+			return timepointId;
+		final Integer index = timepointIndices.get( timepointId );
+		return index == null ? timepointId : index;
+	}
+}
@@ -32,13 +32,10 @@ package bdv.viewer.render;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
@@ -60,11 +57,25 @@ import net.imglib2.view.Views;
  * {@link VolatileProjector} for a hierarchy of {@link Volatile} inputs.  After each
  * {@link #map()} call, the projector has a {@link #isValid() state} that
  * signalizes whether all projected pixels were perfect.
+ * <p>
+ * The target is rendered in square tiles of {@link #TILE_SIZE} pixels. Each
+ * tile remembers the coarsest level from which one of its pixels was rendered.
+ * Tiles that are already rendered from the best available level are skipped
+ * in subsequent {@link #map()} calls, so that repainting to fill in a few
+ * arriving cells only revisits the tiles that are still missing data.
+ * Each tile is rendered from the best level, then from coarser levels where
+ * data is missing, independent of the other tiles. If the executor is a
+ * {@link java.util.concurrent.ForkJoinPool}, tiles are distributed by work
+ * stealing (see {@link RenderTasks}).
+ * <p>
+ * With a {@link #setStride(int) stride} larger than 1, only a regular subset
+ * of the target pixels is rendered, and the remaining pixels are filled from
+ * their nearest rendered neighbor (see {@link ProgressiveProjector}).
  *
  * @author Stephan Saalfeld &lt;saalfeld@mpi-cbg.de&gt;
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
-public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends NumericType< B > > extends AbstractInterruptibleProjector< A, B > implements VolatileProjector
+public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends NumericType< B > > extends AbstractInterruptibleProjector< A, B > implements ProgressiveProjector
 {
 	protected final ArrayList< RandomAccessible< A > > sources = new ArrayList<>();
 
@@ -72,10 +83,35 @@ public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends Nume
 
 	protected final Img< ByteType > mask;
 
+	/**
+	 * Width and height of the screen tiles, in pixels.
+	 */
+	public static final int TILE_SIZE = 64;
+
+	/**
+	 * Number of tiles in X.
+	 */
+	protected final int numTilesX;
+
+	/**
+	 * For each tile (in row-major order), the largest {@link #mask} value of
+	 * its pixels, i.e., the coarsest level from which a pixel of the tile was
+	 * rendered, or {@code Byte.MAX_VALUE} if a pixel was not rendered yet. A
+	 * rendering pass for a level only visits tiles with larger values, so
+	 * tiles that are complete are skipped.
+	 */
+	protected final byte[] tileMaxLevels;
+
 	protected volatile boolean valid = false;
 
 	protected int numInvalidLevels;
 
+	/**
+	 * Only target pixels whose coordinates are multiples of {@code stride}
+	 * are rendered.
+	 */
+	protected volatile int stride = 1;
+
 	/**
 	 * Extends of the source to be used for mapping.
 	 */
@@ -170,6 +206,10 @@ public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends Nume
 		height = ( int )target.dimension( 1 );
 		cr = -width;
 
+		numTilesX = ( width + TILE_SIZE - 1 ) / TILE_SIZE;
+		final int numTilesY = ( height + TILE_SIZE - 1 ) / TILE_SIZE;
+		tileMaxLevels = new byte[ numTilesX * numTilesY ];
+
 		this.numThreads = numThreads;
 		this.executorService = executorService;
 
@@ -200,6 +240,14 @@ public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends Nume
 		return valid;
 	}
 
+	@Override
+	public void setStride( final int stride )
+	{
+		if ( stride < 1 || stride > MAX_STRIDE || Integer.bitCount( stride ) != 1 )
+			throw new IllegalArgumentException( "stride must be a power of two <= " + MAX_STRIDE );
+		this.stride = stride;
+	}
+
 	/**
 	 * Set all pixels in target to 100% transparent zero, and mask to all
 	 * Integer.MAX_VALUE.
@@ -207,18 +255,99 @@ public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends Nume
 	public void clearMask()
 	{
 		Arrays.fill( maskArray, 0, ( int ) mask.size(), Byte.MAX_VALUE );
+		Arrays.fill( tileMaxLevels, Byte.MAX_VALUE );
 		numInvalidLevels = sources.size();
 	}
 
 	/**
-	 * Clear target pixels that were never written.
+	 * Mark the target pixels in the rectangle from ({@code minX}, {@code minY})
+	 * (inclusive) to ({@code maxX}, {@code maxY}) (exclusive), relative to the
+	 * target min, as rendered from the best level. Their values in the target
+	 * are kept. This is used when the target already holds a shifted copy of
+	 * the previous frame.
+	 */
+	public void markRendered( final int minX, final int minY, final int maxX, final int maxY )
+	{
+		if ( minX >= maxX || minY >= maxY )
+			return;
+		for ( int y = minY; y < maxY; ++y )
+			Arrays.fill( maskArray, y * width + minX, y * width + maxX, ( byte ) 0 );
+		for ( int tile = 0; tile < tileMaxLevels.length; ++tile )
+		{
+			final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+			final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+			final int x1 = Math.min( x0 + TILE_SIZE, width );
+			final int y1 = Math.min( y0 + TILE_SIZE, height );
+			if ( x0 >= minX && x1 <= maxX && y0 >= minY && y1 <= maxY )
+				tileMaxLevels[ tile ] = 0;
+		}
+	}
+
+	/**
+	 * Clear target pixels that were never written. Only tiles that contain
+	 * such pixels are visited.
 	 */
 	protected void clearUntouchedTargetPixels()
 	{
-		final Cursor< ByteType > maskCursor = mask.cursor();
-		for ( final B t : iterableTarget )
-			if ( maskCursor.next().get() == Byte.MAX_VALUE )
-				t.setZero();
+		final RandomAccess< B > targetRandomAccess = target.randomAccess( target );
+		for ( int tile = 0; tile < tileMaxLevels.length; ++tile )
+		{
+			if ( tileMaxLevels[ tile ] != Byte.MAX_VALUE )
+				continue;
+			final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+			final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+			final int x1 = Math.min( x0 + TILE_SIZE, width );
+			final int y1 = Math.min( y0 + TILE_SIZE, height );
+			for ( int y = y0; y < y1; ++y )
+			{
+				targetRandomAccess.setPosition( min[ 0 ] + x0, 0 );
+				targetRandomAccess.setPosition( min[ 1 ] + y, 1 );
+				for ( int x = x0, o = y * width + x0; x < x1; ++x, ++o )
+				{
+					if ( maskArray[ o ] == Byte.MAX_VALUE )
+						targetRandomAccess.get().setZero();
+					targetRandomAccess.fwd( 0 );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fill target pixels that were not rendered with the value of the pixel
+	 * at the top-left corner of their {@code stride}&times;{@code stride}
+	 * block. Only tiles that contain such pixels are visited.
+	 */
+	protected void fillUnrenderedTargetPixels( final int stride )
+	{
+		RenderTasks.run( executorService, numThreads, tileMaxLevels.length, 1, ( from, to ) -> {
+			final RandomAccess< B > anchorRandomAccess = target.randomAccess( target );
+			final RandomAccess< B > targetRandomAccess = target.randomAccess( target );
+			for ( int tile = from; tile < to; ++tile )
+			{
+				if ( tileMaxLevels[ tile ] != Byte.MAX_VALUE )
+					continue;
+				final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+				final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+				final int x1 = Math.min( x0 + TILE_SIZE, width );
+				final int y1 = Math.min( y0 + TILE_SIZE, height );
+				for ( int y = y0; y < y1; ++y )
+				{
+					final int ay = y - y % stride;
+					anchorRandomAccess.setPosition( min[ 1 ] + ay, 1 );
+					targetRandomAccess.setPosition( min[ 1 ] + y, 1 );
+					for ( int x = x0, o = y * width + x0; x < x1; ++x, ++o )
+					{
+						final int ax = x - x % stride;
+						if ( maskArray[ o ] == Byte.MAX_VALUE && ( ax != x || ay != y ) )
+						{
+							anchorRandomAccess.setPosition( min[ 0 ] + ax, 0 );
+							targetRandomAccess.setPosition( min[ 0 ] + x, 0 );
+							targetRandomAccess.get().set( anchorRandomAccess.get() );
+						}
+					}
+				}
+			}
+		} );
 	}
 
 	@Override
@@ -239,117 +368,38 @@ public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends Nume
 		final long startTimeIoCumulative = iostat.getCumulativeIoNanoTime();
 //		final long startIoBytes = iostat.getIoBytes();
 
-		final int numTasks;
-		if ( numThreads > 1 )
-		{
-			numTasks = Math.min( numThreads * 10, height );
-		}
-		else
-			numTasks = 1;
-		final double taskHeight = ( double )height / numTasks;
-
-		int i;
-
 		valid = false;
-
-		final boolean createExecutor = ( executorService == null );
-		final ExecutorService ex = createExecutor ? Executors.newFixedThreadPool( numThreads ) : executorService;
-		for ( i = 0; i < numInvalidLevels && !valid; ++i )
+		numInvalidPixels.set( 0 );
+		final int stride = this.stride;
+
+		// Tiles that have pixels which could be rendered from a better level.
+		// Each tile is rendered from all invalid levels in turn, independent
+		// of the other tiles.
+		final int numLevels = numInvalidLevels;
+		final int[] dirtyTiles = new int[ tileMaxLevels.length ];
+		int numDirtyTiles = 0;
+		if ( numLevels > 0 )
+			for ( int tile = 0; tile < tileMaxLevels.length; ++tile )
+				if ( tileMaxLevels[ tile ] > 0 )
+					dirtyTiles[ numDirtyTiles++ ] = tile;
+
+		RenderTasks.run( executorService, numThreads, numDirtyTiles, 1, ( from, to ) -> {
+			for ( int t = from; t < to; ++t )
+				if ( !mapTile( dirtyTiles[ t ], numLevels, stride ) )
+					return;
+		} );
+		if ( interrupted.get() )
 		{
-			final byte iFinal = ( byte ) i;
-
-			valid = true;
-			numInvalidPixels.set( 0 );
-
-			final ArrayList< Callable< Void > > tasks = new ArrayList<>( numTasks );
-			for ( int taskNum = 0; taskNum < numTasks; ++taskNum )
-			{
-				final int myOffset = width * ( int ) ( taskNum * taskHeight );
-				final long myMinY = min[ 1 ] + ( int ) ( taskNum * taskHeight );
-				final int myHeight = ( int ) ( ( (taskNum == numTasks - 1 ) ? height : ( int ) ( ( taskNum + 1 ) * taskHeight ) ) - myMinY - min[ 1 ] );
-
-				final Callable< Void > r = new Callable< Void >()
-				{
-					@Override
-					public Void call()
-					{
-						if ( interrupted.get() )
-							return null;
-
-						final RandomAccess< B > targetRandomAccess = target.randomAccess( target );
-						final Cursor< ByteType > maskCursor = mask.cursor();
-						final RandomAccess< A > sourceRandomAccess = sources.get( iFinal ).randomAccess( sourceInterval );
-						int myNumInvalidPixels = 0;
-
-						final long[] smin = new long[ n ];
-						System.arraycopy( min, 0, smin, 0, n );
-						smin[ 1 ] = myMinY;
-						sourceRandomAccess.setPosition( smin );
-
-						targetRandomAccess.setPosition( min[ 0 ], 0 );
-						targetRandomAccess.setPosition( myMinY, 1 );
-
-						maskCursor.jumpFwd( myOffset );
-
-						for ( int y = 0; y < myHeight; ++y )
-						{
-							if ( interrupted.get() )
-								return null;
-
-							for ( int x = 0; x < width; ++x )
-							{
-								final ByteType m = maskCursor.next();
-								if ( m.get() > iFinal )
-								{
-									final A a = sourceRandomAccess.get();
-									final boolean v = a.isValid();
-									if ( v )
-									{
-										converter.convert( a, targetRandomAccess.get() );
-										m.set( iFinal );
-									}
-									else
-										++myNumInvalidPixels;
-								}
-								sourceRandomAccess.fwd( 0 );
-								targetRandomAccess.fwd( 0 );
-							}
-							++smin[ 1 ];
-							sourceRandomAccess.setPosition( smin );
-							targetRandomAccess.move( cr, 0 );
-							targetRandomAccess.fwd( 1 );
-						}
-						numInvalidPixels.addAndGet( myNumInvalidPixels );
-						if ( myNumInvalidPixels != 0 )
-							valid = false;
-						return null;
-					}
-				};
-				tasks.add( r );
-			}
-			try
-			{
-				ex.invokeAll( tasks );
-			}
-			catch ( final InterruptedException e )
-			{
-				Thread.currentThread().interrupt();
-			}
-			if ( interrupted.get() )
-			{
-//				System.out.println( "interrupted" );
-				if ( createExecutor )
-					ex.shutdown();
-				return false;
-			}
-//			System.out.println( "numInvalidPixels(" + i + ") = " + numInvalidPixels );
+//			System.out.println( "interrupted" );
+			return false;
 		}
-		if ( createExecutor )
-			ex.shutdown();
 
 		if ( clearUntouchedTargetPixels && !interrupted.get() )
 			clearUntouchedTargetPixels();
 
+		if ( stride > 1 )
+			fillUnrenderedTargetPixels( stride );
+
 		final long lastFrameTime = stopWatch.nanoTime();
 //		final long numIoBytes = iostat.getIoBytes() - startIoBytes;
 		lastFrameIoNanoTime = iostat.getIoNanoTime() - startTimeIo;
@@ -358,12 +408,96 @@ public class VolatileHierarchyProjector< A extends Volatile< ? >, B extends Nume
 //		System.out.println( "lastFrameTime = " + lastFrameTime / 1000000 );
 //		System.out.println( "lastFrameRenderNanoTime = " + lastFrameRenderNanoTime / 1000000 );
 
-		if ( valid )
-			numInvalidLevels = i - 1;
+		// All pixels are valid if each was rendered from one of the levels
+		// that were tried. Then only better levels need to be tried next time.
+		byte maxLevel = 0;
+		for ( final byte tileMaxLevel : tileMaxLevels )
+			if ( tileMaxLevel > maxLevel )
+				maxLevel = tileMaxLevel;
+		if ( maxLevel < numInvalidLevels )
+			numInvalidLevels = maxLevel;
 		valid = numInvalidLevels == 0;
 
-//		System.out.println( "Mapping complete after " + ( s + 1 ) + " levels." );
-
 		return !interrupted.get();
 	}
+
+	/**
+	 * Render the pixels of a tile from levels {@code 0} to
+	 * {@code numLevels - 1} in turn, until all pixels are rendered from one
+	 * of the levels tried so far. Pixels that have been rendered from a level
+	 * are not rendered from coarser levels. Only pixels whose coordinates are
+	 * multiples of {@code stride} are rendered. If {@code stride > 1}, the
+	 * tile keeps unrendered pixels and is marked as such.
+	 *
+	 * @return {@code false} if rendering was interrupted.
+	 */
+	protected boolean mapTile( final int tile, final int numLevels, final int stride )
+	{
+		if ( interrupted.get() )
+			return false;
+
+		final int x0 = ( tile % numTilesX ) * TILE_SIZE;
+		final int y0 = ( tile / numTilesX ) * TILE_SIZE;
+		final int x1 = Math.min( x0 + TILE_SIZE, width );
+		final int y1 = Math.min( y0 + TILE_SIZE, height );
+
+		final RandomAccess< B > targetRandomAccess = target.randomAccess( target );
+		final long[] smin = new long[ n ];
+		System.arraycopy( min, 0, smin, 0, n );
+		int myNumInvalidPixels = 0;
+
+		byte tileMax = tileMaxLevels[ tile ];
+		for ( int level = 0; level < numLevels && tileMax > level; ++level )
+		{
+			final byte iFinal = ( byte ) level;
+			final RandomAccess< A > sourceRandomAccess = sources.get( level ).randomAccess( sourceInterval );
+			byte tileMaxLevel = 0;
+
+			for ( int y = y0; y < y1; y += stride )
+			{
+				if ( interrupted.get() )
+					return false;
+
+				smin[ 0 ] = min[ 0 ] + x0;
+				smin[ 1 ] = min[ 1 ] + y;
+				sourceRandomAccess.setPosition( smin );
+				targetRandomAccess.setPosition( smin[ 0 ], 0 );
+				targetRandomAccess.setPosition( smin[ 1 ], 1 );
+
+				for ( int x = x0, o = y * width + x0; x < x1; x += stride, o += stride )
+				{
+					byte m = maskArray[ o ];
+					if ( m > iFinal )
+					{
+						final A a = sourceRandomAccess.get();
+						final boolean v = a.isValid();
+						if ( v )
+						{
+							converter.convert( a, targetRandomAccess.get() );
+							m = iFinal;
+							maskArray[ o ] = m;
+						}
+						else
+							++myNumInvalidPixels;
+					}
+					if ( m > tileMaxLevel )
+						tileMaxLevel = m;
+					if ( stride == 1 )
+					{
+						sourceRandomAccess.fwd( 0 );
+						targetRandomAccess.fwd( 0 );
+					}
+					else
+					{
+						sourceRandomAccess.move( stride, 0 );
+						targetRandomAccess.move( stride, 0 );
+					}
+				}
+			}
+			tileMax = tileMaxLevel;
+		}
+		tileMaxLevels[ tile ] = stride == 1 ? tileMax : Byte.MAX_VALUE;
+		numInvalidPixels.addAndGet( myNumInvalidPixels );
+		return true;
+	}
 }